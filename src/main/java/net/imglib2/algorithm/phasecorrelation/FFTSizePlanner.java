@@ -0,0 +1,343 @@
+/*-
+ * #%L
+ * Multiview stitching of large datasets.
+ * %%
+ * Copyright (C) 2016 - 2017 Big Stitcher developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package net.imglib2.algorithm.phasecorrelation;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+import edu.mines.jtk.dsp.FftComplex;
+import edu.mines.jtk.dsp.FftReal;
+import net.imglib2.Dimensions;
+
+/**
+ * Chooses the mirror extension and the padded FFT size per dimension from the shape of the two images
+ * (e.g. the overlaps) that are phase-correlated.
+ * 
+ * In contrast to {@link net.imglib2.algorithm.fft2.FFTMethods#dimensionsRealToComplexFast(Dimensions, long[], long[])},
+ * which picks the fastest size per dimension independently (and may almost double thin dimensions), the
+ * extension of every dimension is capped relative to its size and the padding is restricted to a window
+ * above the minimal size. Within that window, the combination of sizes with the lowest total cost of the
+ * two forward FFTs, the inverse FFT and the per-pixel work on the PCM is chosen. The cost of a 1d transform
+ * of a given length is estimated from its prime factors, so the same images always get the same plan. Optionally,
+ * it is measured once on the FFT backend instead (and scaled to the estimate of a power of two), the plan then
+ * depends on the machine and on the timing of the measurement.
+ * 
+ * Plans are cached per image shape, so regular grids plan every overlap shape only once.
+ */
+public class FFTSizePlanner
+{
+	public static int defaultExtension = 10;
+	public static double defaultMaxRelativeExtension = 0.25;
+	public static double defaultMaxRelativePadding = 0.25;
+	public static boolean defaultMeasureCosts = false;
+
+	// relative cost of the per-pixel work (cross power spectrum, PCM normalization, peak search) vs. FFT cost
+	public static double perPixelCost = 4.0;
+
+	// measured costs are expressed relative to the measured cost of this size
+	private static final int referenceSize = 256;
+
+	// measured cost of 1d transforms, shared by all planners
+	private static final ConcurrentHashMap< Integer, Double > measuredRealCosts = new ConcurrentHashMap<>();
+	private static final ConcurrentHashMap< Integer, Double > measuredComplexCosts = new ConcurrentHashMap<>();
+
+	private final int extension;
+	private final double maxRelativeExtension;
+	private final double maxRelativePadding;
+	private final boolean measureCosts;
+
+	private final ConcurrentHashMap< String, Plan > plans = new ConcurrentHashMap<>();
+
+	/**
+	 * planner with default settings
+	 */
+	public FFTSizePlanner()
+	{
+		this( defaultExtension, defaultMaxRelativeExtension, defaultMaxRelativePadding, defaultMeasureCosts );
+	}
+
+	/**
+	 * @param extension - number of mirrored pixels at each side of the image
+	 * @param maxRelativeExtension - the extension at each side is at most this fraction of the image size (at least 1 pixel)
+	 * @param maxRelativePadding - padded sizes up to this fraction above the minimal (extended) size are considered
+	 * @param measureCosts - measure the cost of the 1d transforms or estimate it from the prime factors of the sizes
+	 */
+	public FFTSizePlanner( final int extension, final double maxRelativeExtension, final double maxRelativePadding, final boolean measureCosts )
+	{
+		this.extension = extension;
+		this.maxRelativeExtension = maxRelativeExtension;
+		this.maxRelativePadding = maxRelativePadding;
+		this.measureCosts = measureCosts;
+	}
+
+	public int getExtension() { return extension; }
+	public double getMaxRelativeExtension() { return maxRelativeExtension; }
+	public double getMaxRelativePadding() { return maxRelativePadding; }
+	public boolean measuresCosts() { return measureCosts; }
+
+	/**
+	 * @return description of the settings that change the plans (and thereby the results)
+	 */
+	public String getFingerprint()
+	{
+		return extension + "/" + maxRelativeExtension + "/" + maxRelativePadding + ( measureCosts ? "/measured" : "" );
+	}
+
+	/**
+	 * get the (cached) plan for phase-correlating images of size img1 and img2
+	 * @param img1 - size of the first image
+	 * @param img2 - size of the second image
+	 * @return the plan
+	 */
+	public Plan plan( final Dimensions img1, final Dimensions img2 )
+	{
+		final int n = img1.numDimensions();
+		final long[] maxSize = new long[ n ];
+		for ( int d = 0; d < n; ++d )
+			maxSize[ d ] = Math.max( img1.dimension( d ), img2.dimension( d ) );
+
+		return plans.computeIfAbsent( Arrays.toString( maxSize ), k -> computePlan( maxSize ) );
+	}
+
+	/**
+	 * remove all cached plans
+	 */
+	public void clear()
+	{
+		plans.clear();
+	}
+
+	protected Plan computePlan( final long[] size )
+	{
+		final int n = size.length;
+		final int[] ext = new int[ n ];
+		final List< List< Integer > > candidates = new ArrayList<>();
+
+		for ( int d = 0; d < n; ++d )
+		{
+			// cap the extension of thin dimensions, but never extend by more than the image itself
+			final long maxExt = Math.max( 1, Math.round( size[ d ] * maxRelativeExtension ) );
+			ext[ d ] = (int) Math.min( Math.min( extension, maxExt ), size[ d ] );
+
+			final int minSize = (int) ( size[ d ] + 2 * ext[ d ] );
+			final int maxSize = (int) Math.ceil( minSize * ( 1.0 + maxRelativePadding ) );
+
+			candidates.add( validSizes( minSize, maxSize, d == 0 ) );
+		}
+
+		// all combinations of candidate sizes, there are only few per dimension
+		final int[] idx = new int[ n ];
+		final long[] best = new long[ n ];
+		double bestCost = Double.MAX_VALUE;
+
+		while ( true )
+		{
+			final long[] padded = new long[ n ];
+			for ( int d = 0; d < n; ++d )
+				padded[ d ] = candidates.get( d ).get( idx[ d ] );
+
+			final double cost = cost( padded );
+			if ( cost < bestCost )
+			{
+				bestCost = cost;
+				System.arraycopy( padded, 0, best, 0, n );
+			}
+
+			int d = 0;
+			while ( d < n && ++idx[ d ] == candidates.get( d ).size() )
+				idx[ d++ ] = 0;
+
+			if ( d == n )
+				break;
+		}
+
+		return new Plan( ext, best, bestCost );
+	}
+
+	/*
+	 * the cost of two forward FFTs, one inverse FFT and the per-pixel work on a PCM of size padded
+	 */
+	protected double cost( final long[] padded )
+	{
+		final int n = padded.length;
+
+		double nPixels = 1;
+		for ( int d = 0; d < n; ++d )
+			nPixels *= padded[ d ];
+
+		// dimension 0 is real-to-complex, the others are complex on padded[0]/2+1 lines
+		final double nComplexPixels = nPixels / padded[ 0 ] * ( padded[ 0 ] / 2 + 1 );
+
+		double fftCost = ( nPixels / padded[ 0 ] ) * cost1d( (int) padded[ 0 ], true );
+		for ( int d = 1; d < n; ++d )
+			fftCost += ( nComplexPixels / padded[ d ] ) * cost1d( (int) padded[ d ], false );
+
+		return 3 * fftCost + perPixelCost * nPixels;
+	}
+
+	protected double cost1d( final int size, final boolean real )
+	{
+		// measured times are scaled to the units of the estimate, so that perPixelCost means the same in both cases
+		if ( measureCosts )
+			return real ?
+					measureReal( size ) / measureReal( referenceSize ) * estimate( referenceSize ) :
+					measureComplex( size ) / measureComplex( referenceSize ) * estimate( referenceSize );
+		else
+			return estimate( size );
+	}
+
+	/*
+	 * valid sizes of the FFT backend in [minSize, maxSize], at least the smallest valid size >= minSize
+	 */
+	protected static List< Integer > validSizes( final int minSize, final int maxSize, final boolean real )
+	{
+		final List< Integer > sizes = new ArrayList<>();
+
+		int m = real ? FftReal.nfftSmall( minSize ) : FftComplex.nfftSmall( minSize );
+		sizes.add( m );
+
+		while ( true )
+		{
+			m = real ? FftReal.nfftSmall( m + 1 ) : FftComplex.nfftSmall( m + 1 );
+			if ( m > maxSize )
+				break;
+			sizes.add( m );
+		}
+
+		return sizes;
+	}
+
+	/*
+	 * estimated cost of a 1d transform: size * sum of its prime factors
+	 */
+	public static double estimate( final int size )
+	{
+		int sum = 0;
+		int m = size;
+		for ( int p = 2; p * p <= m; ++p )
+			while ( m % p == 0 )
+			{
+				sum += p;
+				m /= p;
+			}
+		if ( m > 1 )
+			sum += m;
+
+		return (double) size * sum;
+	}
+
+	/*
+	 * measured cost (in ns) of a real-to-complex transform of the given size
+	 */
+	public static double measureReal( final int size )
+	{
+		return measuredRealCosts.computeIfAbsent( size, s ->
+		{
+			final FftReal fft = new FftReal( s );
+			final float[] rx = new float[ s ];
+			final float[] cy = new float[ s + 2 ];
+			Arrays.fill( rx, 1 );
+
+			return measure( () -> fft.realToComplex( -1, rx, cy ), s );
+		} );
+	}
+
+	/*
+	 * measured cost (in ns) of a complex-to-complex transform of the given size
+	 */
+	public static double measureComplex( final int size )
+	{
+		return measuredComplexCosts.computeIfAbsent( size, s ->
+		{
+			final FftComplex fft = new FftComplex( s );
+			final float[] cx = new float[ 2 * s ];
+			final float[] cy = new float[ 2 * s ];
+			Arrays.fill( cx, 1 );
+
+			return measure( () -> fft.complexToComplex( -1, cx, cy ), s );
+		} );
+	}
+
+	/*
+	 * best time of a few rounds of repeated transforms, the number of repetitions is chosen such that
+	 * every round processes roughly the same number of samples
+	 */
+	private static double measure( final Runnable transform, final int size )
+	{
+		final int repetitions = Math.max( 1, ( 1 << 16 ) / size );
+
+		// warm up
+		for ( int r = 0; r < repetitions; ++r )
+			transform.run();
+
+		long best = Long.MAX_VALUE;
+		for ( int round = 0; round < 3; ++round )
+		{
+			final long t = System.nanoTime();
+			for ( int r = 0; r < repetitions; ++r )
+				transform.run();
+			best = Math.min( best, System.nanoTime() - t );
+		}
+
+		return (double) best / repetitions;
+	}
+
+	/**
+	 * extension and padded size for phase correlation of two images
+	 */
+	public static class Plan
+	{
+		private final int[] extension;
+		private final long[] paddedDimensions;
+		private final double cost;
+
+		public Plan( final int[] extension, final long[] paddedDimensions, final double cost )
+		{
+			this.extension = extension;
+			this.paddedDimensions = paddedDimensions;
+			this.cost = cost;
+		}
+
+		/**
+		 * @return the number of mirrored pixels at each side (a copy)
+		 */
+		public int[] getExtension() { return extension.clone(); }
+
+		/**
+		 * @return the padded size = size of the PCM (a copy)
+		 */
+		public long[] getPaddedDimensions() { return paddedDimensions.clone(); }
+
+		/**
+		 * @return the estimated (relative) cost of the phase correlation
+		 */
+		public double getCost() { return cost; }
+
+		@Override
+		public String toString()
+		{
+			return "extension=" + Arrays.toString( extension ) + ", padded=" + Arrays.toString( paddedDimensions );
+		}
+	}
+}
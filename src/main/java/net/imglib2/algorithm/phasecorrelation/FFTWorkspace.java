@@ -0,0 +1,120 @@
+/*-
+ * #%L
+ * Multiview stitching of large datasets.
+ * %%
+ * Copyright (C) 2016 - 2017 Big Stitcher developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package net.imglib2.algorithm.phasecorrelation;
+
+import java.util.Arrays;
+
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.basictypeaccess.array.FloatArray;
+import net.imglib2.type.numeric.complex.ComplexFloatType;
+import net.imglib2.type.numeric.real.FloatType;
+
+/**
+ * The buffers needed to compute one phase correlation matrix (PCM) for a given padded size:
+ * the Fourier transforms of both (padded) images and the PCM itself. A buffer to keep the
+ * cross power spectrum (e.g. for upsampled DFT refinement) is allocated on first use.
+ * 
+ * Instances are meant to be borrowed from and given back to a {@link FFTWorkspacePool},
+ * so that pairs of identically sized overlaps do not allocate new images.
+ * The contents of the buffers are undefined when borrowed.
+ */
+public class FFTWorkspace
+{
+	final long[] paddedDimensions;
+	final long[] fftDimensions;
+
+	final ArrayImg< ComplexFloatType, FloatArray > fft1;
+	final ArrayImg< ComplexFloatType, FloatArray > fft2;
+	final ArrayImg< FloatType, FloatArray > pcm;
+
+	ArrayImg< ComplexFloatType, FloatArray > crossPowerSpectrum = null;
+
+	/**
+	 * allocate a new workspace
+	 * @param paddedDimensions the (real-valued) padded size of the images, i.e. the size of the PCM
+	 * @param fftDimensions the size of the complex Fourier transforms
+	 */
+	public FFTWorkspace(final long[] paddedDimensions, final long[] fftDimensions)
+	{
+		this.paddedDimensions = paddedDimensions.clone();
+		this.fftDimensions = fftDimensions.clone();
+
+		this.fft1 = ArrayImgs.complexFloats( fftDimensions );
+		this.fft2 = ArrayImgs.complexFloats( fftDimensions );
+		this.pcm = ArrayImgs.floats( paddedDimensions );
+	}
+
+	public long[] getPaddedDimensions()
+	{
+		return paddedDimensions.clone();
+	}
+
+	public long[] getFFTDimensions()
+	{
+		return fftDimensions.clone();
+	}
+
+	public ArrayImg< ComplexFloatType, FloatArray > getFFT1()
+	{
+		return fft1;
+	}
+
+	public ArrayImg< ComplexFloatType, FloatArray > getFFT2()
+	{
+		return fft2;
+	}
+
+	public ArrayImg< FloatType, FloatArray > getPCM()
+	{
+		return pcm;
+	}
+
+	/**
+	 * @return buffer for the cross power spectrum (same size as the FFTs), allocated on first call
+	 */
+	public ArrayImg< ComplexFloatType, FloatArray > getCrossPowerSpectrum()
+	{
+		if ( crossPowerSpectrum == null )
+			crossPowerSpectrum = ArrayImgs.complexFloats( fftDimensions );
+
+		return crossPowerSpectrum;
+	}
+
+	/**
+	 * @param paddedDimensions padded (real-valued) size to check
+	 * @return true if this workspace can be used for images padded to paddedDimensions
+	 */
+	public boolean fits(final long[] paddedDimensions)
+	{
+		return Arrays.equals( this.paddedDimensions, paddedDimensions );
+	}
+
+	/**
+	 * @return the approximate memory held by this workspace in bytes
+	 */
+	public long sizeInBytes()
+	{
+		final int nComplex = crossPowerSpectrum == null ? 2 : 3;
+		return nComplex * 2 * 4 * fft1.size() + 4 * pcm.size();
+	}
+}
@@ -0,0 +1,187 @@
+/*-
+ * #%L
+ * Multiview stitching of large datasets.
+ * %%
+ * Copyright (C) 2016 - 2017 Big Stitcher developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package net.imglib2.algorithm.phasecorrelation;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Per-thread pool of {@link FFTWorkspace}s keyed by the padded FFT size.
+ * 
+ * Every thread keeps at most maxIdlePerThread idle workspaces (the least recently used one is
+ * dropped first), so regular grids with many identically sized overlaps will (almost) never
+ * allocate new FFT or PCM buffers. Workspaces should be given back to the pool by the thread
+ * that borrowed them, idle workspaces of all threads can be released with {@link #clear()}.
+ */
+public class FFTWorkspacePool
+{
+	public static int defaultMaxIdlePerThread = 2;
+
+	private static final FFTWorkspacePool sharedPool = new FFTWorkspacePool( defaultMaxIdlePerThread );
+
+	private final int maxIdlePerThread;
+
+	// idle workspaces of all threads, so we can clear them from any thread
+	private final Map< Thread, LinkedHashMap< String, List< FFTWorkspace > > > idleByThread = new WeakHashMap<>();
+
+	private final ThreadLocal< LinkedHashMap< String, List< FFTWorkspace > > > idle = new ThreadLocal< LinkedHashMap< String, List< FFTWorkspace > > >()
+	{
+		@Override
+		protected LinkedHashMap< String, List< FFTWorkspace > > initialValue()
+		{
+			// access-ordered, so we can drop the least recently used size first
+			final LinkedHashMap< String, List< FFTWorkspace > > map = new LinkedHashMap<>( 16, 0.75f, true );
+			synchronized ( idleByThread )
+			{
+				idleByThread.put( Thread.currentThread(), map );
+			}
+			return map;
+		}
+	};
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+
+	public FFTWorkspacePool(final int maxIdlePerThread)
+	{
+		this.maxIdlePerThread = maxIdlePerThread;
+	}
+
+	/**
+	 * @return the pool shared by all pairwise stitching calls
+	 */
+	public static FFTWorkspacePool getSharedPool()
+	{
+		return sharedPool;
+	}
+
+	/**
+	 * get a workspace for the given padded size, re-using an idle one of the current thread if possible
+	 * @param paddedDimensions the (real-valued) padded size
+	 * @return workspace, contents are undefined
+	 */
+	public FFTWorkspace borrow(final long[] paddedDimensions)
+	{
+		final LinkedHashMap< String, List< FFTWorkspace > > map = idle.get();
+		final String key = Arrays.toString( paddedDimensions );
+
+		synchronized ( map )
+		{
+			final List< FFTWorkspace > workspaces = map.get( key );
+			if ( workspaces != null && workspaces.size() > 0 )
+			{
+				hits.incrementAndGet();
+				final FFTWorkspace ws = workspaces.remove( workspaces.size() - 1 );
+				if ( workspaces.size() == 0 )
+					map.remove( key );
+				return ws;
+			}
+		}
+
+		misses.incrementAndGet();
+
+		// real-to-complex transform, the first dimension is roughly halved
+		final long[] fftDimensions = paddedDimensions.clone();
+		fftDimensions[ 0 ] = paddedDimensions[ 0 ] / 2 + 1;
+
+		return new FFTWorkspace( paddedDimensions, fftDimensions );
+	}
+
+	/**
+	 * give a workspace back to the pool of the current thread
+	 * @param workspace the workspace, may be null
+	 */
+	public void giveBack(final FFTWorkspace workspace)
+	{
+		if ( workspace == null || maxIdlePerThread < 1 )
+			return;
+
+		final LinkedHashMap< String, List< FFTWorkspace > > map = idle.get();
+		final String key = Arrays.toString( workspace.paddedDimensions );
+
+		synchronized ( map )
+		{
+			List< FFTWorkspace > workspaces = map.get( key );
+			if ( workspaces == null )
+			{
+				workspaces = new ArrayList<>();
+				map.put( key, workspaces );
+			}
+			workspaces.add( workspace );
+
+			// drop least recently used workspaces
+			int nIdle = 0;
+			for ( final List< FFTWorkspace > l : map.values() )
+				nIdle += l.size();
+
+			final Iterator< List< FFTWorkspace > > it = map.values().iterator();
+			while ( nIdle > maxIdlePerThread && it.hasNext() )
+			{
+				final List< FFTWorkspace > l = it.next();
+				while ( nIdle > maxIdlePerThread && l.size() > 0 )
+				{
+					l.remove( 0 );
+					--nIdle;
+				}
+				if ( l.size() == 0 )
+					it.remove();
+			}
+		}
+	}
+
+	/**
+	 * release all idle workspaces of all threads
+	 */
+	public void clear()
+	{
+		synchronized ( idleByThread )
+		{
+			for ( final LinkedHashMap< String, List< FFTWorkspace > > map : idleByThread.values() )
+				synchronized ( map )
+				{
+					map.clear();
+				}
+		}
+	}
+
+	public long getHits()
+	{
+		return hits.get();
+	}
+
+	public long getMisses()
+	{
+		return misses.get();
+	}
+
+	public void resetStatistics()
+	{
+		hits.set( 0 );
+		misses.set( 0 );
+	}
+}
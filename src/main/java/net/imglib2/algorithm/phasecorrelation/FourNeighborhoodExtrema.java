@@ -24,6 +24,7 @@ package net.imglib2.algorithm.phasecorrelation;
 import java.util.List;
 import java.util.ArrayList;
 import java.util.Comparator;
+import java.util.Vector;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
@@ -36,11 +37,17 @@ import net.imglib2.Localizable;
 import net.imglib2.Point;
 import net.imglib2.RandomAccess;
 import net.imglib2.RandomAccessible;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.basictypeaccess.array.FloatArray;
 import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.real.FloatType;
 import net.imglib2.util.Pair;
 import net.imglib2.util.Util;
 import net.imglib2.util.ValuePair;
 import net.imglib2.view.Views;
+import net.preibisch.mvrecon.process.fusion.FusionTools;
+import net.preibisch.mvrecon.process.fusion.ImagePortion;
+import net.preibisch.stitcher.algorithm.SharedExecutor;
 
 public class FourNeighborhoodExtrema
 {
@@ -140,7 +147,7 @@ public class FourNeighborhoodExtrema
 	public static < T extends RealType< T > > ArrayList< Pair< Localizable, Double > > findMaxMT( final RandomAccessible< T > img, final Interval region, final int maxN , ExecutorService service){
 		
 		
-		int nTasks = Runtime.getRuntime().availableProcessors() * 4;
+		int nTasks = SharedExecutor.numSplits(service);
 		List<Interval> intervals = splitAlongLargestDimension(region, nTasks);
 		List<Future<ArrayList< Pair< Localizable, Double > >>> futures = new ArrayList<Future<ArrayList<Pair<Localizable,Double>>>>();
 		
@@ -240,6 +247,272 @@ A:		while ( c.hasNext() )
 		return list;
 	}
 
+	/**
+	 * fixed-capacity min-heap of (linear index, value) pairs that keeps the maxN largest values offered
+	 * without allocating anything per candidate
+	 */
+	public static class PeakHeap
+	{
+		private final long[] indices;
+		private final float[] values;
+		private int size = 0;
+
+		public PeakHeap( final int capacity )
+		{
+			this.indices = new long[ capacity ];
+			this.values = new float[ capacity ];
+		}
+
+		public int size() { return size; }
+		public long getIndex( final int i ) { return indices[ i ]; }
+		public float getValue( final int i ) { return values[ i ]; }
+
+		/**
+		 * @param value value of a candidate
+		 * @return true if a candidate with this value would be kept
+		 */
+		public boolean accepts( final float value )
+		{
+			return size < values.length || value > values[ 0 ];
+		}
+
+		/**
+		 * add a candidate, if the heap is full it replaces the smallest value (if it is larger)
+		 * @param index linear index of the candidate
+		 * @param value value of the candidate
+		 */
+		public void offer( final long index, final float value )
+		{
+			if ( values.length == 0 )
+				return;
+
+			if ( size < values.length )
+			{
+				// sift up
+				int i = size++;
+				while ( i > 0 )
+				{
+					final int parent = ( i - 1 ) / 2;
+					if ( values[ parent ] <= value )
+						break;
+					indices[ i ] = indices[ parent ];
+					values[ i ] = values[ parent ];
+					i = parent;
+				}
+				indices[ i ] = index;
+				values[ i ] = value;
+			}
+			else if ( value > values[ 0 ] )
+			{
+				siftDown( 0, index, value, size );
+			}
+		}
+
+		/**
+		 * add all candidates of another heap
+		 * @param other
+		 */
+		public void addAll( final PeakHeap other )
+		{
+			for ( int i = 0; i < other.size; ++i )
+				offer( other.indices[ i ], other.values[ i ] );
+		}
+
+		/**
+		 * sort the heap by descending value (in place, it is not a heap anymore afterwards)
+		 */
+		public void sortDescending()
+		{
+			// heapsort, the smallest value goes to the end first
+			for ( int end = size - 1; end > 0; --end )
+			{
+				final long idx = indices[ end ];
+				final float val = values[ end ];
+				indices[ end ] = indices[ 0 ];
+				values[ end ] = values[ 0 ];
+				siftDown( 0, idx, val, end );
+			}
+		}
+
+		private void siftDown( int i, final long index, final float value, final int n )
+		{
+			while ( true )
+			{
+				int child = 2 * i + 1;
+				if ( child >= n )
+					break;
+				if ( child + 1 < n && values[ child + 1 ] < values[ child ] )
+					++child;
+				if ( values[ child ] >= value )
+					break;
+				indices[ i ] = indices[ child ];
+				values[ i ] = values[ child ];
+				i = child;
+			}
+			indices[ i ] = index;
+			values[ i ] = value;
+		}
+	}
+
+	/**
+	 * find the maxN highest local maxima (no neighbor in the 2n-neighborhood is higher) of a float ArrayImg
+	 * with periodic boundaries (like {@link #findMaxMT(RandomAccessible, Interval, int, ExecutorService)}
+	 * on Views.extendPeriodic(img)), working directly on the underlying array
+	 * @param img image, e.g. a PCM
+	 * @param maxN maximum number of maxima
+	 * @param service thread pool
+	 * @return heap of linear indices and values of the maxima, sorted by descending value
+	 */
+	public static PeakHeap findMaxPeriodicMT( final ArrayImg< FloatType, FloatArray > img, final int maxN, final ExecutorService service )
+	{
+		return findMaxPeriodicMT( img, maxN, null, service );
+	}
+
+	/**
+	 * like {@link #findMaxPeriodicMT(ArrayImg, int, ExecutorService)}, but only positions whose coordinate is allowed
+	 * in every dimension are considered as maxima (their neighbors are still compared)
+	 * @param img image, e.g. a PCM
+	 * @param maxN maximum number of maxima
+	 * @param allowed allowed coordinates per dimension (allowed[d][x]), null = all
+	 * @param service thread pool
+	 * @return heap of linear indices and values of the maxima, sorted by descending value
+	 */
+	public static PeakHeap findMaxPeriodicMT( final ArrayImg< FloatType, FloatArray > img, final int maxN, final boolean[][] allowed, final ExecutorService service )
+	{
+		final float[] data = img.update( null ).getCurrentStorageArray();
+		final long[] dims = new long[ img.numDimensions() ];
+		img.dimensions( dims );
+
+		// the pool is busy with other tasks (e.g. other pairs), no need to split
+		if ( SharedExecutor.numSplits( service ) == 1 )
+		{
+			final PeakHeap res = findMaxPeriodic( data, dims, 0, data.length, maxN, allowed );
+			res.sortDescending();
+			return res;
+		}
+
+		final Vector< ImagePortion > portions = FusionTools.divideIntoPortions( data.length );
+		final List< Future< PeakHeap > > futures = new ArrayList<>();
+
+		for ( final ImagePortion portion : portions )
+			futures.add( service.submit( () -> findMaxPeriodic( data, dims, portion.getStartPosition(), portion.getLoopSize(), maxN, allowed ) ) );
+
+		final PeakHeap res = new PeakHeap( maxN );
+
+		for ( final Future< PeakHeap > f : futures )
+		{
+			try
+			{
+				res.addAll( f.get() );
+			}
+			catch ( InterruptedException | ExecutionException e )
+			{
+				e.printStackTrace();
+			}
+		}
+
+		res.sortDescending();
+		return res;
+	}
+
+	/**
+	 * find the maxN highest local maxima in a range of linear indices of a flat, periodic nd-array
+	 * @param data flat array, dimension 0 is the fastest
+	 * @param dims dimensions
+	 * @param start first linear index
+	 * @param length number of indices to check
+	 * @param maxN maximum number of maxima
+	 * @return heap of the maxima (not sorted)
+	 */
+	public static PeakHeap findMaxPeriodic( final float[] data, final long[] dims, final long start, final long length, final int maxN )
+	{
+		return findMaxPeriodic( data, dims, start, length, maxN, null );
+	}
+
+	/**
+	 * find the maxN highest local maxima in a range of linear indices of a flat, periodic nd-array,
+	 * only at positions whose coordinate is allowed in every dimension
+	 * @param data flat array, dimension 0 is the fastest
+	 * @param dims dimensions
+	 * @param start first linear index
+	 * @param length number of indices to check
+	 * @param maxN maximum number of maxima
+	 * @param allowed allowed coordinates per dimension (allowed[d][x]), null = all
+	 * @return heap of the maxima (not sorted)
+	 */
+	public static PeakHeap findMaxPeriodic( final float[] data, final long[] dims, final long start, final long length, final int maxN, final boolean[][] allowed )
+	{
+		final int n = dims.length;
+		final PeakHeap heap = new PeakHeap( maxN );
+
+		final int[] strides = new int[ n ];
+		final int[] pos = new int[ n ];
+		strides[ 0 ] = 1;
+		for ( int d = 1; d < n; ++d )
+			strides[ d ] = strides[ d - 1 ] * (int) dims[ d - 1 ];
+
+		// position of the first index
+		long rest = start;
+		for ( int d = 0; d < n; ++d )
+		{
+			pos[ d ] = (int) ( rest % dims[ d ] );
+			rest /= dims[ d ];
+		}
+
+		final int end = (int) ( start + length );
+
+A:		for ( int i = (int) start; i < end; ++i )
+		{
+			final float value = data[ i ];
+
+			if ( heap.accepts( value ) && isAllowed( pos, allowed ) )
+			{
+				for ( int d = 0; d < n; ++d )
+				{
+					final int stride = strides[ d ];
+					final int wrap = stride * (int) dims[ d ];
+
+					final int fwd = pos[ d ] == dims[ d ] - 1 ? i + stride - wrap : i + stride;
+					final int bck = pos[ d ] == 0 ? i - stride + wrap : i - stride;
+
+					if ( value < data[ fwd ] || value < data[ bck ] )
+					{
+						nextPosition( pos, dims );
+						continue A;
+					}
+				}
+
+				heap.offer( i, value );
+			}
+
+			nextPosition( pos, dims );
+		}
+
+		return heap;
+	}
+
+	private static boolean isAllowed( final int[] pos, final boolean[][] allowed )
+	{
+		if ( allowed == null )
+			return true;
+
+		for ( int d = 0; d < pos.length; ++d )
+			if ( !allowed[ d ][ pos[ d ] ] )
+				return false;
+
+		return true;
+	}
+
+	private static void nextPosition( final int[] pos, final long[] dims )
+	{
+		for ( int d = 0; d < pos.length; ++d )
+		{
+			if ( ++pos[ d ] < dims[ d ] )
+				return;
+			pos[ d ] = 0;
+		}
+	}
+
 	public static void main( String[] args )
 	{
 		int maxN = 3;
@@ -0,0 +1,280 @@
+/*-
+ * #%L
+ * Multiview stitching of large datasets.
+ * %%
+ * Copyright (C) 2016 - 2017 Big Stitcher developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package net.imglib2.algorithm.phasecorrelation;
+
+import net.imglib2.Cursor;
+import net.imglib2.Dimensions;
+import net.imglib2.Interval;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.view.Views;
+
+/**
+ * Cross correlation of two images for many candidate shifts.
+ * 
+ * Both images are copied once (centered around their mean) and summed-area tables (integral images) of
+ * their values and squared values are built. The mean and variance of any overlap can then be computed from
+ * the 2^n corners of the overlap in the tables, so every candidate shift only needs a single pass for the
+ * sum of products (instead of the mean pass plus the sum of squares and products pass of
+ * {@link PhaseCorrelation2Util#getCorrelation(RandomAccessibleInterval, RandomAccessibleInterval)}).
+ * 
+ * Instances are immutable after construction and can be used from several threads.
+ */
+public class IntegralImageCorrelation
+{
+	// variances (relative to the sum of squares) below this are treated as zero, i.e. constant overlaps
+	public static double relativeVarianceThreshold = 1e-10;
+
+	// memory of the copies and tables per pixel: float copy + two double tables
+	public static final int bytesPerPixel = 4 + 8 + 8;
+
+	private final Prepared prepared1;
+	private final Prepared prepared2;
+
+	/**
+	 * prepare the two images, they are assumed to be zero-min
+	 * @param img1
+	 * @param img2
+	 */
+	public < T extends RealType< T >, S extends RealType< S > > IntegralImageCorrelation(
+			final RandomAccessibleInterval< T > img1, final RandomAccessibleInterval< S > img2 )
+	{
+		this.prepared1 = new Prepared( img1 );
+		this.prepared2 = new Prepared( img2 );
+	}
+
+	/**
+	 * check whether the copies and tables for two images can be created (array size limit and available memory)
+	 * @param img1
+	 * @param img2
+	 * @return
+	 */
+	public static boolean canPrepare( final Dimensions img1, final Dimensions img2 )
+	{
+		final long size1 = tableSize( img1 );
+		final long size2 = tableSize( img2 );
+
+		if ( size1 >= Integer.MAX_VALUE - 8 || size2 >= Integer.MAX_VALUE - 8 )
+			return false;
+
+		final Runtime rt = Runtime.getRuntime();
+		final long available = rt.maxMemory() - ( rt.totalMemory() - rt.freeMemory() );
+
+		// leave room for everybody else
+		return ( size1 + size2 ) * bytesPerPixel < available / 2;
+	}
+
+	/**
+	 * cross correlation of img1 in overlap1 and img2 in overlap2, the overlaps must have equal size,
+	 * returns 0 if either overlap is constant (like {@link PhaseCorrelation2Util#getCorrelation(RandomAccessibleInterval, RandomAccessibleInterval)})
+	 * @param overlap1 - overlap in img1
+	 * @param overlap2 - overlap in img2
+	 * @return
+	 */
+	public double getCorrelation( final Interval overlap1, final Interval overlap2 )
+	{
+		final int n = overlap1.numDimensions();
+
+		double nPixel = 1;
+		for ( int d = 0; d < n; ++d )
+			nPixel *= overlap1.dimension( d );
+
+		final double s1 = prepared1.boxSum( prepared1.sum, overlap1 );
+		final double q1 = prepared1.boxSum( prepared1.sumSq, overlap1 );
+		final double s2 = prepared2.boxSum( prepared2.sum, overlap2 );
+		final double q2 = prepared2.boxSum( prepared2.sumSq, overlap2 );
+
+		final double var1 = q1 - s1 * s1 / nPixel;
+		final double var2 = q2 - s2 * s2 / nPixel;
+
+		// all pixels had the same color (see getCorrelation)
+		if ( var1 <= relativeVarianceThreshold * q1 || var2 <= relativeVarianceThreshold * q2 )
+			return 0;
+
+		final double cov = dot( overlap1, overlap2 ) - s1 * s2 / nPixel;
+
+		return cov / Math.sqrt( var1 * var2 );
+	}
+
+	/*
+	 * sum of products of the (centered) pixel values in the two overlaps, line by line
+	 */
+	private double dot( final Interval overlap1, final Interval overlap2 )
+	{
+		final int n = overlap1.numDimensions();
+		final float[] data1 = prepared1.data;
+		final float[] data2 = prepared2.data;
+		final int lineLength = (int) overlap1.dimension( 0 );
+
+		// position within the overlap in dimensions 1..n-1
+		final long[] pos = new long[ n ];
+		double sum = 0;
+
+		while ( true )
+		{
+			int i1 = (int) overlap1.min( 0 );
+			int i2 = (int) overlap2.min( 0 );
+			for ( int d = 1; d < n; ++d )
+			{
+				i1 += ( overlap1.min( d ) + pos[ d ] ) * prepared1.strides[ d ];
+				i2 += ( overlap2.min( d ) + pos[ d ] ) * prepared2.strides[ d ];
+			}
+
+			for ( int x = 0; x < lineLength; ++x )
+				sum += (double) data1[ i1 + x ] * data2[ i2 + x ];
+
+			int d = 1;
+			while ( d < n && ++pos[ d ] == overlap1.dimension( d ) )
+				pos[ d++ ] = 0;
+
+			if ( d >= n )
+				break;
+		}
+
+		return sum;
+	}
+
+	private static long tableSize( final Dimensions dims )
+	{
+		long size = 1;
+		for ( int d = 0; d < dims.numDimensions(); ++d )
+			size *= dims.dimension( d ) + 1;
+		return size;
+	}
+
+	/*
+	 * centered copy of an image and the summed-area tables of its values and squared values,
+	 * the tables are one larger in every dimension: sum[x] is the sum of all pixels < x
+	 */
+	private static class Prepared
+	{
+		final float[] data;
+		final int[] strides;
+		final double[] sum;
+		final double[] sumSq;
+		final int[] tableStrides;
+
+		< T extends RealType< T > > Prepared( final RandomAccessibleInterval< T > img )
+		{
+			final int n = img.numDimensions();
+
+			strides = new int[ n ];
+			tableStrides = new int[ n ];
+			strides[ 0 ] = 1;
+			tableStrides[ 0 ] = 1;
+			for ( int d = 1; d < n; ++d )
+			{
+				strides[ d ] = strides[ d - 1 ] * (int) img.dimension( d - 1 );
+				tableStrides[ d ] = tableStrides[ d - 1 ] * (int) ( img.dimension( d - 1 ) + 1 );
+			}
+
+			data = new float[ (int) Views.iterable( img ).size() ];
+
+			// flat copy, dimension 0 is the fastest
+			double mean = 0;
+			int i = 0;
+			final Cursor< T > c = Views.flatIterable( img ).cursor();
+			while ( c.hasNext() )
+			{
+				data[ i ] = c.next().getRealFloat();
+				mean += data[ i++ ];
+			}
+			mean /= data.length;
+
+			// center, so the sums of squares do not lose precision
+			for ( i = 0; i < data.length; ++i )
+				data[ i ] -= mean;
+
+			final int tableSize = (int) tableSize( img );
+			sum = new double[ tableSize ];
+			sumSq = new double[ tableSize ];
+
+			// write every pixel to position x+1 in the tables
+			final long[] pos = new long[ n ];
+			for ( i = 0; i < data.length; ++i )
+			{
+				int t = 0;
+				for ( int d = 0; d < n; ++d )
+					t += ( pos[ d ] + 1 ) * tableStrides[ d ];
+
+				sum[ t ] = data[ i ];
+				sumSq[ t ] = (double) data[ i ] * data[ i ];
+
+				for ( int d = 0; d < n && ++pos[ d ] == img.dimension( d ); ++d )
+					pos[ d ] = 0;
+			}
+
+			// cumulative sums along every dimension
+			for ( int d = 0; d < n; ++d )
+			{
+				final int stride = tableStrides[ d ];
+				final int length = (int) img.dimension( d ) + 1;
+
+				for ( int t = 0; t < tableSize; ++t )
+				{
+					// position along d
+					final int x = ( t / stride ) % length;
+					if ( x > 0 )
+					{
+						sum[ t ] += sum[ t - stride ];
+						sumSq[ t ] += sumSq[ t - stride ];
+					}
+				}
+			}
+		}
+
+		/*
+		 * sum over the box via inclusion-exclusion of its 2^n corners
+		 */
+		double boxSum( final double[] table, final Interval box )
+		{
+			final int n = box.numDimensions();
+			double res = 0;
+
+			for ( int corner = 0; corner < ( 1 << n ); ++corner )
+			{
+				int t = 0;
+				int nLower = 0;
+
+				for ( int d = 0; d < n; ++d )
+				{
+					if ( ( corner & ( 1 << d ) ) == 0 )
+					{
+						t += box.min( d ) * tableStrides[ d ];
+						++nLower;
+					}
+					else
+					{
+						t += ( box.max( d ) + 1 ) * tableStrides[ d ];
+					}
+				}
+
+				if ( nLower % 2 == 0 )
+					res += table[ t ];
+				else
+					res -= table[ t ];
+			}
+
+			return res;
+		}
+	}
+}
@@ -37,7 +37,10 @@ import net.imglib2.algorithm.fft2.FFTMethods;
 import net.imglib2.exception.IncompatibleTypeException;
 import net.imglib2.img.Img;
 import net.imglib2.img.ImgFactory;
+import net.imglib2.img.array.ArrayImg;
 import net.imglib2.img.array.ArrayImgFactory;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.basictypeaccess.array.FloatArray;
 import net.imglib2.img.display.imagej.ImageJFunctions;
 import net.imglib2.type.NativeType;
 import net.imglib2.type.numeric.ComplexType;
@@ -45,6 +48,7 @@ import net.imglib2.type.numeric.RealType;
 import net.imglib2.type.numeric.complex.ComplexFloatType;
 import net.imglib2.type.numeric.real.FloatType;
 import net.imglib2.view.Views;
+import net.preibisch.stitcher.algorithm.SharedExecutor;
 
 public class PhaseCorrelation2 {
 	
@@ -80,15 +84,9 @@ public class PhaseCorrelation2 {
 			RandomAccessibleInterval<T> fft1, RandomAccessibleInterval<T> fft1Copy, RandomAccessibleInterval<S> fft2, RandomAccessibleInterval<S> fft2Copy, RandomAccessibleInterval<R> pcm,
 			ExecutorService service)
 	{
-		// TODO: multithreaded & check for cursor vs randomaccess
-		
-		// normalize, save to copies
-		PhaseCorrelation2Util.normalizeInterval(fft1, fft1Copy, service);
-		PhaseCorrelation2Util.normalizeInterval(fft2, fft2Copy, service);
-		// conjugate
-		PhaseCorrelation2Util.complexConjInterval(fft2Copy, fft2Copy, service);
-		// in-place multiplication
-		PhaseCorrelation2Util.multiplyComplexIntervals(fft1Copy, fft2Copy, fft1Copy, service);
+		// normalize, conjugate and multiply in one pass, save to fft1Copy
+		// (fft2Copy is not needed anymore, it is kept for compatibility)
+		PhaseCorrelation2Util.calculateCrossPowerSpectrum(fft1, fft2, fft1Copy, service);
 		FFT.complexToReal(fft1Copy, pcm, service);
 	}
 	
@@ -129,22 +127,19 @@ public class PhaseCorrelation2 {
 		RandomAccessibleInterval<R> res = factory.create(realSize, type);
 		
 		final T typeT = Views.iterable(fft1).firstElement().createVariable();
-		final S typeS = Views.iterable(fft2).firstElement().createVariable();
 		RandomAccessibleInterval< T > fft1Copy;
-		RandomAccessibleInterval< S > fft2Copy;
 
 		try
 		{
 			fft1Copy = factory.imgFactory( typeT ).create(fft1, typeT );
-			fft2Copy = factory.imgFactory( typeS ).create(fft2, typeS );
 		}
 		catch ( IncompatibleTypeException e )
 		{
-			throw new RuntimeException( "Cannot instantiate Img for type " + typeS.getClass().getSimpleName() + " or " + typeT.getClass().getSimpleName() );
+			throw new RuntimeException( "Cannot instantiate Img for type " + typeT.getClass().getSimpleName() );
 		}
 		
-		
-		calculatePCM(fft1, fft1Copy, fft2, fft2Copy, res, service);
+		// the fused cross power spectrum only writes to fft1Copy, fft2 is left untouched
+		calculatePCM(fft1, fft1Copy, fft2, fft2, res, service);
 		
 		return res;
 	}
@@ -181,6 +176,142 @@ public class PhaseCorrelation2 {
 		
 	}
 
+	/*
+	 * get the padded size of the images (= size of the PCM) that calculatePCM will use for img1 and img2
+	 * @param img1
+	 * @param img2
+	 * @param extension
+	 * @return
+	 */
+	public static long[] getPaddedDimensions(Dimensions img1, Dimensions img2, int[] extension)
+	{
+		Dimensions extSize = PhaseCorrelation2Util.getExtendedSize(img1, img2, extension);
+		long[] paddedDimensions = new long[extSize.numDimensions()];
+		long[] fftSize = new long[extSize.numDimensions()];
+		FFTMethods.dimensionsRealToComplexFast(extSize, paddedDimensions, fftSize);
+		return paddedDimensions;
+	}
+
+	/*
+	 * calculate the (mirror-extended, centered and padded) FFT of a single image,
+	 * it is identical to the FFT calculatePCM computes internally for the same padded size
+	 * and can therefore be re-used for every pair this image takes part in
+	 * @param img
+	 * @param extension
+	 * @param paddedDimensions - padded size, e.g. from getPaddedDimensions
+	 * @return
+	 */
+	public static <T extends RealType<T>> ArrayImg<ComplexFloatType, FloatArray> calculateFFT(
+			RandomAccessibleInterval<T> img, int[] extension, long[] paddedDimensions, ExecutorService service)
+	{
+		final long[] fftDimensions = paddedDimensions.clone();
+		fftDimensions[0] = paddedDimensions[0] / 2 + 1;
+
+		final ArrayImg<ComplexFloatType, FloatArray> fft = ArrayImgs.complexFloats(fftDimensions);
+
+		FFT.realToComplex(Views.interval(PhaseCorrelation2Util.extendImageByFactor(img, extension),
+				FFTMethods.paddingIntervalCentered(img, new FinalInterval(paddedDimensions))), fft, service);
+
+		return fft;
+	}
+
+	/*
+	 * calculate the phase correlation matrix of two images using the buffers of a workspace,
+	 * the returned PCM is the PCM buffer of the workspace, so it is only valid until the workspace is re-used
+	 * @param img1
+	 * @param img2
+	 * @param extension
+	 * @param workspace - workspace for the padded size of img1 and img2 (see getPaddedDimensions)
+	 * @return
+	 */
+	public static <T extends RealType<T>, S extends RealType<S>> RandomAccessibleInterval<FloatType> calculatePCM(
+			RandomAccessibleInterval<T> img1, RandomAccessibleInterval<S> img2, int[] extension,
+			FFTWorkspace workspace, ExecutorService service)
+	{
+		return calculatePCM(img1, img2, extension, getPaddedDimensions(img1, img2, extension), workspace, service);
+	}
+
+	/*
+	 * calculate the phase correlation matrix of two images at a given padded size (e.g. chosen by a FFTSizePlanner)
+	 * using the buffers of a workspace, the returned PCM is the PCM buffer of the workspace
+	 * @param img1
+	 * @param img2
+	 * @param extension
+	 * @param paddedDimensions - padded size, has to be a valid FFT size and at least as large as the extended images
+	 * @param workspace - workspace for paddedDimensions
+	 * @return
+	 */
+	public static <T extends RealType<T>, S extends RealType<S>> RandomAccessibleInterval<FloatType> calculatePCM(
+			RandomAccessibleInterval<T> img1, RandomAccessibleInterval<S> img2, int[] extension, long[] paddedDimensions,
+			FFTWorkspace workspace, ExecutorService service)
+	{
+		return calculatePCM(img1, img2, extension, paddedDimensions, workspace, false, service);
+	}
+
+	/*
+	 * calculate the phase correlation matrix of two images at a given padded size using the buffers of a workspace,
+	 * optionally keeping the cross power spectrum in the workspace (see FFTWorkspace.getCrossPowerSpectrum)
+	 * @param img1
+	 * @param img2
+	 * @param extension
+	 * @param paddedDimensions - padded size, has to be a valid FFT size and at least as large as the extended images
+	 * @param workspace - workspace for paddedDimensions
+	 * @param keepCrossPowerSpectrum
+	 * @return
+	 */
+	public static <T extends RealType<T>, S extends RealType<S>> RandomAccessibleInterval<FloatType> calculatePCM(
+			RandomAccessibleInterval<T> img1, RandomAccessibleInterval<S> img2, int[] extension, long[] paddedDimensions,
+			FFTWorkspace workspace, boolean keepCrossPowerSpectrum, ExecutorService service)
+	{
+		if (!workspace.fits(paddedDimensions))
+			throw new IllegalArgumentException( "Workspace of size " + Arrays.toString( workspace.getPaddedDimensions() ) +
+					" does not fit padded size " + Arrays.toString( paddedDimensions ) );
+
+		final RandomAccessibleInterval<ComplexFloatType> fft1 = workspace.getFFT1();
+		final RandomAccessibleInterval<ComplexFloatType> fft2 = workspace.getFFT2();
+		final RandomAccessibleInterval<FloatType> pcm = workspace.getPCM();
+
+		FFT.realToComplex(Views.interval(PhaseCorrelation2Util.extendImageByFactor(img1, extension),
+				FFTMethods.paddingIntervalCentered(img1, new FinalInterval(paddedDimensions))), fft1, service);
+		FFT.realToComplex(Views.interval(PhaseCorrelation2Util.extendImageByFactor(img2, extension),
+				FFTMethods.paddingIntervalCentered(img2, new FinalInterval(paddedDimensions))), fft2, service);
+
+		return calculatePCMFromSpectra(workspace.getFFT1(), workspace.getFFT2(), workspace, keepCrossPowerSpectrum, service);
+	}
+
+	/*
+	 * calculate the phase correlation matrix from the spectra of two images using the buffers of a workspace,
+	 * fft1 and fft2 may be the FFT buffers of the workspace (fft1 is overwritten then) or e.g. cached spectra (not altered)
+	 * @param fft1
+	 * @param fft2
+	 * @param workspace - workspace of the padded size of fft1 and fft2
+	 * @param keepCrossPowerSpectrum - keep the cross power spectrum in the workspace (see FFTWorkspace.getCrossPowerSpectrum)
+	 * @return the PCM buffer of the workspace
+	 */
+	public static RandomAccessibleInterval<FloatType> calculatePCMFromSpectra(
+			RandomAccessibleInterval<ComplexFloatType> fft1, RandomAccessibleInterval<ComplexFloatType> fft2,
+			FFTWorkspace workspace, boolean keepCrossPowerSpectrum, ExecutorService service)
+	{
+		final ArrayImg<ComplexFloatType, FloatArray> scratch = workspace.getFFT1();
+
+		if (keepCrossPowerSpectrum)
+		{
+			// the inverse FFT destroys its input, so it works on a copy
+			final ArrayImg<ComplexFloatType, FloatArray> cross = workspace.getCrossPowerSpectrum();
+			PhaseCorrelation2Util.calculateCrossPowerSpectrum(fft1, fft2, cross, service);
+
+			final float[] src = cross.update(null).getCurrentStorageArray();
+			System.arraycopy(src, 0, scratch.update(null).getCurrentStorageArray(), 0, src.length);
+		}
+		else
+		{
+			PhaseCorrelation2Util.calculateCrossPowerSpectrum(fft1, fft2, scratch, service);
+		}
+
+		FFT.complexToReal(scratch, workspace.getPCM(), service);
+		return workspace.getPCM();
+	}
+
 	/*
 	 * calculate PCM with default extension
 	 * @param img1
@@ -212,14 +343,41 @@ public class PhaseCorrelation2 {
 			RandomAccessibleInterval<R> pcm, RandomAccessibleInterval<T> img1, RandomAccessibleInterval<S> img2, int nHighestPeaks,
 			long minOverlap, boolean subpixelAccuracy, boolean interpolateSubpixel, ExecutorService service)
 	{
+		return getShift( pcm, img1, img2, nHighestPeaks, minOverlap, subpixelAccuracy, interpolateSubpixel, null, -1, service );
+	}
+
+	/**
+	 * calculate the shift between two images from the phase correlation matrix,
+	 * only considering shifts within maxDeviation of an expected shift (e.g. from the metadata):
+	 * just the corresponding region of the pcm is searched for peaks and only matching shifts are checked
+	 * @param pcm the phase correlation matrix of img1 and img2
+	 * @param img1 source image 1
+	 * @param img2 source image 2
+	 * @param nHighestPeaks the number of peaks in pcm to check via cross. corr.
+	 * @param minOverlap minimal overlap (in pixels)
+	 * @param subpixelAccuracy whether to do subpixel shift peak localization or not
+	 * @param interpolateSubpixel whether to interpolate the subpixel shift in cross. corr.
+	 * @param expectedShift expected shift of img2 relative to img1, null = no restriction
+	 * @param maxDeviation maximal deviation from the expected shift in every dimension (in pixels), negative = no restriction
+	 * @param service thread pool
+	 * @return best (highest c.c.) shift peak
+	 */
+	public static <T extends RealType<T>, S extends RealType<S>, R extends RealType<R>> PhaseCorrelationPeak2 getShift(
+			RandomAccessibleInterval<R> pcm, RandomAccessibleInterval<T> img1, RandomAccessibleInterval<S> img2, int nHighestPeaks,
+			long minOverlap, boolean subpixelAccuracy, boolean interpolateSubpixel, double[] expectedShift, double maxDeviation,
+			ExecutorService service)
+	{
+		final boolean restricted = expectedShift != null && maxDeviation >= 0;
+		final boolean[][] allowed = restricted ? PhaseCorrelation2Util.getAllowedPCMPositions(pcm, img1, img2, expectedShift, maxDeviation) : null;
+
 		System.out.println( "PCM" );
-		List<PhaseCorrelationPeak2> peaks = PhaseCorrelation2Util.getPCMMaxima(pcm, service, nHighestPeaks, subpixelAccuracy);
+		List<PhaseCorrelationPeak2> peaks = PhaseCorrelation2Util.getPCMMaxima(pcm, service, nHighestPeaks, subpixelAccuracy, allowed);
 		//peaks = PhaseCorrelation2Util.getHighestPCMMaxima(peaks, nHighestPeaks);
 		System.out.println( "expand" );
-		PhaseCorrelation2Util.expandPeakListToPossibleShifts(peaks, pcm, img1, img2);
+		PhaseCorrelation2Util.expandPeakListToPossibleShifts(peaks, pcm, img1, img2, expectedShift, maxDeviation);
 		System.out.print( "cross " );
 		long t = System.currentTimeMillis();
-		PhaseCorrelation2Util.calculateCrossCorrParallel(peaks, img1, img2, minOverlap, service, interpolateSubpixel);
+		PhaseCorrelation2Util.calculateCrossCorrProgressive(peaks, img1, img2, minOverlap, service, interpolateSubpixel);
 		System.out.println( (System.currentTimeMillis() - t) );
 		System.out.println( "sort" );
 		Collections.sort(peaks, Collections.reverseOrder(new PhaseCorrelationPeak2.ComparatorByCrossCorrelation()));
@@ -250,7 +408,7 @@ public class PhaseCorrelation2 {
 	}
 
 	/**
-	 * calculate the sift with default parameters (5 highest pcm peaks are considered, no minimum overlap, temporary thread pool,
+	 * calculate the sift with default parameters (5 highest pcm peaks are considered, no minimum overlap, shared thread pool,
 	 * no subpixel interpolation)
 	 * @param pcm the phase correlation matrix of img1 and img2
 	 * @param img1 source image 1
@@ -260,10 +418,7 @@ public class PhaseCorrelation2 {
 	public static <T extends RealType<T>, S extends RealType<S>, R extends RealType<R>> PhaseCorrelationPeak2 getShift(
 			RandomAccessibleInterval<R> pcm, RandomAccessibleInterval<T> img1, RandomAccessibleInterval<S> img2)
 	{
-		ExecutorService service = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
-		PhaseCorrelationPeak2 res = getShift(pcm, img1, img2, 5, 0, true, false, service);
-		service.shutdown();
-		return res;
+		return getShift(pcm, img1, img2, 5, 0, true, false, SharedExecutor.getService());
 	}
 
 	public static void main(String[] args) {
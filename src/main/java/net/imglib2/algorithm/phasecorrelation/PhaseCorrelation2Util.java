@@ -45,13 +45,18 @@ import net.imglib2.RandomAccessible;
 import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.RealPoint;
 import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImg;
 import net.imglib2.img.array.ArrayImgFactory;
+import net.imglib2.img.basictypeaccess.array.FloatArray;
 import net.imglib2.realtransform.AffineTransform3D;
 import net.imglib2.realtransform.Translation3D;
 import net.imglib2.type.numeric.ComplexType;
 import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.complex.ComplexFloatType;
 import net.imglib2.type.numeric.real.FloatType;
 import net.imglib2.util.BenchmarkHelper;
+import net.imglib2.util.IntervalIndexer;
+import net.imglib2.util.Intervals;
 import net.imglib2.util.Pair;
 import net.imglib2.util.Util;
 import net.imglib2.util.ValuePair;
@@ -60,6 +65,7 @@ import net.preibisch.mvrecon.process.fusion.FusionTools;
 import net.preibisch.mvrecon.process.fusion.ImagePortion;
 import net.preibisch.stitcher.algorithm.PairwiseStitching;
 import net.preibisch.stitcher.algorithm.PairwiseStitchingParameters;
+import net.preibisch.stitcher.algorithm.SharedExecutor;
 
 
 
@@ -198,9 +204,17 @@ public class PhaseCorrelation2Util {
 		calculateCrossCorrParallel( peaks, img1, img2, minOverlapPx, service, false );
 	}
 
+	/*
+	 * minimal number of candidate shifts (that are not interpolated) for which calculateCrossCorrParallel
+	 * prepares integral images once instead of computing every correlation from scratch
+	 */
+	public static int minPeaksForIntegralImages = 8;
+
 	/*
 	 * calculate the crosscorrelation of img1 and img2 for all shifts represented by a PhasecorrelationPeak List in parallel using a specified
 	 * ExecutorService. service remains functional after the call
+	 * if there are many candidates (see minPeaksForIntegralImages) and enough memory, integral images of
+	 * img1 and img2 are prepared once and every candidate only needs a single pass (see IntegralImageCorrelation)
 	 * @param peaks
 	 * @param img1
 	 * @param img2
@@ -213,11 +227,26 @@ public class PhaseCorrelation2Util {
 	{
 		List<Future<?>> futures = new ArrayList<Future<?>>();
 
+		// peaks with subpixel interpolation need the interpolated img2, they can not use the integral images
+		int nNotInterpolated = 0;
+		for (final PhaseCorrelationPeak2 p : peaks)
+			if (!interpolateSubpixel || p.getSubpixelShift() == null)
+				nNotInterpolated++;
+
+		final IntegralImageCorrelation integral;
+		if (nNotInterpolated >= minPeaksForIntegralImages && IntegralImageCorrelation.canPrepare(img1, img2))
+			integral = new IntegralImageCorrelation(img1, img2);
+		else
+			integral = null;
+
 		for (final PhaseCorrelationPeak2 p : peaks){
 			futures.add(service.submit(new Runnable() {
 				@Override
 				public void run() {
-					p.calculateCrossCorr(img1, img2, minOverlapPx, interpolateSubpixel);
+					if (integral != null && (!interpolateSubpixel || p.getSubpixelShift() == null))
+						p.calculateCrossCorr(integral, img1, img2, minOverlapPx);
+					else
+						p.calculateCrossCorr(img1, img2, minOverlapPx, interpolateSubpixel);
 				}
 			}));
 		}
@@ -235,6 +264,154 @@ public class PhaseCorrelation2Util {
 		}
 	}
 	
+	/*
+	 * number of pixels the coarse correlation of calculateCrossCorrProgressive samples (per candidate)
+	 */
+	public static int coarseSamples = 4096;
+
+	/*
+	 * width of the confidence interval (in standard errors of the Fisher-transformed correlation)
+	 * used to prune candidates in calculateCrossCorrProgressive, larger is more conservative
+	 * (the subsampled pixels are not independent, so it is chosen rather large)
+	 */
+	public static double pruningConfidence = 4.0;
+
+	/*
+	 * calculate the crosscorrelation of img1 and img2 for all shifts represented by a PhasecorrelationPeak List,
+	 * verifying the candidates progressively:
+	 *  - candidates without overlap or with less than minOverlapPx pixels are rejected without any computation
+	 *  - all remaining candidates are scored on a subsampled overlap (about coarseSamples pixels)
+	 *  - only candidates whose upper confidence bound reaches the best lower bound are verified at full resolution
+	 * pruned candidates keep their coarse correlation, rejected ones get -Infinity (like calculateCrossCorrParallel).
+	 * The pruning is a statistical test on the subsample, it does not guarantee that a pruned candidate would rank below
+	 * the verified ones at full resolution (use pruningConfidence = Double.POSITIVE_INFINITY to verify all). Pruned candidates
+	 * whose coarse correlation is higher than the best verified one are verified as well, so the best candidate always
+	 * has a full resolution correlation.
+	 * @param peaks
+	 * @param img1
+	 * @param img2
+	 * @param minOverlapPx
+	 * @param service
+	 * @param interpolateSubpixel
+	 */
+	public static <T extends RealType<T>, S extends RealType<S>> void calculateCrossCorrProgressive(
+			List<PhaseCorrelationPeak2> peaks, final RandomAccessibleInterval<T> img1, final RandomAccessibleInterval<S> img2,
+			final long minOverlapPx, ExecutorService service, boolean interpolateSubpixel)
+	{
+		final int n = img1.numDimensions();
+
+		// reject candidates without (enough) overlap before submitting anything
+		final List<PhaseCorrelationPeak2> candidates = new ArrayList<>();
+		final List<Pair<Interval, Interval>> overlaps = new ArrayList<>();
+		boolean subsampling = false;
+
+		for (final PhaseCorrelationPeak2 p : peaks)
+		{
+			final Pair<Interval, Interval> intervals = getOverlapIntervals(img1, img2, p.getShift());
+
+			long nPixel = 0;
+			if (intervals != null)
+				nPixel = Intervals.numElements(intervals.getA());
+
+			if (intervals == null || nPixel < minOverlapPx || nPixel == 0)
+			{
+				p.setCrossCorr(Double.NEGATIVE_INFINITY);
+				p.setnPixel(0);
+				continue;
+			}
+
+			p.setnPixel(nPixel);
+			candidates.add(p);
+			overlaps.add(intervals);
+
+			if (nPixel > 2 * coarseSamples)
+				subsampling = true;
+		}
+
+		// the coarse pass would not be cheaper than the full one
+		if (candidates.size() < 3 || !subsampling)
+		{
+			calculateCrossCorrParallel(candidates, img1, img2, minOverlapPx, service, interpolateSubpixel);
+			return;
+		}
+
+		// coarse pass on a regular subsample of each overlap
+		final double[] coarse = new double[candidates.size()];
+		final long[] nSamples = new long[candidates.size()];
+		final List<Future<?>> futures = new ArrayList<Future<?>>();
+
+		for (int i = 0; i < candidates.size(); i++){
+			final int idx = i;
+			futures.add(service.submit(new Runnable() {
+				@Override
+				public void run() {
+					final Pair<Interval, Interval> intervals = overlaps.get(idx);
+					final long step = Math.max(1, (long) Math.floor(Math.pow((double) candidates.get(idx).getnPixel() / coarseSamples, 1.0 / n)));
+
+					final RandomAccessibleInterval<T> sub1 = Views.subsample(Views.zeroMin(Views.interval(img1, intervals.getA())), step);
+					final RandomAccessibleInterval<S> sub2 = Views.subsample(Views.zeroMin(Views.interval(img2, intervals.getB())), step);
+
+					coarse[idx] = getCorrelation(sub1, sub2);
+					nSamples[idx] = Intervals.numElements(sub1);
+				}
+			}));
+		}
+
+		for (Future<?> f: futures){
+			try {
+				f.get();
+			} catch (InterruptedException e) {
+				e.printStackTrace();
+			} catch (ExecutionException e) {
+				e.printStackTrace();
+			}
+		}
+
+		// best lower confidence bound of all candidates (Fisher z-transform)
+		double bestLower = Double.NEGATIVE_INFINITY;
+		for (int i = 0; i < candidates.size(); i++)
+			bestLower = Math.max(bestLower, confidenceBound(coarse[i], nSamples[i], -pruningConfidence));
+
+		final List<PhaseCorrelationPeak2> survivors = new ArrayList<>();
+		for (int i = 0; i < candidates.size(); i++)
+		{
+			if (confidenceBound(coarse[i], nSamples[i], pruningConfidence) >= bestLower)
+				survivors.add(candidates.get(i));
+			else
+				candidates.get(i).setCrossCorr(coarse[i]);
+		}
+
+		calculateCrossCorrParallel(survivors, img1, img2, minOverlapPx, service, interpolateSubpixel);
+
+		// a pruned candidate must not win with its coarse correlation
+		double bestVerified = Double.NEGATIVE_INFINITY;
+		for (final PhaseCorrelationPeak2 p : survivors)
+			bestVerified = Math.max(bestVerified, p.getCrossCorr());
+
+		final List<PhaseCorrelationPeak2> outranking = new ArrayList<>();
+		for (final PhaseCorrelationPeak2 p : candidates)
+			if (!survivors.contains(p) && p.getCrossCorr() > bestVerified)
+				outranking.add(p);
+
+		if (outranking.size() > 0)
+			calculateCrossCorrParallel(outranking, img1, img2, minOverlapPx, service, interpolateSubpixel);
+	}
+
+	/*
+	 * confidence bound of a correlation r estimated from nSamples pixels, k standard errors
+	 * above (k>0) or below (k<0) in Fisher z-space, too few samples give the trivial bounds -1 / 1
+	 */
+	private static double confidenceBound(final double r, final long nSamples, final double k)
+	{
+		if (nSamples < 16)
+			return Math.signum(k);
+
+		final double rc = Math.max(-0.999999, Math.min(0.999999, r));
+		final double z = 0.5 * Math.log((1 + rc) / (1 - rc));
+
+		return Math.tanh(z + k / Math.sqrt(nSamples - 3));
+	}
+
 	/*
 	 * find local maxima in PCM
 	 * @param pcm
@@ -243,8 +420,43 @@ public class PhaseCorrelation2Util {
 	 * @return
 	 */
 	public static <T extends RealType<T>> List<PhaseCorrelationPeak2> getPCMMaxima(RandomAccessibleInterval<T> pcm, ExecutorService service, int maxN, boolean subpixelAccuracy){
+		return getPCMMaxima(pcm, service, maxN, subpixelAccuracy, null);
+	}
+
+	/*
+	 * find local maxima in PCM, only at the positions allowed by a prior (see getAllowedPCMPositions)
+	 * @param pcm
+	 * @param service
+	 * @param maxN
+	 * @param subpixelAccuracy
+	 * @param allowed allowed PCM coordinates per dimension, null = all
+	 * @return
+	 */
+	public static <T extends RealType<T>> List<PhaseCorrelationPeak2> getPCMMaxima(RandomAccessibleInterval<T> pcm, ExecutorService service, int maxN, boolean subpixelAccuracy,
+			final boolean[][] allowed){
 		
 		List<PhaseCorrelationPeak2> res = new ArrayList<PhaseCorrelationPeak2>();
+
+		// float ArrayImg PCMs (e.g. from a FFTWorkspace) are searched on the underlying array
+		final ArrayImg<FloatType, FloatArray> pcmArray = getFloatArrayImg(pcm);
+		if (pcmArray != null)
+		{
+			final FourNeighborhoodExtrema.PeakHeap maxima = FourNeighborhoodExtrema.findMaxPeriodicMT(pcmArray, maxN, allowed, service);
+			final long[] dims = new long[pcm.numDimensions()];
+			pcm.dimensions(dims);
+
+			for (int i = 0; i < maxima.size(); i++){
+				final long[] position = new long[dims.length];
+				IntervalIndexer.indexToPosition(maxima.getIndex(i), dims, position);
+
+				PhaseCorrelationPeak2 pcp = new PhaseCorrelationPeak2(Point.wrap(position), maxima.getValue(i));
+				if (subpixelAccuracy)
+					pcp.calculateSubpixelLocalization(pcm);
+
+				res.add(pcp);
+			}
+			return res;
+		}
 		
 		ArrayList<Pair<Localizable, Double>> maxima = FourNeighborhoodExtrema.findMaxMT(Views.extendPeriodic(pcm), pcm, maxN, service);
 		//ArrayList<Pair<Localizable, Double>> maxima = FourNeighborhoodExtrema.findMax(Views.extendPeriodic(pcm), pcm, maxN);
@@ -252,6 +464,10 @@ public class PhaseCorrelation2Util {
 		
 				
 		for (Pair<Localizable, Double> p: maxima){
+			// other PCMs are searched completely, maxima outside the allowed region are dropped afterwards
+			if (allowed != null && !isAllowed(p.getA(), allowed))
+				continue;
+
 			PhaseCorrelationPeak2 pcp = new PhaseCorrelationPeak2(p.getA(), p.getB());
 			if (subpixelAccuracy)
 				pcp.calculateSubpixelLocalization(pcm);
@@ -261,17 +477,73 @@ public class PhaseCorrelation2Util {
 		return res;		
 	}
 	
+	private static boolean isAllowed(final Localizable pcmLocation, final boolean[][] allowed)
+	{
+		for (int d = 0; d < allowed.length; d++)
+			if (!allowed[d][pcmLocation.getIntPosition(d)])
+				return false;
+		return true;
+	}
+
+	/*
+	 * get the PCM coordinates (per dimension) that correspond to at least one possible shift
+	 * (see expandPeakToPossibleShifts) within maxDeviation of an expected shift (e.g. from the metadata)
+	 * @param pcmDims
+	 * @param img1Dims
+	 * @param img2Dims
+	 * @param expectedShift expected shift of img2 relative to img1
+	 * @param maxDeviation maximal deviation from the expected shift (in every dimension)
+	 * @return allowed[d][x] for every dimension d and PCM coordinate x
+	 */
+	public static boolean[][] getAllowedPCMPositions(Dimensions pcmDims, Dimensions img1Dims, Dimensions img2Dims,
+			double[] expectedShift, double maxDeviation)
+	{
+		final int n = pcmDims.numDimensions();
+		final int[] extensionImg1 = getSizeDifference(img1Dims, pcmDims);
+		final int[] extensionImg2 = getSizeDifference(img2Dims, pcmDims);
+
+		final boolean[][] allowed = new boolean[n][];
+		for (int d = 0; d < n; d++){
+			final int size = (int) pcmDims.dimension(d);
+			final int offset = (extensionImg2[d] - extensionImg1[d]) / 2;
+			allowed[d] = new boolean[size];
+
+			for (int x = 0; x < size; x++){
+				// the two possible shifts of this coordinate
+				final long shift = ((x + offset) % size + size) % size;
+				allowed[d][x] = Math.abs(shift - expectedShift[d]) <= maxDeviation
+						|| Math.abs(shift - size - expectedShift[d]) <= maxDeviation;
+			}
+		}
+		return allowed;
+	}
+
+	/*
+	 * get img as a FloatType ArrayImg if it is one, null otherwise
+	 * @param img
+	 * @return
+	 */
+	@SuppressWarnings("unchecked")
+	private static ArrayImg<FloatType, FloatArray> getFloatArrayImg(final RandomAccessibleInterval<?> img)
+	{
+		if (!(img instanceof ArrayImg))
+			return null;
+
+		final ArrayImg<?, ?> arrayImg = (ArrayImg<?, ?>) img;
+		if (!(arrayImg.update( null ) instanceof FloatArray) || !(arrayImg.firstElement() instanceof FloatType))
+			return null;
+
+		return (ArrayImg<FloatType, FloatArray>) arrayImg;
+	}
+
 	/*
-	 * find maxima in PCM, use a temporary thread pool for calculation
+	 * find maxima in PCM, use the shared thread pool for calculation
 	 * @param pcm
 	 * @param nMax 
 	 * @return
 	 */
 	public static <T extends RealType<T>> List<PhaseCorrelationPeak2> getPCMMaxima(RandomAccessibleInterval<T> pcm, int nMax, boolean subpixelAccuracy){
-		ExecutorService tExecService = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
-		List<PhaseCorrelationPeak2> res = getPCMMaxima(pcm, tExecService, nMax, subpixelAccuracy);
-		tExecService.shutdown();
-		return res;
+		return getPCMMaxima(pcm, SharedExecutor.getService(), nMax, subpixelAccuracy);
 	}
 	
 	/*
@@ -298,10 +570,26 @@ public class PhaseCorrelation2Util {
 	 */
 	public static void expandPeakListToPossibleShifts(List<PhaseCorrelationPeak2> peaks,
 			Dimensions pcmDims, Dimensions img1Dims, Dimensions img2Dims)
+	{
+		expandPeakListToPossibleShifts(peaks, pcmDims, img1Dims, img2Dims, null, -1);
+	}
+
+	/*
+	 * expand a list of PCM maxima to to a list containing all possible shifts corresponding to these maxima
+	 * that are within maxDeviation of an expected shift
+	 * @param peaks
+	 * @param pcmDims
+	 * @param img1Dims
+	 * @param img2Dims
+	 * @param expectedShift expected shift of img2 relative to img1, null = no restriction
+	 * @param maxDeviation maximal deviation from the expected shift (in every dimension), negative = no restriction
+	 */
+	public static void expandPeakListToPossibleShifts(List<PhaseCorrelationPeak2> peaks,
+			Dimensions pcmDims, Dimensions img1Dims, Dimensions img2Dims, double[] expectedShift, double maxDeviation)
 	{
 		List<PhaseCorrelationPeak2> res = new ArrayList<PhaseCorrelationPeak2>();
 		for (PhaseCorrelationPeak2 p : peaks){
-			res.addAll(expandPeakToPossibleShifts(p, pcmDims, img1Dims, img2Dims));
+			res.addAll(expandPeakToPossibleShifts(p, pcmDims, img1Dims, img2Dims, expectedShift, maxDeviation));
 		}
 		peaks.clear();
 		peaks.addAll(res);
@@ -319,6 +607,26 @@ public class PhaseCorrelation2Util {
 	public static List<PhaseCorrelationPeak2> expandPeakToPossibleShifts(
 			PhaseCorrelationPeak2 peak, Dimensions pcmDims, Dimensions img1Dims, Dimensions img2Dims)
 	{
+		return expandPeakToPossibleShifts(peak, pcmDims, img1Dims, img2Dims, null, -1);
+	}
+
+	/*
+	 * expand a single maximum in the PCM to a list of possible shifts corresponding to that peak,
+	 * keeping only shifts within maxDeviation of an expected shift
+	 * @param peak
+	 * @param pcmDims
+	 * @param img1Dims
+	 * @param img2Dims
+	 * @param expectedShift expected shift of img2 relative to img1, null = no restriction
+	 * @param maxDeviation maximal deviation from the expected shift (in every dimension), negative = no restriction
+	 * @return
+	 */
+	public static List<PhaseCorrelationPeak2> expandPeakToPossibleShifts(
+			PhaseCorrelationPeak2 peak, Dimensions pcmDims, Dimensions img1Dims, Dimensions img2Dims,
+			double[] expectedShift, double maxDeviation)
+	{
+		final boolean restricted = expectedShift != null && maxDeviation >= 0;
+
 		int n = pcmDims.numDimensions();
 		double[] subpixelDiff = new double[n];
 		
@@ -338,31 +646,29 @@ public class PhaseCorrelation2Util {
 			originalPCMPeakWithOffset[i] %= pcmDims.dimension(i); 
 		}		
 		
-		List<PhaseCorrelationPeak2> shiftedPeaks = new ArrayList<PhaseCorrelationPeak2>();
-		for (int i = 0; i < Math.pow(2, pcmDims.numDimensions()); i++){
-			int[] possibleShift = originalPCMPeakWithOffset.clone();
-			PhaseCorrelationPeak2 peakWithShift = new PhaseCorrelationPeak2(peak);
-			for (int d = 0; d < pcmDims.numDimensions(); d++){
+		final boolean subpixel = peak.getSubpixelPcmLocation() != null;
+		List<PhaseCorrelationPeak2> shiftedPeaks = new ArrayList<PhaseCorrelationPeak2>(1 << n);
+A:		for (int i = 0; i < (1 << n); i++){
+			// the shifts are wrapped, not copied, the PCM locations are shared with peak
+			final long[] possibleShift = new long[n];
+			final double[] subpixelShift = subpixel ? new double[n] : null;
+			for (int d = 0; d < n; d++){
+				possibleShift[d] = originalPCMPeakWithOffset[d];
 				/*
 				 * mirror the shift around the origin in dimension d if (i / 2^d) is even
 				 * --> all possible shifts
 				 */
-				if ((i / (int) Math.pow(2, d) % 2) == 0){
-					possibleShift[d] = possibleShift[d] < 0 ? possibleShift[d] + (int) pcmDims.dimension(d) : possibleShift[d] - (int) pcmDims.dimension(d);
+				if (((i >> d) & 1) == 0){
+					possibleShift[d] = possibleShift[d] < 0 ? possibleShift[d] + pcmDims.dimension(d) : possibleShift[d] - pcmDims.dimension(d);
 				}
+				// do not check shifts that are too far from the expected one
+				if (restricted && Math.abs(possibleShift[d] - expectedShift[d]) > maxDeviation)
+					continue A;
+				if (subpixel)
+					subpixelShift[d] = possibleShift[d] + subpixelDiff[d];
 			}
-			peakWithShift.setShift(new Point(possibleShift));
-
-			if (peakWithShift.getSubpixelPcmLocation() != null)
-			{
-				double[] subpixelShift = new double[n];
-				for (int j =0; j<n;j++){
-					subpixelShift[j] = possibleShift[j] + subpixelDiff[j];
-				}
 
-				peakWithShift.setSubpixelShift( new RealPoint( subpixelShift ) );
-			}
-			shiftedPeaks.add(peakWithShift);
+			shiftedPeaks.add(new PhaseCorrelationPeak2(peak, possibleShift, subpixelShift));
 		}		
 		return shiftedPeaks;
 	}
@@ -728,6 +1034,189 @@ public class PhaseCorrelation2Util {
 		normalizeInterval(img, res, 1E-5, service);
 	}
 	
+	/*
+	 * calculate the normalized cross power spectrum of fft1 and fft2 in a single pass:
+	 * res = normalize(fft1) * conj(normalize(fft2)), pixel-wise
+	 * pixels where either input has a length less than normalizationThreshold are set to 0
+	 * res may be the same image as fft1 or fft2 (in-place)
+	 * if all three images are ArrayImgs of ComplexFloatType with equal dimensions, the
+	 * underlying float arrays are processed directly, otherwise a single cursor pass is used
+	 * @param fft1
+	 * @param fft2
+	 * @param res
+	 * @param normalizationThreshold
+	 * @param service
+	 */
+	public static <R extends ComplexType<R>, S extends ComplexType<S>, T extends ComplexType<T>> void calculateCrossPowerSpectrum(
+			final RandomAccessibleInterval<R> fft1, final RandomAccessibleInterval<S> fft2, final RandomAccessibleInterval<T> res,
+			final double normalizationThreshold, ExecutorService service)
+	{
+		final float[] a1 = getComplexFloatArray( fft1 );
+		final float[] a2 = getComplexFloatArray( fft2 );
+		final float[] aRes = getComplexFloatArray( res );
+
+		final boolean arrays = a1 != null && a2 != null && aRes != null &&
+				equalDimensions( fft1, fft2 ) && equalDimensions( fft1, res );
+
+		final double t2 = normalizationThreshold * normalizationThreshold;
+		final Vector<ImagePortion> portions = FusionTools.divideIntoPortions( Views.iterable(fft1).size() );
+		List<Future<?>> futures = new ArrayList<Future<?>>();
+
+		for (final ImagePortion ip : portions){
+			futures.add(service.submit(new Runnable() {
+
+				@Override
+				public void run() {
+
+					final long loopSize = ip.getLoopSize();
+
+					if (arrays){
+						// interleaved (real, imaginary) storage
+						final int start = (int) ip.getStartPosition() * 2;
+						final int end = start + (int) loopSize * 2;
+
+						for (int i = start; i < end; i += 2){
+							crossPower( a1[i], a1[i + 1], a2[i], a2[i + 1], t2, aRes, i );
+						}
+					}
+
+					else if (Views.iterable(fft1).iterationOrder().equals(Views.iterable(fft2).iterationOrder()) && 
+							Views.iterable(fft1).iterationOrder().equals(Views.iterable(res).iterationOrder())){
+						final Cursor<T> cRes = Views.iterable(res).cursor();
+						final Cursor<R> cSrc1 = Views.iterable(fft1).cursor();
+						final Cursor<S> cSrc2 = Views.iterable(fft2).cursor();
+						final double[] tmp = new double[2];
+
+						cSrc1.jumpFwd(ip.getStartPosition());
+						cSrc2.jumpFwd(ip.getStartPosition());
+						cRes.jumpFwd(ip.getStartPosition());
+
+						for (long l = 0; l < loopSize; l++){
+							cRes.fwd();
+							cSrc1.fwd();
+							cSrc2.fwd();
+							crossPower( cSrc1.get(), cSrc2.get(), t2, tmp );
+							cRes.get().setComplexNumber( tmp[0], tmp[1] );
+						}
+					}
+
+					else {
+						final RandomAccess<R> ra1 = fft1.randomAccess();
+						final RandomAccess<S> ra2 = fft2.randomAccess();
+						final Cursor<T> cRes = Views.iterable(res).localizingCursor();
+						final double[] tmp = new double[2];
+
+						cRes.jumpFwd(ip.getStartPosition());
+
+						for (long l = 0; l < loopSize; l++){
+							cRes.fwd();
+							ra1.setPosition(cRes);
+							ra2.setPosition(cRes);
+							crossPower( ra1.get(), ra2.get(), t2, tmp );
+							cRes.get().setComplexNumber( tmp[0], tmp[1] );
+						}
+					}
+				}
+			}));
+		}
+
+		for (Future<?> f : futures){
+			try {
+				f.get();
+			} catch (InterruptedException e) {
+				e.printStackTrace();
+			} catch (ExecutionException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/*
+	 * normalized cross power spectrum with default threshold
+	 * @param fft1
+	 * @param fft2
+	 * @param res
+	 * @param service
+	 */
+	public static <R extends ComplexType<R>, S extends ComplexType<S>, T extends ComplexType<T>> void calculateCrossPowerSpectrum(
+			final RandomAccessibleInterval<R> fft1, final RandomAccessibleInterval<S> fft2, final RandomAccessibleInterval<T> res,
+			ExecutorService service)
+	{
+		calculateCrossPowerSpectrum(fft1, fft2, res, 1E-5, service);
+	}
+
+	/*
+	 * (r1 + i*i1) * conj(r2 + i*i2) / (|c1| * |c2|), written to res[idx], res[idx+1]
+	 * only one square root is needed since both lengths are combined before
+	 */
+	private static void crossPower(final double r1, final double i1, final double r2, final double i2,
+			final double squaredThreshold, final float[] res, final int idx)
+	{
+		final double p1 = r1 * r1 + i1 * i1;
+		final double p2 = r2 * r2 + i2 * i2;
+
+		if (p1 > squaredThreshold && p2 > squaredThreshold){
+			final double norm = 1.0 / Math.sqrt( p1 * p2 );
+			res[idx] = (float)( ( r1 * r2 + i1 * i2 ) * norm );
+			res[idx + 1] = (float)( ( i1 * r2 - r1 * i2 ) * norm );
+		} else {
+			res[idx] = 0;
+			res[idx + 1] = 0;
+		}
+	}
+
+	private static <R extends ComplexType<R>, S extends ComplexType<S>> void crossPower(final R c1, final S c2,
+			final double squaredThreshold, final double[] res)
+	{
+		final double r1 = c1.getRealDouble();
+		final double i1 = c1.getImaginaryDouble();
+		final double r2 = c2.getRealDouble();
+		final double i2 = c2.getImaginaryDouble();
+		final double p1 = r1 * r1 + i1 * i1;
+		final double p2 = r2 * r2 + i2 * i2;
+
+		if (p1 > squaredThreshold && p2 > squaredThreshold){
+			final double norm = 1.0 / Math.sqrt( p1 * p2 );
+			res[0] = ( r1 * r2 + i1 * i2 ) * norm;
+			res[1] = ( i1 * r2 - r1 * i2 ) * norm;
+		} else {
+			res[0] = 0;
+			res[1] = 0;
+		}
+	}
+
+	/*
+	 * get the interleaved float storage of img if it is a ComplexFloatType ArrayImg, null otherwise
+	 * @param img
+	 * @return
+	 */
+	private static float[] getComplexFloatArray(final RandomAccessibleInterval<?> img)
+	{
+		if (!(img instanceof ArrayImg))
+			return null;
+
+		final ArrayImg<?, ?> arrayImg = (ArrayImg<?, ?>) img;
+		final Object access = arrayImg.update( null );
+		if (!(access instanceof FloatArray) || !(arrayImg.firstElement() instanceof ComplexFloatType))
+			return null;
+
+		final float[] data = ((FloatArray) access).getCurrentStorageArray();
+		if (data.length != arrayImg.size() * 2)
+			return null;
+
+		return data;
+	}
+
+	private static boolean equalDimensions(final Interval a, final Interval b)
+	{
+		if (a.numDimensions() != b.numDimensions())
+			return false;
+		for (int d = 0; d < a.numDimensions(); d++)
+			if (a.dimension( d ) != b.dimension( d ))
+				return false;
+		return true;
+	}
+	
 	/*
 	 * get the mean pixel intensity of an img
 	 * @param img
@@ -143,6 +143,22 @@ public class PhaseCorrelationPeak2 {
 		this.nPixel = src.nPixel;
 	}
 	
+	/*
+	 * copy of src with a new shift, the PCM locations are shared with src and the shift arrays are wrapped (not copied)
+	 * @param src
+	 * @param shift
+	 * @param subpixelShift - may be null
+	 */
+	PhaseCorrelationPeak2(PhaseCorrelationPeak2 src, long[] shift, double[] subpixelShift){
+		this.pcmLocation = src.pcmLocation;
+		this.shift = Point.wrap(shift);
+		this.subpixelPcmLocation = src.subpixelPcmLocation;
+		this.subpixelShift = subpixelShift == null ? null : RealPoint.wrap(subpixelShift);
+		this.phaseCorr = src.phaseCorr;
+		this.crossCorr = src.crossCorr;
+		this.nPixel = src.nPixel;
+	}
+	
 	public static class ComparatorByPhaseCorrelation implements Comparator<PhaseCorrelationPeak2> {
 		@Override
 		public int compare(PhaseCorrelationPeak2 o1, PhaseCorrelationPeak2 o2) {
@@ -224,6 +240,40 @@ public class PhaseCorrelationPeak2 {
 		
 	}
 	
+	/*
+	 * checks the cross correlation of two images shifted as indicated by this phaseCorrelationPeak
+	 * using prepared integral images (no subpixel interpolation),
+	 * update the values of crossCor and nPixels accordingly (like calculateCrossCorr)
+	 * @param correlation - the prepared images
+	 * @param img1 - size of the first image
+	 * @param img2 - size of the second image
+	 * @param minOverlapPx
+	 */
+	public void calculateCrossCorr(IntegralImageCorrelation correlation, Dimensions img1, Dimensions img2, long minOverlapPx)
+	{
+		Pair<Interval, Interval> intervals = PhaseCorrelation2Util.getOverlapIntervals(img1, img2, shift);
+		
+		// no overlap found
+		if (intervals == null) {
+			crossCorr = Double.NEGATIVE_INFINITY;
+			nPixel = 0;
+			return;
+		}
+		
+		nPixel = 1;
+		for (int i = 0; i< intervals.getA().numDimensions(); i++){
+			nPixel *= intervals.getA().dimension(i);
+		}
+		
+		if (nPixel < minOverlapPx){
+			crossCorr = Double.NEGATIVE_INFINITY;
+			nPixel = 0;
+			return;
+		}
+
+		crossCorr = correlation.getCorrelation(intervals.getA(), intervals.getB());
+	}
+
 	/*
 	 * calculate cross correlation of two images with no minimal overlap size
 	 * @param img1
@@ -0,0 +1,236 @@
+/*-
+ * #%L
+ * Multiview stitching of large datasets.
+ * %%
+ * Copyright (C) 2016 - 2017 Big Stitcher developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package net.imglib2.algorithm.phasecorrelation;
+
+import net.imglib2.Localizable;
+import net.imglib2.RealPoint;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.basictypeaccess.array.FloatArray;
+import net.imglib2.type.numeric.complex.ComplexFloatType;
+
+/**
+ * Subpixel localization of a PCM peak by evaluating the inverse DFT of the cross power spectrum
+ * on an upsampled grid around the peak (matrix-multiply DFT, Guizar-Sicairos et al., Opt. Lett. 33, 2008).
+ * 
+ * The grid covers windowSize pixels around the integer peak location with a spacing of 1/upsampling pixels.
+ * The DFT is separable, so it is computed by contracting one dimension of the spectrum after the other,
+ * which costs about (number of spectrum entries) * (grid points per dimension) complex multiplications,
+ * i.e. comparable to one FFT, but reaches a precision of 1/upsampling pixels.
+ * 
+ * The spectrum is the half-spectrum of a real-to-complex FFT (dimension 0 has size paddedSize/2+1),
+ * the missing (Hermitian-symmetric) half is accounted for by weights.
+ */
+public class UpsampledDFTRefinement
+{
+	// size of the upsampled window around the integer peak (in pixels)
+	public static double windowSize = 1.5;
+
+	/**
+	 * refine the location of a peak, sets its subpixel PCM location and subpixel shift
+	 * @param peak - peak with PCM location (and shift, if it was expanded already)
+	 * @param crossPowerSpectrum - (normalized) cross power spectrum the PCM was computed from
+	 * @param paddedDimensions - real size of the PCM
+	 * @param upsampling - upsampling factor, the precision is 1/upsampling pixels
+	 */
+	public static void refinePeak( final PhaseCorrelationPeak2 peak, final ArrayImg< ComplexFloatType, FloatArray > crossPowerSpectrum,
+			final long[] paddedDimensions, final int upsampling )
+	{
+		final int n = paddedDimensions.length;
+		final long[] location = new long[ n ];
+		peak.getPcmLocation().localize( location );
+
+		final double[] offset = refine( crossPowerSpectrum, paddedDimensions, location, upsampling );
+
+		final double[] subpixelLocation = new double[ n ];
+		for ( int d = 0; d < n; ++d )
+			subpixelLocation[ d ] = location[ d ] + offset[ d ];
+		peak.setSubpixelPcmLocation( RealPoint.wrap( subpixelLocation ) );
+
+		final Localizable shift = peak.getShift();
+		if ( shift != null )
+		{
+			final double[] subpixelShift = new double[ n ];
+			for ( int d = 0; d < n; ++d )
+				subpixelShift[ d ] = shift.getDoublePosition( d ) + offset[ d ];
+			peak.setSubpixelShift( RealPoint.wrap( subpixelShift ) );
+		}
+	}
+
+	/**
+	 * find the maximum of the PCM on an upsampled grid around location
+	 * @param crossPowerSpectrum - (normalized) cross power spectrum the PCM was computed from
+	 * @param paddedDimensions - real size of the PCM
+	 * @param location - integer PCM location of the peak
+	 * @param upsampling - upsampling factor
+	 * @return offset of the maximum relative to location (in pixels)
+	 */
+	public static double[] refine( final ArrayImg< ComplexFloatType, FloatArray > crossPowerSpectrum,
+			final long[] paddedDimensions, final long[] location, final int upsampling )
+	{
+		final int n = paddedDimensions.length;
+
+		// odd number of grid points, the center is the integer location
+		int m = (int) Math.ceil( windowSize * upsampling );
+		if ( m % 2 == 0 )
+			++m;
+		final int center = m / 2;
+
+		final int[] size = new int[ n ];
+		for ( int d = 0; d < n; ++d )
+			size[ d ] = (int) crossPowerSpectrum.dimension( d );
+
+		// contract the last dimension first, dimension 0 (contiguous, half-spectrum) last
+		double[] current = null;
+		for ( int d = n - 1; d >= 0; --d )
+		{
+			final double[][] kernel = kernel( d, size[ d ], paddedDimensions[ d ], location[ d ], m, center, upsampling );
+
+			int inner = 1;
+			for ( int e = 0; e < d; ++e )
+				inner *= size[ e ];
+
+			int outer = 1;
+			for ( int e = d + 1; e < n; ++e )
+				outer *= m;
+
+			if ( current == null )
+				current = contract( crossPowerSpectrum.update( null ).getCurrentStorageArray(), inner, size[ d ], outer, kernel, m );
+			else
+				current = contract( current, inner, size[ d ], outer, kernel, m );
+		}
+
+		// the PCM is real, the maximum of the real part is the peak
+		int best = 0;
+		for ( int i = 1; i < current.length / 2; ++i )
+			if ( current[ 2 * i ] > current[ 2 * best ] )
+				best = i;
+
+		final double[] offset = new double[ n ];
+		for ( int d = 0; d < n; ++d )
+		{
+			offset[ d ] = (double) ( best % m - center ) / upsampling;
+			best /= m;
+		}
+
+		return offset;
+	}
+
+	/*
+	 * kernel[j] = interleaved (re, im) of w(k) * exp( 2 pi i f(k) x_j / N ) for all k of the spectrum in dimension d,
+	 * where x_j is the j-th grid position and f(k) the (signed) frequency of index k
+	 */
+	private static double[][] kernel( final int d, final int spectrumSize, final long paddedSize, final long location,
+			final int m, final int center, final int upsampling )
+	{
+		final double[][] kernel = new double[ m ][ 2 * spectrumSize ];
+
+		for ( int j = 0; j < m; ++j )
+		{
+			final double x = location + (double) ( j - center ) / upsampling;
+
+			for ( int k = 0; k < spectrumSize; ++k )
+			{
+				final double f;
+				final double w;
+
+				if ( d == 0 )
+				{
+					// half-spectrum: all but the zero (and the Nyquist) frequency appear twice
+					f = k;
+					w = ( k == 0 || ( paddedSize % 2 == 0 && k == paddedSize / 2 ) ) ? 1 : 2;
+				}
+				else
+				{
+					f = k < ( paddedSize + 1 ) / 2 ? k : k - paddedSize;
+					w = 1;
+				}
+
+				final double phase = 2 * Math.PI * f * x / paddedSize;
+				kernel[ j ][ 2 * k ] = w * Math.cos( phase );
+				kernel[ j ][ 2 * k + 1 ] = w * Math.sin( phase );
+			}
+		}
+
+		return kernel;
+	}
+
+	/*
+	 * out[i + inner * (j + m * o)] = sum_k in[i + inner * (k + size * o)] * kernel[j][k] (complex, interleaved)
+	 */
+	private static double[] contract( final float[] in, final int inner, final int size, final int outer, final double[][] kernel, final int m )
+	{
+		final double[] out = new double[ 2 * inner * m * outer ];
+
+		for ( int o = 0; o < outer; ++o )
+			for ( int j = 0; j < m; ++j )
+			{
+				final double[] kj = kernel[ j ];
+				final int outOffset = 2 * inner * ( j + m * o );
+
+				for ( int k = 0; k < size; ++k )
+				{
+					final double kr = kj[ 2 * k ];
+					final double ki = kj[ 2 * k + 1 ];
+					final int inOffset = 2 * inner * ( k + size * o );
+
+					for ( int i = 0; i < 2 * inner; i += 2 )
+					{
+						final double r = in[ inOffset + i ];
+						final double im = in[ inOffset + i + 1 ];
+						out[ outOffset + i ] += r * kr - im * ki;
+						out[ outOffset + i + 1 ] += r * ki + im * kr;
+					}
+				}
+			}
+
+		return out;
+	}
+
+	private static double[] contract( final double[] in, final int inner, final int size, final int outer, final double[][] kernel, final int m )
+	{
+		final double[] out = new double[ 2 * inner * m * outer ];
+
+		for ( int o = 0; o < outer; ++o )
+			for ( int j = 0; j < m; ++j )
+			{
+				final double[] kj = kernel[ j ];
+				final int outOffset = 2 * inner * ( j + m * o );
+
+				for ( int k = 0; k < size; ++k )
+				{
+					final double kr = kj[ 2 * k ];
+					final double ki = kj[ 2 * k + 1 ];
+					final int inOffset = 2 * inner * ( k + size * o );
+
+					for ( int i = 0; i < 2 * inner; i += 2 )
+					{
+						final double r = in[ inOffset + i ];
+						final double im = in[ inOffset + i + 1 ];
+						out[ outOffset + i ] += r * kr - im * ki;
+						out[ outOffset + i + 1 ] += r * ki + im * kr;
+					}
+				}
+			}
+
+		return out;
+	}
+}
@@ -0,0 +1,359 @@
+/*-
+ * #%L
+ * Multiview stitching of large datasets.
+ * %%
+ * Copyright (C) 2016 - 2017 Big Stitcher developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package net.preibisch.stitcher.algorithm;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.function.Function;
+
+import mpicbg.spim.data.generic.sequence.AbstractSequenceDescription;
+import mpicbg.spim.data.generic.sequence.BasicViewDescription;
+import mpicbg.spim.data.registration.ViewRegistration;
+import mpicbg.spim.data.registration.ViewRegistrations;
+import mpicbg.spim.data.sequence.ViewId;
+import net.imglib2.FinalInterval;
+import net.imglib2.FinalRealInterval;
+import net.imglib2.RealInterval;
+import net.imglib2.util.Pair;
+import net.imglib2.util.ValuePair;
+
+/**
+ * Uniform grid over bounding boxes (e.g. of views or groups of views in global coordinates) to find
+ * the items that (might) overlap without comparing every item with every other.
+ * 
+ * Items are partitioned by a key (e.g. timepoint and angle), only items with the same key are compared.
+ * The cell size is the mean size of the bounding boxes, so every box covers only a few cells. Items without
+ * a bounding box (unknown size) or with very large ones are compared with all items of their partition.
+ *
+ * @param <T> item type
+ */
+public class BoundingBoxIndex< T >
+{
+	// boxes that cover more cells are not put into the grid
+	public static int maxCellsPerItem = 64;
+
+	private final List< T > items;
+	private final List< RealInterval > boxes;
+	private final List< Object > keys;
+	private final int n;
+	private final double[] cellSize;
+
+	// partition -> cell -> indices of the items in it
+	private final HashMap< Object, HashMap< Cell, ArrayList< Integer > > > grids = new HashMap<>();
+	// partition -> indices of items that are not in the grid
+	private final HashMap< Object, ArrayList< Integer > > unbounded = new HashMap<>();
+
+	/**
+	 * @param items - the items
+	 * @param boundingBox - bounding box of an item, null if unknown
+	 * @param partition - key of an item, only items with equal keys can overlap
+	 */
+	public BoundingBoxIndex( final Collection< T > items, final Function< T, RealInterval > boundingBox, final Function< T, Object > partition )
+	{
+		this.items = new ArrayList<>( items );
+		this.boxes = new ArrayList<>();
+		this.keys = new ArrayList<>();
+
+		int numDimensions = 0;
+		for ( final T item : this.items )
+		{
+			final RealInterval box = boundingBox.apply( item );
+			boxes.add( box );
+			keys.add( partition.apply( item ) );
+			if ( box != null )
+				numDimensions = box.numDimensions();
+		}
+
+		this.n = numDimensions;
+
+		// mean extent of the boxes
+		this.cellSize = new double[ n ];
+		int count = 0;
+		for ( final RealInterval box : boxes )
+			if ( box != null )
+			{
+				for ( int d = 0; d < n; ++d )
+					cellSize[ d ] += box.realMax( d ) - box.realMin( d );
+				++count;
+			}
+
+		for ( int d = 0; d < n; ++d )
+			cellSize[ d ] = count == 0 || cellSize[ d ] <= 0 ? 1 : cellSize[ d ] / count;
+
+		for ( int i = 0; i < this.items.size(); ++i )
+		{
+			final RealInterval box = boxes.get( i );
+			final Object key = keys.get( i );
+
+			if ( box == null || numCells( box ) > maxCellsPerItem )
+			{
+				unbounded.computeIfAbsent( key, k -> new ArrayList<>() ).add( i );
+			}
+			else
+			{
+				final HashMap< Cell, ArrayList< Integer > > grid = grids.computeIfAbsent( key, k -> new HashMap<>() );
+				for ( final Cell cell : cells( box ) )
+					grid.computeIfAbsent( cell, c -> new ArrayList<>() ).add( i );
+			}
+		}
+	}
+
+	/**
+	 * @param box - a bounding box (null = unknown, everything might overlap)
+	 * @param key - the partition to look in
+	 * @return the items of the partition whose bounding boxes intersect box (in the order they were added)
+	 */
+	public List< T > query( final RealInterval box, final Object key )
+	{
+		final ArrayList< T > res = new ArrayList<>();
+		for ( final int i : candidates( box, key ) )
+			if ( intersect( box, boxes.get( i ) ) )
+				res.add( items.get( i ) );
+		return res;
+	}
+
+	/**
+	 * @return all pairs of items with the same key whose bounding boxes intersect,
+	 * in the order of a loop over all i &lt; j
+	 */
+	public List< Pair< T, T > > overlappingPairs()
+	{
+		final ArrayList< Pair< T, T > > res = new ArrayList<>();
+
+		for ( int i = 0; i < items.size(); ++i )
+		{
+			final ArrayList< Integer > partners = new ArrayList<>();
+			for ( final int j : candidates( boxes.get( i ), keys.get( i ) ) )
+				if ( j > i && intersect( boxes.get( i ), boxes.get( j ) ) )
+					partners.add( j );
+
+			Collections.sort( partners );
+			for ( final int j : partners )
+				res.add( new ValuePair<>( items.get( i ), items.get( j ) ) );
+		}
+
+		return res;
+	}
+
+	/*
+	 * indices of all items of a partition that share a cell with box (or are not in the grid)
+	 */
+	private HashSet< Integer > candidates( final RealInterval box, final Object key )
+	{
+		final HashSet< Integer > res = new HashSet<>();
+
+		final ArrayList< Integer > unboundedItems = unbounded.get( key );
+		if ( unboundedItems != null )
+			res.addAll( unboundedItems );
+
+		final HashMap< Cell, ArrayList< Integer > > grid = grids.get( key );
+		if ( grid == null )
+			return res;
+
+		if ( box == null || numCells( box ) > maxCellsPerItem )
+		{
+			grid.values().forEach( res::addAll );
+		}
+		else
+		{
+			for ( final Cell cell : cells( box ) )
+			{
+				final ArrayList< Integer > inCell = grid.get( cell );
+				if ( inCell != null )
+					res.addAll( inCell );
+			}
+		}
+
+		return res;
+	}
+
+	private long cellMin( final RealInterval box, final int d )
+	{
+		return (long) Math.floor( box.realMin( d ) / cellSize[ d ] );
+	}
+
+	private long cellMax( final RealInterval box, final int d )
+	{
+		return (long) Math.floor( box.realMax( d ) / cellSize[ d ] );
+	}
+
+	private double numCells( final RealInterval box )
+	{
+		double num = 1;
+		for ( int d = 0; d < n; ++d )
+			num *= cellMax( box, d ) - cellMin( box, d ) + 1;
+		return num;
+	}
+
+	private List< Cell > cells( final RealInterval box )
+	{
+		final long[] min = new long[ n ];
+		final long[] max = new long[ n ];
+		for ( int d = 0; d < n; ++d )
+		{
+			min[ d ] = cellMin( box, d );
+			max[ d ] = cellMax( box, d );
+		}
+
+		final ArrayList< Cell > res = new ArrayList<>();
+		final long[] pos = min.clone();
+
+		while ( true )
+		{
+			res.add( new Cell( pos.clone() ) );
+
+			int d = 0;
+			for ( ; d < n; ++d )
+			{
+				if ( pos[ d ] < max[ d ] )
+				{
+					++pos[ d ];
+					break;
+				}
+				pos[ d ] = min[ d ];
+			}
+
+			if ( d == n )
+				return res;
+		}
+	}
+
+	/**
+	 * @param a - bounding box, null = unknown
+	 * @param b - bounding box, null = unknown
+	 * @return false only if both boxes are known and do not intersect
+	 */
+	public static boolean intersect( final RealInterval a, final RealInterval b )
+	{
+		if ( a == null || b == null )
+			return true;
+
+		for ( int d = 0; d < a.numDimensions(); ++d )
+			if ( a.realMax( d ) < b.realMin( d ) || b.realMax( d ) < a.realMin( d ) )
+				return false;
+
+		return true;
+	}
+
+	/**
+	 * bounding box of a view in global coordinates (enlarged by one pixel, so that it contains the
+	 * bounding boxes of the overlap tests, e.g. BoundingBoxMaximalGroupOverlap)
+	 * @param vid - the view
+	 * @param sd - sequence description
+	 * @param vrs - view registrations
+	 * @return the bounding box or null if the size of the view is unknown
+	 */
+	public static RealInterval getBoundingBox(
+			final ViewId vid,
+			final AbstractSequenceDescription< ?, ? extends BasicViewDescription< ? >, ? > sd,
+			final ViewRegistrations vrs )
+	{
+		final BasicViewDescription< ? > vd = sd.getViewDescriptions().get( vid );
+		if ( vd == null || !vd.getViewSetup().hasSize() )
+			return null;
+
+		final long[] max = new long[ vd.getViewSetup().getSize().numDimensions() ];
+		vd.getViewSetup().getSize().dimensions( max );
+		for ( int d = 0; d < max.length; ++d )
+			max[ d ] -= 1;
+
+		final ViewRegistration vr = vrs.getViewRegistration( vid );
+		vr.updateModel();
+		final RealInterval bounds = vr.getModel().estimateBounds( new FinalInterval( new long[ max.length ], max ) );
+
+		final double[] bbMin = new double[ bounds.numDimensions() ];
+		final double[] bbMax = new double[ bounds.numDimensions() ];
+		for ( int d = 0; d < bounds.numDimensions(); ++d )
+		{
+			bbMin[ d ] = bounds.realMin( d ) - 1;
+			bbMax[ d ] = bounds.realMax( d ) + 1;
+		}
+
+		return new FinalRealInterval( bbMin, bbMax );
+	}
+
+	/**
+	 * bounding box of several views (see {@link #getBoundingBox(ViewId, AbstractSequenceDescription, ViewRegistrations)})
+	 * @param views - the views
+	 * @param sd - sequence description
+	 * @param vrs - view registrations
+	 * @return the union of the bounding boxes or null if the size of one of the views is unknown
+	 */
+	public static RealInterval getBoundingBox(
+			final Collection< ? extends ViewId > views,
+			final AbstractSequenceDescription< ?, ? extends BasicViewDescription< ? >, ? > sd,
+			final ViewRegistrations vrs )
+	{
+		double[] bbMin = null;
+		double[] bbMax = null;
+
+		for ( final ViewId vid : views )
+		{
+			final RealInterval box = getBoundingBox( vid, sd, vrs );
+			if ( box == null )
+				return null;
+
+			if ( bbMin == null )
+			{
+				bbMin = new double[ box.numDimensions() ];
+				bbMax = new double[ box.numDimensions() ];
+				Arrays.fill( bbMin, Double.MAX_VALUE );
+				Arrays.fill( bbMax, -Double.MAX_VALUE );
+			}
+
+			for ( int d = 0; d < box.numDimensions(); ++d )
+			{
+				bbMin[ d ] = Math.min( bbMin[ d ], box.realMin( d ) );
+				bbMax[ d ] = Math.max( bbMax[ d ], box.realMax( d ) );
+			}
+		}
+
+		return bbMin == null ? null : new FinalRealInterval( bbMin, bbMax );
+	}
+
+	private static class Cell
+	{
+		private final long[] pos;
+
+		public Cell( final long[] pos )
+		{
+			this.pos = pos;
+		}
+
+		@Override
+		public int hashCode()
+		{
+			return Arrays.hashCode( pos );
+		}
+
+		@Override
+		public boolean equals( final Object obj )
+		{
+			return obj instanceof Cell && Arrays.equals( pos, ( (Cell) obj ).pos );
+		}
+	}
+}
@@ -26,15 +26,19 @@ import static mpicbg.spim.data.generic.sequence.ImgLoaderHints.LOAD_COMPLETELY;
 import java.util.Date;
 
 import mpicbg.spim.data.generic.sequence.BasicImgLoader;
+import mpicbg.spim.data.generic.sequence.ImgLoaderHint;
 import mpicbg.spim.data.sequence.MultiResolutionImgLoader;
 import mpicbg.spim.data.sequence.ViewId;
 import mpicbg.spim.io.IOFunctions;
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
 import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.img.Img;
 import net.imglib2.img.ImgFactory;
 import net.imglib2.img.array.ArrayImgFactory;
 import net.imglib2.realtransform.AffineTransform3D;
 import net.imglib2.type.numeric.RealType;
+import net.imglib2.view.Views;
 import net.preibisch.mvrecon.process.interestpointdetection.methods.downsampling.Downsample;
 import net.preibisch.mvrecon.process.interestpointregistration.pairwise.constellation.grouping.Group;
 
@@ -99,7 +103,29 @@ public class DownsampleTools
 			final ViewId vd,
 			long[] downsampleFactors )
 	{
-		
+		return openAndDownsample( imgLoader, vd, downsampleFactors, null );
+	}
+
+	/**
+	 * open and downsample a view, but only read and downsample the part of it that covers region.
+	 * The result has the dimensions of the whole downsampled view, it is zero outside of region.
+	 * 
+	 * @param imgLoader the imgloader
+	 * @param vd the view
+	 * @param downsampleFactors downsampling in x, y, z
+	 * @param region part to load in downsampled pixel coordinates, null means the whole view (loaded completely)
+	 * @param <T> pixel type
+	 * @return the downsampled view
+	 */
+	public static < T extends RealType<T> > RandomAccessibleInterval< T > openAndDownsample(
+			final BasicImgLoader imgLoader,
+			final ViewId vd,
+			long[] downsampleFactors,
+			final Interval region )
+	{
+		// only if the whole image is used it is loaded completely, otherwise (cached) loaders just read the cells we access
+		final ImgLoaderHint[] hints = region == null ? new ImgLoaderHint[] { LOAD_COMPLETELY } : new ImgLoaderHint[ 0 ];
+
 		System.out.println(
 				"(" + new Date(System.currentTimeMillis()) + "): "
 				+ "Requesting Img from ImgLoader (tp=" + vd.getTimePointId() + ", setup=" + vd.getViewSetupId() + ")" );
@@ -145,14 +171,62 @@ public class DownsampleTools
 					"using precomputed Multiresolution Images [" + fx + "x" + fy + "x" + fz + "], " +
 					"Remaining downsampling [" + dsx + "x" + dsy + "x" + dsz + "]" );
 
-			input = (RandomAccessibleInterval< T >) mrImgLoader.getSetupImgLoader( vd.getViewSetupId() ).getFloatImage( vd.getTimePointId(), bestLevel, false, LOAD_COMPLETELY );
+			input = (RandomAccessibleInterval< T >) mrImgLoader.getSetupImgLoader( vd.getViewSetupId() ).getFloatImage( vd.getTimePointId(), bestLevel, false, hints );
+		}
+		else
+		{
+			input =  (RandomAccessibleInterval< T >) imgLoader.getSetupImgLoader( vd.getViewSetupId() ).getImage( vd.getTimePointId(), hints );
 		}
+
+		if ( region == null )
+			return downsample( input, new long[]{ dsx, dsy, dsz } );
 		else
+			return downsampleRegion( input, new long[]{ dsx, dsy, dsz }, region );
+	}
+
+	/**
+	 * downsample only the part of input that covers region (in downsampled pixel coordinates).
+	 * The result has the dimensions of downsample( input, downsampleFactors ) and is zero outside of region.
+	 * 
+	 * @param input the image
+	 * @param downsampleFactors downsampling in x, y, z (powers of 2)
+	 * @param region part to downsample (in downsampled pixel coordinates)
+	 * @param <T> pixel type
+	 * @return the downsampled image
+	 */
+	public static < T extends RealType<T> > RandomAccessibleInterval< T > downsampleRegion(
+			final RandomAccessibleInterval< T > input,
+			final long[] downsampleFactors,
+			final Interval region )
+	{
+		final int n = input.numDimensions();
+
+		final long[] dimensions = new long[ n ];
+		final long[] regionMin = new long[ n ];
+		final long[] min = new long[ n ];
+		final long[] max = new long[ n ];
+
+		for ( int d = 0; d < n; ++d )
 		{
-			input =  (RandomAccessibleInterval< T >) imgLoader.getSetupImgLoader( vd.getViewSetupId() ).getImage( vd.getTimePointId(), LOAD_COMPLETELY );
+			// downsample() halves the size (rounding down) in every step
+			final long f = d < 3 ? downsampleFactors[ d ] : 1;
+			dimensions[ d ] = input.dimension( d ) / f;
+
+			regionMin[ d ] = Math.max( 0, d < region.numDimensions() ? region.min( d ) : 0 );
+			final long regionMax = Math.min( dimensions[ d ] - 1, d < region.numDimensions() ? region.max( d ) : dimensions[ d ] - 1 );
+
+			// the region does not cover the image, fall back to the whole image
+			if ( regionMax < regionMin[ d ] )
+				return downsample( input, downsampleFactors );
+
+			// the input pixels of the region (aligned to the downsampling)
+			min[ d ] = input.min( d ) + regionMin[ d ] * f;
+			max[ d ] = input.min( d ) + ( regionMax + 1 ) * f - 1;
 		}
 
-		return downsample( input, new long[]{ dsx, dsy, dsz } );
+		final RandomAccessibleInterval< T > downsampled = downsample( Views.zeroMin( Views.interval( input, min, max ) ), downsampleFactors );
+
+		return Views.interval( Views.extendZero( Views.translate( downsampled, regionMin ) ), new FinalInterval( dimensions ) );
 	}
 	
 	public static < T extends RealType<T> > RandomAccessibleInterval< T > downsample(
@@ -131,16 +131,20 @@ public class FilteredStitchingResults
 		updateFilteredResults();
 	}
 
-	void updateFilteredResults()
+	// public so it can be called when results were added to the wrapped StitchingResults (see StitchingResultsPublisher)
+	public void updateFilteredResults()
 	{
 		filteredPairwiseResults.clear();
-		wrapped.getPairwiseResults().forEach( (k, v) -> 
+		synchronized ( wrapped )
 		{
-			for (Filter filter : filters)
-				if (!filter.conforms(v))
-					return;
-			filteredPairwiseResults.put( k, v );
-		});
+			wrapped.getPairwiseResults().forEach( (k, v) -> 
+			{
+				for (Filter filter : filters)
+					if (!filter.conforms(v))
+						return;
+				filteredPairwiseResults.put( k, v );
+			});
+		}
 	}
 
 	public void clearFilter(Class<? extends Filter> filterClass)
@@ -163,6 +167,14 @@ public class FilteredStitchingResults
 	}
 
 	public void applyToWrappedSubset( Collection< Pair< Group< ViewId >, Group< ViewId > > > targets)
+	{
+		synchronized ( wrapped )
+		{
+			applyToWrappedSubsetUnsynchronized( targets );
+		}
+	}
+
+	private void applyToWrappedSubsetUnsynchronized( Collection< Pair< Group< ViewId >, Group< ViewId > > > targets)
 	{
 		final Map< Pair< Group< ViewId >, Group< ViewId > >, PairwiseStitchingResult< ViewId > > filteredTmp = new HashMap<>();
 		filteredTmp.putAll( wrapped.getPairwiseResults() );
@@ -189,7 +201,10 @@ public class FilteredStitchingResults
 
 	public void applyToWrappedAll()
 	{
-		applyToWrappedSubset( wrapped.getPairwiseResults().keySet() );
+		synchronized ( wrapped )
+		{
+			applyToWrappedSubsetUnsynchronized( new ArrayList<>( wrapped.getPairwiseResults().keySet() ) );
+		}
 	}
 
 	public Map< Pair< Group< ViewId >, Group< ViewId > >, PairwiseStitchingResult< ViewId > > getPairwiseResults()
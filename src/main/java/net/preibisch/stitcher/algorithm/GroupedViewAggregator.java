@@ -23,6 +23,7 @@ package net.preibisch.stitcher.algorithm;
 
 import java.io.File;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
@@ -57,8 +58,11 @@ import mpicbg.spim.data.sequence.ViewSetup;
 import mpicbg.spim.data.sequence.VoxelDimensions;
 import net.imglib2.Dimensions;
 import net.imglib2.FinalDimensions;
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
 import net.imglib2.IterableInterval;
 import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.RealInterval;
 import net.imglib2.img.Img;
 import net.imglib2.img.array.ArrayImgFactory;
 import net.imglib2.img.array.ArrayImgs;
@@ -296,6 +300,22 @@ public class GroupedViewAggregator
 		PICK_SPECIFIC, PICK_BRIGHTEST, AVERAGE
 	}
 
+	/**
+	 * @return a description of the actions (equal for aggregators that combine views the same way)
+	 */
+	public String getDescription()
+	{
+		final StringBuilder sb = new StringBuilder();
+		for ( final Action action : actions )
+		{
+			sb.append( action.actionType );
+			for ( int i = 0; i < action.entityClasses.size(); ++i )
+				sb.append( " " + action.entityClasses.get( i ).getSimpleName() + ( action.instances.get( i ) == null ? "" : "=" + action.instances.get( i ).getId() ) );
+			sb.append( ";" );
+		}
+		return sb.toString();
+	}
+
 	public void addAction(ActionType at, Class<? extends Entity> entityClass, Entity instance)
 	{
 		// check if we already have an Action of the same type
@@ -361,6 +381,32 @@ public class GroupedViewAggregator
 												AbstractSequenceDescription< ?, ? extends BasicViewDescription< ? >, ? > sd,
 												long[] downsampleFactors,
 												final AffineTransform3D dsCorrectionT){
+		return aggregate( gv, sd, downsampleFactors, dsCorrectionT, null, null, 0, null, null );
+	}
+
+	/**
+	 * aggregate a group of views, but only load the parts of the views that cover a region in global coordinates
+	 * (e.g. the overlap with another group), the rest of the views is zero
+	 * @param gv the group
+	 * @param sd sequence description
+	 * @param downsampleFactors downsampling
+	 * @param dsCorrectionT will be set to the transformation from downsampled to original pixel coordinates
+	 * @param vrs view registrations (may be null if globalRegion is null)
+	 * @param globalRegion region to load in global coordinates, null = everything
+	 * @param margin additional pixels (after downsampling) to load around the region
+	 * @param tileCache views (or their regions) are taken from this cache (may be null), see {@link RAIProxy}
+	 * @param proxies the created proxies are added here (may be null), they have to be released if a tileCache is used
+	 * @return the aggregated image or null if all views were filtered out
+	 */
+	public <T extends RealType<T>> RandomAccessibleInterval< T > aggregate(Group<? extends ViewId> gv, 
+												AbstractSequenceDescription< ?, ? extends BasicViewDescription< ? >, ? > sd,
+												long[] downsampleFactors,
+												final AffineTransform3D dsCorrectionT,
+												final ViewRegistrations vrs,
+												final RealInterval globalRegion,
+												final long margin,
+												final TileCache tileCache,
+												final Collection< RAIProxy< ? > > proxies ){
 
 		Map<BasicViewDescription< ? >, RandomAccessibleInterval<T>> map = new HashMap<>();
 		boolean dsAdjusted = false;
@@ -374,7 +420,14 @@ public class GroupedViewAggregator
 			// if view is not present, add null as the RAIProxy
 			if ( vd.isPresent() )
 			{
-				rai = new RAIProxy< T >( sd.getImgLoader(), vid, downsampleFactors );
+				final Interval region = globalRegion == null ? null : getLocalRegion( vid, sd, vrs, downsampleFactors, globalRegion, margin );
+				// cached views are only released if we can hand the proxies out
+				final RAIProxy< T > proxy = new RAIProxy< T >( sd.getImgLoader(), vid, downsampleFactors, region, proxies == null ? null : tileCache );
+
+				if ( proxies != null )
+					proxies.add( proxy );
+
+				rai = proxy;
 
 				// we only adjust the transformation for downsampling once (could be three channels averaged here)
 				if ( !dsAdjusted )
@@ -406,6 +459,72 @@ public class GroupedViewAggregator
 		
 	}
 	
+	/**
+	 * the views of a group that {@link #aggregate(Group, AbstractSequenceDescription, long[], AffineTransform3D, ViewRegistrations, RealInterval, long, TileCache, Collection)}
+	 * might load, i.e. all present views that are not dropped by a PICK_SPECIFIC action (no images are loaded)
+	 * @param gv the group
+	 * @param sd sequence description
+	 * @return the views
+	 */
+	public List< ViewId > getViewsToLoad( final Group< ? extends ViewId > gv,
+			final AbstractSequenceDescription< ?, ? extends BasicViewDescription< ? >, ? > sd )
+	{
+		Map< BasicViewDescription< ? >, RandomAccessibleInterval< FloatType > > map = new HashMap<>();
+
+		for ( final ViewId vid : gv.getViews() )
+		{
+			final BasicViewDescription< ? > vd = sd.getViewDescriptions().get( vid );
+			if ( vd.isPresent() )
+				map.put( vd, null );
+		}
+
+		// picking specific views does not look at the images, the other actions need all of them
+		for ( final Action action : actions )
+			if ( action.actionType == ActionType.PICK_SPECIFIC )
+				map = action.pickSpecific( map );
+
+		return new ArrayList<>( map.keySet() );
+	}
+
+	/**
+	 * the bounding box of a region in global coordinates in the downsampled pixel coordinates of a view
+	 * @param vid the view
+	 * @param sd sequence description
+	 * @param vrs view registrations
+	 * @param downsampleFactors downsampling
+	 * @param globalRegion region in global coordinates
+	 * @param margin additional pixels around the bounding box
+	 * @return the local region
+	 */
+	public static Interval getLocalRegion( final ViewId vid,
+			final AbstractSequenceDescription< ?, ? extends BasicViewDescription< ? >, ? > sd,
+			final ViewRegistrations vrs,
+			final long[] downsampleFactors,
+			final RealInterval globalRegion,
+			final long margin )
+	{
+		final AffineTransform3D dsCorrectionT = new AffineTransform3D();
+		DownsampleTools.openAndDownsampleAdjustTransformation( sd.getImgLoader(), vid, downsampleFactors, dsCorrectionT );
+
+		// downsampled pixel coordinates -> global coordinates
+		final ViewRegistration vr = vrs.getViewRegistration( vid );
+		vr.updateModel();
+		final AffineTransform3D toGlobal = vr.getModel().copy();
+		toGlobal.concatenate( dsCorrectionT );
+
+		final RealInterval local = toGlobal.inverse().estimateBounds( globalRegion );
+
+		final long[] min = new long[ local.numDimensions() ];
+		final long[] max = new long[ local.numDimensions() ];
+		for ( int d = 0; d < local.numDimensions(); ++d )
+		{
+			min[ d ] = (long) Math.floor( local.realMin( d ) ) - margin;
+			max[ d ] = (long) Math.ceil( local.realMax( d ) ) + margin;
+		}
+
+		return new FinalInterval( min, max );
+	}
+
 	public static void main(String[] args)
 	{
 
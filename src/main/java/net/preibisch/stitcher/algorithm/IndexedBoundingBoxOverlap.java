@@ -0,0 +1,73 @@
+/*-
+ * #%L
+ * Multiview stitching of large datasets.
+ * %%
+ * Copyright (C) 2016 - 2017 Big Stitcher developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package net.preibisch.stitcher.algorithm;
+
+import java.util.HashMap;
+import java.util.HashSet;
+
+import mpicbg.spim.data.sequence.ViewId;
+import net.imglib2.util.Pair;
+import net.preibisch.mvrecon.fiji.spimdata.SpimData2;
+import net.preibisch.mvrecon.process.interestpointregistration.pairwise.constellation.overlap.SimpleBoundingBoxOverlap;
+
+/**
+ * {@link SimpleBoundingBoxOverlap} that only tests pairs of views that a {@link BoundingBoxIndex} of all views
+ * reports as candidates, all other pairs do not overlap.
+ *
+ * The index is built in the constructor with the registrations at that time and only read afterwards, so one
+ * instance can be shared by threads that change the registrations of other views (e.g. when optimizing subsets
+ * concurrently, see GlobalOptStitcher); it should be created before they start.
+ *
+ * @param <V> view id type
+ */
+public class IndexedBoundingBoxOverlap< V extends ViewId > extends SimpleBoundingBoxOverlap< V >
+{
+	private final HashMap< ViewId, HashSet< ViewId > > candidates;
+
+	public IndexedBoundingBoxOverlap( final SpimData2 data )
+	{
+		super( data );
+
+		final BoundingBoxIndex< ViewId > index = new BoundingBoxIndex<>(
+				data.getSequenceDescription().getViewDescriptions().keySet(),
+				vid -> BoundingBoxIndex.getBoundingBox( vid, data.getSequenceDescription(), data.getViewRegistrations() ),
+				vid -> null );
+
+		candidates = new HashMap<>();
+		for ( final Pair< ViewId, ViewId > pair : index.overlappingPairs() )
+		{
+			candidates.computeIfAbsent( pair.getA(), v -> new HashSet<>() ).add( pair.getB() );
+			candidates.computeIfAbsent( pair.getB(), v -> new HashSet<>() ).add( pair.getA() );
+		}
+	}
+
+	@Override
+	public boolean overlaps( final V view1, final V view2 )
+	{
+		final HashSet< ViewId > partners = candidates.get( view1 );
+
+		if ( partners == null || !partners.contains( view2 ) )
+			return false;
+
+		return super.overlaps( view1, view2 );
+	}
+}
@@ -0,0 +1,228 @@
+/*-
+ * #%L
+ * Multiview stitching of large datasets.
+ * %%
+ * Copyright (C) 2016 - 2017 Big Stitcher developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package net.preibisch.stitcher.algorithm;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * One memory budget for everything a pairwise stitching run keeps in memory (every run has its own, so concurrent
+ * runs do not change each other's limits or evict each other's views).
+ * 
+ * Tasks (e.g. the computation of a pair) acquire their estimated working memory before they run and release it
+ * afterwards; a task has to wait until enough of the budget is free. A task that is larger than the whole budget
+ * is admitted as soon as no other task is running, so oversized tasks are serialized instead of blocking forever.
+ * 
+ * Caches (loaded views, tile FFTs, including prefetched views) report the memory they hold. If a task does not fit,
+ * the registered caches are asked to drop entries that are not in use first, caches evict themselves once the
+ * budget is exceeded. Caches call into the budget while holding their own lock, the budget never calls a cache
+ * while holding its lock.
+ */
+public class MemoryBudget
+{
+	/**
+	 * something that holds memory of the budget and can give (some of) it back
+	 */
+	public interface Evictable
+	{
+		/**
+		 * drop entries that are not in use
+		 * @param bytes - how much memory is needed
+		 * @return how much memory was freed
+		 */
+		long evict( long bytes );
+	}
+
+	/**
+	 * default budget: three quarters of the maximal heap size (the rest is left for everything else)
+	 */
+	public static long defaultMaxBytes()
+	{
+		return Runtime.getRuntime().maxMemory() / 4 * 3;
+	}
+
+	private long maxBytes;
+	// working memory of running tasks
+	private long usedBytes = 0;
+	// memory held by caches
+	private long heldBytes = 0;
+	private int running = 0;
+
+	private final List< Evictable > evictables = new CopyOnWriteArrayList<>();
+
+	public MemoryBudget()
+	{
+		this( defaultMaxBytes() );
+	}
+
+	public MemoryBudget( final long maxBytes )
+	{
+		this.maxBytes = maxBytes;
+	}
+
+	/**
+	 * wait until bytes fit into the budget and reserve them
+	 * @param bytes - estimated memory of the task
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	public void acquire( final long bytes ) throws InterruptedException
+	{
+		while ( true )
+		{
+			makeRoom( bytes );
+
+			synchronized ( this )
+			{
+				if ( fits( bytes ) )
+				{
+					usedBytes += bytes;
+					++running;
+					return;
+				}
+
+				wait();
+			}
+		}
+	}
+
+	/**
+	 * reserve bytes if they fit into the budget right now (after dropping unused cache entries), do not wait otherwise
+	 * @param bytes - estimated memory of the task
+	 * @return true if the memory was reserved
+	 */
+	public boolean tryAcquire( final long bytes )
+	{
+		makeRoom( bytes );
+
+		synchronized ( this )
+		{
+			if ( !fits( bytes ) )
+				return false;
+
+			usedBytes += bytes;
+			++running;
+			return true;
+		}
+	}
+
+	/**
+	 * give back the memory reserved by {@link #acquire(long)} or {@link #tryAcquire(long)}
+	 * @param bytes - the same amount that was acquired
+	 */
+	public synchronized void release( final long bytes )
+	{
+		usedBytes -= bytes;
+		--running;
+		notifyAll();
+	}
+
+	/**
+	 * @param bytes - memory that a cache would like to fill (e.g. prefetching a view)
+	 * @return true if it fits into the budget (after dropping unused cache entries), nothing is reserved
+	 */
+	public boolean hasRoom( final long bytes )
+	{
+		makeRoom( bytes );
+
+		synchronized ( this )
+		{
+			return usedBytes + heldBytes + bytes <= maxBytes;
+		}
+	}
+
+	/**
+	 * a cache holds more memory now
+	 * @param bytes - the additional memory
+	 */
+	public synchronized void addHeld( final long bytes )
+	{
+		heldBytes += bytes;
+	}
+
+	/**
+	 * a cache gave back memory
+	 * @param bytes - the freed memory
+	 */
+	public synchronized void removeHeld( final long bytes )
+	{
+		heldBytes -= bytes;
+		notifyAll();
+	}
+
+	/**
+	 * @return true if tasks and caches together use more than the budget
+	 */
+	public synchronized boolean isExceeded()
+	{
+		return usedBytes + heldBytes > maxBytes;
+	}
+
+	/**
+	 * @param evictable - is asked to drop entries if a task does not fit
+	 */
+	public void register( final Evictable evictable )
+	{
+		evictables.add( evictable );
+	}
+
+	public void unregister( final Evictable evictable )
+	{
+		evictables.remove( evictable );
+	}
+
+	/*
+	 * ask the caches to drop unused entries until bytes fit (not holding our lock, the caches call back into it)
+	 */
+	private void makeRoom( final long bytes )
+	{
+		long missing;
+		synchronized ( this )
+		{
+			missing = usedBytes + heldBytes + bytes - maxBytes;
+		}
+
+		for ( final Evictable evictable : evictables )
+		{
+			if ( missing <= 0 )
+				break;
+
+			missing -= evictable.evict( missing );
+		}
+	}
+
+	private boolean fits( final long bytes )
+	{
+		return running == 0 || usedBytes + heldBytes + bytes <= maxBytes;
+	}
+
+	public synchronized void setMaxBytes( final long maxBytes )
+	{
+		this.maxBytes = maxBytes;
+		notifyAll();
+	}
+
+	public synchronized long getMaxBytes() { return maxBytes; }
+
+	public synchronized long getUsedBytes() { return usedBytes; }
+
+	public synchronized long getHeldBytes() { return heldBytes; }
+}
@@ -0,0 +1,373 @@
+/*-
+ * #%L
+ * Multiview stitching of large datasets.
+ * %%
+ * Copyright (C) 2016 - 2017 Big Stitcher developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package net.preibisch.stitcher.algorithm;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import mpicbg.spim.data.registration.ViewRegistrations;
+import mpicbg.spim.data.sequence.ViewId;
+import mpicbg.spim.io.IOFunctions;
+import net.imglib2.FinalRealInterval;
+import net.imglib2.RealInterval;
+import net.imglib2.realtransform.AffineTransform3D;
+import net.imglib2.util.Pair;
+import net.imglib2.util.ValuePair;
+import net.preibisch.mvrecon.fiji.spimdata.stitchingresults.PairwiseStitchingResult;
+import net.preibisch.mvrecon.process.interestpointregistration.pairwise.constellation.grouping.Group;
+
+/**
+ * Checkpoint journal for pairwise stitching: every result is appended (and flushed) as soon as it is computed,
+ * so that a run that was interrupted can be resumed with only the missing pairs.
+ * 
+ * The first line is the fingerprint of the settings (see {@link PairwiseProvenance}), a journal written with other
+ * settings is not used. Every following line is one result:
+ * <pre>
+ * views A ; views B ; r ; hash ; transform (row-packed) ; bounding box min ; bounding box max ; checksum
+ * </pre>
+ * or one pair for which no shift was found:
+ * <pre>
+ * views A ; views B ; hash ; checksum
+ * </pre>
+ * where views are comma-separated timepoint-setup ids, numbers are comma-separated and the checksum is the CRC32 (hex)
+ * of the line before it. Lines with a wrong checksum (e.g. the last line if we were killed while writing it) are
+ * ignored, when resuming the journal is cut after the last complete line before appending.
+ */
+public class PairwiseJournal
+{
+	private final File file;
+	private final String fingerprint;
+	private BufferedWriter writer;
+
+	/**
+	 * @param file - the journal file
+	 * @param fingerprint - fingerprint of the settings of the run
+	 */
+	public PairwiseJournal( final File file, final String fingerprint )
+	{
+		this.file = file;
+		this.fingerprint = fingerprint.replace( '\n', ' ' );
+	}
+
+	/**
+	 * read the results of an earlier run with the same settings, skipping results whose registrations changed
+	 * @param vrs - the current registrations
+	 * @return the results (empty if there is no journal or it was written with other settings)
+	 */
+	public List< PairwiseStitchingResult< ViewId > > read( final ViewRegistrations vrs )
+	{
+		return read( vrs, null );
+	}
+
+	/**
+	 * read the results of an earlier run with the same settings, skipping results whose registrations changed
+	 * @param vrs - the current registrations
+	 * @param failedPairs - the pairs for which no shift was found (and whose registrations did not change) are added here (may be null)
+	 * @return the results (empty if there is no journal or it was written with other settings)
+	 */
+	public List< PairwiseStitchingResult< ViewId > > read( final ViewRegistrations vrs, final List< Pair< Group< ViewId >, Group< ViewId > > > failedPairs )
+	{
+		final List< PairwiseStitchingResult< ViewId > > results = new ArrayList<>();
+
+		if ( !file.exists() )
+			return results;
+
+		try ( final BufferedReader in = new BufferedReader( new FileReader( file ) ) )
+		{
+			final String header = in.readLine();
+			if ( header == null || !header.equals( fingerprint ) )
+			{
+				IOFunctions.println( "Checkpoint journal " + file + " was written with other settings, not using it." );
+				return results;
+			}
+
+			String line;
+			while ( ( line = in.readLine() ) != null )
+			{
+				// the last line might be incomplete if we were killed while writing
+				final String payload = verifyChecksum( line );
+				if ( payload == null )
+					continue;
+
+				final Pair< Pair< Group< ViewId >, Group< ViewId > >, Double > failed = failedFromLine( payload );
+				if ( failed != null )
+				{
+					final ViewId firstVidA = failed.getA().getA().getViews().iterator().next();
+					final ViewId firstVidB = failed.getA().getB().getViews().iterator().next();
+					if ( failedPairs != null && failed.getB() == PairwiseStitchingResult.calculateHash( vrs.getViewRegistration( firstVidA ), vrs.getViewRegistration( firstVidB ) ) )
+						failedPairs.add( failed.getA() );
+
+					continue;
+				}
+
+				final PairwiseStitchingResult< ViewId > result = fromLine( payload );
+				if ( result == null )
+					continue;
+
+				final ViewId firstVidA = result.pair().getA().getViews().iterator().next();
+				final ViewId firstVidB = result.pair().getB().getViews().iterator().next();
+				if ( result.getHash() == PairwiseStitchingResult.calculateHash( vrs.getViewRegistration( firstVidA ), vrs.getViewRegistration( firstVidB ) ) )
+					results.add( result );
+			}
+		}
+		catch ( final IOException e )
+		{
+			IOFunctions.println( "Failed to read checkpoint journal " + file + ": " + e );
+		}
+
+		return results;
+	}
+
+	/**
+	 * start writing the journal
+	 * @param keepExisting - append to an existing journal with the same settings (when resuming) instead of starting a new one
+	 * @throws IOException if the journal cannot be written
+	 */
+	public synchronized void open( final boolean keepExisting ) throws IOException
+	{
+		boolean append = false;
+
+		if ( keepExisting && file.exists() )
+		{
+			try ( final BufferedReader in = new BufferedReader( new FileReader( file ) ) )
+			{
+				append = fingerprint.equals( in.readLine() );
+			}
+
+			// drop an incomplete last line, otherwise the next result would be appended to it
+			if ( append )
+				append = truncateToLastLine( file ) > 0;
+		}
+
+		writer = new BufferedWriter( new FileWriter( file, append ) );
+
+		if ( !append )
+		{
+			writer.write( fingerprint );
+			writer.newLine();
+			writer.flush();
+		}
+	}
+
+	/**
+	 * append a result and flush it to disk
+	 * @param result - the result (ignored if null)
+	 */
+	public synchronized void append( final PairwiseStitchingResult< ViewId > result )
+	{
+		if ( result == null )
+			return;
+
+		write( toLine( result ) );
+	}
+
+	/**
+	 * append a pair for which no shift was found and flush it to disk, so it is not computed again when resuming
+	 * @param pair - the pair
+	 * @param hash - the hash of the registrations it was computed with (see {@link PairwiseStitchingResult#calculateHash})
+	 */
+	public synchronized void appendFailed( final Pair< Group< ViewId >, Group< ViewId > > pair, final double hash )
+	{
+		write( toString( pair.getA() ) + ";" + toString( pair.getB() ) + ";" + hash );
+	}
+
+	private void write( final String line )
+	{
+		if ( writer == null )
+			return;
+
+		try
+		{
+			writer.write( line + ";" + checksum( line ) );
+			writer.newLine();
+			writer.flush();
+		}
+		catch ( final IOException e )
+		{
+			IOFunctions.println( "Failed to write to checkpoint journal " + file + ": " + e );
+		}
+	}
+
+	public synchronized void close()
+	{
+		if ( writer == null )
+			return;
+
+		try
+		{
+			writer.close();
+		}
+		catch ( final IOException e )
+		{
+			IOFunctions.println( "Failed to close checkpoint journal " + file + ": " + e );
+		}
+
+		writer = null;
+	}
+
+	public static String toLine( final PairwiseStitchingResult< ViewId > result )
+	{
+		final RealInterval bb = result.getBoundingBox();
+		final double[] min = new double[ bb.numDimensions() ];
+		final double[] max = new double[ bb.numDimensions() ];
+		bb.realMin( min );
+		bb.realMax( max );
+
+		return toString( result.pair().getA() ) + ";" + toString( result.pair().getB() ) + ";" + result.r() + ";" + result.getHash() + ";"
+				+ toString( result.getTransform().getRowPackedCopy() ) + ";" + toString( min ) + ";" + toString( max );
+	}
+
+	/**
+	 * @param line - a line written by {@link #toLine(PairwiseStitchingResult)}
+	 * @return the result or null if the line cannot be parsed
+	 */
+	public static PairwiseStitchingResult< ViewId > fromLine( final String line )
+	{
+		try
+		{
+			final String[] fields = line.split( ";" );
+			if ( fields.length != 7 )
+				return null;
+
+			final AffineTransform3D transform = new AffineTransform3D();
+			transform.set( parseDoubles( fields[ 4 ] ) );
+
+			return new PairwiseStitchingResult<>(
+					new ValuePair<>( parseGroup( fields[ 0 ] ), parseGroup( fields[ 1 ] ) ),
+					new FinalRealInterval( parseDoubles( fields[ 5 ] ), parseDoubles( fields[ 6 ] ) ),
+					transform,
+					Double.parseDouble( fields[ 2 ] ),
+					Double.parseDouble( fields[ 3 ] ) );
+		}
+		catch ( final RuntimeException e )
+		{
+			return null;
+		}
+	}
+
+	/**
+	 * @param line - a line written by {@link #appendFailed(Pair, double)} (without checksum)
+	 * @return the pair and the hash of its registrations, null if it is not such a line
+	 */
+	private static Pair< Pair< Group< ViewId >, Group< ViewId > >, Double > failedFromLine( final String line )
+	{
+		try
+		{
+			final String[] fields = line.split( ";" );
+			if ( fields.length != 3 )
+				return null;
+
+			return new ValuePair<>( new ValuePair<>( parseGroup( fields[ 0 ] ), parseGroup( fields[ 1 ] ) ), Double.parseDouble( fields[ 2 ] ) );
+		}
+		catch ( final RuntimeException e )
+		{
+			return null;
+		}
+	}
+
+	private static String checksum( final String line )
+	{
+		final CRC32 crc = new CRC32();
+		crc.update( line.getBytes( StandardCharsets.UTF_8 ) );
+		return Long.toHexString( crc.getValue() );
+	}
+
+	/**
+	 * @param line - a line of the journal
+	 * @return the line without its checksum, null if the checksum is missing or wrong
+	 */
+	private static String verifyChecksum( final String line )
+	{
+		final int i = line.lastIndexOf( ';' );
+		if ( i < 0 )
+			return null;
+
+		final String payload = line.substring( 0, i );
+		return checksum( payload ).equals( line.substring( i + 1 ) ) ? payload : null;
+	}
+
+	/**
+	 * cut the file after its last newline
+	 * @return the new length of the file
+	 */
+	static long truncateToLastLine( final File file ) throws IOException
+	{
+		try ( final RandomAccessFile raf = new RandomAccessFile( file, "rw" ) )
+		{
+			long end = raf.length();
+			for ( ; end > 0; --end )
+			{
+				raf.seek( end - 1 );
+				if ( raf.read() == '\n' )
+					break;
+			}
+
+			raf.setLength( end );
+			return end;
+		}
+	}
+
+	static String toString( final Group< ViewId > group )
+	{
+		final StringBuilder sb = new StringBuilder();
+		for ( final ViewId vid : group )
+			sb.append( ( sb.length() > 0 ? "," : "" ) + vid.getTimePointId() + "-" + vid.getViewSetupId() );
+		return sb.toString();
+	}
+
+	static Group< ViewId > parseGroup( final String s )
+	{
+		final List< ViewId > views = new ArrayList<>();
+		for ( final String vid : s.split( "," ) )
+		{
+			final String[] ids = vid.split( "-" );
+			views.add( new ViewId( Integer.parseInt( ids[ 0 ] ), Integer.parseInt( ids[ 1 ] ) ) );
+		}
+		return new Group<>( views );
+	}
+
+	private static String toString( final double[] values )
+	{
+		final StringBuilder sb = new StringBuilder();
+		for ( final double v : values )
+			sb.append( ( sb.length() > 0 ? "," : "" ) + v );
+		return sb.toString();
+	}
+
+	private static double[] parseDoubles( final String s )
+	{
+		final String[] values = s.split( "," );
+		final double[] res = new double[ values.length ];
+		for ( int i = 0; i < values.length; ++i )
+			res[ i ] = Double.parseDouble( values[ i ] );
+		return res;
+	}
+}
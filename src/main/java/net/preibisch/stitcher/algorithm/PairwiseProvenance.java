@@ -0,0 +1,335 @@
+/*-
+ * #%L
+ * Multiview stitching of large datasets.
+ * %%
+ * Copyright (C) 2016 - 2017 Big Stitcher developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package net.preibisch.stitcher.algorithm;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.stream.Collectors;
+
+import mpicbg.spim.data.registration.ViewRegistrations;
+import mpicbg.spim.data.sequence.ViewId;
+import mpicbg.spim.io.IOFunctions;
+import net.imglib2.util.Pair;
+import net.imglib2.util.ValuePair;
+import net.preibisch.mvrecon.fiji.spimdata.SpimData2;
+import net.preibisch.mvrecon.fiji.spimdata.stitchingresults.PairwiseStitchingResult;
+import net.preibisch.mvrecon.fiji.spimdata.stitchingresults.StitchingResults;
+import net.preibisch.mvrecon.process.interestpointregistration.pairwise.constellation.grouping.Group;
+
+/**
+ * Remembers how pairwise results were computed (method, downsampling, parameters, grouping) so that
+ * pairwise stitching can skip pairs whose result is still up to date.
+ * 
+ * A result is up to date if its registration hash ({@link PairwiseStitchingResult#calculateHash}) matches the
+ * current registrations and it was computed with the same fingerprint. Pairs for which no shift was found are
+ * remembered as well, they are only computed again if their registrations or the settings changed.
+ * 
+ * The XML has no place for the fingerprints, they are saved in a file next to it ({@link #getFile(String)}), one line
+ * per pair:
+ * <pre>
+ * views A ; views B ; hash ; r (empty if no shift was found) ; fingerprint
+ * </pre>
+ * A line only applies to a loaded result with the same pair, hash and r, results of unknown provenance are always recomputed.
+ */
+public class PairwiseProvenance
+{
+	private static final Map< PairwiseStitchingResult< ? >, String > fingerprints = Collections.synchronizedMap( new WeakHashMap<>() );
+
+	// pairs without a result (no shift found) per dataset: pair -> (hash, fingerprint)
+	private static final Map< StitchingResults, Map< Pair< Group< ViewId >, Group< ViewId > >, Pair< Double, String > > > failed =
+			Collections.synchronizedMap( new WeakHashMap<>() );
+
+	/**
+	 * @param method - the pairwise method
+	 * @param downsampling - the downsampling
+	 * @param parameters - description of the parameters of the method
+	 * @param gva - how groups are aggregated (may be null)
+	 * @return a string that is equal for equal settings
+	 */
+	public static String fingerprint( final String method, final long[] downsampling, final String parameters, final GroupedViewAggregator gva )
+	{
+		return method + " ds=" + Arrays.toString( downsampling ) + " " + parameters + ( gva == null ? "" : " " + gva.getDescription() );
+	}
+
+	/**
+	 * @param params - the parameters of pairwise stitching
+	 * @param downsampling - the downsampling
+	 * @param gva - how groups are aggregated (may be null)
+	 * @return a string that is equal for equal settings
+	 */
+	public static String fingerprint( final PairwiseStitchingParameters params, final long[] downsampling, final GroupedViewAggregator gva )
+	{
+		return fingerprint( params.getMethod(), downsampling, params.getFingerprint(), gva );
+	}
+
+	public static void setFingerprint( final PairwiseStitchingResult< ? > result, final String fingerprint )
+	{
+		fingerprints.put( result, fingerprint );
+	}
+
+	public static String getFingerprint( final PairwiseStitchingResult< ? > result )
+	{
+		return fingerprints.get( result );
+	}
+
+	/**
+	 * remember that no shift was found for a pair with the current registrations and the given settings
+	 * @param data - the SpimData the pair belongs to
+	 * @param pair - the pair
+	 * @param fingerprint - the settings it was computed with
+	 */
+	public static void setFailed( final SpimData2 data, final Pair< Group< ViewId >, Group< ViewId > > pair, final String fingerprint )
+	{
+		getFailed( data.getStitchingResults() ).put( pair, new ValuePair<>( getHash( pair, data.getViewRegistrations() ), fingerprint ) );
+	}
+
+	/**
+	 * @param result - an existing result
+	 * @param vrs - the current registrations
+	 * @param fingerprint - the settings we would compute the pair with now
+	 * @return true if computing the pair again would give the same result
+	 */
+	public static boolean isUpToDate( final PairwiseStitchingResult< ? > result, final ViewRegistrations vrs, final String fingerprint )
+	{
+		if ( !fingerprint.equals( getFingerprint( result ) ) )
+			return false;
+
+		final ViewId firstVidA = result.pair().getA().getViews().iterator().next();
+		final ViewId firstVidB = result.pair().getB().getViews().iterator().next();
+
+		return result.getHash() == PairwiseStitchingResult.calculateHash( vrs.getViewRegistration( firstVidA ), vrs.getViewRegistration( firstVidB ) );
+	}
+
+	/**
+	 * the pairs that have to be (re-)computed: new pairs and pairs whose result (or failure) is not up to date
+	 * @param pairs - the pairs to compare
+	 * @param data - the SpimData with the existing results
+	 * @param fingerprint - the settings we compute with
+	 * @param <P> pair type
+	 * @return the pairs without an up-to-date result (in the same order)
+	 */
+	public static < P extends Pair< ? extends Group< ? extends ViewId >, ? extends Group< ? extends ViewId > > > List< P > getOutdatedPairs(
+			final List< P > pairs,
+			final SpimData2 data,
+			final String fingerprint )
+	{
+		final Map< Pair< Group< ViewId >, Group< ViewId > >, PairwiseStitchingResult< ViewId > > existing = data.getStitchingResults().getPairwiseResults();
+		final Map< Pair< Group< ViewId >, Group< ViewId > >, Pair< Double, String > > failedPairs = getFailed( data.getStitchingResults() );
+		final List< P > outdated = new ArrayList<>();
+		int nFailed = 0;
+
+		for ( final P pair : pairs )
+		{
+			// this is just a cast of pair to Group<ViewId>
+			final Group< ViewId > vidGroupA = new Group<>( pair.getA().getViews().stream().map( v -> (ViewId) v ).collect( Collectors.toSet() ) );
+			final Group< ViewId > vidGroupB = new Group<>( pair.getB().getViews().stream().map( v -> (ViewId) v ).collect( Collectors.toSet() ) );
+			final Pair< Group< ViewId >, Group< ViewId > > vidPair = new ValuePair<>( vidGroupA, vidGroupB );
+
+			PairwiseStitchingResult< ViewId > result = existing.get( vidPair );
+			if ( result == null )
+				result = existing.get( new ValuePair<>( vidGroupB, vidGroupA ) );
+
+			if ( result != null )
+			{
+				if ( !isUpToDate( result, data.getViewRegistrations(), fingerprint ) )
+					outdated.add( pair );
+
+				continue;
+			}
+
+			Pair< Double, String > failure = failedPairs.get( vidPair );
+			if ( failure == null )
+				failure = failedPairs.get( new ValuePair<>( vidGroupB, vidGroupA ) );
+
+			if ( failure != null && fingerprint.equals( failure.getB() ) && failure.getA() == getHash( vidPair, data.getViewRegistrations() ) )
+				++nFailed;
+			else
+				outdated.add( pair );
+		}
+
+		IOFunctions.println( "Re-using " + ( pairs.size() - outdated.size() ) + " of " + pairs.size()
+				+ " pairwise results (registrations and parameters unchanged, " + nFailed + " of them without a shift), computing " + outdated.size() + " pairs." );
+
+		return outdated;
+	}
+
+	/**
+	 * @param xmlFile - the XML of a dataset
+	 * @return the file the provenance of its pairwise results is saved in
+	 */
+	public static File getFile( final String xmlFile )
+	{
+		return new File( xmlFile + ".provenance" );
+	}
+
+	/**
+	 * save the provenance of the pairwise results (and failed pairs) of a dataset next to its XML
+	 * @param data - the dataset
+	 * @param xmlFile - the XML it was saved to
+	 */
+	public static void save( final SpimData2 data, final String xmlFile )
+	{
+		final List< String > lines = new ArrayList<>();
+		final StitchingResults sr = data.getStitchingResults();
+
+		synchronized ( sr )
+		{
+			for ( final PairwiseStitchingResult< ViewId > result : sr.getPairwiseResults().values() )
+			{
+				final String fingerprint = getFingerprint( result );
+				if ( fingerprint != null )
+					lines.add( toLine( result.pair(), result.getHash(), Double.toString( result.r() ), fingerprint ) );
+			}
+
+			final Map< Pair< Group< ViewId >, Group< ViewId > >, Pair< Double, String > > failedPairs = getFailed( sr );
+			synchronized ( failedPairs )
+			{
+				for ( final Map.Entry< Pair< Group< ViewId >, Group< ViewId > >, Pair< Double, String > > entry : failedPairs.entrySet() )
+				{
+					final Pair< Group< ViewId >, Group< ViewId > > pair = entry.getKey();
+
+					// a result was computed later on
+					if ( !sr.getPairwiseResults().containsKey( pair ) && !sr.getPairwiseResults().containsKey( new ValuePair<>( pair.getB(), pair.getA() ) ) )
+						lines.add( toLine( pair, entry.getValue().getA(), "", entry.getValue().getB() ) );
+				}
+			}
+		}
+
+		final File file = getFile( xmlFile );
+
+		if ( lines.isEmpty() )
+		{
+			if ( file.exists() && !file.delete() )
+				IOFunctions.println( "Failed to delete " + file );
+
+			return;
+		}
+
+		try ( final BufferedWriter out = new BufferedWriter( new FileWriter( file ) ) )
+		{
+			for ( final String line : lines )
+			{
+				out.write( line );
+				out.newLine();
+			}
+		}
+		catch ( final IOException e )
+		{
+			IOFunctions.println( "Failed to save pairwise provenance " + file + ": " + e );
+		}
+	}
+
+	/**
+	 * load the provenance saved by {@link #save(SpimData2, String)}, it is assigned to the loaded pairwise results that
+	 * match the saved pair, hash and r
+	 * @param data - the dataset loaded from xmlFile
+	 * @param xmlFile - the XML
+	 */
+	public static void load( final SpimData2 data, final String xmlFile )
+	{
+		final File file = getFile( xmlFile );
+		if ( !file.exists() )
+			return;
+
+		final StitchingResults sr = data.getStitchingResults();
+		final Map< Pair< Group< ViewId >, Group< ViewId > >, Pair< Double, String > > failedPairs = getFailed( sr );
+		int nResults = 0, nFailed = 0;
+
+		try ( final BufferedReader in = new BufferedReader( new FileReader( file ) ) )
+		{
+			String line;
+			while ( ( line = in.readLine() ) != null )
+			{
+				final String[] fields = line.split( ";", 5 );
+				if ( fields.length != 5 )
+					continue;
+
+				try
+				{
+					final Pair< Group< ViewId >, Group< ViewId > > pair = new ValuePair<>( PairwiseJournal.parseGroup( fields[ 0 ] ), PairwiseJournal.parseGroup( fields[ 1 ] ) );
+					final double hash = Double.parseDouble( fields[ 2 ] );
+
+					if ( fields[ 3 ].isEmpty() )
+					{
+						failedPairs.put( pair, new ValuePair<>( hash, fields[ 4 ] ) );
+						++nFailed;
+						continue;
+					}
+
+					final double r = Double.parseDouble( fields[ 3 ] );
+
+					synchronized ( sr )
+					{
+						final PairwiseStitchingResult< ViewId > result = sr.getPairwiseResults().get( pair );
+						if ( result != null && result.getHash() == hash && result.r() == r )
+						{
+							setFingerprint( result, fields[ 4 ] );
+							++nResults;
+						}
+					}
+				}
+				catch ( final RuntimeException e )
+				{
+					// not a line we wrote, ignore it
+				}
+			}
+		}
+		catch ( final IOException e )
+		{
+			IOFunctions.println( "Failed to load pairwise provenance " + file + ": " + e );
+		}
+
+		IOFunctions.println( "Loaded the provenance of " + nResults + " pairwise results and " + nFailed + " pairs without a shift from " + file );
+	}
+
+	private static String toLine( final Pair< Group< ViewId >, Group< ViewId > > pair, final double hash, final String r, final String fingerprint )
+	{
+		return PairwiseJournal.toString( pair.getA() ) + ";" + PairwiseJournal.toString( pair.getB() ) + ";" + hash + ";" + r + ";"
+				+ fingerprint.replace( '\n', ' ' );
+	}
+
+	private static Map< Pair< Group< ViewId >, Group< ViewId > >, Pair< Double, String > > getFailed( final StitchingResults sr )
+	{
+		synchronized ( failed )
+		{
+			return failed.computeIfAbsent( sr, k -> Collections.synchronizedMap( new HashMap<>() ) );
+		}
+	}
+
+	private static double getHash( final Pair< Group< ViewId >, Group< ViewId > > pair, final ViewRegistrations vrs )
+	{
+		return PairwiseStitchingResult.calculateHash(
+				vrs.getViewRegistration( pair.getA().getViews().iterator().next() ),
+				vrs.getViewRegistration( pair.getB().getViews().iterator().next() ) );
+	}
+}
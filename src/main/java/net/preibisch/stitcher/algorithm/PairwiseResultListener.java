@@ -0,0 +1,42 @@
+/*-
+ * #%L
+ * Multiview stitching of large datasets.
+ * %%
+ * Copyright (C) 2016 - 2017 Big Stitcher developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package net.preibisch.stitcher.algorithm;
+
+import mpicbg.spim.data.sequence.ViewId;
+import net.imglib2.util.Pair;
+import net.preibisch.mvrecon.fiji.spimdata.stitchingresults.PairwiseStitchingResult;
+import net.preibisch.mvrecon.process.interestpointregistration.pairwise.constellation.grouping.Group;
+
+/**
+ * Is notified about every pairwise result as soon as it is computed (e.g. to update the GUI while pairwise stitching is still running).
+ * Listeners are called from the thread that collects the results, not from the Swing event dispatch thread.
+ */
+public interface PairwiseResultListener
+{
+	public void pairwiseResultAvailable( final PairwiseStitchingResult< ViewId > result );
+
+	/**
+	 * a pair was computed, but no shift was found
+	 * @param pair - the pair
+	 */
+	public default void pairwiseResultFailed( final Pair< Group< ViewId >, Group< ViewId > > pair ) {}
+}
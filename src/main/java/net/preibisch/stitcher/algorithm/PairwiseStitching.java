@@ -32,6 +32,7 @@ import java.util.Map;
 import java.util.Set;
 import java.util.Vector;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
@@ -42,11 +43,18 @@ import net.imglib2.Cursor;
 import net.imglib2.FinalInterval;
 import net.imglib2.Interval;
 import net.imglib2.IterableInterval;
+import net.imglib2.Point;
 import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.RealInterval;
 import net.imglib2.RealLocalizable;
+import net.imglib2.algorithm.phasecorrelation.FFTSizePlanner;
+import net.imglib2.algorithm.phasecorrelation.FFTWorkspace;
+import net.imglib2.algorithm.phasecorrelation.FFTWorkspacePool;
+import net.imglib2.algorithm.phasecorrelation.IntegralImageCorrelation;
 import net.imglib2.algorithm.phasecorrelation.PhaseCorrelation2;
+import net.imglib2.algorithm.phasecorrelation.PhaseCorrelation2Util;
 import net.imglib2.algorithm.phasecorrelation.PhaseCorrelationPeak2;
+import net.imglib2.algorithm.phasecorrelation.UpsampledDFTRefinement;
 import net.imglib2.img.array.ArrayImgFactory;
 import net.imglib2.img.display.imagej.ImageJFunctions;
 import net.imglib2.realtransform.AffineGet;
@@ -58,6 +66,8 @@ import net.imglib2.type.numeric.RealType;
 import net.imglib2.type.numeric.complex.ComplexFloatType;
 import net.imglib2.type.numeric.integer.LongType;
 import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.IntervalIndexer;
+import net.imglib2.util.Intervals;
 import net.imglib2.util.Pair;
 import net.imglib2.util.Util;
 import net.imglib2.util.ValuePair;
@@ -301,9 +311,11 @@ public class PairwiseStitching
 
 		//
 		// call the phase correlation
+		// (extension and padded size are planned per overlap shape)
 		//
-		final int[] extension = new int[img1.numDimensions()];
-		Arrays.fill( extension, 10 );
+		final FFTSizePlanner.Plan plan = params.fftSizePlanner.plan( interval1, interval2 );
+		final int[] extension = plan.getExtension();
+		final long[] paddedDimensions = plan.getPaddedDimensions();
 
 		//
 		// the min overlap is in percent of the current overlap interval
@@ -314,21 +326,47 @@ public class PairwiseStitching
 		minOverlap *= params.minOverlap;
 		//System.out.println( "Min overlap is: " + minOverlap );
 
-		System.out.println( "FFT" );
-		// TODO: Do not extend by mirror inside, but do that out here on the
-		// full image,
-		// so we feed it RandomAccessible + an Interval we want to use for the
-		// PCM > also zero-min inside
-		final RandomAccessibleInterval< FloatType > pcm = PhaseCorrelation2.calculatePCM(
-				Views.zeroMin( Views.interval( img1, interval1 ) ), Views.zeroMin( Views.interval( img2, interval2 ) ),
-				extension, new ArrayImgFactory< FloatType >(), new FloatType(),
-				new ArrayImgFactory< ComplexFloatType >(), new ComplexFloatType(), service );
+		// borrow the FFT and PCM buffers for this padded size, identically sized overlaps re-use them
+		final FFTWorkspacePool pool = FFTWorkspacePool.getSharedPool();
+		final FFTWorkspace workspace = pool.borrow( paddedDimensions );
 
-		normalizePCM( pcm, service );
+		// with upsampled DFT refinement, only the winning peak is localized with subpixel accuracy
+		final boolean upsampledDFT = params.doSubpixel && params.upsampledDFTSubpixel;
 
-		final PhaseCorrelationPeak2 shiftPeak = PhaseCorrelation2.getShift( pcm,
-				Views.zeroMin( Views.interval( img1, interval1 ) ), Views.zeroMin( Views.interval( img2, interval2 ) ),
-				params.peaksToCheck, minOverlap, params.doSubpixel, params.interpolateCrossCorrelation, service );
+		// the metadata shift corresponds to a shift of (b_s - a_s) of the raster overlaps (see below)
+		// (with a maxShiftDeviation, the images are not cropped before the FFT: they are the overlap at the metadata,
+		// which overlaps almost completely for every allowed shift, and the extension is a blending to suppress
+		// edge artifacts, not a margin for large shifts, so there is no part that only serves disallowed shifts)
+		final double[] expectedShift = new double[ interval1.numDimensions() ];
+		for ( int d = 0; d < expectedShift.length; ++d )
+			expectedShift[ d ] = ( interval2.realMin( d ) - localOverlap2.realMin( d ) ) - ( interval1.realMin( d ) - localOverlap1.realMin( d ) );
+
+		final PhaseCorrelationPeak2 shiftPeak;
+
+		try
+		{
+			// TODO: Do not extend by mirror inside, but do that out here on the
+			// full image,
+			// so we feed it RandomAccessible + an Interval we want to use for the
+			// PCM > also zero-min inside
+			final RandomAccessibleInterval< FloatType > pcm = PhaseCorrelation2.calculatePCM(
+					Views.zeroMin( Views.interval( img1, interval1 ) ), Views.zeroMin( Views.interval( img2, interval2 ) ),
+					extension, paddedDimensions, workspace, upsampledDFT, service );
+
+			normalizePCM( pcm, service );
+
+			shiftPeak = PhaseCorrelation2.getShift( pcm,
+					Views.zeroMin( Views.interval( img1, interval1 ) ), Views.zeroMin( Views.interval( img2, interval2 ) ),
+					params.peaksToCheck, minOverlap, params.doSubpixel && !upsampledDFT, params.interpolateCrossCorrelation && !upsampledDFT,
+					expectedShift, params.maxShiftDeviation, service );
+
+			if ( upsampledDFT && shiftPeak != null && !Double.isInfinite( shiftPeak.getCrossCorr() ) )
+				UpsampledDFTRefinement.refinePeak( shiftPeak, workspace.getCrossPowerSpectrum(), paddedDimensions, params.upsamplingFactor );
+		}
+		finally
+		{
+			pool.giveBack( workspace );
+		}
 
 		//System.out.println( "Actual overlap of best shift is: " + shiftPeak.getnPixel() );
 
@@ -371,6 +409,388 @@ public class PairwiseStitching
 		return new ValuePair< >( new Translation(finalShift), shiftPeak.getCrossCorr() );
 	}
 
+	/**
+	 * The absolute shift of input2 relative to input1 (like {@link #getShift(RandomAccessibleInterval, RandomAccessibleInterval, TranslationGet, TranslationGet, PairwiseStitchingParameters, ExecutorService)}),
+	 * but the phase correlation is computed from the whole tiles, whose spectra are taken from (or put into) a {@link TileFFTCache}.
+	 * Every tile is thus transformed only once, no matter how many pairs it takes part in.
+	 * 
+	 * @param input1 - zero-min interval, starting at (0,0,...)
+	 * @param input2 - zero-min interval, starting at (0,0,...)
+	 * @param t1 - translation of input1
+	 * @param t2 - translation of input2
+	 * @param params - stitching parameters
+	 * @param service - executor service to use
+	 * @param fftCache - cache of the tile spectra
+	 * @param tile1 - key of input1 in the cache (e.g. its views)
+	 * @param tile2 - key of input2 in the cache (e.g. its views)
+	 * @param downsampling - downsampling of input1 and input2 (part of the cache key)
+	 * @param <T> pixel type input1
+	 * @param <S> pixel type input2
+	 * @return pair of shift vector and cross correlation coefficient or null if no shift could be determined
+	 */
+	public static <T extends RealType< T >, S extends RealType< S >> Pair< Translation, Double > getShift(
+			final RandomAccessibleInterval< T > input1, final RandomAccessibleInterval< S > input2,
+			final TranslationGet t1, final TranslationGet t2, final PairwiseStitchingParameters params,
+			final ExecutorService service,
+			final TileFFTCache fftCache, final Object tile1, final Object tile2, final long[] downsampling )
+	{
+		// check if we have singleton dimensions
+		boolean[] singletonDims = new boolean[input1.numDimensions()];
+		for ( int d = 0; d < input1.numDimensions(); ++d )
+			singletonDims[d] = !(input1.dimension( d ) > 1 && input2.dimension( d ) > 1);
+
+		final RealInterval transformed1 = TransformTools.applyTranslation( input1, t1, singletonDims );
+		final RealInterval transformed2 = TransformTools.applyTranslation( input2, t2, singletonDims );
+
+		final RandomAccessibleInterval< T > img1;
+		final RandomAccessibleInterval< S > img2;
+
+		// make sure it is zero-min and drop singleton dimensions
+		if ( !Views.isZeroMin( input1 ) )
+			img1 = Views.dropSingletonDimensions( Views.zeroMin( input1 ));
+		else
+			img1 = Views.dropSingletonDimensions(input1);
+
+		if ( !Views.isZeroMin( input2 ) )
+			img2 = Views.dropSingletonDimensions( Views.zeroMin( input2 ) );
+		else
+			img2 = Views.dropSingletonDimensions( input2 );
+
+		// get overlap interval
+		final RealInterval overlap = TransformTools.getOverlap( transformed1, transformed2 );
+
+		// not overlapping -> we wont be able to determine a shift
+		if ( overlap == null )
+			return null;
+
+		// the overlap is only used for the min overlap here, the PCM is computed on the whole tiles
+		final Interval interval1 = TransformTools.getLocalRasterOverlap( TransformTools.getLocalOverlap( transformed1, overlap ) );
+
+		long minOverlap = 1;
+		for (int d = 0; d < interval1.numDimensions(); d++)
+		{
+			if ( interval1.dimension( d ) <= 0 )
+			{
+				IOFunctions.println( "Rastered overlap between volumes is zero, skipping." );
+				return null;
+			}
+			minOverlap *= interval1.dimension( d );
+		}
+		minOverlap *= params.minOverlap;
+
+		// the plan only depends on the tile sizes, so it is the same for all pairs of a regular grid
+		final FFTSizePlanner.Plan plan = params.fftSizePlanner.plan( img1, img2 );
+		final int[] extension = plan.getExtension();
+		final long[] paddedDimensions = plan.getPaddedDimensions();
+
+		final RandomAccessibleInterval< ComplexFloatType > fft1 = fftCache.getFFT( tile1, downsampling, img1, extension, paddedDimensions, service );
+		final RandomAccessibleInterval< ComplexFloatType > fft2 = fftCache.getFFT( tile2, downsampling, img2, extension, paddedDimensions, service );
+
+		final FFTWorkspacePool pool = FFTWorkspacePool.getSharedPool();
+		final FFTWorkspace workspace = pool.borrow( paddedDimensions );
+
+		final boolean upsampledDFT = params.doSubpixel && params.upsampledDFTSubpixel;
+
+		// the metadata shift of the whole tiles
+		final double[] expectedShift = new double[ img1.numDimensions() ];
+		for ( int d = 0; d < expectedShift.length; ++d )
+			expectedShift[ d ] = transformed2.realMin( d ) - transformed1.realMin( d );
+
+		final PhaseCorrelationPeak2 shiftPeak;
+
+		try
+		{
+			// the cached spectra are not altered, the cross power spectrum goes to the workspace
+			final RandomAccessibleInterval< FloatType > pcm = PhaseCorrelation2.calculatePCMFromSpectra( fft1, fft2, workspace, upsampledDFT, service );
+
+			normalizePCM( pcm, service );
+
+			shiftPeak = PhaseCorrelation2.getShift( pcm, img1, img2,
+					params.peaksToCheck, minOverlap, params.doSubpixel && !upsampledDFT, params.interpolateCrossCorrelation && !upsampledDFT,
+					expectedShift, params.maxShiftDeviation, service );
+
+			if ( upsampledDFT && shiftPeak != null && !Double.isInfinite( shiftPeak.getCrossCorr() ) )
+				UpsampledDFTRefinement.refinePeak( shiftPeak, workspace.getCrossPowerSpectrum(), paddedDimensions, params.upsamplingFactor );
+		}
+		finally
+		{
+			pool.giveBack( workspace );
+		}
+
+		// the best peak is horrible or no peaks were found at all, return null
+		if ( shiftPeak == null || Double.isInfinite( shiftPeak.getCrossCorr() ) )
+			return null;
+
+		final RealLocalizable shift;
+
+		if ( shiftPeak.getSubpixelShift() == null )
+			shift = shiftPeak.getShift();
+		else
+			shift = shiftPeak.getSubpixelShift();
+
+		// final, relative shift: the shift of the whole tiles minus their offset in the initial registration
+		final double[] finalShift = new double[input1.numDimensions()];
+		int d2 = 0;
+		for ( int d = 0; d < input1.numDimensions(); ++d )
+		{
+			// we ignored these axes during phase correlation -> set their shift to 0
+			if (singletonDims[d])
+			{
+				finalShift[d] = 0.0;
+			}
+			else
+			{
+				final double initialOffset = transformed2.realMin( d2 ) - transformed1.realMin( d2 );
+				finalShift[d] = shift.getDoublePosition( d2 ) - initialOffset;
+				d2++;
+			}
+		}
+
+		return new ValuePair< >( new Translation(finalShift), shiftPeak.getCrossCorr() );
+	}
+
+	/**
+	 * Refine a shift estimate (e.g. from a phase correlation at a coarser resolution) by a local search:
+	 * the cross correlation is computed for all integer shifts within +-radius px of the estimate
+	 * and the best one is returned (with a quadratic fit around it if params.doSubpixel).
+	 * Only the part of the images that overlaps for any of the shifts in the search window is touched.
+	 * If the best shift lies on the border of the window, the estimate was off by more than the radius,
+	 * the search is repeated around that shift (at most maxRefineRounds times, then null is returned).
+	 * Shifts that deviate by more than params.maxShiftDeviation from the metadata are not searched.
+	 *
+	 * @param input1 - zero-min interval, starting at (0,0,...)
+	 * @param input2 - zero-min interval, starting at (0,0,...)
+	 * @param t1 - translation of input1
+	 * @param t2 - translation of input2
+	 * @param estimate - relative shift estimate (as returned by getShift) in pixel coordinates of input1 and input2
+	 * @param radius - radius of the search window (in px)
+	 * @param params - stitching parameters
+	 * @param service - executor service to use
+	 * @param <T> pixel type input1
+	 * @param <S> pixel type input2
+	 * @return pair of shift vector and cross correlation coefficient or null if no shift could be determined
+	 */
+	public static <T extends RealType< T >, S extends RealType< S >> Pair< Translation, Double > refineShift(
+			final RandomAccessibleInterval< T > input1, final RandomAccessibleInterval< S > input2,
+			final TranslationGet t1, final TranslationGet t2, final TranslationGet estimate, final int radius,
+			final PairwiseStitchingParameters params, final ExecutorService service )
+	{
+		return refineShift( input1, input2, t1, t2, estimate, radius, params, service, maxRefineRounds );
+	}
+
+	/*
+	 * number of times refineShift searches again if the best shift is on the border of the search window
+	 */
+	public static int maxRefineRounds = 3;
+
+	/*
+	 * is the shift at this position of the search window within maxDeviation of the metadata (in every dimension),
+	 * the search window starts at shift0 - radius, initialOffset is the shift at the metadata
+	 */
+	private static boolean isAllowedShift( final long[] position, final long[] shift0, final int radius, final double[] initialOffset, final double maxDeviation )
+	{
+		if ( maxDeviation < 0 )
+			return true;
+
+		for ( int d = 0; d < position.length; ++d )
+			if ( Math.abs( shift0[ d ] - radius + position[ d ] - initialOffset[ d ] ) > maxDeviation )
+				return false;
+
+		return true;
+	}
+
+	private static <T extends RealType< T >, S extends RealType< S >> Pair< Translation, Double > refineShift(
+			final RandomAccessibleInterval< T > input1, final RandomAccessibleInterval< S > input2,
+			final TranslationGet t1, final TranslationGet t2, final TranslationGet estimate, final int radius,
+			final PairwiseStitchingParameters params, final ExecutorService service, final int roundsLeft )
+	{
+		// check if we have singleton dimensions
+		boolean[] singletonDims = new boolean[input1.numDimensions()];
+		for ( int d = 0; d < input1.numDimensions(); ++d )
+			singletonDims[d] = !(input1.dimension( d ) > 1 && input2.dimension( d ) > 1);
+
+		final RealInterval transformed1 = TransformTools.applyTranslation( input1, t1, singletonDims );
+		final RealInterval transformed2 = TransformTools.applyTranslation( input2, t2, singletonDims );
+
+		final RandomAccessibleInterval< T > img1 = Views.dropSingletonDimensions( Views.zeroMin( input1 ) );
+		final RandomAccessibleInterval< S > img2 = Views.dropSingletonDimensions( Views.zeroMin( input2 ) );
+
+		final int n = img1.numDimensions();
+
+		// the estimated position of img2 in img1 (like the shift of a PCM peak)
+		final long[] shift0 = new long[ n ];
+		final double[] initialOffset = new double[ n ];
+		int d2 = 0;
+		for ( int d = 0; d < input1.numDimensions(); ++d )
+		{
+			if ( singletonDims[d] )
+				continue;
+
+			initialOffset[ d2 ] = transformed2.realMin( d2 ) - transformed1.realMin( d2 );
+			shift0[ d2 ] = Math.round( estimate.getTranslation( d ) + initialOffset[ d2 ] );
+			d2++;
+		}
+
+		// crop both images to the union of the overlaps of all shifts in the search window,
+		// the min overlap is in percent of the overlap at the estimate
+		final long[] min1 = new long[ n ], max1 = new long[ n ], min2 = new long[ n ], max2 = new long[ n ];
+		long minOverlap = 1;
+		for ( int d = 0; d < n; ++d )
+		{
+			min1[ d ] = Math.max( 0, shift0[ d ] - radius );
+			max1[ d ] = Math.min( img1.dimension( d ), shift0[ d ] + radius + img2.dimension( d ) ) - 1;
+			min2[ d ] = Math.max( 0, -shift0[ d ] - radius );
+			max2[ d ] = Math.min( img2.dimension( d ), img1.dimension( d ) - shift0[ d ] + radius ) - 1;
+
+			if ( max1[ d ] < min1[ d ] || max2[ d ] < min2[ d ] )
+			{
+				IOFunctions.println( "No overlap within the search window, skipping." );
+				return null;
+			}
+
+			minOverlap *= Math.max( 0, Math.min( img1.dimension( d ), shift0[ d ] + img2.dimension( d ) ) - Math.max( 0, shift0[ d ] ) );
+		}
+		minOverlap *= params.minOverlap;
+
+		final RandomAccessibleInterval< T > crop1 = Views.zeroMin( Views.interval( img1, min1, max1 ) );
+		final RandomAccessibleInterval< S > crop2 = Views.zeroMin( Views.interval( img2, min2, max2 ) );
+
+		// every candidate only needs a single pass if the integral images fit into memory
+		final IntegralImageCorrelation integral = IntegralImageCorrelation.canPrepare( crop1, crop2 ) ? new IntegralImageCorrelation( crop1, crop2 ) : null;
+
+		// all shifts in the search window, NaN = not enough overlap
+		final long[] window = new long[ n ];
+		Arrays.fill( window, 2 * radius + 1 );
+		final int nCandidates = (int) Intervals.numElements( window );
+		final double[] correlations = new double[ nCandidates ];
+
+		final long minOverlapPx = minOverlap;
+		final List< Future< ? > > futures = new ArrayList<>();
+		for ( int i = 0; i < nCandidates; ++i )
+		{
+			final int index = i;
+			futures.add( service.submit( () ->
+			{
+				final long[] cropShift = new long[ n ];
+				IntervalIndexer.indexToPosition( index, window, cropShift );
+
+				if ( !isAllowedShift( cropShift, shift0, radius, initialOffset, params.maxShiftDeviation ) )
+				{
+					correlations[ index ] = Double.NaN;
+					return;
+				}
+
+				for ( int d = 0; d < n; ++d )
+					cropShift[ d ] += shift0[ d ] - radius + min2[ d ] - min1[ d ];
+
+				final Pair< Interval, Interval > overlaps = PhaseCorrelation2Util.getOverlapIntervals( crop1, crop2, Point.wrap( cropShift ) );
+
+				if ( overlaps == null || Intervals.numElements( overlaps.getA() ) < Math.max( 1, minOverlapPx ) )
+					correlations[ index ] = Double.NaN;
+				else if ( integral != null )
+					correlations[ index ] = integral.getCorrelation( overlaps.getA(), overlaps.getB() );
+				else
+					correlations[ index ] = PhaseCorrelation2Util.getCorrelation(
+							Views.zeroMin( Views.interval( crop1, overlaps.getA() ) ), Views.zeroMin( Views.interval( crop2, overlaps.getB() ) ) );
+			} ) );
+		}
+
+		for ( final Future< ? > f : futures )
+		{
+			try
+			{
+				f.get();
+			}
+			catch ( InterruptedException | ExecutionException e )
+			{
+				IOFunctions.println( "Failed to compute cross correlation: " + e );
+				e.printStackTrace();
+				return null;
+			}
+		}
+
+		int best = -1;
+		for ( int i = 0; i < nCandidates; ++i )
+			if ( !Double.isNaN( correlations[ i ] ) && ( best < 0 || correlations[ i ] > correlations[ best ] ) )
+				best = i;
+
+		// no shift in the window had enough overlap
+		if ( best < 0 )
+			return null;
+
+		final long[] bestPosition = new long[ n ];
+		IntervalIndexer.indexToPosition( best, window, bestPosition );
+
+		// the estimate was off by more than the radius, search again around the best shift
+		// (unless the shifts beyond the border deviate too much from the metadata anyway)
+		boolean atBorder = false;
+		for ( int d = 0; d < n; ++d )
+			for ( final int step : new int[] { -1, 1 } )
+				if ( bestPosition[ d ] == ( step < 0 ? 0 : 2 * radius ) )
+				{
+					final long[] beyond = bestPosition.clone();
+					beyond[ d ] += step;
+					if ( isAllowedShift( beyond, shift0, radius, initialOffset, params.maxShiftDeviation ) )
+						atBorder = true;
+				}
+
+		if ( atBorder )
+		{
+			if ( roundsLeft <= 0 )
+			{
+				IOFunctions.println( "Best shift is still at the border of the search window, giving up the local search." );
+				return null;
+			}
+
+			final double[] newEstimate = new double[ input1.numDimensions() ];
+			d2 = 0;
+			for ( int d = 0; d < input1.numDimensions(); ++d )
+			{
+				if ( singletonDims[d] )
+					continue;
+
+				newEstimate[ d ] = shift0[ d2 ] - radius + bestPosition[ d2 ] - initialOffset[ d2 ];
+				d2++;
+			}
+
+			return refineShift( input1, input2, t1, t2, new Translation( newEstimate ), radius, params, service, roundsLeft - 1 );
+		}
+
+		// final, relative shift
+		final double[] finalShift = new double[input1.numDimensions()];
+		d2 = 0;
+		for ( int d = 0; d < input1.numDimensions(); ++d )
+		{
+			// we ignored these axes during cross correlation -> set their shift to 0
+			if (singletonDims[d])
+			{
+				finalShift[d] = 0.0;
+				continue;
+			}
+
+			double subpixel = 0;
+			if ( params.doSubpixel && bestPosition[ d2 ] > 0 && bestPosition[ d2 ] < 2 * radius )
+			{
+				// quadratic fit through the best shift and its neighbors along this dimension
+				long step = 1;
+				for ( int e = 0; e < d2; ++e )
+					step *= window[ e ];
+
+				final double left = correlations[ (int)( best - step ) ];
+				final double right = correlations[ (int)( best + step ) ];
+				final double denominator = left - 2 * correlations[ best ] + right;
+
+				if ( !Double.isNaN( left ) && !Double.isNaN( right ) && denominator < 0 )
+					subpixel = Math.max( -0.5, Math.min( 0.5, ( left - right ) / ( 2 * denominator ) ) );
+			}
+
+			finalShift[d] = shift0[ d2 ] - radius + bestPosition[ d2 ] + subpixel - initialOffset[ d2 ];
+			d2++;
+		}
+
+		return new ValuePair< >( new Translation(finalShift), correlations[ best ] );
+	}
+
 	public static void normalizePCM( final RandomAccessibleInterval< FloatType > pcm, final ExecutorService service )
 	{
 		// so that the peak doesn't stick out too much, that interferes with the subpixel detection
@@ -22,15 +22,57 @@
 package net.preibisch.stitcher.algorithm;
 
 import ij.gui.GenericDialog;
+import net.imglib2.algorithm.phasecorrelation.FFTSizePlanner;
 
 public class PairwiseStitchingParameters
 {
 	public double minOverlap;
 	public int peaksToCheck;
 	public boolean doSubpixel;
+	// subpixel localization by upsampled DFT of the cross power spectrum (instead of a quadratic fit + interpolated cross correlation)
+	public boolean upsampledDFTSubpixel = false;
+	public int upsamplingFactor = 20;
 	public boolean interpolateCrossCorrelation;
+	// only shifts that deviate at most this much from the metadata (in px of the images that are stitched, in every dimension)
+	// are searched in the PCM and checked, negative = no restriction
+	public double maxShiftDeviation = -1;
 	public boolean showExpertGrouping;
 
+	// compute the phase correlation from cached whole-tile FFTs instead of the overlaps
+	public boolean useTileFFTCache = false;
+
+	// only read and downsample the parts of the views that overlap (not with useTileFFTCache)
+	public boolean loadOverlapOnly = true;
+
+	// share loaded views between pairs, every view is loaded once for the regions of all its pairs (see TileCache)
+	public boolean useTileCache = true;
+
+	// chooses (and caches) extension and padded FFT size per overlap shape
+	public FFTSizePlanner fftSizePlanner = new FFTSizePlanner();
+
+	// coarse-to-fine: phase correlation at (downsampling * 2^pyramidLevels), then a local cross correlation
+	// search (+-pyramidSearchRadius px of the coarser level, i.e. scaled by the downsampling between the levels)
+	// around the estimate at every finer level, 0 = no pyramid
+	public int pyramidLevels = 0;
+	public int pyramidSearchRadius = 2;
+
+	// memory (bytes) shared by the pairwise computations, the loaded and prefetched views and the cached tile FFTs of one run
+	// (see MemoryBudget), <= 0 = three quarters of the heap
+	public long pairMemoryBudget = -1;
+
+	// load the views of the next prefetchPairs pairs with prefetchIOThreads threads while computing (see TilePrefetcher), 0 = off
+	// (needs useTileCache, prefetched views count against pairMemoryBudget, a load that does not fit is skipped)
+	public int prefetchPairs = 0;
+	public int prefetchIOThreads = 2;
+
+	// only compute pairs that are new or whose registrations or parameters changed since they were computed (see PairwiseProvenance)
+	public boolean incremental = false;
+
+	// append every result to this file as soon as it is computed (see PairwiseJournal), null or empty = no journal
+	public String checkpointFile = null;
+	// only compute the pairs that are not in the checkpoint file yet
+	public boolean resumeFromCheckpoint = false;
+
 	public PairwiseStitchingParameters()
 	{
 		this(0, 5, true, false, false);
@@ -45,12 +87,65 @@ public class PairwiseStitchingParameters
 		this.showExpertGrouping = showExpertGrouping;
 	}
 
+	/**
+	 * @return a copy of these parameters (the FFT size planner is shared)
+	 */
+	public PairwiseStitchingParameters copy()
+	{
+		final PairwiseStitchingParameters copy = new PairwiseStitchingParameters( minOverlap, peaksToCheck, doSubpixel, interpolateCrossCorrelation, showExpertGrouping );
+		copy.upsampledDFTSubpixel = upsampledDFTSubpixel;
+		copy.upsamplingFactor = upsamplingFactor;
+		copy.maxShiftDeviation = maxShiftDeviation;
+		copy.useTileFFTCache = useTileFFTCache;
+		copy.loadOverlapOnly = loadOverlapOnly;
+		copy.useTileCache = useTileCache;
+		copy.fftSizePlanner = fftSizePlanner;
+		copy.pyramidLevels = pyramidLevels;
+		copy.pyramidSearchRadius = pyramidSearchRadius;
+		copy.pairMemoryBudget = pairMemoryBudget;
+		copy.prefetchPairs = prefetchPairs;
+		copy.prefetchIOThreads = prefetchIOThreads;
+		copy.incremental = incremental;
+		copy.checkpointFile = checkpointFile;
+		copy.resumeFromCheckpoint = resumeFromCheckpoint;
+		return copy;
+	}
+
+	/**
+	 * @return the pairwise method these parameters run
+	 */
+	public String getMethod()
+	{
+		return pyramidLevels > 0 ? "Phase Correlation (coarse-to-fine)" : "Phase Correlation";
+	}
+
+	/**
+	 * @return description of all parameters that change the result of pairwise stitching (not the ones that only change speed or memory)
+	 */
+	public String getFingerprint()
+	{
+		return "peaks=" + peaksToCheck + " minOverlap=" + minOverlap + " subpixel=" + doSubpixel + " upsampledDFT=" + upsampledDFTSubpixel
+				+ " upsampling=" + upsamplingFactor + " interpolate=" + interpolateCrossCorrelation + " maxShiftDeviation=" + maxShiftDeviation
+				+ " tileFFT=" + useTileFFTCache + " overlapOnly=" + loadOverlapOnly + " pyramid=" + pyramidLevels + "/" + pyramidSearchRadius
+				+ " fft=" + fftSizePlanner.getFingerprint();
+	}
+
 	public static void addQueriesToGD(final GenericDialog gd)
 	{
 		gd.addNumericField( "number of peaks to check", 5, 0 );
 		gd.addNumericField( "minimal overlap (percent of current overlap)", 0, 0 );
 		gd.addCheckbox( "subpixel accuracy", true );
+		gd.addCheckbox( "subpixel_by_upsampled_DFT_(fast,_replaces_interpolation)", false );
+		gd.addNumericField( "upsampling_factor", 20, 0 );
 		gd.addCheckbox( "interpolate_subpixel_cross_correlation_(warning: slow!)", false );
+		gd.addNumericField( "max_shift_deviation_from_metadata_(px_after_downsampling,_-1_=_unrestricted)", -1, 1 );
+		gd.addCheckbox( "cache_tile_FFTs_(phase_correlation_of_whole_tiles)", false );
+		gd.addCheckbox( "load_only_overlapping_parts_of_images", true );
+		gd.addNumericField( "pyramid_levels_(0_=_phase_correlation_at_chosen_downsampling_only)", 0, 0 );
+		gd.addNumericField( "prefetch_images_of_next_pairs_(0_=_off)", 0, 0 );
+		gd.addCheckbox( "only_compute_new_or_changed_pairs", false );
+		gd.addStringField( "checkpoint_journal_(empty_=_none)", "", 30 );
+		gd.addCheckbox( "resume_from_checkpoint_journal", false );
 		gd.addCheckbox( "show_expert_grouping_options", false );
 	}
 
@@ -62,10 +157,31 @@ public class PairwiseStitchingParameters
 		int peaksToCheck  = (int) gd.getNextNumber();
 		double minOverlap =  Math.min( Math.max( gd.getNextNumber()/100 , 0), 1);
 		boolean doSubpixel = gd.getNextBoolean();
+		boolean upsampledDFTSubpixel = gd.getNextBoolean();
+		int upsamplingFactor = Math.max( 1, (int) gd.getNextNumber() );
 		boolean interpolateSubpixel = gd.getNextBoolean();
+		double maxShiftDeviation = gd.getNextNumber();
+		boolean useTileFFTCache = gd.getNextBoolean();
+		boolean loadOverlapOnly = gd.getNextBoolean();
+		int pyramidLevels = Math.max( 0, (int) gd.getNextNumber() );
+		int prefetchPairs = Math.max( 0, (int) gd.getNextNumber() );
+		boolean incremental = gd.getNextBoolean();
+		String checkpointFile = gd.getNextString().trim();
+		boolean resumeFromCheckpoint = gd.getNextBoolean();
 		boolean showExpertGrouping = gd.getNextBoolean();
 
-		return new PairwiseStitchingParameters(minOverlap, peaksToCheck, doSubpixel, interpolateSubpixel, showExpertGrouping);
+		final PairwiseStitchingParameters params = new PairwiseStitchingParameters(minOverlap, peaksToCheck, doSubpixel, interpolateSubpixel, showExpertGrouping);
+		params.useTileFFTCache = useTileFFTCache;
+		params.loadOverlapOnly = loadOverlapOnly;
+		params.upsampledDFTSubpixel = upsampledDFTSubpixel;
+		params.upsamplingFactor = upsamplingFactor;
+		params.pyramidLevels = pyramidLevels;
+		params.prefetchPairs = prefetchPairs;
+		params.incremental = incremental;
+		params.checkpointFile = checkpointFile.isEmpty() ? null : checkpointFile;
+		params.resumeFromCheckpoint = resumeFromCheckpoint;
+		params.maxShiftDeviation = maxShiftDeviation < 0 ? -1 : maxShiftDeviation;
+		return params;
 	}
 
 	public static PairwiseStitchingParameters askUserForParameters()
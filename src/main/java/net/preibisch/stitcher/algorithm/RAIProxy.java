@@ -34,24 +34,89 @@ import net.imglib2.type.numeric.RealType;
 
 public class RAIProxy <T extends RealType<T>> implements RandomAccessibleInterval< T >
 {
-	private RandomAccessibleInterval< T > rai;
+	private volatile RandomAccessibleInterval< T > rai;
 	private BasicImgLoader imgLoader;
 	private ViewId vid;
 	private long[] downsampleFactors;
+	// only this part (in downsampled pixel coordinates) is loaded, null = everything
+	private Interval region;
+	// shared cache of loaded views (may be null), the entry is held until release()
+	private TileCache tileCache;
+	private TileCache.Entry cacheEntry;
 
 	public RAIProxy(BasicImgLoader imgLoader, ViewId vid, long[] downsampleFactors )
+	{
+		this( imgLoader, vid, downsampleFactors, null );
+	}
+
+	public RAIProxy(BasicImgLoader imgLoader, ViewId vid, long[] downsampleFactors, Interval region )
+	{
+		this( imgLoader, vid, downsampleFactors, region, null );
+	}
+
+	/**
+	 * @param imgLoader the imgloader
+	 * @param vid the view
+	 * @param downsampleFactors downsampling
+	 * @param region part to load (in downsampled pixel coordinates), null = everything
+	 * @param tileCache cache to get the view (or its region) from (null = no caching), e.g. filled by a {@link TilePrefetcher}.
+	 * A cached view is held until {@link #release()} is called.
+	 */
+	public RAIProxy(BasicImgLoader imgLoader, ViewId vid, long[] downsampleFactors, Interval region, TileCache tileCache )
 	{
 		this.rai = null;
 		this.downsampleFactors = downsampleFactors;
 		this.imgLoader = imgLoader;
 		this.vid = vid;
+		this.region = region;
+		this.tileCache = tileCache;
 	}
 	
 	private void loadIfNecessary()
 	{
 		// FIXME: use DownsampleTools from SPIM_Registration
 		if (rai == null)
-			rai = DownsampleTools.openAndDownsample( imgLoader, vid, downsampleFactors );
+		{
+			synchronized ( this )
+			{
+				if ( rai != null )
+					return;
+
+				if ( tileCache == null )
+				{
+					rai = DownsampleTools.openAndDownsample( imgLoader, vid, downsampleFactors, region );
+				}
+				else
+				{
+					// the cache might load a larger region (shared with other pairs), we only see our region of it
+					cacheEntry = tileCache.acquire( vid, downsampleFactors, region, r -> DownsampleTools.< T >openAndDownsample( imgLoader, vid, downsampleFactors, r ) );
+					rai = cacheEntry.get( region );
+				}
+			}
+		}
+	}
+
+	/**
+	 * give a cached view back to the cache (it will be reloaded if this proxy is accessed again)
+	 */
+	public synchronized void release()
+	{
+		if ( cacheEntry != null )
+		{
+			tileCache.release( cacheEntry );
+			cacheEntry = null;
+			rai = null;
+		}
+	}
+
+	/**
+	 * release all proxies
+	 * @param proxies
+	 */
+	public static void releaseAll( final Iterable< ? extends RAIProxy< ? > > proxies )
+	{
+		for ( final RAIProxy< ? > proxy : proxies )
+			proxy.release();
 	}
 	
 	@Override
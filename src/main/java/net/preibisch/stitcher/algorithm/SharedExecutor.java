@@ -0,0 +1,162 @@
+/*-
+ * #%L
+ * Multiview stitching of large datasets.
+ * %%
+ * Copyright (C) 2016 - 2017 Big Stitcher developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package net.preibisch.stitcher.algorithm;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.preibisch.mvrecon.Threads;
+
+/**
+ * The thread pool for the computations of BigStitcher (pairwise stitching, peak search, Lucas-Kanade, ...).
+ * 
+ * There are two kinds of work: outer tasks (a pair, a subset of the global optimization) and the leaf work within
+ * these tasks (parts of an FFT, of a peak search, ...). Both run on one work-stealing pool ({@link #getService()})
+ * with {@link Threads#numThreads()} threads; outer tasks are submitted through {@link #getTaskExecutor()}, which
+ * keeps track of how many of them are outstanding. An outer task waiting for the leaf work it submitted helps
+ * computing it; a task that has to wait for something else (e.g. a view another pair loads) should wait through
+ * {@link #get(Future)}, so the pool can compensate with another thread while it is blocked.
+ * 
+ * How finely a task should be split is decided by {@link #numSplits(ExecutorService)}: while more outer tasks are
+ * waiting or running than there are threads (e.g. many pairs), every task computes on its own thread; once only a
+ * few are left, their parts are spread over the idle threads.
+ */
+public class SharedExecutor
+{
+	private static volatile ForkJoinPool service;
+
+	// outer tasks that are queued or running
+	private static final AtomicInteger outstandingTasks = new AtomicInteger();
+
+	private static final Executor taskExecutor = command ->
+	{
+		outstandingTasks.incrementAndGet();
+
+		try
+		{
+			getService().execute( () ->
+			{
+				try
+				{
+					command.run();
+				}
+				finally
+				{
+					outstandingTasks.decrementAndGet();
+				}
+			} );
+		}
+		catch ( final RejectedExecutionException e )
+		{
+			outstandingTasks.decrementAndGet();
+			throw e;
+		}
+	};
+
+	/**
+	 * @return the pool shared by all computations, it is created with {@link Threads#numThreads()} threads;
+	 * it should not be shut down, if it was, a new one is created
+	 */
+	public static synchronized ForkJoinPool getService()
+	{
+		if ( service == null || service.isShutdown() )
+			service = new ForkJoinPool( Math.max( 1, Threads.numThreads() ) );
+
+		return service;
+	}
+
+	/**
+	 * @return the executor for outer tasks (pairs, subsets, ...), they run on the shared pool ({@link #getService()});
+	 * it is never shut down, tasks that are not needed anymore have to be cancelled through their futures
+	 */
+	public static Executor getTaskExecutor()
+	{
+		return taskExecutor;
+	}
+
+	/**
+	 * wait for a future; on a thread of the shared pool the wait is announced to the pool
+	 * (see {@link ForkJoinPool#managedBlock(ForkJoinPool.ManagedBlocker)}), so it cannot starve it
+	 * 
+	 * @param future - the future to wait for
+	 * @param <T> - result type
+	 * @return the result of the future
+	 * @throws InterruptedException if interrupted while waiting
+	 * @throws ExecutionException if the computation failed
+	 */
+	public static < T > T get( final Future< T > future ) throws InterruptedException, ExecutionException
+	{
+		if ( !future.isDone() && Thread.currentThread() instanceof ForkJoinWorkerThread )
+		{
+			ForkJoinPool.managedBlock( new ForkJoinPool.ManagedBlocker()
+			{
+				@Override
+				public boolean block() throws InterruptedException
+				{
+					try
+					{
+						future.get();
+					}
+					catch ( final ExecutionException e )
+					{
+						// thrown by the get() below
+					}
+
+					return true;
+				}
+
+				@Override
+				public boolean isReleasable() { return future.isDone(); }
+			} );
+		}
+
+		return future.get();
+	}
+
+	/**
+	 * number of parts a task running on service should be split into
+	 * 
+	 * @param service - the service the parts are submitted to
+	 * @return 1 if more outer tasks and queued parts are outstanding than the shared pool has threads (parallelize across
+	 * tasks), up to 4 parts per idle thread otherwise (parallelize within the task); 4 parts per processor for any other service
+	 */
+	public static int numSplits( final ExecutorService service )
+	{
+		if ( service == null || service != SharedExecutor.service )
+			return Runtime.getRuntime().availableProcessors() * 4;
+
+		final ForkJoinPool pool = (ForkJoinPool) service;
+		final long outstanding = outstandingTasks.get() + pool.getQueuedSubmissionCount() + pool.getQueuedTaskCount();
+		final int threads = pool.getParallelism();
+
+		if ( outstanding >= threads )
+			return 1;
+		else
+			return ( threads - (int) outstanding ) * 4;
+	}
+}
@@ -174,6 +174,11 @@ public class SpimDataFilteringAndGrouping < AS extends AbstractSpimData< ? > >
 		return Group.combineBy( ungroupedElements, groupingFactors);
 	}
 
+	/**
+	 * get all pairs of groups to compare: groups that do not differ along the axes of application, but along the
+	 * axes of comparison (regardless of whether they overlap, e.g. to show all possible links)
+	 * @return the pairs
+	 */
 	public List<Pair<? extends Group< ? extends BasicViewDescription< ? extends BasicViewSetup > >, ? extends Group< ? extends BasicViewDescription< ? extends BasicViewSetup >>>> getComparisons()
 	{
 		final List<Pair<? extends Group< ? extends BasicViewDescription< ? extends BasicViewSetup > >, ? extends Group< ? extends BasicViewDescription< ? extends BasicViewSetup >>>> res = new ArrayList<>();
@@ -198,6 +203,62 @@ public class SpimDataFilteringAndGrouping < AS extends AbstractSpimData< ? > >
 			}
 		return res;
 	}
+
+	/**
+	 * like {@link #getComparisons()}, but only the pairs whose bounding boxes overlap in the current registrations
+	 * (found with a {@link BoundingBoxIndex} instead of testing all pairs), e.g. the pairs to compute
+	 * @return the pairs
+	 */
+	public List<Pair<? extends Group< ? extends BasicViewDescription< ? extends BasicViewSetup > >, ? extends Group< ? extends BasicViewDescription< ? extends BasicViewSetup >>>> getOverlappingComparisons()
+	{
+		final List<Pair<? extends Group< ? extends BasicViewDescription< ? extends BasicViewSetup > >, ? extends Group< ? extends BasicViewDescription< ? extends BasicViewSetup >>>> res = new ArrayList<>();
+
+		// filter first
+		final List<BasicViewDescription< ? > > ungroupedElements =
+				SpimDataTools.getFilteredViewDescriptions( data.getSequenceDescription(), filters);
+		// then group
+		final List< Group< BasicViewDescription< ?  > >> groupedElements =
+				Group.combineBy(ungroupedElements, groupingFactors);
+
+		// only look at groups that are in the same partition of the application axes (e.g. same Angle) and overlap
+		final BoundingBoxIndex< Group< BasicViewDescription< ? > > > index = new BoundingBoxIndex<>(
+				groupedElements,
+				g -> BoundingBoxIndex.getBoundingBox( g.getViews(), data.getSequenceDescription(), data.getViewRegistrations() ),
+				g -> getInstancesKey( g, axesOfApplication ) );
+
+		// go through the overlapping group pairs, same criteria as in getComparisons()
+		for ( final Pair< Group< BasicViewDescription< ? > >, Group< BasicViewDescription< ? > > > pair : index.overlappingPairs() )
+			if (!groupsDifferByAny( pair.getA(), pair.getB(), axesOfApplication )
+					&& groupsDifferByAny( pair.getA(), pair.getB(), axesOfComparison ))
+				res.add(new ValuePair<>(pair.getA(), pair.getB()));
+
+		return res;
+	}
+
+	/**
+	 * key of the instances of some attributes in a group of views (e.g. to partition groups by the axes of application),
+	 * groups with different keys differ along one of the attributes
+	 * @param vds the views
+	 * @param entities the attributes
+	 * @return list of the instances (one per attribute), or a unique key if the views have several instances of one attribute
+	 */
+	public static Object getInstancesKey(Iterable< ? extends BasicViewDescription< ? > > vds, Set<Class<? extends Entity>> entities)
+	{
+		final List< Entity > key = new ArrayList<>();
+		for (Class<? extends Entity> entity : entities)
+		{
+			final Set< Entity > instances = new HashSet<>();
+			for ( BasicViewDescription< ? > vd : vds )
+				instances.add( entity == TimePoint.class ? vd.getTimePoint() : vd.getViewSetup().getAttribute( entity ) );
+
+			// differs from everything (even from itself)
+			if ( instances.size() > 1 )
+				return new Object();
+
+			key.addAll( instances );
+		}
+		return key;
+	}
 	
 	private static boolean groupsDifferByAny(Iterable< BasicViewDescription< ?  > > vds1, Iterable< BasicViewDescription< ?  > > vds2, Set<Class<? extends Entity>> entities)
 	{
@@ -0,0 +1,106 @@
+/*-
+ * #%L
+ * Multiview stitching of large datasets.
+ * %%
+ * Copyright (C) 2016 - 2017 Big Stitcher developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package net.preibisch.stitcher.algorithm;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import mpicbg.spim.data.sequence.ViewId;
+import net.imglib2.util.Pair;
+import net.imglib2.util.ValuePair;
+import net.preibisch.mvrecon.fiji.spimdata.stitchingresults.PairwiseStitchingResult;
+import net.preibisch.mvrecon.fiji.spimdata.stitchingresults.StitchingResults;
+import net.preibisch.mvrecon.process.interestpointregistration.pairwise.constellation.grouping.Group;
+
+/**
+ * Puts pairwise results into {@link StitchingResults} one by one while they are computed and notifies the registered
+ * {@link PairwiseResultListener}s (e.g. the link overlay and the link explorer).
+ * 
+ * All modifications of the pairwise results happen while holding the lock of the {@link StitchingResults} instance,
+ * code that reads them while a computation might be running (e.g. the GUI) should synchronize on it as well.
+ */
+public class StitchingResultsPublisher implements PairwiseResultListener
+{
+	private static final CopyOnWriteArrayList< PairwiseResultListener > listeners = new CopyOnWriteArrayList<>();
+
+	public static void addListener( final PairwiseResultListener listener )
+	{
+		listeners.addIfAbsent( listener );
+	}
+
+	public static void removeListener( final PairwiseResultListener listener )
+	{
+		listeners.remove( listener );
+	}
+
+	private final StitchingResults results;
+
+	public StitchingResultsPublisher( final StitchingResults results )
+	{
+		this.results = results;
+	}
+
+	/**
+	 * remove the results of pairs (a -> b and b -> a), e.g. pairs that were recomputed without a result
+	 * @param pairs - the pairs
+	 */
+	public void removePairwiseResults( final Collection< ? extends Pair< Group< ViewId >, Group< ViewId > > > pairs )
+	{
+		synchronized ( results )
+		{
+			for ( final Pair< Group< ViewId >, Group< ViewId > > pair : pairs )
+			{
+				results.getPairwiseResults().remove( pair );
+				results.getPairwiseResults().remove( new ValuePair<>( pair.getB(), pair.getA() ) );
+			}
+		}
+	}
+
+	/**
+	 * replaces the old result of the pair (a -> b or b -> a) only now, so an interrupted computation keeps the old results
+	 */
+	@Override
+	public void pairwiseResultAvailable( final PairwiseStitchingResult< ViewId > result )
+	{
+		synchronized ( results )
+		{
+			results.getPairwiseResults().remove( new ValuePair<>( result.pair().getB(), result.pair().getA() ) );
+			results.setPairwiseResultForPair( result.pair(), result );
+		}
+
+		for ( final PairwiseResultListener listener : listeners )
+			listener.pairwiseResultAvailable( result );
+	}
+
+	/**
+	 * the pair was recomputed without finding a shift, its old result is removed
+	 */
+	@Override
+	public void pairwiseResultFailed( final Pair< Group< ViewId >, Group< ViewId > > pair )
+	{
+		removePairwiseResults( Collections.singletonList( pair ) );
+
+		for ( final PairwiseResultListener listener : listeners )
+			listener.pairwiseResultFailed( pair );
+	}
+}
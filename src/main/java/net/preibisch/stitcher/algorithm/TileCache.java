@@ -0,0 +1,534 @@
+/*-
+ * #%L
+ * Multiview stitching of large datasets.
+ * %%
+ * Copyright (C) 2016 - 2017 Big Stitcher developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package net.preibisch.stitcher.algorithm;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+import mpicbg.spim.data.sequence.ViewId;
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.util.Intervals;
+import net.imglib2.util.Util;
+import net.imglib2.view.Views;
+
+/**
+ * Memory-bounded cache of loaded (and downsampled) views for one pairwise stitching run. The memory of the cached views
+ * (including prefetched ones, see {@link TilePrefetcher}) counts against a {@link MemoryBudget}, which is shared with the
+ * pairwise computations and the {@link TileFFTCache} of the run.
+ * 
+ * Entries are keyed by the view, the downsampling and the loaded region (if only a part of the view is loaded). Views that are in use (acquired, but not released yet)
+ * are never evicted, of the others the least recently used ones are dropped once the memory budget is exceeded.
+ * If two threads request the same view at the same time, it is loaded only once.
+ * Cached images are shared between threads and must not be modified.
+ * 
+ * Pairs usually load different parts of a view (their overlaps). If the regions that will be requested are announced
+ * beforehand ({@link #planRegion(ViewId, long[], Interval)}), regions of a view whose bounding box is hardly larger than
+ * the regions themselves (e.g. the same overlap with different margins) are loaded once as their union and every request
+ * gets its part of it (zero outside, like a view loaded for that region only). Regions that are far apart (e.g. the
+ * overlaps with the right and the bottom neighbour) keep entries of their own, their union would be almost the whole view.
+ */
+public class TileCache implements MemoryBudget.Evictable
+{
+	private final MemoryBudget budget;
+	private long currentBytes = 0;
+
+	// access-ordered, the least recently used view is evicted first
+	private final LinkedHashMap< Key, Entry > cache = new LinkedHashMap<>( 16, 0.75f, true );
+
+	// announced regions are merged if their union is at most this much larger than the regions together
+	public static double maxUnionOverhead = 1.5;
+
+	// unions of the announced regions per view and downsampling (key without region)
+	private final HashMap< Key, List< PlannedRegion > > plannedRegions = new HashMap<>();
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+
+	/**
+	 * @param budget - the cached views count against this budget
+	 */
+	public TileCache( final MemoryBudget budget )
+	{
+		this.budget = budget;
+		budget.register( this );
+	}
+
+	/**
+	 * a cache with a budget of its own
+	 * @param maxBytes - memory for the cached views
+	 */
+	public TileCache( final long maxBytes )
+	{
+		this( new MemoryBudget( maxBytes ) );
+	}
+
+	/**
+	 * get a view, load it if it is not cached yet. Every acquire has to be followed by a {@link #release(Entry)}
+	 * once the image is not needed anymore, until then it will not be evicted.
+	 * 
+	 * @param vid - the view
+	 * @param downsampling - downsampling of the view
+	 * @param loader - loads the (downsampled) view if it is not cached
+	 * @param <T> pixel type
+	 * @return the entry, the image is available via {@link Entry#get()}
+	 */
+	public < T extends RealType< T > > Entry acquire(
+			final ViewId vid,
+			final long[] downsampling,
+			final Loader< T > loader )
+	{
+		return acquire( vid, downsampling, null, loader );
+	}
+
+	/**
+	 * like {@link #acquire(ViewId, long[], Loader)} for a part of a view. If the region lies within the planned
+	 * region of the view (see {@link #planRegion(ViewId, long[], Interval)}), the planned region is loaded instead,
+	 * {@link Entry#get(Interval)} returns the requested part.
+	 * 
+	 * @param vid - the view
+	 * @param downsampling - downsampling of the view
+	 * @param region - the needed part of the view (in downsampled pixel coordinates), null = the whole view
+	 * @param loader - loads a region of the (downsampled) view if it is not cached
+	 * @param <T> pixel type
+	 * @return the entry, the image is available via {@link Entry#get(Interval)}
+	 */
+	public < T extends RealType< T > > Entry acquire(
+			final ViewId vid,
+			final long[] downsampling,
+			final Interval region,
+			final Loader< T > loader )
+	{
+		final Entry entry;
+		final boolean load;
+		final Key key;
+
+		synchronized ( cache )
+		{
+			final Interval loadRegion = getLoadRegion( vid, downsampling, region );
+			key = new Key( vid, downsampling, loadRegion );
+
+			final Entry cached = cache.get( key );
+
+			if ( cached == null )
+			{
+				entry = new Entry( key, new FutureTask< RandomAccessibleInterval< ? > >( () -> loader.load( loadRegion ) ) );
+				cache.put( key, entry );
+				load = true;
+				misses.incrementAndGet();
+			}
+			else
+			{
+				entry = cached;
+				load = false;
+				hits.incrementAndGet();
+			}
+
+			++entry.refCount;
+		}
+
+		// load outside of the lock, other threads requesting the same view wait in get()
+		if ( load )
+			entry.task.run();
+
+		final RandomAccessibleInterval< ? > img;
+		try
+		{
+			img = SharedExecutor.get( entry.task );
+		}
+		catch ( InterruptedException | ExecutionException e )
+		{
+			synchronized ( cache )
+			{
+				--entry.refCount;
+				if ( cache.get( key ) == entry )
+					cache.remove( key );
+			}
+			throw new RuntimeException( "Failed to load view " + vid.getTimePointId() + "-" + vid.getViewSetupId() + ": " + e );
+		}
+
+		if ( load )
+		{
+			synchronized ( cache )
+			{
+				// it might have been cleared in the meantime
+				if ( cache.get( key ) == entry )
+				{
+					entry.bytes = sizeInBytes( img, key.getRegion() );
+					currentBytes += entry.bytes;
+					budget.addHeld( entry.bytes );
+					evict( 0 );
+				}
+			}
+		}
+
+		return entry;
+	}
+
+	/**
+	 * we do not need the view of an entry anymore, it might be evicted now
+	 * @param entry - an entry returned by {@link #acquire(ViewId, long[], Interval, Loader)}
+	 */
+	public void release( final Entry entry )
+	{
+		synchronized ( cache )
+		{
+			--entry.refCount;
+			evict( 0 );
+		}
+	}
+
+	/**
+	 * announce that a region of a view will be requested. It is merged with the announced regions of the view it is close
+	 * to (their union is at most {@link #maxUnionOverhead} times larger than the regions), all requests for parts of
+	 * a union are then served by one entry (it is loaded only once)
+	 * @param vid - the view
+	 * @param downsampling - downsampling of the view
+	 * @param region - the part of the view (in downsampled pixel coordinates), null = the whole view (nothing to plan)
+	 */
+	public void planRegion( final ViewId vid, final long[] downsampling, final Interval region )
+	{
+		if ( region == null )
+			return;
+
+		synchronized ( cache )
+		{
+			final List< PlannedRegion > planned = plannedRegions.computeIfAbsent( new Key( vid, downsampling, null ), k -> new ArrayList<>() );
+
+			for ( final PlannedRegion p : planned )
+			{
+				final Interval union = Intervals.union( p.union, region );
+				final long sum = p.sumElements + Intervals.numElements( region );
+
+				if ( Intervals.numElements( union ) <= maxUnionOverhead * sum )
+				{
+					p.union = union;
+					p.sumElements = sum;
+					return;
+				}
+			}
+
+			planned.add( new PlannedRegion( new FinalInterval( region ) ) );
+		}
+	}
+
+	/**
+	 * like {@link #planRegion(ViewId, long[], Interval)} for a load of a {@link TilePrefetcher} schedule
+	 * @param load - the view (or part of it) that will be requested
+	 */
+	public void planRegion( final TilePrefetcher.Load load )
+	{
+		planRegion( load.vid, load.downsampling, load.region );
+	}
+
+	/**
+	 * @param load - the view (or part of it) that will be requested
+	 * @return the memory the cache would additionally need for it (the planned region might be loaded, nothing if it is cached)
+	 */
+	public long estimateBytes( final TilePrefetcher.Load load )
+	{
+		synchronized ( cache )
+		{
+			final Interval loadRegion = getLoadRegion( load.vid, load.downsampling, load.region );
+
+			if ( cache.containsKey( new Key( load.vid, load.downsampling, loadRegion ) ) )
+				return 0;
+			else if ( loadRegion == null || loadRegion == load.region )
+				return load.bytes;
+			else
+				return Intervals.numElements( loadRegion ) * Float.BYTES;
+		}
+	}
+
+	/*
+	 * the region to load for a request: the smallest planned union that contains the requested region, the region itself otherwise
+	 */
+	private Interval getLoadRegion( final ViewId vid, final long[] downsampling, final Interval region )
+	{
+		if ( region == null )
+			return null;
+
+		final List< PlannedRegion > planned = plannedRegions.get( new Key( vid, downsampling, null ) );
+
+		if ( planned == null )
+			return region;
+
+		Interval loadRegion = region;
+		long loadElements = Long.MAX_VALUE;
+
+		for ( final PlannedRegion p : planned )
+			if ( contains( p.union, region ) && Intervals.numElements( p.union ) < loadElements )
+			{
+				loadRegion = p.union;
+				loadElements = Intervals.numElements( p.union );
+			}
+
+		return loadRegion;
+	}
+
+	private static boolean contains( final Interval outer, final Interval inner )
+	{
+		for ( int d = 0; d < inner.numDimensions(); ++d )
+			if ( inner.min( d ) < outer.min( d ) || inner.max( d ) > outer.max( d ) )
+				return false;
+
+		return true;
+	}
+
+	/*
+	 * union of announced regions of a view that are loaded together
+	 */
+	private static class PlannedRegion
+	{
+		private Interval union;
+		// the size of the regions together
+		private long sumElements;
+
+		public PlannedRegion( final Interval region )
+		{
+			this.union = region;
+			this.sumElements = Intervals.numElements( region );
+		}
+	}
+
+	/**
+	 * drop the least recently used views that are not in use until we are within the memory budget
+	 * (called by the budget if others need memory)
+	 * @param bytes - free at least this much even if the budget is not exceeded
+	 * @return the freed memory
+	 */
+	@Override
+	public long evict( final long bytes )
+	{
+		synchronized ( cache )
+		{
+			final Iterator< Map.Entry< Key, Entry > > it = cache.entrySet().iterator();
+			long freed = 0;
+
+			while ( ( freed < bytes || budget.isExceeded() ) && it.hasNext() )
+			{
+				final Entry entry = it.next().getValue();
+
+				// views still being loaded are not accounted for yet
+				if ( entry.refCount > 0 || !entry.task.isDone() )
+					continue;
+
+				currentBytes -= entry.bytes;
+				budget.removeHeld( entry.bytes );
+				freed += entry.bytes;
+				it.remove();
+			}
+
+			return freed;
+		}
+	}
+
+	/**
+	 * remove all cached views and planned regions (views that are in use stay valid for their users)
+	 */
+	public void clear()
+	{
+		synchronized ( cache )
+		{
+			cache.clear();
+			plannedRegions.clear();
+			budget.removeHeld( currentBytes );
+			currentBytes = 0;
+		}
+	}
+
+	public MemoryBudget getBudget() { return budget; }
+
+	public long getCurrentBytes()
+	{
+		synchronized ( cache )
+		{
+			return currentBytes;
+		}
+	}
+
+	public long getHits() { return hits.get(); }
+	public long getMisses() { return misses.get(); }
+
+	public void resetStatistics()
+	{
+		hits.set( 0 );
+		misses.set( 0 );
+	}
+
+	/**
+	 * estimated memory of an image (all pixels are assumed to be in memory)
+	 * @param img - the image
+	 * @return size in bytes
+	 */
+	public static long sizeInBytes( final RandomAccessibleInterval< ? > img )
+	{
+		return Intervals.numElements( img ) * bytesPerPixel( img );
+	}
+
+	/**
+	 * estimated memory of an image of which only a region is loaded (see {@link DownsampleTools#openAndDownsample(mpicbg.spim.data.generic.sequence.BasicImgLoader, ViewId, long[], Interval)})
+	 * @param img - the image
+	 * @param region - the loaded part, null = everything
+	 * @return size in bytes
+	 */
+	public static long sizeInBytes( final RandomAccessibleInterval< ? > img, final Interval region )
+	{
+		if ( region == null )
+			return sizeInBytes( img );
+
+		final Interval loaded = Intervals.intersect( img, region );
+		return Intervals.isEmpty( loaded ) ? 0 : Intervals.numElements( loaded ) * bytesPerPixel( img );
+	}
+
+	private static long bytesPerPixel( final RandomAccessibleInterval< ? > img )
+	{
+		final Object type = Util.getTypeFromInterval( img );
+		return type instanceof RealType ? Math.max( 1, ( ( RealType< ? > ) type ).getBitsPerPixel() / 8 ) : 4;
+	}
+
+	/**
+	 * loads a region of a view
+	 * @param <T> pixel type
+	 */
+	@FunctionalInterface
+	public interface Loader< T >
+	{
+		/**
+		 * @param region - the part of the view to load (in downsampled pixel coordinates), null = the whole view
+		 * @return the view, only the region has to be loaded
+		 * @throws Exception if loading fails
+		 */
+		RandomAccessibleInterval< T > load( Interval region ) throws Exception;
+	}
+
+	/**
+	 * a cached view
+	 */
+	public static class Entry
+	{
+		private final Key key;
+		private final FutureTask< RandomAccessibleInterval< ? > > task;
+		private int refCount = 0;
+		private long bytes = 0;
+
+		private Entry( final Key key, final FutureTask< RandomAccessibleInterval< ? > > task )
+		{
+			this.key = key;
+			this.task = task;
+		}
+
+		/**
+		 * @return the (shared, read-only) image, only valid between acquire and release
+		 */
+		@SuppressWarnings("unchecked")
+		public < T > RandomAccessibleInterval< T > get()
+		{
+			try
+			{
+				return ( RandomAccessibleInterval< T > ) SharedExecutor.get( task );
+			}
+			catch ( InterruptedException | ExecutionException e )
+			{
+				throw new RuntimeException( "Failed to load view " + key + ": " + e );
+			}
+		}
+
+		/**
+		 * @param region - the part of the view that was requested (in downsampled pixel coordinates), null = the whole view
+		 * @param <T> pixel type
+		 * @return the (shared, read-only) image, zero outside of the region if a larger region was loaded,
+		 * only valid between acquire and release
+		 */
+		public < T extends RealType< T > > RandomAccessibleInterval< T > get( final Interval region )
+		{
+			final RandomAccessibleInterval< T > img = get();
+
+			if ( region == null || key.min == null || Arrays.equals( Intervals.minAsLongArray( region ), key.min ) && Arrays.equals( Intervals.maxAsLongArray( region ), key.max ) )
+				return img;
+
+			// like loading only the region (see DownsampleTools.downsampleRegion)
+			final Interval part = Intervals.intersect( img, region );
+			if ( Intervals.isEmpty( part ) )
+				return img;
+
+			return Views.interval( Views.extendZero( Views.interval( img, part ) ), img );
+		}
+	}
+
+	private static class Key
+	{
+		private final ViewId vid;
+		private final long[] downsampling;
+		// null = whole view
+		private final long[] min, max;
+
+		public Key( final ViewId vid, final long[] downsampling, final Interval region )
+		{
+			// copy, the ViewId might be a (mutable) ViewDescription
+			this.vid = new ViewId( vid.getTimePointId(), vid.getViewSetupId() );
+			this.downsampling = downsampling.clone();
+			this.min = region == null ? null : Intervals.minAsLongArray( region );
+			this.max = region == null ? null : Intervals.maxAsLongArray( region );
+		}
+
+		public Interval getRegion()
+		{
+			return min == null ? null : new FinalInterval( min, max );
+		}
+
+		@Override
+		public int hashCode()
+		{
+			return 31 * ( 31 * ( 31 * vid.hashCode() + Arrays.hashCode( downsampling ) ) + Arrays.hashCode( min ) ) + Arrays.hashCode( max );
+		}
+
+		@Override
+		public boolean equals( final Object obj )
+		{
+			if ( this == obj )
+				return true;
+			if ( !( obj instanceof Key ) )
+				return false;
+
+			final Key other = (Key) obj;
+			return vid.equals( other.vid ) && Arrays.equals( downsampling, other.downsampling ) && Arrays.equals( min, other.min ) && Arrays.equals( max, other.max );
+		}
+
+		@Override
+		public String toString()
+		{
+			return vid.getTimePointId() + "-" + vid.getViewSetupId() + " " + Arrays.toString( downsampling )
+					+ ( min == null ? "" : " " + Arrays.toString( min ) + "-" + Arrays.toString( max ) );
+		}
+	}
+}
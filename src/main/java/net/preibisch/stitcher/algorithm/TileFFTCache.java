@@ -0,0 +1,274 @@
+/*-
+ * #%L
+ * Multiview stitching of large datasets.
+ * %%
+ * Copyright (C) 2016 - 2017 Big Stitcher developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package net.preibisch.stitcher.algorithm;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.algorithm.phasecorrelation.PhaseCorrelation2;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.basictypeaccess.array.FloatArray;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.complex.ComplexFloatType;
+
+/**
+ * Memory-bounded LRU cache of whole-tile forward FFTs, the cached spectra count against a {@link MemoryBudget}
+ * (usually the one of the pairwise stitching run, shared with its pairwise computations and its {@link TileCache}).
+ * 
+ * Entries are keyed by the tile (e.g. the set of views of a group), the downsampling, the extension and the padded FFT size.
+ * Every tile takes part in several pairs, with the cache its spectrum is computed only once for all of them.
+ * Cached spectra are shared between threads and must not be modified. If two threads request the same
+ * spectrum at the same time, it is computed only once.
+ */
+public class TileFFTCache implements MemoryBudget.Evictable
+{
+	private final MemoryBudget budget;
+	private long currentBytes = 0;
+
+	// access-ordered, the least recently used spectrum is evicted first
+	private final LinkedHashMap< Key, FutureTask< ArrayImg< ComplexFloatType, FloatArray > > > cache = new LinkedHashMap<>( 16, 0.75f, true );
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+
+	public TileFFTCache()
+	{
+		this( new MemoryBudget() );
+	}
+
+	/**
+	 * @param budget - the cached spectra count against this budget, call {@link #close()} when done
+	 */
+	public TileFFTCache( final MemoryBudget budget )
+	{
+		this.budget = budget;
+		budget.register( this );
+	}
+
+	/**
+	 * get the FFT of a tile, compute it if it is not cached yet
+	 * 
+	 * @param tile - identifies the tile (must implement equals and hashCode), e.g. the views of a group
+	 * @param downsampling - downsampling of img
+	 * @param img - the tile image
+	 * @param extension - mirror extension, see {@link PhaseCorrelation2#calculateFFT(RandomAccessibleInterval, int[], long[], ExecutorService)}
+	 * @param paddedDimensions - padded size of the FFT
+	 * @param service - executor service to use for the FFT
+	 * @param <T> pixel type
+	 * @return the (shared, read-only) spectrum
+	 */
+	public < T extends RealType< T > > ArrayImg< ComplexFloatType, FloatArray > getFFT(
+			final Object tile,
+			final long[] downsampling,
+			final RandomAccessibleInterval< T > img,
+			final int[] extension,
+			final long[] paddedDimensions,
+			final ExecutorService service )
+	{
+		final Key key = new Key( tile, downsampling, extension, paddedDimensions );
+		final FutureTask< ArrayImg< ComplexFloatType, FloatArray > > task;
+		final boolean compute;
+
+		synchronized ( cache )
+		{
+			final FutureTask< ArrayImg< ComplexFloatType, FloatArray > > cached = cache.get( key );
+
+			if ( cached == null )
+			{
+				task = new FutureTask<>( () -> PhaseCorrelation2.calculateFFT( img, extension, paddedDimensions, service ) );
+				cache.put( key, task );
+				compute = true;
+				misses.incrementAndGet();
+			}
+			else
+			{
+				task = cached;
+				compute = false;
+				hits.incrementAndGet();
+			}
+		}
+
+		// compute outside of the lock, other threads requesting the same tile wait in get()
+		if ( compute )
+			task.run();
+
+		final ArrayImg< ComplexFloatType, FloatArray > fft;
+		try
+		{
+			fft = SharedExecutor.get( task );
+		}
+		catch ( InterruptedException | ExecutionException e )
+		{
+			synchronized ( cache )
+			{
+				if ( cache.get( key ) == task )
+					cache.remove( key );
+			}
+			throw new RuntimeException( "Failed to compute FFT of tile " + tile + ": " + e );
+		}
+
+		if ( compute )
+		{
+			synchronized ( cache )
+			{
+				// it might have been cleared in the meantime
+				if ( cache.get( key ) == task )
+				{
+					currentBytes += sizeInBytes( fft );
+					budget.addHeld( sizeInBytes( fft ) );
+					evict( key, 0 );
+				}
+			}
+		}
+
+		return fft;
+	}
+
+	/**
+	 * drop the least recently used (finished) spectra to free memory for others (called by the budget)
+	 * @param bytes - free at least this much even if the budget is not exceeded
+	 * @return the freed memory
+	 */
+	@Override
+	public long evict( final long bytes )
+	{
+		return evict( null, bytes );
+	}
+
+	/**
+	 * drop the least recently used (finished) spectra until we are within the memory budget and freed at least bytes,
+	 * never drops the entry for keep
+	 */
+	private long evict( final Key keep, final long bytes )
+	{
+		synchronized ( cache )
+		{
+			final Iterator< Map.Entry< Key, FutureTask< ArrayImg< ComplexFloatType, FloatArray > > > > it = cache.entrySet().iterator();
+			long freed = 0;
+
+			while ( ( freed < bytes || budget.isExceeded() ) && it.hasNext() )
+			{
+				final Map.Entry< Key, FutureTask< ArrayImg< ComplexFloatType, FloatArray > > > entry = it.next();
+
+				// spectra still being computed are not accounted for yet
+				if ( entry.getKey().equals( keep ) || !entry.getValue().isDone() )
+					continue;
+
+				try
+				{
+					final long size = sizeInBytes( entry.getValue().get() );
+					currentBytes -= size;
+					budget.removeHeld( size );
+					freed += size;
+				}
+				catch ( InterruptedException | ExecutionException e ) {}
+
+				it.remove();
+			}
+
+			return freed;
+		}
+	}
+
+	/**
+	 * remove all cached spectra
+	 */
+	public void clear()
+	{
+		synchronized ( cache )
+		{
+			cache.clear();
+			budget.removeHeld( currentBytes );
+			currentBytes = 0;
+		}
+	}
+
+	/**
+	 * remove all cached spectra and stop counting against the budget
+	 */
+	public void close()
+	{
+		clear();
+		budget.unregister( this );
+	}
+
+	public long getHits() { return hits.get(); }
+	public long getMisses() { return misses.get(); }
+
+	public long getCurrentBytes()
+	{
+		synchronized ( cache )
+		{
+			return currentBytes;
+		}
+	}
+
+	public static long sizeInBytes( final ArrayImg< ComplexFloatType, FloatArray > fft )
+	{
+		return fft.size() * 2 * Float.BYTES;
+	}
+
+	private static class Key
+	{
+		private final Object tile;
+		private final long[] downsampling;
+		private final int[] extension;
+		private final long[] paddedDimensions;
+
+		public Key( final Object tile, final long[] downsampling, final int[] extension, final long[] paddedDimensions )
+		{
+			this.tile = tile;
+			this.downsampling = downsampling.clone();
+			this.extension = extension.clone();
+			this.paddedDimensions = paddedDimensions.clone();
+		}
+
+		@Override
+		public int hashCode()
+		{
+			int hash = tile.hashCode();
+			hash = 31 * hash + Arrays.hashCode( downsampling );
+			hash = 31 * hash + Arrays.hashCode( extension );
+			return 31 * hash + Arrays.hashCode( paddedDimensions );
+		}
+
+		@Override
+		public boolean equals( final Object obj )
+		{
+			if ( this == obj )
+				return true;
+			if ( !( obj instanceof Key ) )
+				return false;
+
+			final Key other = (Key) obj;
+			return tile.equals( other.tile ) && Arrays.equals( downsampling, other.downsampling ) &&
+					Arrays.equals( extension, other.extension ) && Arrays.equals( paddedDimensions, other.paddedDimensions );
+		}
+	}
+}
@@ -0,0 +1,248 @@
+/*-
+ * #%L
+ * Multiview stitching of large datasets.
+ * %%
+ * Copyright (C) 2016 - 2017 Big Stitcher developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package net.preibisch.stitcher.algorithm;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import mpicbg.spim.data.generic.sequence.BasicImgLoader;
+import mpicbg.spim.data.sequence.ViewId;
+import mpicbg.spim.io.IOFunctions;
+import net.imglib2.Interval;
+import net.imglib2.type.numeric.real.FloatType;
+import net.preibisch.mvrecon.process.interestpointregistration.pairwise.constellation.grouping.Group;
+
+/**
+ * I/O stage that loads the views of upcoming pairs into a {@link TileCache} while the current pairs are computed.
+ * 
+ * The pairs are known in the order they are scheduled, for every pair the views (or regions of views) it will
+ * request from the cache are given. Whenever a pair starts, the views of the next depth pairs are loaded by a
+ * separate, small pool of I/O threads (the views of a pair, e.g. its channels and illuminations, concurrently).
+ * Prefetched views are held in the cache until their pair is done, so they are not evicted before they are used.
+ * They count against the memory budget of the cache, views that do not fit into it are not prefetched (the pair
+ * loads them itself).
+ */
+public class TilePrefetcher
+{
+	/**
+	 * a view (or a part of it) that a pair will load
+	 */
+	public static class Load
+	{
+		final BasicImgLoader imgLoader;
+		final ViewId vid;
+		final long[] downsampling;
+		final Interval region;
+		final long bytes;
+
+		/**
+		 * @param imgLoader the imgloader
+		 * @param vid the view
+		 * @param downsampling downsampling
+		 * @param region part to load (in downsampled pixel coordinates), null = everything
+		 * @param bytes estimated memory of the loaded part
+		 */
+		public Load( final BasicImgLoader imgLoader, final ViewId vid, final long[] downsampling, final Interval region, final long bytes )
+		{
+			this.imgLoader = imgLoader;
+			this.vid = vid;
+			this.downsampling = downsampling;
+			this.region = region;
+			this.bytes = bytes;
+		}
+	}
+
+	private final TileCache tileCache;
+	private final List< List< Load > > schedule;
+	private final int depth;
+	private final ExecutorService ioService;
+
+	// pairs that are computed already (or running), prefetching them makes no sense anymore
+	private final HashSet< Integer > started = new HashSet<>();
+	private final HashSet< Integer > done = new HashSet<>();
+	// entries that were prefetched for a pair, they are held until the pair is done
+	private final HashMap< Integer, List< TileCache.Entry > > held = new HashMap<>();
+	private int maxStarted = -1;
+	private int next = 0;
+	private volatile boolean closed = false;
+
+	/**
+	 * @param tileCache - the cache the pairs take their views from
+	 * @param schedule - for every pair (in the order they are scheduled) the views it loads
+	 * @param depth - how many pairs ahead to prefetch
+	 * @param ioThreads - number of threads for loading
+	 */
+	public TilePrefetcher( final TileCache tileCache, final List< List< Load > > schedule, final int depth, final int ioThreads )
+	{
+		this.tileCache = tileCache;
+		this.schedule = schedule;
+		this.depth = depth;
+		this.ioService = Executors.newFixedThreadPool( Math.max( 1, ioThreads ) );
+	}
+
+	/**
+	 * prefetch the first pairs
+	 */
+	public synchronized void start()
+	{
+		fill();
+	}
+
+	/**
+	 * wrap the computation of a pair so that the prefetcher knows when it starts and when it is done
+	 * @param pairIndex - index of the pair in the schedule
+	 * @param task - the computation
+	 * @param <R> result type
+	 * @return the wrapped computation
+	 */
+	public < R > Callable< R > wrap( final int pairIndex, final Callable< R > task )
+	{
+		return () ->
+		{
+			started( pairIndex );
+			try
+			{
+				return task.call();
+			}
+			finally
+			{
+				done( pairIndex );
+			}
+		};
+	}
+
+	protected synchronized void started( final int pairIndex )
+	{
+		started.add( pairIndex );
+		maxStarted = Math.max( maxStarted, pairIndex );
+		fill();
+	}
+
+	/**
+	 * the pair has acquired its views itself by now, give back what we prefetched for it
+	 * @param pairIndex - index of the pair in the schedule
+	 */
+	protected void done( final int pairIndex )
+	{
+		final List< TileCache.Entry > entries;
+
+		synchronized ( this )
+		{
+			done.add( pairIndex );
+			entries = held.remove( pairIndex );
+		}
+
+		if ( entries != null )
+			entries.forEach( tileCache::release );
+	}
+
+	/**
+	 * submit the loads of the pairs up to depth after the last started one
+	 */
+	private void fill()
+	{
+		for ( ; next < schedule.size() && next <= maxStarted + depth; ++next )
+		{
+			if ( started.contains( next ) )
+				continue;
+
+			final int pairIndex = next;
+			held.put( pairIndex, new ArrayList<>() );
+
+			for ( final Load load : schedule.get( pairIndex ) )
+				ioService.submit( () -> prefetch( pairIndex, load ) );
+		}
+	}
+
+	private void prefetch( final int pairIndex, final Load load )
+	{
+		synchronized ( this )
+		{
+			if ( closed || done.contains( pairIndex ) )
+				return;
+		}
+
+		// only prefetch what fits, the pair will load the view itself otherwise
+		if ( !tileCache.getBudget().hasRoom( tileCache.estimateBytes( load ) ) )
+			return;
+
+		final TileCache.Entry entry;
+		try
+		{
+			// the pixel type does not matter here, the image is only put into the cache
+			entry = tileCache.< FloatType >acquire( load.vid, load.downsampling, load.region,
+					r -> DownsampleTools.< FloatType >openAndDownsample( load.imgLoader, load.vid, load.downsampling, r ) );
+		}
+		catch ( final RuntimeException e )
+		{
+			// the pair will try again itself
+			IOFunctions.println( "Failed to prefetch view " + Group.pvid( load.vid ) + ": " + e );
+			return;
+		}
+
+		final boolean keep;
+		synchronized ( this )
+		{
+			final List< TileCache.Entry > entries = held.get( pairIndex );
+			keep = entries != null;
+			if ( keep )
+				entries.add( entry );
+		}
+
+		// the pair is done already (or we were closed)
+		if ( !keep )
+			tileCache.release( entry );
+	}
+
+	/**
+	 * stop prefetching, wait for running loads and give back all held views
+	 */
+	public void close()
+	{
+		closed = true;
+		ioService.shutdown();
+
+		try
+		{
+			ioService.awaitTermination( Long.MAX_VALUE, TimeUnit.MILLISECONDS );
+		}
+		catch ( final InterruptedException e )
+		{
+			ioService.shutdownNow();
+		}
+
+		final List< TileCache.Entry > entries = new ArrayList<>();
+		synchronized ( this )
+		{
+			held.values().forEach( entries::addAll );
+			held.clear();
+		}
+
+		entries.forEach( tileCache::release );
+	}
+}
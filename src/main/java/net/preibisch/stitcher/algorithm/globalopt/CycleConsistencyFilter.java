@@ -0,0 +1,445 @@
+/*-
+ * #%L
+ * Multiview stitching of large datasets.
+ * %%
+ * Copyright (C) 2016 - 2017 Big Stitcher developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package net.preibisch.stitcher.algorithm.globalopt;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+
+import mpicbg.spim.data.sequence.ViewId;
+import mpicbg.spim.io.IOFunctions;
+import net.imglib2.util.Pair;
+import net.preibisch.mvrecon.fiji.spimdata.stitchingresults.PairwiseStitchingResult;
+import net.preibisch.mvrecon.process.interestpointregistration.pairwise.constellation.grouping.Group;
+
+/**
+ * Finds wrong pairwise links before the global optimization: around every short cycle of the link graph
+ * (3 and 4 groups) the shifts have to add up to zero, a cycle whose shifts add up to more than a threshold
+ * contains a wrong link.
+ * 
+ * A link is removed if most of its cycles are inconsistent, the links in the most inconsistent cycles first
+ * (then lower correlation, then inconsistent cycles that agree on its error first), as long as more of its cycles
+ * are inconsistent than consistent when ignoring cycles explained by links removed already, and removing it does
+ * not disconnect its groups. Links that are in no short cycle are kept.
+ * Of several links between the same two groups, only the one with the highest correlation is part of the cycles; the
+ * others are removed if their shift differs from it by more than the threshold, and otherwise share its fate.
+ * With a bounded number of links per group, finding the cycles takes linear time in the number of links; removing a
+ * link only needs a search of the graph if all of its short cycles are already broken by removed links.
+ */
+public class CycleConsistencyFilter
+{
+	private CycleConsistencyFilter() {}
+
+	/**
+	 * @param results - the pairwise results
+	 * @param threshold - a cycle is inconsistent if the length of the sum of its shifts is larger than this (in pixels)
+	 * @param removedPairs - the pairs of removed links are added here (may be null)
+	 * @return the remaining results
+	 */
+	public static List< PairwiseStitchingResult< ViewId > > filter(
+			final Collection< PairwiseStitchingResult< ViewId > > results,
+			final double threshold,
+			final Collection< Pair< Group< ViewId >, Group< ViewId > > > removedPairs )
+	{
+		final ArrayList< PairwiseStitchingResult< ViewId > > links = new ArrayList<>( results );
+		final int numLinks = links.size();
+
+		// nodes and shifts (B - A) of the links
+		final HashMap< Group< ViewId >, Integer > nodeIndex = new HashMap<>();
+		final int[] linkA = new int[ numLinks ];
+		final int[] linkB = new int[ numLinks ];
+		final double[][] shift = new double[ numLinks ][];
+
+		for ( int l = 0; l < numLinks; ++l )
+		{
+			final Pair< Group< ViewId >, Group< ViewId > > pair = links.get( l ).pair();
+			linkA[ l ] = nodeIndex.computeIfAbsent( pair.getA(), g -> nodeIndex.size() );
+			linkB[ l ] = nodeIndex.computeIfAbsent( pair.getB(), g -> nodeIndex.size() );
+
+			final double[] m = links.get( l ).getTransform().getRowPackedCopy();
+			final int cols = m.length / 3;
+			shift[ l ] = new double[ 3 ];
+			for ( int d = 0; d < 3; ++d )
+				shift[ l ][ d ] = d < cols - 1 ? m[ d * cols + cols - 1 ] : 0;
+		}
+
+		final int n = nodeIndex.size();
+
+		// one link per pair of nodes, the one with the highest correlation (neighbour -> link)
+		final ArrayList< HashMap< Integer, Integer > > neighbours = new ArrayList<>();
+		for ( int i = 0; i < n; ++i )
+			neighbours.add( new HashMap<>() );
+
+		for ( int l = 0; l < numLinks; ++l )
+		{
+			if ( linkA[ l ] == linkB[ l ] )
+				continue;
+
+			final Integer other = neighbours.get( linkA[ l ] ).get( linkB[ l ] );
+			if ( other == null || links.get( l ).r() > links.get( other ).r() )
+			{
+				neighbours.get( linkA[ l ] ).put( linkB[ l ], l );
+				neighbours.get( linkB[ l ] ).put( linkA[ l ], l );
+			}
+		}
+
+		final boolean[] removed = new boolean[ numLinks ];
+		final boolean[] duplicate = new boolean[ numLinks ];
+		int numRemoved = 0;
+
+		// the other links between the same nodes are compared to that one directly (the shifts are B - A)
+		final ArrayList< ArrayList< Integer > > agreeing = new ArrayList<>();
+		for ( int l = 0; l < numLinks; ++l )
+			agreeing.add( new ArrayList<>() );
+
+		for ( int l = 0; l < numLinks; ++l )
+		{
+			if ( linkA[ l ] == linkB[ l ] )
+				continue;
+
+			final int best = neighbours.get( linkA[ l ] ).get( linkB[ l ] );
+			if ( best == l )
+				continue;
+
+			duplicate[ l ] = true;
+
+			final double sign = linkA[ best ] == linkA[ l ] ? 1 : -1;
+			double dist = 0;
+			for ( int d = 0; d < 3; ++d )
+				dist += ( shift[ l ][ d ] - sign * shift[ best ][ d ] ) * ( shift[ l ][ d ] - sign * shift[ best ][ d ] );
+
+			if ( Math.sqrt( dist ) > threshold )
+			{
+				removed[ l ] = true;
+				++numRemoved;
+			}
+			else
+			{
+				agreeing.get( best ).add( l );
+			}
+		}
+
+		// all 3- and 4-cycles, each found once from its smallest node
+		final ArrayList< int[] > cycles = new ArrayList<>();
+		final ArrayList< double[] > sums = new ArrayList<>();
+		final ArrayList< boolean[] > forward = new ArrayList<>();
+		final ArrayList< Boolean > inconsistent = new ArrayList<>();
+
+		for ( int u = 0; u < n; ++u )
+		{
+			// paths u -> v -> w with v, w > u, by w
+			final HashMap< Integer, ArrayList< Integer > > middles = new HashMap<>();
+
+			for ( final int v : neighbours.get( u ).keySet() )
+			{
+				if ( v < u )
+					continue;
+
+				for ( final int w : neighbours.get( v ).keySet() )
+				{
+					if ( w <= u )
+						continue;
+
+					middles.computeIfAbsent( w, k -> new ArrayList<>() ).add( v );
+
+					// triangle u -> v -> w -> u, once with v < w
+					if ( v < w && neighbours.get( w ).containsKey( u ) )
+						addCycle( new int[] { u, v, w }, neighbours, linkA, shift, threshold, cycles, sums, forward, inconsistent );
+				}
+			}
+
+			// square u -> v1 -> w -> v2 -> u
+			for ( final int w : middles.keySet() )
+			{
+				final ArrayList< Integer > vs = middles.get( w );
+				for ( int i = 0; i < vs.size(); ++i )
+					for ( int j = i + 1; j < vs.size(); ++j )
+						addCycle( new int[] { u, vs.get( i ), w, vs.get( j ) }, neighbours, linkA, shift, threshold, cycles, sums, forward, inconsistent );
+			}
+		}
+
+		// cycles of every link
+		final int[] bad = new int[ numLinks ];
+		final int[] total = new int[ numLinks ];
+		final ArrayList< ArrayList< Integer > > cyclesOfLink = new ArrayList<>();
+		for ( int l = 0; l < numLinks; ++l )
+			cyclesOfLink.add( new ArrayList<>() );
+
+		int numInconsistent = 0;
+		for ( int c = 0; c < cycles.size(); ++c )
+		{
+			if ( inconsistent.get( c ) )
+				++numInconsistent;
+
+			for ( final int l : cycles.get( c ) )
+			{
+				++total[ l ];
+				if ( inconsistent.get( c ) )
+					++bad[ l ];
+				cyclesOfLink.get( l ).add( c );
+			}
+		}
+
+		// for a wrong link, its inconsistent cycles agree on how wrong it is (the sum of the shifts walking along the link)
+		final double[] spread = new double[ numLinks ];
+		for ( int l = 0; l < numLinks; ++l )
+			spread[ l ] = spread( l, cyclesOfLink.get( l ), cycles, sums, forward, inconsistent );
+
+		final ArrayList< Integer > candidates = new ArrayList<>();
+		for ( int l = 0; l < numLinks; ++l )
+			if ( bad[ l ] > 0 && 2 * bad[ l ] > total[ l ] )
+				candidates.add( l );
+
+		candidates.sort( ( l1, l2 ) ->
+			bad[ l1 ] != bad[ l2 ] ? Integer.compare( bad[ l2 ], bad[ l1 ] ) :
+			links.get( l1 ).r() != links.get( l2 ).r() ? Double.compare( links.get( l1 ).r(), links.get( l2 ).r() ) :
+			Double.compare( spread[ l1 ], spread[ l2 ] ) );
+
+		final boolean[] explained = new boolean[ cycles.size() ];
+
+		// adjacency of the nodes (link indices), for links whose short cycles are all broken
+		final int[] start = new int[ n + 1 ];
+		for ( int l = 0; l < numLinks; ++l )
+		{
+			++start[ linkA[ l ] + 1 ];
+			++start[ linkB[ l ] + 1 ];
+		}
+		for ( int i = 0; i < n; ++i )
+			start[ i + 1 ] += start[ i ];
+
+		final int[] adjacent = new int[ start[ n ] ];
+		final int[] next = Arrays.copyOf( start, n );
+		for ( int l = 0; l < numLinks; ++l )
+		{
+			adjacent[ next[ linkA[ l ] ]++ ] = l;
+			adjacent[ next[ linkB[ l ] ]++ ] = l;
+		}
+
+		for ( final int l : candidates )
+		{
+			// more cycles of the link have to be inconsistent than consistent, not counting those explained by links removed so far
+			int unexplained = 0, consistent = 0;
+			for ( final int c : cyclesOfLink.get( l ) )
+				if ( !inconsistent.get( c ) )
+					++consistent;
+				else if ( !explained[ c ] )
+					++unexplained;
+
+			if ( unexplained <= consistent )
+				continue;
+
+			removed[ l ] = true;
+			for ( final int k : agreeing.get( l ) )
+				removed[ k ] = true;
+
+			if ( !anyCycleIntact( l, cyclesOfLink.get( l ), cycles, removed ) && !connected( linkA[ l ], linkB[ l ], n, start, adjacent, linkA, linkB, removed ) )
+			{
+				removed[ l ] = false;
+				for ( final int k : agreeing.get( l ) )
+					removed[ k ] = false;
+				continue;
+			}
+
+			for ( final int c : cyclesOfLink.get( l ) )
+				explained[ c ] = true;
+
+			numRemoved += 1 + agreeing.get( l ).size();
+		}
+
+		final ArrayList< PairwiseStitchingResult< ViewId > > remaining = new ArrayList<>();
+		for ( int l = 0; l < numLinks; ++l )
+		{
+			if ( !removed[ l ] )
+			{
+				remaining.add( links.get( l ) );
+				continue;
+			}
+
+			if ( duplicate[ l ] && !removed[ neighbours.get( linkA[ l ] ).get( linkB[ l ] ) ] )
+				IOFunctions.println( "Removed link " + links.get( l ).pair().getA() + " <> " + links.get( l ).pair().getB()
+						+ " (disagrees with a link with higher correlation between the same groups)" );
+			else
+				IOFunctions.println( "Removed link " + links.get( l ).pair().getA() + " <> " + links.get( l ).pair().getB()
+						+ ( duplicate[ l ] ? " (like the link with higher correlation between the same groups)" : " (inconsistent in " + bad[ l ] + " of " + total[ l ] + " cycles)" ) );
+
+			if ( removedPairs != null )
+				removedPairs.add( links.get( l ).pair() );
+		}
+
+		IOFunctions.println( new Date( System.currentTimeMillis() ) + ": " + numInconsistent + " of " + cycles.size()
+				+ " short cycles are inconsistent, removed " + numRemoved + " of " + numLinks + " links." );
+
+		return remaining;
+	}
+
+	/*
+	 * the links of the cycle through the given nodes and whether the shifts around it add up to more than threshold
+	 */
+	private static void addCycle(
+			final int[] nodes,
+			final List< HashMap< Integer, Integer > > neighbours,
+			final int[] linkA,
+			final double[][] shift,
+			final double threshold,
+			final List< int[] > cycles,
+			final List< double[] > sums,
+			final List< boolean[] > forward,
+			final List< Boolean > inconsistent )
+	{
+		final int[] cycle = new int[ nodes.length ];
+		final boolean[] along = new boolean[ nodes.length ];
+		final double[] sum = new double[ 3 ];
+
+		for ( int i = 0; i < nodes.length; ++i )
+		{
+			final int from = nodes[ i ];
+			final int to = nodes[ ( i + 1 ) % nodes.length ];
+			final int l = neighbours.get( from ).get( to );
+
+			cycle[ i ] = l;
+			along[ i ] = linkA[ l ] == from;
+
+			// the shift is B - A, walking against the link flips it
+			final double sign = along[ i ] ? 1 : -1;
+			for ( int d = 0; d < 3; ++d )
+				sum[ d ] += sign * shift[ l ][ d ];
+		}
+
+		cycles.add( cycle );
+		sums.add( sum );
+		forward.add( along );
+		inconsistent.add( Math.sqrt( sum[ 0 ] * sum[ 0 ] + sum[ 1 ] * sum[ 1 ] + sum[ 2 ] * sum[ 2 ] ) > threshold );
+	}
+
+	/*
+	 * how much the inconsistent cycles of a link disagree about its error (mean distance from their average)
+	 */
+	private static double spread(
+			final int l,
+			final List< Integer > cyclesOfLink,
+			final List< int[] > cycles,
+			final List< double[] > sums,
+			final List< boolean[] > forward,
+			final List< Boolean > inconsistent )
+	{
+		final ArrayList< double[] > errors = new ArrayList<>();
+		final double[] mean = new double[ 3 ];
+
+		for ( final int c : cyclesOfLink )
+		{
+			if ( !inconsistent.get( c ) )
+				continue;
+
+			// orient the sum of the cycle like link l (A -> B)
+			final int[] cycle = cycles.get( c );
+			double sign = 1;
+			for ( int i = 0; i < cycle.length; ++i )
+				if ( cycle[ i ] == l )
+					sign = forward.get( c )[ i ] ? 1 : -1;
+
+			final double[] e = new double[ 3 ];
+			for ( int d = 0; d < 3; ++d )
+			{
+				e[ d ] = sign * sums.get( c )[ d ];
+				mean[ d ] += e[ d ];
+			}
+			errors.add( e );
+		}
+
+		if ( errors.size() < 2 )
+			return 0;
+
+		for ( int d = 0; d < 3; ++d )
+			mean[ d ] /= errors.size();
+
+		double spread = 0;
+		for ( final double[] e : errors )
+			spread += Math.sqrt( ( e[ 0 ] - mean[ 0 ] ) * ( e[ 0 ] - mean[ 0 ] ) + ( e[ 1 ] - mean[ 1 ] ) * ( e[ 1 ] - mean[ 1 ] ) + ( e[ 2 ] - mean[ 2 ] ) * ( e[ 2 ] - mean[ 2 ] ) );
+
+		return spread / errors.size();
+	}
+
+	/*
+	 * is there a short cycle of link l none of whose other links are removed (then its nodes stay connected)
+	 */
+	private static boolean anyCycleIntact( final int l, final List< Integer > cyclesOfLink, final List< int[] > cycles, final boolean[] removed )
+	{
+		for ( final int c : cyclesOfLink )
+		{
+			boolean intact = true;
+			for ( final int k : cycles.get( c ) )
+				if ( k != l && removed[ k ] )
+					intact = false;
+
+			if ( intact )
+				return true;
+		}
+
+		return false;
+	}
+
+	/*
+	 * can b be reached from a over the links that are not removed
+	 */
+	private static boolean connected(
+			final int a,
+			final int b,
+			final int n,
+			final int[] start,
+			final int[] adjacent,
+			final int[] linkA,
+			final int[] linkB,
+			final boolean[] removed )
+	{
+		final boolean[] visited = new boolean[ n ];
+		final int[] queue = new int[ n ];
+		int head = 0, tail = 0;
+		queue[ tail++ ] = a;
+		visited[ a ] = true;
+
+		while ( head < tail )
+		{
+			final int node = queue[ head++ ];
+			if ( node == b )
+				return true;
+
+			for ( int k = start[ node ]; k < start[ node + 1 ]; ++k )
+			{
+				final int link = adjacent[ k ];
+				if ( removed[ link ] )
+					continue;
+
+				final int other = linkA[ link ] == node ? linkB[ link ] : linkA[ link ];
+				if ( !visited[ other ] )
+				{
+					visited[ other ] = true;
+					queue[ tail++ ] = other;
+				}
+			}
+		}
+
+		return false;
+	}
+}
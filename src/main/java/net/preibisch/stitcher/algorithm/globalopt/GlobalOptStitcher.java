@@ -12,17 +12,20 @@ import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.stream.Collectors;
 
 import fiji.util.gui.GenericDialogPlus;
+import ij.IJ;
 import mpicbg.models.TranslationModel3D;
-import mpicbg.spim.data.generic.base.Entity;
 import mpicbg.spim.data.generic.sequence.BasicViewDescription;
 import mpicbg.spim.data.generic.sequence.BasicViewSetup;
 import mpicbg.spim.data.registration.ViewRegistration;
 import mpicbg.spim.data.registration.ViewTransform;
 import mpicbg.spim.data.registration.ViewTransformAffine;
-import mpicbg.spim.data.sequence.TimePoint;
 import mpicbg.spim.data.sequence.ViewId;
 import mpicbg.spim.io.IOFunctions;
 import net.imglib2.realtransform.AffineTransform3D;
@@ -44,7 +47,9 @@ import net.preibisch.mvrecon.process.interestpointregistration.global.pointmatch
 import net.preibisch.mvrecon.process.interestpointregistration.pairwise.constellation.PairwiseSetup;
 import net.preibisch.mvrecon.process.interestpointregistration.pairwise.constellation.Subset;
 import net.preibisch.mvrecon.process.interestpointregistration.pairwise.constellation.grouping.Group;
-import net.preibisch.mvrecon.process.interestpointregistration.pairwise.constellation.overlap.SimpleBoundingBoxOverlap;
+import net.preibisch.stitcher.algorithm.BoundingBoxIndex;
+import net.preibisch.stitcher.algorithm.IndexedBoundingBoxOverlap;
+import net.preibisch.stitcher.algorithm.SharedExecutor;
 import net.preibisch.stitcher.algorithm.SpimDataFilteringAndGrouping;
 import net.preibisch.stitcher.algorithm.globalopt.GlobalOptimizationParameters.GlobalOptType;
 
@@ -72,27 +77,21 @@ public class GlobalOptStitcher
 			@Override
 			protected List< Pair< ViewId, ViewId > > definePairsAbstract()
 			{
+				// the pairs only define the subsets (all views that do not differ in an application axis),
+				// so it is enough to connect every view to the previous one of its partition instead of to all of them
 				List< Pair< ViewId, ViewId > > res = new ArrayList<>();
-				for ( int i = 0; i < views.size(); i++ )
-					for ( int j = i + 1; j < views.size(); j++ )
-					{
-						boolean differInApplicationAxis = false;
-						for ( Class< ? extends Entity > cl : filteringAndGrouping.getAxesOfApplication() )
-						{
-							// ugly, but just undoes the casting to
-							// ViewId in constructor
-							BasicViewDescription< ? extends BasicViewSetup > vdA = (BasicViewDescription< ? extends BasicViewSetup >) views.get( i );
-							BasicViewDescription< ? extends BasicViewSetup > vdB = (BasicViewDescription< ? extends BasicViewSetup >) views.get( j );
-
-							if ( cl == TimePoint.class )
-								differInApplicationAxis |= !vdA.getTimePoint().equals( vdB.getTimePoint() );
-							else
-								differInApplicationAxis |= !vdA.getViewSetup().getAttribute( cl )
-										.equals( vdB.getViewSetup().getAttribute( cl ) );
-						}
-						if ( !differInApplicationAxis )
-							res.add( new ValuePair< ViewId, ViewId >( views.get( i ), views.get( j ) ) );
-					}
+				final HashMap< Object, ViewId > lastOfPartition = new HashMap<>();
+				for ( final ViewId view : views )
+				{
+					// ugly, but just undoes the casting to
+					// ViewId in constructor
+					final BasicViewDescription< ? extends BasicViewSetup > vd = (BasicViewDescription< ? extends BasicViewSetup >) view;
+					final Object key = SpimDataFilteringAndGrouping.getInstancesKey( Collections.singletonList( vd ), filteringAndGrouping.getAxesOfApplication() );
+
+					final ViewId last = lastOfPartition.put( key, view );
+					if ( last != null )
+						res.add( new ValuePair< ViewId, ViewId >( last, view ) );
+				}
 
 				return res;
 			}
@@ -124,130 +123,233 @@ public class GlobalOptStitcher
 
 		final Iterator< ? extends Collection< ViewId > > fixedIterator = fixedViews.iterator();
 
+		// the metadata overlaps of all views for the second round, built before the subsets start to change registrations
+		// and only read afterwards
+		final IndexedBoundingBoxOverlap< ViewId > metadataOverlap =
+				params.method == GlobalOptType.TWO_ROUND && !params.batchLinkRemoval ? new IndexedBoundingBoxOverlap<>( data ) : null;
+
+		// subsets (e.g. timepoints, angles) do not share views, so they are optimized concurrently
+		final ArrayList< FutureTask< ArrayList< Pair< Group< ViewId >, Group< ViewId > > > > > futures = new ArrayList<>();
+		final AtomicInteger nCompleted = new AtomicInteger();
+
+		IJ.showProgress( 0.0 );
+
 		int subsetIdx = -1;
 		for ( Subset< ViewId > subset : subsets )
 		{
-			System.out.println( "subset " + (++subsetIdx) );
-			System.out.println( subset );
-
+			final int idx = ++subsetIdx;
 			final Collection< ViewId > fixed = fixedIterator.next();
 
-			Collection< PairwiseStitchingResult< ViewId > > results = data.getStitchingResults().getPairwiseResults()
-					.values();
-			// filter to only process links between selected views
-			results = results.stream()
-					.filter( psr -> subset.getGroups().contains( psr.pair().getA() )
-							&& subset.getGroups().contains( psr.pair().getB() ) )
-					.collect( Collectors.toList() );
-			// filter bad hashes here
-			final int numLinksBefore = results.size();
-			results = results.stream().filter( psr -> 
+			final FutureTask< ArrayList< Pair< Group< ViewId >, Group< ViewId > > > > future = new FutureTask<>( () ->
 			{
-				final ViewId firstVidA = psr.pair().getA().getViews().iterator().next();
-				final ViewId firstVidB = psr.pair().getB().getViews().iterator().next();
-				final ViewRegistration vrA = data.getViewRegistrations().getViewRegistration( firstVidA );
-				final ViewRegistration vrB = data.getViewRegistrations().getViewRegistration( firstVidB );
-				final double hash = PairwiseStitchingResult.calculateHash( vrA, vrB );
-				return psr.getHash() == hash;
-			}).collect( Collectors.toList() );
-			final int numLinksAfter = results.size();
-
-			if (numLinksAfter != numLinksBefore)
-			{
-				IOFunctions.println("Removed " + ( numLinksBefore - numLinksAfter ) + " of " + numLinksBefore + 
-						" pairwise results because the underlying view registrations have changed.");
-				IOFunctions.println("Did you try to re-run the global optimization after aligning the dataset?");
-				IOFunctions.println("In that case, you can remove the latest transformation and try again.");
-			}
+				final ArrayList< Pair< Group< ViewId >, Group< ViewId > > > removed = new ArrayList<>();
+				final HashMap< ViewId, AffineTransform3D > globalOptResults = optimizeSubset( data, subset, idx, fixed, params, metadataOverlap, removed );
+
+				if ( globalOptResults != null )
+					applyStitchingTransforms( data, globalOptResults );
+
+				final int nCompletedI = nCompleted.incrementAndGet();
+				IJ.showProgress( (double) nCompletedI / subsets.size() );
+
+				if ( subsets.size() > 1 )
+					IOFunctions.println( new Date( System.currentTimeMillis() ) + ": Finished subset " + idx + " (" + nCompletedI + " of " + subsets.size() + " done)." );
+
+				return removed;
+			} );
+
+			futures.add( future );
+			SharedExecutor.getTaskExecutor().execute( future );
+		}
+
+		try
+		{
+			// collect the removed links in the order of the subsets
+			for ( final Future< ArrayList< Pair< Group< ViewId >, Group< ViewId > > > > future : futures )
+				removedInconsistentPairs.addAll( SharedExecutor.get( future ) );
+		}
+		catch ( final InterruptedException | ExecutionException e )
+		{
+			IOFunctions.println( new Date( System.currentTimeMillis() ) + ": Failed to run global optimization: " + e );
+			e.printStackTrace();
+			return false;
+		}
+		finally
+		{
+			futures.forEach( f -> f.cancel( true ) );
+		}
+
+		return true;
+	}
+
+	/*
+	 * globally optimize one subset, returns the transformations of its views (null if there are no links)
+	 */
+	private static HashMap< ViewId, AffineTransform3D > optimizeSubset(
+			final SpimData2 data,
+			final Subset< ViewId > subset,
+			final int subsetIdx,
+			final Collection< ViewId > fixed,
+			final GlobalOptimizationParameters params,
+			final IndexedBoundingBoxOverlap< ViewId > metadataOverlap,
+			final Collection< Pair< Group< ViewId >, Group< ViewId > > > removedInconsistentPairs )
+	{
+		System.out.println( "subset " + subsetIdx );
+		System.out.println( subset );
+
+		Collection< PairwiseStitchingResult< ViewId > > results;
+		synchronized ( data.getStitchingResults() )
+		{
+			results = new ArrayList<>( data.getStitchingResults().getPairwiseResults().values() );
+		}
+		// filter to only process links between selected views
+		results = results.stream()
+				.filter( psr -> subset.getGroups().contains( psr.pair().getA() )
+						&& subset.getGroups().contains( psr.pair().getB() ) )
+				.collect( Collectors.toList() );
+		// filter bad hashes here
+		final int numLinksBefore = results.size();
+		results = results.stream().filter( psr -> 
+		{
+			final ViewId firstVidA = psr.pair().getA().getViews().iterator().next();
+			final ViewId firstVidB = psr.pair().getB().getViews().iterator().next();
+			final ViewRegistration vrA = data.getViewRegistrations().getViewRegistration( firstVidA );
+			final ViewRegistration vrB = data.getViewRegistrations().getViewRegistration( firstVidB );
+			final double hash = PairwiseStitchingResult.calculateHash( vrA, vrB );
+			return psr.getHash() == hash;
+		}).collect( Collectors.toList() );
+		final int numLinksAfter = results.size();
+
+		if (numLinksAfter != numLinksBefore)
+		{
+			IOFunctions.println("Removed " + ( numLinksBefore - numLinksAfter ) + " of " + numLinksBefore + 
+					" pairwise results because the underlying view registrations have changed.");
+			IOFunctions.println("Did you try to re-run the global optimization after aligning the dataset?");
+			IOFunctions.println("In that case, you can remove the latest transformation and try again.");
+		}
+
+		if (numLinksAfter < 1)
+		{
+			IOFunctions.println( new Date(System.currentTimeMillis()) + ": no links remaining in subset " + subsetIdx + ", skipping.");
+			return null;
+		}
 
-			if (numLinksAfter < 1)
+		// remove links that do not add up around short cycles before optimizing
+		if ( params.cycleConsistencyThreshold > 0 )
+		{
+			results = CycleConsistencyFilter.filter( results, params.cycleConsistencyThreshold, removedInconsistentPairs );
+
+			if ( results.size() < 1 )
 			{
 				IOFunctions.println( new Date(System.currentTimeMillis()) + ": no links remaining in subset " + subsetIdx + ", skipping.");
-				continue;
+				return null;
 			}
+		}
+
+		final HashMap< ViewId, AffineTransform3D > transforms = new HashMap<>();
 
+		if ( params.method == GlobalOptType.SPARSE_TRANSLATION || params.method == GlobalOptType.HIERARCHICAL ||
+				( params.batchLinkRemoval && ( params.method == GlobalOptType.TWO_ROUND || params.method == GlobalOptType.ITERATIVE ) ) )
+		{
+			// translation-only solver; with batch link removal it replaces the model-based ITERATIVE and TWO_ROUND, where
+			// unconnected groups are aligned using the groups that overlap according to the metadata (second round)
+			final List< Pair< Group< ViewId >, Group< ViewId > > > metadataPairs;
 			if ( params.method == GlobalOptType.TWO_ROUND )
-			{
-				HashMap< ViewId, AffineTransform3D > globalOptResults = GlobalOptTwoRound.compute(
-						new TranslationModel3D(),
-						new ImageCorrelationPointMatchCreator( results ),
-						new SimpleIterativeConvergenceStrategy( Double.MAX_VALUE,
-								params.relativeThreshold, params.absoluteThreshold ),
-						new MaxErrorLinkRemoval(),
-						removedInconsistentPairs,
-						new MetaDataWeakLinkFactory(
-								data.getViewRegistrations().getViewRegistrations(),
-								new SimpleBoundingBoxOverlap<>( data ) ),
-						new ConvergenceStrategy( Double.MAX_VALUE ), fixed,
-						subset.getGroups() );
-
-				globalOptResults.forEach( (k, v) -> System.out.println( k + ": " + v ) );
-				globalOptResults.forEach( (k, v) -> {
-
-					final ViewRegistration vr = data.getViewRegistrations()
-							.getViewRegistration( k );
-
-					AffineTransform3D viewTransform = new AffineTransform3D();
-					viewTransform.set( v );
-
-					final ViewTransform vt = new ViewTransformAffine( "Stitching Transform",
-							viewTransform );
-					vr.preconcatenateTransform( vt );
-					vr.updateModel();
-
-				} );
-			}
-			else if ( params.method == GlobalOptType.ITERATIVE)
-			{
-				HashMap< ViewId, mpicbg.models.Tile< TranslationModel3D > > globalOptResults = GlobalOptIterative.compute(
-						new TranslationModel3D(),
-						new ImageCorrelationPointMatchCreator( results ),
-						new SimpleIterativeConvergenceStrategy( Double.MAX_VALUE,
-								params.relativeThreshold, params.absoluteThreshold ),
-						new MaxErrorLinkRemoval(),
-						removedInconsistentPairs,
-						fixed, subset.getGroups() );
-
-				globalOptResults.forEach( (k, v) -> System.out.println( k + ": " + v ) );
-				globalOptResults.forEach( (k, v) -> {
-
-					final ViewRegistration vr = data.getViewRegistrations().getViewRegistration( k );
-					AffineTransform3D viewTransform = new AffineTransform3D();
-					viewTransform.set( v.getModel().getMatrix( null ) );
-
-					final ViewTransform vt = new ViewTransformAffine( "Stitching Transform", viewTransform );
-					vr.preconcatenateTransform( vt );
-					vr.updateModel();
-
-				} );
-			}
-			else // Simple global opt
-			{
-				final HashMap< ViewId, mpicbg.models.Tile< TranslationModel3D > > globalOptResults = GlobalOpt.compute( 
-						new TranslationModel3D(),
-						new ImageCorrelationPointMatchCreator( results ),
-						new SimpleIterativeConvergenceStrategy( Double.MAX_VALUE,
-								params.relativeThreshold, params.absoluteThreshold ),
-						fixed,
-						subset.getGroups() );
-
-				globalOptResults.forEach( (k, v) -> System.out.println( k + ": " + v ) );
-				globalOptResults.forEach( (k, v) -> {
-
-					final ViewRegistration vr = data.getViewRegistrations().getViewRegistration( k );
-					AffineTransform3D viewTransform = new AffineTransform3D();
-					viewTransform.set( v.getModel().getMatrix( null ) );
-
-					final ViewTransform vt = new ViewTransformAffine( "Stitching Transform", viewTransform );
-					vr.preconcatenateTransform( vt );
-					vr.updateModel();
-
-				} );
-			}
+				metadataPairs = new BoundingBoxIndex<>(
+						subset.getGroups(),
+						group -> BoundingBoxIndex.getBoundingBox( group.getViews(), data.getSequenceDescription(), data.getViewRegistrations() ),
+						group -> null ).overlappingPairs();
+			else
+				metadataPairs = null;
 
+			transforms.putAll( SparseTranslationSolver.compute(
+					results, fixed, subset.getGroups(),
+					params.relativeThreshold, params.absoluteThreshold, params.minMaxError, params.batchLinkRemoval,
+					removedInconsistentPairs, metadataPairs, params.method == GlobalOptType.HIERARCHICAL ) );
 		}
+		else if ( params.method == GlobalOptType.TWO_ROUND )
+		{
+			HashMap< ViewId, AffineTransform3D > globalOptResults = GlobalOptTwoRound.compute(
+					new TranslationModel3D(),
+					new ImageCorrelationPointMatchCreator( results ),
+					new SimpleIterativeConvergenceStrategy( Double.MAX_VALUE,
+							params.relativeThreshold, params.absoluteThreshold ),
+					new MaxErrorLinkRemoval(),
+					removedInconsistentPairs,
+					new MetaDataWeakLinkFactory(
+							data.getViewRegistrations().getViewRegistrations(),
+							metadataOverlap ),
+					new ConvergenceStrategy( Double.MAX_VALUE ), fixed,
+					subset.getGroups() );
+
+			globalOptResults.forEach( (k, v) -> System.out.println( k + ": " + v ) );
+			globalOptResults.forEach( (k, v) -> {
+
+				AffineTransform3D viewTransform = new AffineTransform3D();
+				viewTransform.set( v );
+				transforms.put( k, viewTransform );
 
-		return true;
+			} );
+		}
+		else if ( params.method == GlobalOptType.ITERATIVE)
+		{
+			HashMap< ViewId, mpicbg.models.Tile< TranslationModel3D > > globalOptResults = GlobalOptIterative.compute(
+					new TranslationModel3D(),
+					new ImageCorrelationPointMatchCreator( results ),
+					new SimpleIterativeConvergenceStrategy( Double.MAX_VALUE,
+							params.relativeThreshold, params.absoluteThreshold ),
+					new MaxErrorLinkRemoval(),
+					removedInconsistentPairs,
+					fixed, subset.getGroups() );
+
+			globalOptResults.forEach( (k, v) -> System.out.println( k + ": " + v ) );
+			globalOptResults.forEach( (k, v) -> {
+
+				AffineTransform3D viewTransform = new AffineTransform3D();
+				viewTransform.set( v.getModel().getMatrix( null ) );
+				transforms.put( k, viewTransform );
+
+			} );
+		}
+		else // Simple global opt
+		{
+			final HashMap< ViewId, mpicbg.models.Tile< TranslationModel3D > > globalOptResults = GlobalOpt.compute( 
+					new TranslationModel3D(),
+					new ImageCorrelationPointMatchCreator( results ),
+					new SimpleIterativeConvergenceStrategy( Double.MAX_VALUE,
+							params.relativeThreshold, params.absoluteThreshold ),
+					fixed,
+					subset.getGroups() );
+
+			globalOptResults.forEach( (k, v) -> System.out.println( k + ": " + v ) );
+			globalOptResults.forEach( (k, v) -> {
+
+				AffineTransform3D viewTransform = new AffineTransform3D();
+				viewTransform.set( v.getModel().getMatrix( null ) );
+				transforms.put( k, viewTransform );
+
+			} );
+		}
+
+		return transforms;
+	}
+
+	/*
+	 * preconcatenate the result of the global optimization to the view registrations (subsets may finish at the same time)
+	 */
+	private static void applyStitchingTransforms( final SpimData2 data, final Map< ViewId, AffineTransform3D > transforms )
+	{
+		synchronized ( data.getViewRegistrations() )
+		{
+			transforms.forEach( (k, v) -> {
+
+				final ViewRegistration vr = data.getViewRegistrations().getViewRegistration( k );
+
+				final ViewTransform vt = new ViewTransformAffine( "Stitching Transform", v );
+				vr.preconcatenateTransform( vt );
+				vr.updateModel();
+
+			} );
+		}
 	}
 
 	public static <V extends ViewId> Collection<? extends Collection<V> > askForFixedViews(ArrayList<? extends Subset< V > > subsets)
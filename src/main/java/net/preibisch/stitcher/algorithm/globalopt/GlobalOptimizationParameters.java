@@ -33,17 +33,42 @@ public class GlobalOptimizationParameters
 
 	public static int defaultSimple = 3;
 
+	// drop several wrong links per round and re-solve from the previous solution (translation only, see SparseTranslationSolver);
+	// for ITERATIVE and TWO_ROUND this replaces the model-based global optimization with the translation-only solver
+	public static boolean defaultBatchLinkRemoval = false;
+
+	// the translation-only solver does not drop links while the maximal error is below this (in px, subpixel errors are not worth it)
+	public static double defaultMinMaxError = 0.75;
+
+	// remove links in short cycles whose shifts do not add up to zero before optimizing (in px, 0 = off, see CycleConsistencyFilter)
+	public static double defaultCycleConsistencyThreshold = 0;
+
+	/**
+	 * All types except SIMPLE drop wrong links using the relative and absolute error thresholds. With batch link removal,
+	 * several links are dropped per round and the translation-only {@link SparseTranslationSolver} is used for every type
+	 * (ITERATIVE and TWO_ROUND then no longer use the model-based GlobalOptIterative / GlobalOptTwoRound); without it, one
+	 * link is dropped per round.
+	 */
 	public enum GlobalOptType
 	{
+		/** one round, no links are dropped */
 		SIMPLE,
+		/** drop wrong links iteratively */
 		ITERATIVE,
-		TWO_ROUND
+		/** drop wrong links iteratively, then align unconnected tiles using the metadata */
+		TWO_ROUND,
+		/** translation-only direct least-squares, drops wrong links iteratively */
+		SPARSE_TRANSLATION,
+		/** like SPARSE_TRANSLATION, solved with multigrid */
+		HIERARCHICAL
 	}
 
 	private final static String[] methodDescriptions = {
 			"Simple One-Round",
 			"One-Round with iterative dropping of bad links",
-			"Two-Round using Metadata to align unconnected Tiles"
+			"Two-Round using Metadata to align unconnected Tiles",
+			"Translation-only direct least-squares with iterative dropping of bad links (fast)",
+			"Translation-only hierarchical least-squares with iterative dropping of bad links (multigrid, for very large grids)"
 	};
 
 	private final static String[] methodDescriptionsSimple = {
@@ -59,6 +84,9 @@ public class GlobalOptimizationParameters
 	public double relativeThreshold;
 	public double absoluteThreshold;
 	public boolean showExpertGrouping;
+	public boolean batchLinkRemoval;
+	public double minMaxError;
+	public double cycleConsistencyThreshold;
 
 	public GlobalOptimizationParameters()
 	{
@@ -71,6 +99,9 @@ public class GlobalOptimizationParameters
 		this.absoluteThreshold = absoluteThreshold;
 		this.method = method;
 		this.showExpertGrouping = showExpertGrouping;
+		this.batchLinkRemoval = defaultBatchLinkRemoval;
+		this.minMaxError = defaultMinMaxError;
+		this.cycleConsistencyThreshold = defaultCycleConsistencyThreshold;
 	}
 
 	public static GlobalOptimizationParameters askUserForSimpleParameters()
@@ -108,6 +139,9 @@ public class GlobalOptimizationParameters
 		gd.addChoice( "Global_optimization_strategy", methodDescriptions, methodDescriptions[ defaultGlobalOpt ] );
 		gd.addNumericField( "relative error threshold", 2.5, 3 );
 		gd.addNumericField( "absolute error threshold", 3.5, 3 );
+		gd.addNumericField( "cycle_consistency_threshold_(px,_0_=_off)", defaultCycleConsistencyThreshold, 3 );
+		gd.addNumericField( "do_not_drop_links_below_max_error_(px,_translation-only_solver)", defaultMinMaxError, 3 );
+		gd.addCheckbox( "fast_link_removal (drop_several_links_per_round,_always_uses_translation-only_solver)", defaultBatchLinkRemoval );
 		if (askForGrouping )
 			gd.addCheckbox( "show_expert_grouping_options", defaultExpertGrouping );
 		gd.showDialog();
@@ -117,7 +151,10 @@ public class GlobalOptimizationParameters
 
 		final double relTh = gd.getNextNumber();
 		final double absTh = gd.getNextNumber();
+		final double cycleTh = defaultCycleConsistencyThreshold = gd.getNextNumber();
+		final double minMaxError = defaultMinMaxError = gd.getNextNumber();
 		final int methodIdx = defaultGlobalOpt = gd.getNextChoiceIndex();
+		final boolean batchLinkRemoval = defaultBatchLinkRemoval = gd.getNextBoolean();
 		final boolean expertGrouping = askForGrouping ? gd.getNextBoolean() : false;
 
 		final GlobalOptType method;
@@ -125,9 +162,17 @@ public class GlobalOptimizationParameters
 			method = GlobalOptType.SIMPLE;
 		else if (methodIdx == 1)
 			method = GlobalOptType.ITERATIVE;
-		else
+		else if (methodIdx == 2)
 			method = GlobalOptType.TWO_ROUND;
+		else if (methodIdx == 3)
+			method = GlobalOptType.SPARSE_TRANSLATION;
+		else
+			method = GlobalOptType.HIERARCHICAL;
 
-		return new GlobalOptimizationParameters(relTh, absTh, method, expertGrouping);
+		final GlobalOptimizationParameters params = new GlobalOptimizationParameters(relTh, absTh, method, expertGrouping);
+		params.batchLinkRemoval = batchLinkRemoval;
+		params.minMaxError = minMaxError;
+		params.cycleConsistencyThreshold = cycleTh;
+		return params;
 	}
 }
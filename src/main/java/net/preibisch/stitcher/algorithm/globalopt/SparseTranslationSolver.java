@@ -0,0 +1,1082 @@
+/*-
+ * #%L
+ * Multiview stitching of large datasets.
+ * %%
+ * Copyright (C) 2016 - 2017 Big Stitcher developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package net.preibisch.stitcher.algorithm.globalopt;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+
+import mpicbg.spim.data.sequence.ViewId;
+import mpicbg.spim.io.IOFunctions;
+import net.imglib2.realtransform.AffineTransform3D;
+import net.imglib2.util.Pair;
+import net.preibisch.mvrecon.fiji.spimdata.stitchingresults.PairwiseStitchingResult;
+import net.preibisch.mvrecon.process.interestpointregistration.pairwise.constellation.grouping.Group;
+
+/**
+ * Translation-only global optimization as a linear least-squares problem on the link graph.
+ * 
+ * Every group gets a translation x, every pairwise result (A, B) with shift t adds the term |x_B - x_A - t|^2.
+ * Setting the gradient to zero gives L x = b with the graph Laplacian L; fixed groups stay where they are and are
+ * removed from the system, which makes L positive definite. It is solved for each dimension with conjugate
+ * gradients (Jacobi preconditioner) on a sparse matrix in compressed row storage, so the cost grows with the
+ * number of links instead of iterating tile relaxation until convergence.
+ * 
+ * Optionally, wrong links are dropped iteratively: every round drops the links whose error is too large (all of them, or
+ * only the worst one like the iterative global optimization; as long as the graph stays connected) and re-solves starting
+ * from the previous solution. Connected sets of groups without
+ * a fixed group can be placed relative to each other using pairs that overlap according to the metadata (like the
+ * second round of the two-round global optimization); otherwise their first group is kept in place.
+ * 
+ * For very large tile graphs, the system can be solved hierarchically (see {@link Multigrid}): neighbouring tiles are merged
+ * into super-tiles, the coarse problem initializes the finer one, and the refinement is preconditioned by a multigrid V-cycle,
+ * so the number of iterations hardly grows with the size of the grid.
+ * 
+ * Only the translational part of the pairwise transforms is used.
+ */
+public class SparseTranslationSolver
+{
+	public static double defaultTolerance = 1e-8;
+
+	private SparseTranslationSolver() {}
+
+	/**
+	 * @param results - the pairwise results (the pairs consist of groups in groups)
+	 * @param fixedViews - groups containing one of those views are not moved
+	 * @param groups - the groups to align
+	 * @return the translation of every view (as an affine to preconcatenate to its registration)
+	 */
+	public static HashMap< ViewId, AffineTransform3D > compute(
+			final Collection< PairwiseStitchingResult< ViewId > > results,
+			final Collection< ViewId > fixedViews,
+			final Collection< Group< ViewId > > groups )
+	{
+		return compute( results, fixedViews, groups, -1, -1, null, null );
+	}
+
+	/**
+	 * @param results - the pairwise results (the pairs consist of groups in groups)
+	 * @param fixedViews - groups containing one of those views are not moved
+	 * @param groups - the groups to align
+	 * @param relativeThreshold - links are dropped while the maximal error is larger than relativeThreshold * average error ...
+	 * @param absoluteThreshold - ... or the average error is larger than absoluteThreshold (negative = do not drop links)
+	 * @param removedPairs - the pairs of dropped links are added here (may be null)
+	 * @param metadataPairs - pairs of groups that overlap according to the metadata, used to align connected sets of groups without a fixed group (may be null)
+	 * @return the translation of every view (as an affine to preconcatenate to its registration)
+	 */
+	public static HashMap< ViewId, AffineTransform3D > compute(
+			final Collection< PairwiseStitchingResult< ViewId > > results,
+			final Collection< ViewId > fixedViews,
+			final Collection< Group< ViewId > > groups,
+			final double relativeThreshold,
+			final double absoluteThreshold,
+			final Collection< Pair< Group< ViewId >, Group< ViewId > > > removedPairs,
+			final Collection< ? extends Pair< Group< ViewId >, Group< ViewId > > > metadataPairs )
+	{
+		return compute(
+				results, fixedViews, groups,
+				relativeThreshold, absoluteThreshold, GlobalOptimizationParameters.defaultMinMaxError, true,
+				removedPairs, metadataPairs, false );
+	}
+
+	/**
+	 * @param results - the pairwise results (the pairs consist of groups in groups)
+	 * @param fixedViews - groups containing one of those views are not moved
+	 * @param groups - the groups to align
+	 * @param relativeThreshold - links are dropped while the maximal error is larger than relativeThreshold * average error ...
+	 * @param absoluteThreshold - ... or the average error is larger than absoluteThreshold (negative = do not drop links)
+	 * @param minMaxError - ... but not while the maximal error is below minMaxError (in pixels)
+	 * @param severalLinksPerRound - drop all links above the thresholds every round, otherwise only the worst one
+	 * @param removedPairs - the pairs of dropped links are added here (may be null)
+	 * @param metadataPairs - pairs of groups that overlap according to the metadata, used to align connected sets of groups without a fixed group (may be null)
+	 * @param hierarchical - solve with multigrid instead of Jacobi-preconditioned conjugate gradients
+	 * @return the translation of every view (as an affine to preconcatenate to its registration)
+	 */
+	public static HashMap< ViewId, AffineTransform3D > compute(
+			final Collection< PairwiseStitchingResult< ViewId > > results,
+			final Collection< ViewId > fixedViews,
+			final Collection< Group< ViewId > > groups,
+			final double relativeThreshold,
+			final double absoluteThreshold,
+			final double minMaxError,
+			final boolean severalLinksPerRound,
+			final Collection< Pair< Group< ViewId >, Group< ViewId > > > removedPairs,
+			final Collection< ? extends Pair< Group< ViewId >, Group< ViewId > > > metadataPairs,
+			final boolean hierarchical )
+	{
+		final List< Group< ViewId > > nodes = new ArrayList<>( groups );
+		final HashMap< Group< ViewId >, Integer > nodeIndex = new HashMap<>();
+		for ( int i = 0; i < nodes.size(); ++i )
+			nodeIndex.put( nodes.get( i ), i );
+
+		final int n = nodes.size();
+
+		// links as primitive arrays
+		final LinkGraph graph = new LinkGraph( n, results.size() );
+		graph.hierarchical = hierarchical;
+		final ArrayList< PairwiseStitchingResult< ViewId > > linkResults = new ArrayList<>();
+
+		for ( final PairwiseStitchingResult< ViewId > psr : results )
+		{
+			final Integer a = nodeIndex.get( psr.pair().getA() );
+			final Integer b = nodeIndex.get( psr.pair().getB() );
+
+			if ( a == null || b == null || a.intValue() == b.intValue() )
+				continue;
+
+			final double[] m = psr.getTransform().getRowPackedCopy();
+			final int cols = m.length / 3;
+
+			final double[] shift = new double[ 3 ];
+			for ( int d = 0; d < 3; ++d )
+				shift[ d ] = d < cols - 1 ? m[ d * cols + cols - 1 ] : 0;
+
+			graph.addLink( a, b, shift );
+			linkResults.add( psr );
+		}
+
+		// the fixed groups
+		final boolean[] userFixed = new boolean[ n ];
+		for ( int i = 0; i < n; ++i )
+			for ( final ViewId v : nodes.get( i ).getViews() )
+				if ( fixedViews.contains( v ) )
+					userFixed[ i ] = true;
+
+		// and the first group of every connected set without one
+		final boolean[] fixed = userFixed.clone();
+		final int[] firstFixed = graph.fixFirstOfUnfixedComponents( fixed );
+		if ( metadataPairs == null )
+			for ( final int i : firstFixed )
+				IOFunctions.println( "No fixed view in the connected groups of " + nodes.get( i ) + ", keeping it where it is." );
+
+		final double[][] x = new double[ 3 ][ n ];
+		int iterations = graph.solve( fixed, x );
+		int rounds = 1;
+
+		// drop wrong links, warm-started from the previous solution
+		if ( absoluteThreshold >= 0 )
+		{
+			int numRemoved = 0;
+
+			while ( true )
+			{
+				final double[] errors = graph.errors( x );
+				final double avg = graph.average( errors );
+				final double max = graph.max( errors );
+
+				if ( !( ( avg * relativeThreshold < max && max > minMaxError ) || avg > absoluteThreshold ) )
+					break;
+
+				final int removed = graph.removeWorstLinks(
+						errors, Math.max( avg * relativeThreshold, minMaxError ), avg > absoluteThreshold ? absoluteThreshold : Double.MAX_VALUE,
+						severalLinksPerRound ? Integer.MAX_VALUE : 1 );
+
+				if ( removed == 0 )
+				{
+					IOFunctions.println( "Cannot drop more links without disconnecting views (avg error=" + avg + " px, max error=" + max + " px)." );
+					break;
+				}
+
+				numRemoved += removed;
+				iterations += graph.solve( fixed, x );
+				++rounds;
+			}
+
+			for ( int l = 0; l < graph.numLinks; ++l )
+				if ( !graph.active[ l ] )
+				{
+					IOFunctions.println( "Removed link " + linkResults.get( l ).pair().getA() + " <> " + linkResults.get( l ).pair().getB() );
+					if ( removedPairs != null )
+						removedPairs.add( linkResults.get( l ).pair() );
+				}
+
+			IOFunctions.println( new Date( System.currentTimeMillis() ) + ": Dropped " + numRemoved + " of " + graph.numLinks + " links in " + rounds + " rounds." );
+		}
+
+		// place the connected sets without a fixed group using the metadata
+		if ( metadataPairs != null && firstFixed.length > 0 )
+			alignComponents( graph, userFixed, nodes, nodeIndex, metadataPairs, x );
+
+		IOFunctions.println( new Date( System.currentTimeMillis() ) + ": Solved translations of " + n + " groups with " + graph.numActiveLinks()
+				+ " links in " + iterations + ( graph.hierarchical ? " multigrid-preconditioned" : "" ) + " conjugate gradient iterations." );
+
+		final double[] errors = graph.errors( x );
+		if ( graph.numActiveLinks() > 0 )
+			IOFunctions.println( "Link errors: avg=" + graph.average( errors ) + " px, max=" + graph.max( errors ) + " px." );
+
+		final HashMap< ViewId, AffineTransform3D > transforms = new HashMap<>();
+		for ( int i = 0; i < n; ++i )
+		{
+			final AffineTransform3D t = new AffineTransform3D();
+			t.setTranslation( x[ 0 ][ i ], x[ 1 ][ i ], x[ 2 ][ i ] );
+
+			for ( final ViewId v : nodes.get( i ).getViews() )
+				transforms.put( v, t );
+		}
+
+		return transforms;
+	}
+
+	/*
+	 * every connected set of groups is moved as a whole so that groups that overlap according to the metadata
+	 * keep their relative position (least-squares), the sets containing a fixed group do not move
+	 */
+	private static void alignComponents(
+			final LinkGraph graph,
+			final boolean[] userFixed,
+			final List< Group< ViewId > > nodes,
+			final HashMap< Group< ViewId >, Integer > nodeIndex,
+			final Collection< ? extends Pair< Group< ViewId >, Group< ViewId > > > metadataPairs,
+			final double[][] x )
+	{
+		final int[] component = graph.components();
+		final int n = graph.n;
+
+		// components are numbered by their first node
+		final LinkGraph componentGraph = new LinkGraph( n, metadataPairs.size() );
+		for ( final Pair< Group< ViewId >, Group< ViewId > > pair : metadataPairs )
+		{
+			final Integer a = nodeIndex.get( pair.getA() );
+			final Integer b = nodeIndex.get( pair.getB() );
+
+			if ( a == null || b == null || component[ a ] == component[ b ] )
+				continue;
+
+			// y_B - y_A should be x_a - x_b
+			final double[] shift = new double[ 3 ];
+			for ( int d = 0; d < 3; ++d )
+				shift[ d ] = x[ d ][ a ] - x[ d ][ b ];
+
+			componentGraph.addLink( component[ a ], component[ b ], shift );
+		}
+
+		final boolean[] fixed = new boolean[ n ];
+		for ( int i = 0; i < n; ++i )
+			if ( userFixed[ i ] )
+				fixed[ component[ i ] ] = true;
+
+		// nodes that do not represent a component are fixed (they have no links)
+		for ( int i = 0; i < n; ++i )
+			if ( component[ i ] != i )
+				fixed[ i ] = true;
+
+		for ( final int c : componentGraph.fixFirstOfUnfixedComponents( fixed ) )
+			IOFunctions.println( "No fixed view in the groups that overlap (metadata) with " + nodes.get( c ) + ", keeping it where it is." );
+
+		final double[][] y = new double[ 3 ][ n ];
+		componentGraph.solve( fixed, y );
+
+		for ( int d = 0; d < 3; ++d )
+			for ( int i = 0; i < n; ++i )
+				x[ d ][ i ] += y[ d ][ component[ i ] ];
+
+		IOFunctions.println( new Date( System.currentTimeMillis() ) + ": Aligned " + componentGraph.numLinks + " metadata links between unconnected groups." );
+	}
+
+	/**
+	 * links between nodes (with a shift), links can be deactivated
+	 */
+	static class LinkGraph
+	{
+		final int n;
+		int[] linkA, linkB;
+		double[][] linkShift;
+		boolean[] active;
+		int numLinks = 0;
+		boolean hierarchical = false;
+
+		LinkGraph( final int n, final int capacity )
+		{
+			this.n = n;
+			this.linkA = new int[ Math.max( 1, capacity ) ];
+			this.linkB = new int[ linkA.length ];
+			this.linkShift = new double[ 3 ][ linkA.length ];
+			this.active = new boolean[ linkA.length ];
+		}
+
+		void addLink( final int a, final int b, final double[] shift )
+		{
+			if ( numLinks == linkA.length )
+			{
+				linkA = Arrays.copyOf( linkA, 2 * numLinks );
+				linkB = Arrays.copyOf( linkB, 2 * numLinks );
+				active = Arrays.copyOf( active, 2 * numLinks );
+				for ( int d = 0; d < 3; ++d )
+					linkShift[ d ] = Arrays.copyOf( linkShift[ d ], 2 * numLinks );
+			}
+
+			linkA[ numLinks ] = a;
+			linkB[ numLinks ] = b;
+			for ( int d = 0; d < 3; ++d )
+				linkShift[ d ][ numLinks ] = shift[ d ];
+			active[ numLinks ] = true;
+			++numLinks;
+		}
+
+		int numActiveLinks()
+		{
+			int count = 0;
+			for ( int l = 0; l < numLinks; ++l )
+				if ( active[ l ] )
+					++count;
+			return count;
+		}
+
+		/*
+		 * union-find over the active links, returns the first node of the component for every node
+		 */
+		int[] components()
+		{
+			final int[] parent = new int[ n ];
+			for ( int i = 0; i < n; ++i )
+				parent[ i ] = i;
+
+			for ( int l = 0; l < numLinks; ++l )
+			{
+				if ( !active[ l ] )
+					continue;
+
+				final int ra = find( parent, linkA[ l ] );
+				final int rb = find( parent, linkB[ l ] );
+				if ( ra != rb )
+					parent[ Math.max( ra, rb ) ] = Math.min( ra, rb );
+			}
+
+			for ( int i = 0; i < n; ++i )
+				parent[ i ] = find( parent, i );
+
+			return parent;
+		}
+
+		/*
+		 * fix the first node of every component without a fixed node, returns those nodes
+		 */
+		int[] fixFirstOfUnfixedComponents( final boolean[] fixed )
+		{
+			final int[] component = components();
+			final boolean[] componentFixed = new boolean[ n ];
+			for ( int i = 0; i < n; ++i )
+				if ( fixed[ i ] )
+					componentFixed[ component[ i ] ] = true;
+
+			final ArrayList< Integer > newlyFixed = new ArrayList<>();
+			for ( int i = 0; i < n; ++i )
+				if ( !componentFixed[ component[ i ] ] )
+				{
+					componentFixed[ component[ i ] ] = true;
+					fixed[ i ] = true;
+					newlyFixed.add( i );
+				}
+
+			return newlyFixed.stream().mapToInt( Integer::intValue ).toArray();
+		}
+
+		/*
+		 * solve for the nodes that are not fixed (fixed nodes keep their value in x), x is the initial guess
+		 * @return the number of conjugate gradient iterations
+		 */
+		int solve( final boolean[] fixed, final double[][] x )
+		{
+			final int[] unknown = new int[ n ];
+			int numUnknowns = 0;
+			for ( int i = 0; i < n; ++i )
+				unknown[ i ] = fixed[ i ] ? -1 : numUnknowns++;
+
+			if ( numUnknowns == 0 )
+				return 0;
+
+			final CSRMatrix laplacian = CSRMatrix.laplacian( numUnknowns, unknown, linkA, linkB, active, numLinks );
+			final Multigrid multigrid = hierarchical ? new Multigrid( laplacian ) : null;
+
+			int iterations = 0;
+			for ( int d = 0; d < 3; ++d )
+			{
+				final double[] rhs = new double[ numUnknowns ];
+				final double[] xd = new double[ numUnknowns ];
+
+				for ( int l = 0; l < numLinks; ++l )
+				{
+					if ( !active[ l ] )
+						continue;
+
+					final int a = linkA[ l ], b = linkB[ l ];
+
+					if ( unknown[ b ] >= 0 )
+						rhs[ unknown[ b ] ] += linkShift[ d ][ l ] + ( unknown[ a ] < 0 ? x[ d ][ a ] : 0 );
+					if ( unknown[ a ] >= 0 )
+						rhs[ unknown[ a ] ] += -linkShift[ d ][ l ] + ( unknown[ b ] < 0 ? x[ d ][ b ] : 0 );
+				}
+
+				for ( int i = 0; i < n; ++i )
+					if ( unknown[ i ] >= 0 )
+						xd[ unknown[ i ] ] = x[ d ][ i ];
+
+				if ( multigrid != null )
+					iterations += multigrid.solve( rhs, xd, defaultTolerance, Math.max( 1000, 2 * numUnknowns ) );
+				else
+					iterations += laplacian.solvePCG( rhs, xd, defaultTolerance, Math.max( 1000, 2 * numUnknowns ) );
+
+				for ( int i = 0; i < n; ++i )
+					if ( unknown[ i ] >= 0 )
+						x[ d ][ i ] = xd[ unknown[ i ] ];
+			}
+
+			return iterations;
+		}
+
+		/*
+		 * error of every link for the solution x (-1 for inactive links)
+		 */
+		double[] errors( final double[][] x )
+		{
+			final double[] errors = new double[ numLinks ];
+
+			for ( int l = 0; l < numLinks; ++l )
+			{
+				if ( !active[ l ] )
+				{
+					errors[ l ] = -1;
+					continue;
+				}
+
+				double e = 0;
+				for ( int d = 0; d < 3; ++d )
+				{
+					final double r = x[ d ][ linkB[ l ] ] - x[ d ][ linkA[ l ] ] - linkShift[ d ][ l ];
+					e += r * r;
+				}
+				errors[ l ] = Math.sqrt( e );
+			}
+
+			return errors;
+		}
+
+		double average( final double[] errors )
+		{
+			double sum = 0;
+			int count = 0;
+			for ( int l = 0; l < numLinks; ++l )
+				if ( active[ l ] )
+				{
+					sum += errors[ l ];
+					++count;
+				}
+
+			return count == 0 ? 0 : sum / count;
+		}
+
+		double max( final double[] errors )
+		{
+			double max = 0;
+			for ( int l = 0; l < numLinks; ++l )
+				if ( active[ l ] )
+					max = Math.max( max, errors[ l ] );
+
+			return max;
+		}
+
+		/*
+		 * deactivate the links with an error above one of the thresholds, worst first, unless that would disconnect their nodes;
+		 * a link next to a worse one is kept for the next round (its error is often only caused by the worse link)
+		 * @param maxRemoved - deactivate at most that many links
+		 * @return the number of links that were deactivated
+		 */
+		int removeWorstLinks( final double[] errors, final double threshold1, final double threshold2, final int maxRemoved )
+		{
+			final ArrayList< Integer > candidates = new ArrayList<>();
+			for ( int l = 0; l < numLinks; ++l )
+				if ( active[ l ] && ( errors[ l ] > threshold1 || errors[ l ] > threshold2 ) )
+					candidates.add( l );
+
+			candidates.sort( ( l1, l2 ) -> Double.compare( errors[ l2 ], errors[ l1 ] ) );
+
+			// adjacency of the nodes (link indices)
+			final int[] start = new int[ n + 1 ];
+			for ( int l = 0; l < numLinks; ++l )
+			{
+				++start[ linkA[ l ] + 1 ];
+				++start[ linkB[ l ] + 1 ];
+			}
+			for ( int i = 0; i < n; ++i )
+				start[ i + 1 ] += start[ i ];
+
+			final int[] adjacent = new int[ start[ n ] ];
+			final int[] next = Arrays.copyOf( start, n );
+			for ( int l = 0; l < numLinks; ++l )
+			{
+				adjacent[ next[ linkA[ l ] ]++ ] = l;
+				adjacent[ next[ linkB[ l ] ]++ ] = l;
+			}
+
+			int removed = 0;
+			final int[] visited = new int[ n ];
+			final int[] queue = new int[ n ];
+			final boolean[] nextToWorse = new boolean[ n ];
+			int visit = 0;
+
+			for ( final int l : candidates )
+			{
+				final boolean skip = nextToWorse[ linkA[ l ] ] || nextToWorse[ linkB[ l ] ];
+				nextToWorse[ linkA[ l ] ] = nextToWorse[ linkB[ l ] ] = true;
+
+				if ( skip )
+					continue;
+
+				active[ l ] = false;
+
+				// is linkB still reachable from linkA?
+				++visit;
+				int head = 0, tail = 0;
+				queue[ tail++ ] = linkA[ l ];
+				visited[ linkA[ l ] ] = visit;
+				boolean connected = false;
+
+				while ( head < tail && !connected )
+				{
+					final int node = queue[ head++ ];
+					for ( int k = start[ node ]; k < start[ node + 1 ]; ++k )
+					{
+						final int link = adjacent[ k ];
+						if ( !active[ link ] )
+							continue;
+
+						final int other = linkA[ link ] == node ? linkB[ link ] : linkA[ link ];
+						if ( visited[ other ] != visit )
+						{
+							if ( other == linkB[ l ] )
+							{
+								connected = true;
+								break;
+							}
+
+							visited[ other ] = visit;
+							queue[ tail++ ] = other;
+						}
+					}
+				}
+
+				if ( connected )
+				{
+					if ( ++removed == maxRemoved )
+						break;
+				}
+				else
+					active[ l ] = true;
+			}
+
+			return removed;
+		}
+
+		private static int find( final int[] parent, int i )
+		{
+			while ( parent[ i ] != i )
+			{
+				parent[ i ] = parent[ parent[ i ] ];
+				i = parent[ i ];
+			}
+			return i;
+		}
+	}
+
+	/**
+	 * symmetric sparse matrix in compressed row storage
+	 */
+	static class CSRMatrix
+	{
+		final int n;
+		final int[] rowStart;
+		final int[] columns;
+		final double[] values;
+		final double[] diagonal;
+
+		CSRMatrix( final int n, final int[] rowStart, final int[] columns, final double[] values )
+		{
+			this.n = n;
+			this.rowStart = rowStart;
+			this.columns = columns;
+			this.values = values;
+
+			this.diagonal = new double[ n ];
+			for ( int i = 0; i < n; ++i )
+				for ( int k = rowStart[ i ]; k < rowStart[ i + 1 ]; ++k )
+					if ( columns[ k ] == i )
+						diagonal[ i ] += values[ k ];
+		}
+
+		/*
+		 * Laplacian of the active links restricted to the unknowns (links to fixed nodes only add to the diagonal)
+		 */
+		static CSRMatrix laplacian( final int numUnknowns, final int[] unknown, final int[] linkA, final int[] linkB, final boolean[] active, final int numLinks )
+		{
+			// one diagonal entry per row plus one entry per link end that is unknown
+			final int[] rowStart = new int[ numUnknowns + 1 ];
+			for ( int i = 0; i < numUnknowns; ++i )
+				rowStart[ i + 1 ] = 1;
+
+			for ( int l = 0; l < numLinks; ++l )
+			{
+				final int a = unknown[ linkA[ l ] ], b = unknown[ linkB[ l ] ];
+				if ( active[ l ] && a >= 0 && b >= 0 )
+				{
+					++rowStart[ a + 1 ];
+					++rowStart[ b + 1 ];
+				}
+			}
+
+			for ( int i = 0; i < numUnknowns; ++i )
+				rowStart[ i + 1 ] += rowStart[ i ];
+
+			final int[] columns = new int[ rowStart[ numUnknowns ] ];
+			final double[] values = new double[ rowStart[ numUnknowns ] ];
+			final int[] next = new int[ numUnknowns ];
+
+			for ( int i = 0; i < numUnknowns; ++i )
+			{
+				columns[ rowStart[ i ] ] = i;
+				next[ i ] = rowStart[ i ] + 1;
+			}
+
+			for ( int l = 0; l < numLinks; ++l )
+			{
+				if ( !active[ l ] )
+					continue;
+
+				final int a = unknown[ linkA[ l ] ], b = unknown[ linkB[ l ] ];
+
+				if ( a >= 0 )
+					values[ rowStart[ a ] ] += 1;
+				if ( b >= 0 )
+					values[ rowStart[ b ] ] += 1;
+
+				if ( a >= 0 && b >= 0 )
+				{
+					columns[ next[ a ] ] = b;
+					values[ next[ a ]++ ] = -1;
+					columns[ next[ b ] ] = a;
+					values[ next[ b ]++ ] = -1;
+				}
+			}
+
+			return new CSRMatrix( numUnknowns, rowStart, columns, values );
+		}
+		void multiply( final double[] v, final double[] result )
+		{
+			for ( int i = 0; i < n; ++i )
+			{
+				double sum = 0;
+				for ( int k = rowStart[ i ]; k < rowStart[ i + 1 ]; ++k )
+					sum += values[ k ] * v[ columns[ k ] ];
+				result[ i ] = sum;
+			}
+		}
+
+		/**
+		 * conjugate gradients with Jacobi preconditioner, x is used as the initial guess
+		 * @return the number of iterations
+		 */
+		int solvePCG( final double[] b, final double[] x, final double tolerance, final int maxIterations )
+		{
+			return solvePCG( b, x, tolerance, maxIterations, ( r, z ) -> {
+				for ( int i = 0; i < n; ++i )
+					z[ i ] = r[ i ] / diagonal[ i ];
+			} );
+		}
+
+		/**
+		 * preconditioned conjugate gradients (the preconditioner has to be symmetric), x is used as the initial guess
+		 * @return the number of iterations
+		 */
+		int solvePCG( final double[] b, final double[] x, final double tolerance, final int maxIterations, final Preconditioner preconditioner )
+		{
+			final double[] r = new double[ n ];
+			final double[] z = new double[ n ];
+			final double[] p = new double[ n ];
+			final double[] q = new double[ n ];
+
+			multiply( x, q );
+			double normB = 0;
+			for ( int i = 0; i < n; ++i )
+			{
+				r[ i ] = b[ i ] - q[ i ];
+				normB += b[ i ] * b[ i ];
+			}
+
+			final double threshold = tolerance * tolerance * Math.max( normB, 1e-30 );
+
+			preconditioner.apply( r, z );
+
+			double rz = 0;
+			for ( int i = 0; i < n; ++i )
+			{
+				p[ i ] = z[ i ];
+				rz += r[ i ] * z[ i ];
+			}
+
+			int it = 0;
+			for ( ; it < maxIterations; ++it )
+			{
+				double rr = 0;
+				for ( int i = 0; i < n; ++i )
+					rr += r[ i ] * r[ i ];
+
+				if ( rr <= threshold )
+					break;
+
+				multiply( p, q );
+
+				double pq = 0;
+				for ( int i = 0; i < n; ++i )
+					pq += p[ i ] * q[ i ];
+
+				final double alpha = rz / pq;
+
+				for ( int i = 0; i < n; ++i )
+				{
+					x[ i ] += alpha * p[ i ];
+					r[ i ] -= alpha * q[ i ];
+				}
+
+				preconditioner.apply( r, z );
+
+				double rzNew = 0;
+				for ( int i = 0; i < n; ++i )
+					rzNew += r[ i ] * z[ i ];
+
+				final double beta = rzNew / rz;
+				rz = rzNew;
+
+				for ( int i = 0; i < n; ++i )
+					p[ i ] = z[ i ] + beta * p[ i ];
+			}
+
+			return it;
+		}
+
+		/*
+		 * pair every row with its strongest unpaired neighbour (rows without one join the aggregate of their strongest
+		 * neighbour or stay alone), returns the aggregate of every row
+		 */
+		int[] aggregate()
+		{
+			final int[] aggregate = new int[ n ];
+			Arrays.fill( aggregate, -1 );
+			int numAggregates = 0;
+
+			for ( int i = 0; i < n; ++i )
+			{
+				if ( aggregate[ i ] >= 0 )
+					continue;
+
+				int bestFree = -1, bestTaken = -1;
+				double strongestFree = 0, strongestTaken = 0;
+
+				for ( int k = rowStart[ i ]; k < rowStart[ i + 1 ]; ++k )
+				{
+					final int j = columns[ k ];
+					final double strength = -values[ k ];
+
+					if ( j == i || strength <= 0 )
+						continue;
+
+					if ( aggregate[ j ] < 0 && strength > strongestFree )
+					{
+						strongestFree = strength;
+						bestFree = j;
+					}
+					else if ( aggregate[ j ] >= 0 && strength > strongestTaken )
+					{
+						strongestTaken = strength;
+						bestTaken = j;
+					}
+				}
+
+				if ( bestFree >= 0 )
+					aggregate[ i ] = aggregate[ bestFree ] = numAggregates++;
+				else if ( bestTaken >= 0 )
+					aggregate[ i ] = aggregate[ bestTaken ];
+				else
+					aggregate[ i ] = numAggregates++;
+			}
+
+			return aggregate;
+		}
+
+		/*
+		 * Galerkin product P^T A P for the piecewise constant prolongation P of the aggregates
+		 */
+		CSRMatrix coarsen( final int[] aggregate, final int numAggregates )
+		{
+			// rows of every aggregate
+			final int[] memberStart = new int[ numAggregates + 1 ];
+			for ( int i = 0; i < n; ++i )
+				++memberStart[ aggregate[ i ] + 1 ];
+			for ( int c = 0; c < numAggregates; ++c )
+				memberStart[ c + 1 ] += memberStart[ c ];
+
+			final int[] members = new int[ n ];
+			final int[] next = Arrays.copyOf( memberStart, numAggregates );
+			for ( int i = 0; i < n; ++i )
+				members[ next[ aggregate[ i ] ]++ ] = i;
+
+			// sum up the entries of the member rows per coarse column
+			final int[] position = new int[ numAggregates ];
+			Arrays.fill( position, -1 );
+
+			final int[] rowStartC = new int[ numAggregates + 1 ];
+			int[] columnsC = new int[ rowStart[ n ] ];
+			double[] valuesC = new double[ rowStart[ n ] ];
+			int nnz = 0;
+
+			for ( int c = 0; c < numAggregates; ++c )
+			{
+				rowStartC[ c ] = nnz;
+
+				for ( int m = memberStart[ c ]; m < memberStart[ c + 1 ]; ++m )
+				{
+					final int i = members[ m ];
+					for ( int k = rowStart[ i ]; k < rowStart[ i + 1 ]; ++k )
+					{
+						final int cj = aggregate[ columns[ k ] ];
+						if ( position[ cj ] < rowStartC[ c ] )
+						{
+							position[ cj ] = nnz;
+							columnsC[ nnz ] = cj;
+							valuesC[ nnz++ ] = values[ k ];
+						}
+						else
+						{
+							valuesC[ position[ cj ] ] += values[ k ];
+						}
+					}
+				}
+			}
+
+			rowStartC[ numAggregates ] = nnz;
+
+			return new CSRMatrix( numAggregates, rowStartC, Arrays.copyOf( columnsC, nnz ), Arrays.copyOf( valuesC, nnz ) );
+		}
+	}
+
+	static interface Preconditioner
+	{
+		public void apply( final double[] r, final double[] z );
+	}
+
+	/**
+	 * hierarchy of coarser and coarser versions of the system (neighbouring tiles merged into super-tiles):
+	 * the coarse solution initializes the next finer level, which is then refined with conjugate gradients
+	 * preconditioned by a V-cycle (Galerkin coarse levels), so the number of iterations grows only slowly with the size of the tile graph
+	 */
+	static class Multigrid implements Preconditioner
+	{
+		// do not coarsen below this size, solve it directly
+		public static int coarsestSize = 64;
+
+		// damping of the Jacobi smoother
+		public static double omega = 2.0 / 3.0;
+
+		// tolerance for the coarse levels of the nested iteration
+		public static double coarseTolerance = 1e-3;
+
+		final ArrayList< CSRMatrix > levels = new ArrayList<>();
+		final ArrayList< int[] > aggregates = new ArrayList<>();
+		final double[] coarsestCholesky;
+
+		Multigrid( final CSRMatrix matrix )
+		{
+			levels.add( matrix );
+
+			CSRMatrix level = matrix;
+			while ( level.n > coarsestSize )
+			{
+				final int[] aggregate = level.aggregate();
+
+				int numAggregates = 0;
+				for ( final int c : aggregate )
+					numAggregates = Math.max( numAggregates, c + 1 );
+
+				// stop if the graph does not get smaller anymore
+				if ( numAggregates > 0.9 * level.n )
+					break;
+
+				aggregates.add( aggregate );
+				level = level.coarsen( aggregate, numAggregates );
+				levels.add( level );
+			}
+
+			coarsestCholesky = level.n <= 16 * coarsestSize ? cholesky( level ) : null;
+		}
+
+		int numLevels() { return levels.size(); }
+
+		/**
+		 * nested iteration: solve the coarse problem, prolongate it as the initial guess of the finer level and refine
+		 * @return the number of iterations on the finest level
+		 */
+		int solve( final double[] b, final double[] x, final double tolerance, final int maxIterations )
+		{
+			return solve( 0, b, x, tolerance, maxIterations );
+		}
+
+		private int solve( final int l, final double[] b, final double[] x, final double tolerance, final int maxIterations )
+		{
+			final CSRMatrix level = levels.get( l );
+
+			if ( l == levels.size() - 1 )
+			{
+				solveCoarsest( b, x );
+				return 0;
+			}
+
+			final int[] aggregate = aggregates.get( l );
+			final CSRMatrix coarse = levels.get( l + 1 );
+
+			final double[] bc = new double[ coarse.n ];
+			final double[] xc = new double[ coarse.n ];
+			final double[] r = new double[ level.n ];
+
+			// restrict the residual of the current guess (e.g. warm start), solve coarse, correct
+			level.multiply( x, r );
+			for ( int i = 0; i < level.n; ++i )
+				bc[ aggregate[ i ] ] += b[ i ] - r[ i ];
+
+			solve( l + 1, bc, xc, coarseTolerance, maxIterations );
+
+			for ( int i = 0; i < level.n; ++i )
+				x[ i ] += xc[ aggregate[ i ] ];
+
+			return level.solvePCG( b, x, l == 0 ? tolerance : coarseTolerance, maxIterations, ( rr, z ) -> vcycle( l, rr, z ) );
+		}
+
+		@Override
+		public void apply( final double[] r, final double[] z )
+		{
+			vcycle( 0, r, z );
+		}
+
+		/*
+		 * one symmetric V-cycle for A z = r starting from z = 0 (one Jacobi step before and after the coarse correction)
+		 */
+		private void vcycle( final int l, final double[] r, final double[] z )
+		{
+			final CSRMatrix level = levels.get( l );
+
+			if ( l == levels.size() - 1 )
+			{
+				solveCoarsest( r, z );
+				return;
+			}
+
+			final int[] aggregate = aggregates.get( l );
+			final CSRMatrix coarse = levels.get( l + 1 );
+			final double[] tmp = new double[ level.n ];
+
+			// pre-smoothing (from z = 0)
+			for ( int i = 0; i < level.n; ++i )
+				z[ i ] = omega * r[ i ] / level.diagonal[ i ];
+
+			// coarse correction
+			level.multiply( z, tmp );
+			final double[] rc = new double[ coarse.n ];
+			for ( int i = 0; i < level.n; ++i )
+				rc[ aggregate[ i ] ] += r[ i ] - tmp[ i ];
+
+			final double[] zc = new double[ coarse.n ];
+			vcycle( l + 1, rc, zc );
+
+			for ( int i = 0; i < level.n; ++i )
+				z[ i ] += zc[ aggregate[ i ] ];
+
+			// post-smoothing
+			level.multiply( z, tmp );
+			for ( int i = 0; i < level.n; ++i )
+				z[ i ] += omega * ( r[ i ] - tmp[ i ] ) / level.diagonal[ i ];
+		}
+
+		private void solveCoarsest( final double[] b, final double[] x )
+		{
+			final CSRMatrix level = levels.get( levels.size() - 1 );
+
+			if ( coarsestCholesky == null )
+			{
+				Arrays.fill( x, 0 );
+				level.solvePCG( b, x, 1e-12, Math.max( 1000, 2 * level.n ) );
+				return;
+			}
+
+			// forward and backward substitution with the lower triangular factor
+			final int n = level.n;
+			final double[] L = coarsestCholesky;
+
+			for ( int i = 0; i < n; ++i )
+			{
+				double sum = b[ i ];
+				for ( int k = 0; k < i; ++k )
+					sum -= L[ i * n + k ] * x[ k ];
+				x[ i ] = sum / L[ i * n + i ];
+			}
+
+			for ( int i = n - 1; i >= 0; --i )
+			{
+				double sum = x[ i ];
+				for ( int k = i + 1; k < n; ++k )
+					sum -= L[ k * n + i ] * x[ k ];
+				x[ i ] = sum / L[ i * n + i ];
+			}
+		}
+
+		/*
+		 * dense Cholesky factor (row-major lower triangle) of a small matrix
+		 */
+		private static double[] cholesky( final CSRMatrix matrix )
+		{
+			final int n = matrix.n;
+			final double[] L = new double[ n * n ];
+
+			for ( int i = 0; i < n; ++i )
+				for ( int k = matrix.rowStart[ i ]; k < matrix.rowStart[ i + 1 ]; ++k )
+					L[ i * n + matrix.columns[ k ] ] += matrix.values[ k ];
+
+			for ( int j = 0; j < n; ++j )
+			{
+				double d = L[ j * n + j ];
+				for ( int k = 0; k < j; ++k )
+					d -= L[ j * n + k ] * L[ j * n + k ];
+
+				L[ j * n + j ] = Math.sqrt( Math.max( d, 1e-30 ) );
+
+				for ( int i = j + 1; i < n; ++i )
+				{
+					double sum = L[ i * n + j ];
+					for ( int k = 0; k < j; ++k )
+						sum -= L[ i * n + k ] * L[ j * n + k ];
+					L[ i * n + j ] = sum / L[ j * n + j ];
+				}
+			}
+
+			return L;
+		}
+	}
+}
@@ -22,14 +22,21 @@
 package net.preibisch.stitcher.algorithm.globalopt;
 
 
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.stream.Collectors;
@@ -46,8 +53,13 @@ import mpicbg.spim.data.sequence.Channel;
 import mpicbg.spim.data.sequence.SequenceDescription;
 import mpicbg.spim.data.sequence.ViewId;
 import mpicbg.spim.io.IOFunctions;
+import net.imglib2.Dimensions;
+import net.imglib2.FinalDimensions;
+import net.imglib2.Interval;
 import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.RealInterval;
+import net.imglib2.algorithm.phasecorrelation.FFTWorkspacePool;
+import net.imglib2.algorithm.phasecorrelation.IntegralImageCorrelation;
 import net.imglib2.realtransform.AffineGet;
 import net.imglib2.realtransform.AffineTransform;
 import net.imglib2.realtransform.AffineTransform3D;
@@ -55,6 +67,7 @@ import net.imglib2.realtransform.Translation;
 import net.imglib2.realtransform.TranslationGet;
 import net.imglib2.type.numeric.RealType;
 import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.Intervals;
 import net.imglib2.util.Pair;
 import net.imglib2.util.Util;
 import net.imglib2.util.ValuePair;
@@ -66,10 +79,20 @@ import net.preibisch.mvrecon.process.interestpointregistration.global.GlobalOpt;
 import net.preibisch.mvrecon.process.interestpointregistration.global.convergence.ConvergenceStrategy;
 import net.preibisch.mvrecon.process.interestpointregistration.global.pointmatchcreating.strong.ImageCorrelationPointMatchCreator;
 import net.preibisch.mvrecon.process.interestpointregistration.pairwise.constellation.grouping.Group;
+import net.preibisch.stitcher.algorithm.BoundingBoxIndex;
 import net.preibisch.stitcher.algorithm.GroupedViewAggregator;
 import net.preibisch.stitcher.algorithm.GroupedViewAggregator.ActionType;
+import net.preibisch.stitcher.algorithm.MemoryBudget;
+import net.preibisch.stitcher.algorithm.PairwiseJournal;
+import net.preibisch.stitcher.algorithm.PairwiseProvenance;
+import net.preibisch.stitcher.algorithm.PairwiseResultListener;
 import net.preibisch.stitcher.algorithm.PairwiseStitching;
 import net.preibisch.stitcher.algorithm.PairwiseStitchingParameters;
+import net.preibisch.stitcher.algorithm.RAIProxy;
+import net.preibisch.stitcher.algorithm.SharedExecutor;
+import net.preibisch.stitcher.algorithm.TileCache;
+import net.preibisch.stitcher.algorithm.TileFFTCache;
+import net.preibisch.stitcher.algorithm.TilePrefetcher;
 import net.preibisch.stitcher.algorithm.TransformTools;
 import net.preibisch.stitcher.algorithm.lucaskanade.LucasKanadeParameters;
 import net.preibisch.stitcher.gui.popup.DisplayOverlapTestPopup;
@@ -244,41 +267,102 @@ public class TransformationTools
 			final long[] downsampleFactors,
 			final ExecutorService service )
 	{
+		return computeStitching( viewIdsA, viewIdsB, vrs, params, sd, gva, downsampleFactors, service, null );
+	}
+
+	/*
+	 * phase correlation of two groups,
+	 * if fftCache is not null, the whole (aggregated) groups are correlated and their FFTs are cached
+	 */
+	public static < T extends RealType< T > > Pair<Pair< AffineGet, Double >, RealInterval> computeStitching(
+			final Group<? extends ViewId> viewIdsA,
+			final Group<? extends ViewId> viewIdsB,
+			final ViewRegistrations vrs,
+			final PairwiseStitchingParameters params,
+			final AbstractSequenceDescription< ?,? extends BasicViewDescription<?>, ? > sd,
+			final GroupedViewAggregator gva,
+			final long[] downsampleFactors,
+			final ExecutorService service,
+			final TileFFTCache fftCache )
+	{
+		return computeStitching( viewIdsA, viewIdsB, vrs, params, sd, gva, downsampleFactors, service, fftCache, null,
+				getOverlapBoundingBox( new ValuePair<>( viewIdsA, viewIdsB ), sd, vrs ) );
+	}
+
+	/*
+	 * like above with the overlap of the groups (see getOverlapBoundingBox) computed already,
+	 * if tileCache is not null, the loaded views are shared with the other pairs of the run through it
+	 */
+	public static < T extends RealType< T > > Pair<Pair< AffineGet, Double >, RealInterval> computeStitching(
+			final Group<? extends ViewId> viewIdsA,
+			final Group<? extends ViewId> viewIdsB,
+			final ViewRegistrations vrs,
+			final PairwiseStitchingParameters params,
+			final AbstractSequenceDescription< ?,? extends BasicViewDescription<?>, ? > sd,
+			final GroupedViewAggregator gva,
+			final long[] downsampleFactors,
+			final ExecutorService service,
+			final TileFFTCache fftCache,
+			final TileCache tileCache,
+			final BoundingBox bbOverlap )
+	{
 		
 		// the transformation that maps the downsampled image coordinates back to the original input(!) image space
 		final AffineTransform3D dsCorrectionT1 = new AffineTransform3D();
 		final AffineTransform3D dsCorrectionT2 = new AffineTransform3D();
 
-		// get Overlap Bounding Box
-		final List<List<ViewId>> views = new ArrayList<>();
-		views.add( new ArrayList<>(viewIdsA.getViews()) );
-		views.add( new ArrayList<>(viewIdsB.getViews()) );
-		BoundingBoxMaximalGroupOverlap< ViewId > bbDet = new BoundingBoxMaximalGroupOverlap<ViewId>( views, sd, vrs );
-		BoundingBox bbOverlap = bbDet.estimate( "Max Overlap" );
-
 		// this should be caught outside of this method already, but check nonetheless
 		if (bbOverlap == null)
 			return null;
 
-		// get one image per group
-		final RandomAccessibleInterval<T> img1 = gva.aggregate( viewIdsA, sd, downsampleFactors, dsCorrectionT1 );	
-		final RandomAccessibleInterval<T> img2 = gva.aggregate( viewIdsB, sd, downsampleFactors, dsCorrectionT2 );
+		// only read (and downsample) the parts of the views that overlap
+		final RealInterval globalOverlap = params.loadOverlapOnly ? bbOverlap : null;
 
-		if (img1 == null || img2 == null)
+		// whole views are shared with the other pairs through the tile cache, we hold them until we are done
+		final List< RAIProxy< ? > > proxies = new ArrayList<>();
+
+		final Pair< Translation, Double > result;
+		try
 		{
-			IOFunctions.println( "WARNING: Tried to open missing View when computing Stitching for " + viewIdsA + " and " + 
-						viewIdsB + ". No link between those could be determined");
-			return null;
-		}
+			if ( params.pyramidLevels > 0 )
+			{
+				// the pyramid opens the images of every level itself
+				result = getPyramidShift( viewIdsA, viewIdsB, vrs, params, sd, gva, downsampleFactors, globalOverlap, service, fftCache, tileCache, proxies );
+			}
+			else
+			{
+				// the cached FFTs are computed from the whole tiles
+				final RealInterval loadRegion = fftCache == null ? globalOverlap : null;
 
-		// get translations
-		// TODO: is the 2d check here meaningful?
-		// everything will probably be 3d at this point, since ImgLoaders return 3d images
-		boolean is2d = img1.numDimensions() == 2;
-		Pair< AffineGet, TranslationGet > t1 = TransformTools.getInitialTransforms( vrs.getViewRegistration(viewIdsA.iterator().next()), is2d, dsCorrectionT1 );
-		Pair< AffineGet, TranslationGet > t2 = TransformTools.getInitialTransforms( vrs.getViewRegistration(viewIdsB.iterator().next()), is2d, dsCorrectionT2 );
+				// get one image per group
+				final RandomAccessibleInterval<T> img1 = gva.aggregate( viewIdsA, sd, downsampleFactors, dsCorrectionT1, vrs, loadRegion, overlapLoadingMargin, tileCache, proxies );
+				final RandomAccessibleInterval<T> img2 = gva.aggregate( viewIdsB, sd, downsampleFactors, dsCorrectionT2, vrs, loadRegion, overlapLoadingMargin, tileCache, proxies );
 
-		final Pair< Translation, Double > result  = PairwiseStitching.getShift( img1, img2, t1.getB(), t2.getB(), params, service );
+				if (img1 == null || img2 == null)
+				{
+					IOFunctions.println( "WARNING: Tried to open missing View when computing Stitching for " + viewIdsA + " and " + 
+								viewIdsB + ". No link between those could be determined");
+					return null;
+				}
+
+				// get translations
+				// TODO: is the 2d check here meaningful?
+				// everything will probably be 3d at this point, since ImgLoaders return 3d images
+				boolean is2d = img1.numDimensions() == 2;
+				Pair< AffineGet, TranslationGet > t1 = TransformTools.getInitialTransforms( vrs.getViewRegistration(viewIdsA.iterator().next()), is2d, dsCorrectionT1 );
+				Pair< AffineGet, TranslationGet > t2 = TransformTools.getInitialTransforms( vrs.getViewRegistration(viewIdsB.iterator().next()), is2d, dsCorrectionT2 );
+
+				if ( fftCache == null )
+					result = PairwiseStitching.getShift( img1, img2, t1.getB(), t2.getB(), params, service );
+				else
+					result = PairwiseStitching.getShift( img1, img2, t1.getB(), t2.getB(), params, service,
+							fftCache, new HashSet<>( viewIdsA.getViews() ), new HashSet<>( viewIdsB.getViews() ), downsampleFactors );
+			}
+		}
+		finally
+		{
+			RAIProxy.releaseAll( proxies );
+		}
 
 		if (result == null)
 			return null;
@@ -304,6 +388,178 @@ public class TransformationTools
 		return new ValuePair<>( new ValuePair<>( resTransform, result.getB() ), bbOverlap );
 	}
 	
+	/*
+	 * additional pixels (after downsampling) that are loaded around the overlap of two groups
+	 * (covers rounding and the small difference between the bounding box of the overlap and the rastered overlap)
+	 */
+	public static long overlapLoadingMargin = 4;
+
+	/*
+	 * minimal size (in px) of a dimension at the coarsest pyramid level, dimensions that would
+	 * get smaller are not downsampled any further (e.g. z of thin stacks or singleton dimensions)
+	 */
+	public static long minPyramidSize = 32;
+
+	/*
+	 * downsampling of the next coarser pyramid level: twice the current downsampling in every dimension
+	 * that stays at least minPyramidSize px large
+	 * @param downsampleFactors - downsampling of the current level
+	 * @param size - size of the full resolution images (or null if unknown)
+	 * @return
+	 */
+	public static long[] getCoarserDownsampling( final long[] downsampleFactors, final Dimensions size )
+	{
+		final long[] coarser = downsampleFactors.clone();
+		for (int d = 0; d < coarser.length; d++)
+			if ( size == null || size.dimension( d ) / ( 2 * coarser[d] ) >= minPyramidSize )
+				coarser[d] *= 2;
+		return coarser;
+	}
+
+	/*
+	 * the parameters for a pyramid level at downsampling ds: the maximal shift deviation is given in px at downsampleFactors
+	 * (the finest level), at a coarser level it is scaled down by the (strongest) additional downsampling
+	 */
+	private static PairwiseStitchingParameters getLevelParameters( final PairwiseStitchingParameters params, final long[] downsampleFactors, final long[] ds )
+	{
+		if ( params.maxShiftDeviation < 0 || Arrays.equals( downsampleFactors, ds ) )
+			return params;
+
+		double factor = 1;
+		for (int d = 0; d < ds.length; d++)
+			factor = Math.max( factor, (double) ds[d] / downsampleFactors[d] );
+
+		final PairwiseStitchingParameters levelParams = params.copy();
+		levelParams.maxShiftDeviation = params.maxShiftDeviation / factor;
+		return levelParams;
+	}
+
+	/*
+	 * coarse-to-fine shift of two groups: the phase correlation is only computed at the coarsest level
+	 * (downsampleFactors * 2^params.pyramidLevels), at every finer level the shift is refined by a
+	 * local cross correlation search around the upscaled estimate (see PairwiseStitching.refineShift),
+	 * if that fails (e.g. the estimate was too far off), the phase correlation is computed at that level instead
+	 * if globalOverlap is not null, only the part of the views around it is loaded at every level
+	 * all opened proxies are added to proxies, the caller has to release them
+	 * the returned shift is in pixel coordinates at downsampleFactors (the finest level)
+	 */
+	private static < T extends RealType< T > > Pair< Translation, Double > getPyramidShift(
+			final Group<? extends ViewId> viewIdsA,
+			final Group<? extends ViewId> viewIdsB,
+			final ViewRegistrations vrs,
+			final PairwiseStitchingParameters params,
+			final AbstractSequenceDescription< ?,? extends BasicViewDescription<?>, ? > sd,
+			final GroupedViewAggregator gva,
+			final long[] downsampleFactors,
+			final RealInterval globalOverlap,
+			final ExecutorService service,
+			final TileFFTCache fftCache,
+			final TileCache tileCache,
+			final List< RAIProxy< ? > > proxies )
+	{
+		final BasicViewDescription< ? > vd = sd.getViewDescriptions().get( viewIdsA.iterator().next() );
+		final Dimensions size = vd.getViewSetup().hasSize() ? vd.getViewSetup().getSize() : null;
+
+		// downsampling of all levels, stop early if no dimension can be downsampled further
+		final List< long[] > levels = new ArrayList<>();
+		levels.add( downsampleFactors );
+		for (int l = 0; l < params.pyramidLevels; l++)
+		{
+			final long[] coarser = getCoarserDownsampling( levels.get( levels.size() - 1 ), size );
+			if ( Arrays.equals( coarser, levels.get( levels.size() - 1 ) ) )
+				break;
+			levels.add( coarser );
+		}
+
+		Pair< Translation, Double > result = null;
+		for (int l = levels.size() - 1; l >= 0; l--)
+		{
+			final long[] ds = levels.get( l );
+			final boolean coarsest = l == levels.size() - 1;
+
+			// the upscaled estimate of the coarser level, the search radius is given in px of the coarser level
+			final double[] estimate;
+			int radius = 0;
+			if ( coarsest )
+			{
+				estimate = null;
+			}
+			else
+			{
+				final long[] dsCoarser = levels.get( l + 1 );
+				estimate = result.getA().getTranslationCopy();
+				double maxRatio = 1;
+				for (int d = 0; d < estimate.length; d++)
+				{
+					estimate[d] *= (double) dsCoarser[d] / ds[d];
+					maxRatio = Math.max( maxRatio, (double) dsCoarser[d] / ds[d] );
+				}
+				radius = Math.max( 1, (int) Math.ceil( params.pyramidSearchRadius * maxRatio ) );
+			}
+
+			// the cached FFTs are computed from the whole tiles, the local search needs the overlap at the estimate
+			final RealInterval loadRegion;
+			long margin = overlapLoadingMargin;
+			if ( coarsest )
+			{
+				loadRegion = fftCache == null ? globalOverlap : null;
+			}
+			else
+			{
+				loadRegion = globalOverlap;
+				double maxEstimate = 0;
+				for (int d = 0; d < estimate.length; d++)
+					maxEstimate = Math.max( maxEstimate, Math.abs( estimate[d] ) );
+				margin += radius + (long) Math.ceil( maxEstimate );
+			}
+
+			final AffineTransform3D dsCorrectionT1 = new AffineTransform3D();
+			final AffineTransform3D dsCorrectionT2 = new AffineTransform3D();
+			final RandomAccessibleInterval< T > imgL1 = gva.aggregate( viewIdsA, sd, ds, dsCorrectionT1, vrs, loadRegion, margin, tileCache, proxies );
+			final RandomAccessibleInterval< T > imgL2 = gva.aggregate( viewIdsB, sd, ds, dsCorrectionT2, vrs, loadRegion, margin, tileCache, proxies );
+
+			if ( imgL1 == null || imgL2 == null )
+			{
+				IOFunctions.println( "WARNING: Tried to open missing View when computing Stitching for " + viewIdsA + " and " + 
+						viewIdsB + ". No link between those could be determined");
+				return null;
+			}
+
+			final boolean is2d = imgL1.numDimensions() == 2;
+			final TranslationGet tL1 = TransformTools.getInitialTransforms( vrs.getViewRegistration( viewIdsA.iterator().next() ), is2d, dsCorrectionT1 ).getB();
+			final TranslationGet tL2 = TransformTools.getInitialTransforms( vrs.getViewRegistration( viewIdsB.iterator().next() ), is2d, dsCorrectionT2 ).getB();
+
+			// the maximal shift deviation in px of this level
+			final PairwiseStitchingParameters levelParams = getLevelParameters( params, downsampleFactors, ds );
+
+			if ( coarsest )
+			{
+				// coarsest level: phase correlation
+				if ( fftCache == null )
+					result = PairwiseStitching.getShift( imgL1, imgL2, tL1, tL2, levelParams, service );
+				else
+					result = PairwiseStitching.getShift( imgL1, imgL2, tL1, tL2, levelParams, service,
+							fftCache, new HashSet<>( viewIdsA.getViews() ), new HashSet<>( viewIdsB.getViews() ), ds );
+			}
+			else
+			{
+				// finer levels: search around the estimate of the coarser level
+				result = PairwiseStitching.refineShift( imgL1, imgL2, tL1, tL2, new Translation( estimate ), radius, levelParams, service );
+
+				if ( result == null )
+				{
+					IOFunctions.println( "Local search failed at pyramid level " + l + ", computing the phase correlation at this level." );
+					result = PairwiseStitching.getShift( imgL1, imgL2, tL1, tL2, levelParams, service );
+				}
+			}
+
+			if ( result == null )
+				return null;
+		}
+
+		return result;
+	}
+
 	public static < T extends RealType< T > > Pair<Pair< AffineGet, Double >, RealInterval> computeStitchingLucasKanade(
 			final Group<? extends ViewId> viewIdsA,
 			final Group<? extends ViewId> viewIdsB,
@@ -389,9 +645,24 @@ public class TransformationTools
 	{
 		
 		final List< Pair<  Group< V >,  Group< V > > > removedPairs = new ArrayList<>();
-		
+
+		// bounding box of every group (computed once), the exact overlap is only determined if they intersect
+		final HashMap< Group< V >, RealInterval > groupBoxes = new HashMap<>();
+		for ( final Pair< Group< V >, Group< V > > pair : pairs )
+		{
+			groupBoxes.computeIfAbsent( pair.getA(), g -> BoundingBoxIndex.getBoundingBox( g.getViews(), sd, vrs ) );
+			groupBoxes.computeIfAbsent( pair.getB(), g -> BoundingBoxIndex.getBoundingBox( g.getViews(), sd, vrs ) );
+		}
+
 		for (int i = pairs.size() - 1; i >= 0; i--)
 		{
+			if ( !BoundingBoxIndex.intersect( groupBoxes.get( pairs.get( i ).getA() ), groupBoxes.get( pairs.get( i ).getB() ) ) )
+			{
+				removedPairs.add( pairs.get( i ) );
+				pairs.remove( i );
+				continue;
+			}
+
 			final List<Set<V>> pairAsGroups = new ArrayList<>();
 			pairAsGroups.add( pairs.get( i ).getA().getViews() );
 			pairAsGroups.add( pairs.get( i ).getB().getViews() );
@@ -411,6 +682,102 @@ public class TransformationTools
 		
 	}
 	
+	/*
+	 * bits per dimension of the quantized pair positions in sortPairsByLocality (3 * 21 bits fit into a long)
+	 */
+	private static final int mortonBits = 21;
+
+	/*
+	 * sort pairs along a space-filling (Morton / Z-order) curve through the centers of the pairs (in global coordinates),
+	 * so that pairs sharing a tile are computed close together in time and every tile is needed only for a short time
+	 * the pairs are sorted in place
+	 * @param pairs
+	 * @param vrs
+	 * @param sd
+	 */
+	public static <V extends ViewId> void sortPairsByLocality(
+			final List< Pair<  Group< V >,  Group< V > > > pairs,
+			final ViewRegistrations vrs,
+			final AbstractSequenceDescription< ?, ? extends BasicViewDescription< ? >, ? > sd
+			)
+	{
+		if ( pairs.size() < 3 )
+			return;
+
+		// center of every pair
+		final List< double[] > centers = new ArrayList<>();
+		final double[] min = new double[ 3 ];
+		final double[] max = new double[ 3 ];
+		Arrays.fill( min, Double.MAX_VALUE );
+		Arrays.fill( max, -Double.MAX_VALUE );
+
+		for ( final Pair< Group< V >, Group< V > > pair : pairs )
+		{
+			final double[] centerA = getCenter( pair.getA(), vrs, sd );
+			final double[] centerB = getCenter( pair.getB(), vrs, sd );
+			final double[] center = new double[ 3 ];
+
+			for ( int d = 0; d < 3; ++d )
+			{
+				center[ d ] = ( centerA[ d ] + centerB[ d ] ) / 2;
+				min[ d ] = Math.min( min[ d ], center[ d ] );
+				max[ d ] = Math.max( max[ d ], center[ d ] );
+			}
+
+			centers.add( center );
+		}
+
+		// quantize the centers and interleave the bits of the three coordinates
+		final long maxCell = ( 1L << mortonBits ) - 1;
+		final HashMap< Pair< Group< V >, Group< V > >, Long > codes = new HashMap<>();
+		for ( int i = 0; i < pairs.size(); ++i )
+		{
+			long code = 0;
+			for ( int d = 0; d < 3; ++d )
+			{
+				final double range = max[ d ] - min[ d ];
+				final long cell = range > 0 ? Math.min( maxCell, (long) ( ( centers.get( i )[ d ] - min[ d ] ) / range * maxCell ) ) : 0;
+
+				for ( int b = 0; b < mortonBits; ++b )
+					code |= ( ( cell >> b ) & 1L ) << ( 3 * b + d );
+			}
+			codes.put( pairs.get( i ), code );
+		}
+
+		Collections.sort( pairs, ( p1, p2 ) -> Long.compare( codes.get( p1 ), codes.get( p2 ) ) );
+	}
+
+	/*
+	 * mean center of the views of a group in global coordinates
+	 */
+	private static double[] getCenter(
+			final Group< ? extends ViewId > group,
+			final ViewRegistrations vrs,
+			final AbstractSequenceDescription< ?, ? extends BasicViewDescription< ? >, ? > sd )
+	{
+		final double[] center = new double[ 3 ];
+		final double[] tmp = new double[ 3 ];
+
+		for ( final ViewId vid : group.getViews() )
+		{
+			final BasicViewDescription< ? > vd = sd.getViewDescriptions().get( vid );
+
+			Arrays.fill( tmp, 0 );
+			if ( vd.getViewSetup().hasSize() )
+				for ( int d = 0; d < 3; ++d )
+					tmp[ d ] = ( vd.getViewSetup().getSize().dimension( d ) - 1 ) / 2.0;
+
+			final ViewRegistration vr = vrs.getViewRegistration( vid );
+			vr.updateModel();
+			vr.getModel().apply( tmp, tmp );
+
+			for ( int d = 0; d < 3; ++d )
+				center[ d ] += tmp[ d ] / group.getViews().size();
+		}
+
+		return center;
+	}
+
 	public static <V extends ViewId> ArrayList< PairwiseStitchingResult< ViewId > > computePairsLK(
 			final List< Pair< Group< V >, Group< V > > > pairs, final LucasKanadeParameters params,
 			final ViewRegistrations vrs,
@@ -418,9 +785,23 @@ public class TransformationTools
 			final GroupedViewAggregator gva, final long[] downsamplingFactors,
 			final ProgressWriter progressWriter)
 	{
-		// set up executor service
-		final ExecutorService serviceGlobal = Executors
-				.newFixedThreadPool( Math.max( 2, Runtime.getRuntime().availableProcessors() / 2 ) );
+		return computePairsLK( pairs, params, vrs, sd, gva, downsamplingFactors, progressWriter, null );
+	}
+
+	/**
+	 * compute the pairwise shifts using Lucas-Kanade, every result is passed to the listener (if not null) as soon as it is done
+	 * (in the calling thread, in the order the pairs finish), the returned list is in the order of the pairs
+	 */
+	public static <V extends ViewId> ArrayList< PairwiseStitchingResult< ViewId > > computePairsLK(
+			final List< Pair< Group< V >, Group< V > > > pairs, final LucasKanadeParameters params,
+			final ViewRegistrations vrs,
+			final AbstractSequenceDescription< ?, ? extends BasicViewDescription< ? >, ? > sd,
+			final GroupedViewAggregator gva, final long[] downsamplingFactors,
+			final ProgressWriter progressWriter,
+			final PairwiseResultListener listener )
+	{
+		// pairs and the work within a pair share one work-stealing pool
+		final ExecutorService service = SharedExecutor.getService();
 		final ArrayList< Callable< Pair< Pair< Group< V >, Group< V > >, Pair< Pair< AffineGet, Double >, RealInterval > > > > tasks = new ArrayList<>();
 
 		// remove non-overlapping comparisons
@@ -428,6 +809,9 @@ public class TransformationTools
 		removedPairs
 				.forEach( p -> IOFunctions.println( "Skipping non-overlapping pair: " + p.getA() + " -> " + p.getB() ) );
 
+		// pairs sharing a tile run close together
+		sortPairsByLocality( pairs, vrs, sd );
+
 		final int nComparisions = pairs.size();
 		AtomicInteger nCompleted = new AtomicInteger();
 
@@ -447,9 +831,6 @@ public class TransformationTools
 							IOFunctions.println( new Date( System.currentTimeMillis() ) + ": Compute pairwise: "
 									+ p.getA() + " <> " + p.getB() );
 
-							final ExecutorService serviceLocal = Executors.newFixedThreadPool(
-									Math.max( 2, Runtime.getRuntime().availableProcessors() / 4 ) );
-
 							final ViewId firstVdA = p.getA().iterator().next();
 							final ViewId firstVdB = p.getB().iterator().next();
 
@@ -460,16 +841,14 @@ public class TransformationTools
 							{
 
 								result = computeStitchingLucasKanade( p.getA(), p.getB(), vrs, params, sd, gva,
-										downsamplingFactors, serviceLocal );
+										downsamplingFactors, service );
 							}
 							else
 							{
 								result = computeStitchingNonEqualTransformationsLucasKanade( p.getA(), p.getB(), vrs, params, sd,
-										gva, downsamplingFactors, serviceLocal );
+										gva, downsamplingFactors, service );
 							}
 
-							serviceLocal.shutdown();
-
 							int nCompletedI = nCompleted.incrementAndGet();
 							if (progressWriter != null)							
 								progressWriter.setProgress( (double) nCompletedI / nComparisions );
@@ -484,37 +863,25 @@ public class TransformationTools
 		}
 
 		final ArrayList< PairwiseStitchingResult< ViewId > > results = new ArrayList<>();
+		final ArrayList< Future< ? > > futures = new ArrayList<>();
 
 		try
 		{
-			for ( final Future< Pair< Pair< Group< V >, Group< V > >, Pair< Pair< AffineGet, Double >, RealInterval > > > future : serviceGlobal
-					.invokeAll( tasks ) )
-			{
-				// wait for task to complete
-				final Pair< Pair< Group< V >, Group< V > >, Pair< Pair< AffineGet, Double >, RealInterval > > result = future
-						.get();
-
-				if ( result.getB() == null )
-					continue;
-
-				AffineTransform3D resT = new AffineTransform3D();
-				resT.preConcatenate( result.getB().getA().getA() );
-
-				// TODO: can we get rid of this ugly cast
-				Group< ViewId > groupA = new Group< ViewId >( result.getA().getA().getViews().stream()
-						.map( x -> (ViewId) x ).collect( Collectors.toList() ) );
-				Group< ViewId > groupB = new Group< ViewId >( result.getA().getB().getViews().stream()
-						.map( x -> (ViewId) x ).collect( Collectors.toList() ) );
-
-				
-				final double oldTransformHash = PairwiseStitchingResult.calculateHash(
-						vrs.getViewRegistration( groupA.getViews().iterator().next() ),
-						vrs.getViewRegistration( groupB.getViews().iterator().next() ) );
-				// TODO: when does that really happen?
-				if ( result.getB() != null )
-					results.add( new PairwiseStitchingResult<>( new ValuePair<>( groupA, groupB ), result.getB().getB(),
-							resT, result.getB().getA().getB(), oldTransformHash ) );
-			}
+			// all pairs are queued at once, results are collected (and passed on to the listener) in the order they finish
+			final ExecutorCompletionService< Pair< Pair< Group< V >, Group< V > >, Pair< Pair< AffineGet, Double >, RealInterval > > > completionService =
+					new ExecutorCompletionService<>( SharedExecutor.getTaskExecutor() );
+
+			for ( final Callable< Pair< Pair< Group< V >, Group< V > >, Pair< Pair< AffineGet, Double >, RealInterval > > > task : tasks )
+				futures.add( completionService.submit( task ) );
+
+			final HashMap< Pair< Group< V >, Group< V > >, PairwiseStitchingResult< ViewId > > computed = new HashMap<>();
+			for ( int i = 0; i < tasks.size(); ++i )
+				collectResult( completionService.take(), computed, vrs, listener );
+
+			// keep the results in the order of the pairs
+			for ( final Pair< Group< V >, Group< V > > p : pairs )
+				if ( computed.get( p ) != null )
+					results.add( computed.get( p ) );
 		}
 		catch ( final Exception e )
 		{
@@ -522,10 +889,295 @@ public class TransformationTools
 			e.printStackTrace();
 			return null;
 		}
+		finally
+		{
+			// do not compute the remaining pairs if one failed
+			futures.forEach( f -> f.cancel( true ) );
+		}
 
 		return results;
 	}
 	
+	/*
+	 * the overlap of the two groups of a pair in global coordinates (as used by computeStitching), null if they do not overlap
+	 * @param pair
+	 * @param sd
+	 * @param vrs
+	 * @return
+	 */
+	public static <V extends ViewId> BoundingBox getOverlapBoundingBox(
+			final Pair< ? extends Group< ? extends V >, ? extends Group< ? extends V > > pair,
+			final AbstractSequenceDescription< ?, ? extends BasicViewDescription< ? >, ? > sd,
+			final ViewRegistrations vrs )
+	{
+		final List<List<ViewId>> views = new ArrayList<>();
+		views.add( new ArrayList<>( pair.getA().getViews() ) );
+		views.add( new ArrayList<>( pair.getB().getViews() ) );
+		return new BoundingBoxMaximalGroupOverlap< ViewId >( views, sd, vrs ).estimate( "Max Overlap" );
+	}
+
+	/*
+	 * rough estimate of the peak working memory (in bytes) of computeStitching for a pair: the loaded images
+	 * (unless they are taken from the TileCache, which accounts for them itself), the FFT buffers of the planned
+	 * padded size (two spectra, PCM and cross power spectrum of the overlap, only PCM and cross power spectrum if the
+	 * spectra of the tiles are taken from the TileFFTCache) and the integral images for checking the candidate shifts
+	 * @param pair
+	 * @param bbOverlap - overlap of the pair (see getOverlapBoundingBox)
+	 * @param params
+	 * @param vrs
+	 * @param sd
+	 * @param downsamplingFactors
+	 * @return
+	 */
+	public static <V extends ViewId> long estimatePairBytes(
+			final Pair< Group< V >, Group< V > > pair,
+			final BoundingBox bbOverlap,
+			final PairwiseStitchingParameters params,
+			final ViewRegistrations vrs,
+			final AbstractSequenceDescription< ?, ? extends BasicViewDescription< ? >, ? > sd,
+			final long[] downsamplingFactors )
+	{
+		if ( bbOverlap == null )
+			return 0;
+
+		// size of the overlap and of a tile in downsampled pixels
+		final V firstView = pair.getA().iterator().next();
+		final Interval overlap = GroupedViewAggregator.getLocalRegion( firstView, sd, vrs, downsamplingFactors, bbOverlap, 0 );
+		final BasicViewDescription< ? > vd = sd.getViewDescriptions().get( firstView );
+
+		long overlapPx = 1;
+		long tilePx = 1;
+		final List< Long > fftSize = new ArrayList<>();
+		for ( int d = 0; d < overlap.numDimensions(); ++d )
+		{
+			final long overlapSize = Math.max( 1, overlap.dimension( d ) );
+			final long tileSize = vd.getViewSetup().hasSize() ? Math.max( 1, vd.getViewSetup().getSize().dimension( d ) / downsamplingFactors[ d ] ) : overlapSize;
+
+			overlapPx *= overlapSize;
+			tilePx *= tileSize;
+
+			// singleton dimensions are dropped before the phase correlation
+			final long size = params.useTileFFTCache ? tileSize : overlapSize;
+			if ( size > 1 )
+				fftSize.add( size );
+		}
+
+		// the padded size the phase correlation will use
+		final FinalDimensions fftDims = new FinalDimensions( fftSize.stream().mapToLong( Long::longValue ).toArray() );
+		long paddedPx = 1;
+		for ( final long size : params.fftSizePlanner.plan( fftDims, fftDims ).getPaddedDimensions() )
+			paddedPx *= size;
+
+		final int nViews = pair.getA().getViews().size() + pair.getB().getViews().size();
+		final long loadedPx = params.loadOverlapOnly && !params.useTileFFTCache ? overlapPx : tilePx;
+
+		return ( params.useTileCache ? 0 : nViews * loadedPx * Float.BYTES ) // loaded (downsampled) views
+				+ ( params.useTileFFTCache ? 2 : 4 ) * paddedPx * Float.BYTES // (2 half-spectra (complex),) PCM, cross power spectrum
+				+ 2 * overlapPx * IntegralImageCorrelation.bytesPerPixel; // integral images
+	}
+
+	/*
+	 * the views (or parts of views) that computeStitching will request from the TileCache for a pair
+	 * (to plan the regions of the cache and for prefetching), empty if the pair does not use the cache (non-equal transformations)
+	 * @param pair
+	 * @param bbOverlap - overlap of the pair (see getOverlapBoundingBox)
+	 * @param params
+	 * @param vrs
+	 * @param sd
+	 * @param gva
+	 * @param downsamplingFactors
+	 * @return
+	 */
+	public static <V extends ViewId> List< TilePrefetcher.Load > getTileLoads(
+			final Pair< Group< V >, Group< V > > pair,
+			final BoundingBox bbOverlap,
+			final PairwiseStitchingParameters params,
+			final ViewRegistrations vrs,
+			final AbstractSequenceDescription< ?, ? extends BasicViewDescription< ? >, ? > sd,
+			final GroupedViewAggregator gva,
+			final long[] downsamplingFactors )
+	{
+		final List< TilePrefetcher.Load > loads = new ArrayList<>();
+
+		final ViewId firstVdA = pair.getA().iterator().next();
+		final ViewId firstVdB = pair.getB().iterator().next();
+
+		if ( !TransformTools.nonTranslationsEqual( vrs.getViewRegistration( firstVdA ), vrs.getViewRegistration( firstVdB ) ) )
+			return loads;
+
+		// the same overlap and regions as in computeStitching, otherwise the cache would not match
+		if ( bbOverlap == null )
+			return loads;
+
+		final RealInterval loadRegion = params.loadOverlapOnly && !params.useTileFFTCache ? bbOverlap : null;
+
+		for ( final Group< V > group : Arrays.asList( pair.getA(), pair.getB() ) )
+			for ( final ViewId vid : gva.getViewsToLoad( group, sd ) )
+			{
+				final Interval region = loadRegion == null ? null : GroupedViewAggregator.getLocalRegion( vid, sd, vrs, downsamplingFactors, loadRegion, overlapLoadingMargin );
+				final BasicViewDescription< ? > vd = sd.getViewDescriptions().get( vid );
+
+				// at most 4 bytes per pixel
+				long bytes = Float.BYTES;
+				if ( region != null )
+					bytes *= Intervals.numElements( region );
+				else if ( vd.getViewSetup().hasSize() )
+					for ( int d = 0; d < vd.getViewSetup().getSize().numDimensions(); ++d )
+						bytes *= Math.max( 1, vd.getViewSetup().getSize().dimension( d ) / downsamplingFactors[ d ] );
+
+				loads.add( new TilePrefetcher.Load( sd.getImgLoader(), vid, downsamplingFactors, region, bytes ) );
+			}
+
+		return loads;
+	}
+
+	/*
+	 * pairs are ordered by the power of two of their estimated memory
+	 */
+	private static int costBucket( final long bytes )
+	{
+		return 63 - Long.numberOfLeadingZeros( Math.max( 1, bytes ) );
+	}
+
+	/*
+	 * the PairwiseStitchingResult of a computed pair (null if no shift was found)
+	 */
+	private static <V extends ViewId> PairwiseStitchingResult< ViewId > toPairwiseStitchingResult(
+			final Pair< Pair< Group< V >, Group< V > >, Pair<Pair< AffineGet, Double >, RealInterval> > result,
+			final ViewRegistrations vrs )
+	{
+		if (result.getB() == null)
+			return null;
+
+		/*
+		final ViewRegistration vrA = vrs.getViewRegistration( result.getA().getA().iterator().next() );
+		final ViewRegistration vrB = vrs.getViewRegistration( result.getA().getB().iterator().next() );
+		
+		// get non-translation transform between the initial location of groupA
+		Pair< AffineGet, TranslationGet > initialTransformsA = TransformTools.getInitialTransforms( vrA, false, new AffineTransform3D() );
+
+		// apply to shift vector
+		// FIXME: this only works for scaling, we need to do something different about rotations, etc.
+		boolean nonTranslationsEqual = TransformTools.nonTranslationsEqual(vrA, vrB);
+		if (nonTranslationsEqual)
+			initialTransformsA.getA().apply( result.getB().getA().getA(), result.getB().getA().getA() );
+
+		 */
+
+		AffineTransform3D resT = new AffineTransform3D();
+		resT.preConcatenate( result.getB().getA().getA() );
+
+		// TODO: can we get rid of this ugly cast
+		Group< ViewId > groupA = new Group<ViewId>(result.getA().getA().getViews().stream().map( x -> (ViewId) x ).collect( Collectors.toList() ));
+		Group< ViewId > groupB = new Group<ViewId>(result.getA().getB().getViews().stream().map( x -> (ViewId) x ).collect( Collectors.toList() ));
+
+		final double oldTransformHash = PairwiseStitchingResult.calculateHash(
+				vrs.getViewRegistration( groupA.getViews().iterator().next() ),
+				vrs.getViewRegistration( groupB.getViews().iterator().next() ) );
+
+		return new PairwiseStitchingResult<>( new ValuePair<>(groupA, groupB), result.getB().getB(),  resT, result.getB().getA().getB(), oldTransformHash );
+	}
+
+	/*
+	 * get the result of a finished pair, remember it (null if no shift was found) and pass it (or the failure) on to the listener
+	 */
+	private static <V extends ViewId> void collectResult(
+			final Future< Pair< Pair< Group< V >, Group< V > >, Pair<Pair< AffineGet, Double >, RealInterval> > > future,
+			final HashMap< Pair< Group< V >, Group< V > >, PairwiseStitchingResult< ViewId > > computed,
+			final ViewRegistrations vrs,
+			final PairwiseResultListener listener ) throws InterruptedException, ExecutionException
+	{
+		final Pair< Pair< Group< V >, Group< V > >, Pair<Pair< AffineGet, Double >, RealInterval> > result = future.get();
+		final PairwiseStitchingResult< ViewId > psr = toPairwiseStitchingResult( result, vrs );
+
+		computed.put( result.getA(), psr );
+
+		if ( listener == null )
+			return;
+
+		if ( psr != null )
+			listener.pairwiseResultAvailable( psr );
+		else
+			listener.pairwiseResultFailed( toViewIdPair( result.getA() ) );
+	}
+
+	/*
+	 * this is just a cast of a pair to Group<ViewId>
+	 */
+	private static <V extends ViewId> Pair< Group< ViewId >, Group< ViewId > > toViewIdPair( final Pair< Group< V >, Group< V > > pair )
+	{
+		return new ValuePair<>(
+				new Group< ViewId >( pair.getA().getViews().stream().map( x -> (ViewId) x ).collect( Collectors.toList() ) ),
+				new Group< ViewId >( pair.getB().getViews().stream().map( x -> (ViewId) x ).collect( Collectors.toList() ) ) );
+	}
+
+	/*
+	 * wrap the computation of a pair so that its result is written to the journal as soon as it is done
+	 */
+	private static <V extends ViewId> Callable< Pair< Pair< Group< V >, Group< V > >, Pair<Pair< AffineGet, Double >, RealInterval> > > withJournal(
+			final Callable< Pair< Pair< Group< V >, Group< V > >, Pair<Pair< AffineGet, Double >, RealInterval> > > task,
+			final PairwiseJournal journal,
+			final ViewRegistrations vrs )
+	{
+		return () ->
+		{
+			final Pair< Pair< Group< V >, Group< V > >, Pair<Pair< AffineGet, Double >, RealInterval> > result = task.call();
+
+			if ( result.getB() != null )
+				journal.append( toPairwiseStitchingResult( result, vrs ) );
+			else
+				journal.appendFailed( toViewIdPair( result.getA() ), PairwiseStitchingResult.calculateHash(
+						vrs.getViewRegistration( result.getA().getA().getViews().iterator().next() ),
+						vrs.getViewRegistration( result.getA().getB().getViews().iterator().next() ) ) );
+
+			return result;
+		};
+	}
+
+	/*
+	 * the pairs without the ones (in any order of the groups) that were computed already, the list of the caller is not changed
+	 */
+	private static <V extends ViewId> List< Pair< Group< V >, Group< V > > > removeComputedPairs(
+			final List< Pair< Group< V >, Group< V > > > pairs,
+			final List< Pair< Group< ViewId >, Group< ViewId > > > computed )
+	{
+		final HashSet< List< Set< ViewId > > > computedPairs = new HashSet<>();
+		for ( final Pair< Group< ViewId >, Group< ViewId > > pair : computed )
+		{
+			final Set< ViewId > a = asViewIds( pair.getA().getViews() );
+			final Set< ViewId > b = asViewIds( pair.getB().getViews() );
+			computedPairs.add( Arrays.asList( a, b ) );
+			computedPairs.add( Arrays.asList( b, a ) );
+		}
+
+		final List< Pair< Group< V >, Group< V > > > remaining = new ArrayList<>( pairs );
+		remaining.removeIf( p -> computedPairs.contains( Arrays.asList( asViewIds( p.getA().getViews() ), asViewIds( p.getB().getViews() ) ) ) );
+		return remaining;
+	}
+
+	private static Set< ViewId > asViewIds( final Collection< ? extends ViewId > views )
+	{
+		return views.stream().map( v -> new ViewId( v.getTimePointId(), v.getViewSetupId() ) ).collect( Collectors.toSet() );
+	}
+
+	/*
+	 * wrap a task so that it gives its memory back to the budget when it is done (it is acquired before submitting)
+	 */
+	private static < R > Callable< R > withMemoryBudget( final Callable< R > task, final long bytes, final MemoryBudget budget )
+	{
+		return () ->
+		{
+			try
+			{
+				return task.call();
+			}
+			finally
+			{
+				budget.release( bytes );
+			}
+		};
+	}
+
 	public static <V extends ViewId > ArrayList< PairwiseStitchingResult<ViewId> > computePairs( 	final List< Pair<  Group< V >,  Group< V > > > pairs, 
 																		final PairwiseStitchingParameters params, 
 																		final ViewRegistrations vrs,
@@ -533,8 +1185,28 @@ public class TransformationTools
 																		final GroupedViewAggregator gva,
 																		final long[] downsamplingFactors)
 	{
-		// set up executor service
-		final ExecutorService serviceGlobal = Executors.newFixedThreadPool( Math.max( 2, Runtime.getRuntime().availableProcessors() / 2 ) );
+		return computePairs( pairs, params, vrs, sd, gva, downsamplingFactors, null );
+	}
+
+	// computePairs runs that are not done yet, the last one releases the idle FFT buffers of the shared pool
+	private static final AtomicInteger runningComputations = new AtomicInteger();
+
+	/**
+	 * compute the pairwise shifts, every result is passed to the listener (if not null) as soon as it is done
+	 * (in the calling thread, in the order the pairs finish), the returned list is in the order of the pairs
+	 */
+	public static <V extends ViewId > ArrayList< PairwiseStitchingResult<ViewId> > computePairs( 	final List< Pair<  Group< V >,  Group< V > > > pairs, 
+																		final PairwiseStitchingParameters params, 
+																		final ViewRegistrations vrs,
+																		final AbstractSequenceDescription< ?, ? extends BasicViewDescription< ? >, ? > sd, 
+																		final GroupedViewAggregator gva,
+																		final long[] downsamplingFactors,
+																		final PairwiseResultListener listener )
+	{
+		// pairs and the work within a pair share one work-stealing pool (waits for loading and for each other's tile FFTs
+		// are announced to it): while many pairs are outstanding, every pair computes on one thread, the last pairs are
+		// split over the idle threads (see SharedExecutor)
+		final ExecutorService service = SharedExecutor.getService();
 		final ArrayList< Callable< Pair< Pair< Group< V >, Group< V > >, Pair<Pair< AffineGet, Double >, RealInterval> > > > tasks = new ArrayList<>();
 
 		// remove non-overlapping comparisons
@@ -542,22 +1214,85 @@ public class TransformationTools
 		removedPairs.forEach( p -> System.out.println( "Skipping non-overlapping pair: " + p.getA() + " -> " + p.getB() ) );
 		IOFunctions.println( new Date( System.currentTimeMillis() ) + ": Removed " + removedPairs.size() + " non-overlapping view-pairs for computing." );
 
-		final int nComparisions = pairs.size();
+		// every result is journaled as soon as it is computed, when resuming only the pairs missing in the journal are computed
+		final PairwiseJournal journal;
+		final List< PairwiseStitchingResult< ViewId > > resumedResults;
+		final List< Pair< Group< V >, Group< V > > > toCompute;
+		if ( params.checkpointFile != null && !params.checkpointFile.isEmpty() )
+		{
+			journal = new PairwiseJournal( new File( params.checkpointFile ),
+					PairwiseProvenance.fingerprint( params, downsamplingFactors, gva ) );
+			final List< Pair< Group< ViewId >, Group< ViewId > > > resumedFailures = new ArrayList<>();
+			resumedResults = params.resumeFromCheckpoint ? journal.read( vrs, resumedFailures ) : new ArrayList<>();
+			toCompute = removeComputedPairs( removeComputedPairs( pairs, resumedResults.stream().map( PairwiseStitchingResult::pair ).collect( Collectors.toList() ) ), resumedFailures );
+
+			try
+			{
+				journal.open( params.resumeFromCheckpoint );
+			}
+			catch ( final IOException e )
+			{
+				IOFunctions.println( "Cannot write checkpoint journal " + params.checkpointFile + ": " + e );
+				return null;
+			}
+
+			if ( params.resumeFromCheckpoint )
+				IOFunctions.println( new Date( System.currentTimeMillis() ) + ": Resuming with " + resumedResults.size() + " results and "
+						+ resumedFailures.size() + " pairs without a shift from " + params.checkpointFile );
+
+			if ( listener != null )
+			{
+				resumedResults.forEach( listener::pairwiseResultAvailable );
+				resumedFailures.forEach( listener::pairwiseResultFailed );
+			}
+		}
+		else
+		{
+			journal = null;
+			resumedResults = new ArrayList<>();
+			toCompute = new ArrayList<>( pairs );
+		}
+
+		// pairs sharing a tile run close together, so loaded tiles are re-used (see TileCache) and can be dropped early
+		sortPairsByLocality( toCompute, vrs, sd );
+
+		final int nComparisions = toCompute.size();
 		AtomicInteger nCompleted = new AtomicInteger();
-		
+
+		// the overlap of every pair is needed for the estimates, the cache plan and the computation itself
+		final HashMap< Pair< Group< V >, Group< V > >, BoundingBox > pairOverlaps = new HashMap<>();
+		for ( final Pair< Group< V >, Group< V > > p : toCompute )
+			pairOverlaps.put( p, getOverlapBoundingBox( p, sd, vrs ) );
+
+		// estimate the memory of every pair, the largest pairs run first (pairs of similar size stay in locality order)
+		// and pairs only start if their memory fits into the budget
+		final HashMap< Pair< Group< V >, Group< V > >, Long > pairBytes = new HashMap<>();
+		for ( final Pair< Group< V >, Group< V > > p : toCompute )
+			pairBytes.put( p, estimatePairBytes( p, pairOverlaps.get( p ), params, vrs, sd, downsamplingFactors ) );
+
+		toCompute.sort( ( p1, p2 ) -> Integer.compare( costBucket( pairBytes.get( p2 ) ), costBucket( pairBytes.get( p1 ) ) ) );
+
+		// one budget for the pairs, the loaded (and prefetched) views and the cached tile FFTs of this run, concurrent runs
+		// have their own budgets and caches
+		final MemoryBudget memoryBudget = new MemoryBudget( params.pairMemoryBudget > 0 ? params.pairMemoryBudget : MemoryBudget.defaultMaxBytes() );
+
+		// the FFT of every tile is computed only once for all its pairs
+		final TileFFTCache fftCache = params.useTileFFTCache ? new TileFFTCache( memoryBudget ) : null;
+
+		// loaded views are shared between pairs
+		final TileCache tileCache = params.useTileCache ? new TileCache( memoryBudget ) : null;
+
 		IJ.showProgress( 0.0 );
 		
-		for ( final Pair< Group< V >, Group< V > > p : pairs )
+		for ( final Pair< Group< V >, Group< V > > p : toCompute )
 		{
-			tasks.add( new Callable< Pair< Pair< Group< V >, Group< V > >, Pair<Pair< AffineGet, Double >, RealInterval> > >()
+			tasks.add( withMemoryBudget( new Callable< Pair< Pair< Group< V >, Group< V > >, Pair<Pair< AffineGet, Double >, RealInterval> > >()
 			{
 				@Override
 				public Pair< Pair< Group< V >, Group< V > >, Pair<Pair< AffineGet, Double >, RealInterval> > call() throws Exception
 				{
 					Pair<Pair< AffineGet, Double >, RealInterval> result = null;
 
-					final ExecutorService serviceLocal = Executors.newFixedThreadPool( Math.max( 2, Runtime.getRuntime().availableProcessors() / 4 ) );
-
 					// TODO: do non-equal transformation registration when views within a group have differing transformations
 					final ViewId firstVdA = p.getA().iterator().next();
 					final ViewId firstVdB = p.getB().iterator().next();
@@ -575,7 +1310,10 @@ public class TransformationTools
 								sd,
 								gva,
 								downsamplingFactors,
-								serviceLocal );
+								service,
+								fftCache,
+								tileCache,
+								pairOverlaps.get( p ) );
 					}
 					else
 					{
@@ -587,12 +1325,10 @@ public class TransformationTools
 								sd,
 								gva,
 								downsamplingFactors,
-								serviceLocal );
+								service );
 						System.out.println( "non translations NOT equal, using virtually fused views for stitching" );
 					}
 
-					serviceLocal.shutdown();
-
 					// show progress in ImageJ progress bar (TODO: should we really do this here or leave it GUI-independent?)
 					int nCompletedI = nCompleted.incrementAndGet();
 					IJ.showProgress( (double) nCompletedI / nComparisions );
@@ -604,58 +1340,91 @@ public class TransformationTools
 
 					return new ValuePair<>( p,  result );
 				}
-			});
+			}, pairBytes.get( p ), memoryBudget ) );
 		}
 
-		final ArrayList< PairwiseStitchingResult< ViewId > > results = new ArrayList<>();
+		final ArrayList< PairwiseStitchingResult< ViewId > > results = new ArrayList<>( resumedResults );
 
-		final int batchSize = Math.max( 2, Threads.numThreads() / 6 );
+		// FFT buffers are re-used between pairs of the same padded size (the pool is shared with concurrent runs)
+		final FFTWorkspacePool fftPool = FFTWorkspacePool.getSharedPool();
+		final long fftPoolHits = fftPool.getHits();
+		final long fftPoolMisses = fftPool.getMisses();
 
-		IOFunctions.println( "Computing overlap for: " + batchSize + " pairs of images at once (in total " + Threads.numThreads() + " threads." );
+		// every view is loaded once for the union of the regions all its pairs need
+		final List< List< TilePrefetcher.Load > > schedule = new ArrayList<>();
+		if ( params.useTileCache )
+		{
+			for ( final Pair< Group< V >, Group< V > > p : toCompute )
+				schedule.add( getTileLoads( p, pairOverlaps.get( p ), params, vrs, sd, gva, downsamplingFactors ) );
+
+			schedule.forEach( loads -> loads.forEach( tileCache::planRegion ) );
+		}
+
+		// load the views of the next pairs while the current ones are computed (the pyramid loads several levels, not prefetched)
+		final TilePrefetcher prefetcher;
+		if ( params.useTileCache && params.prefetchPairs > 0 && params.pyramidLevels == 0 )
+		{
+			prefetcher = new TilePrefetcher( tileCache, schedule, params.prefetchPairs, params.prefetchIOThreads );
+			prefetcher.start();
+		}
+		else
+		{
+			prefetcher = null;
+		}
+
+		IOFunctions.println( "Computing " + tasks.size() + " pairs, largest pair ~" + ( pairBytes.values().stream().mapToLong( Long::longValue ).max().orElse( 0 ) / ( 1024 * 1024 ) )
+				+ " MB, memory budget " + ( memoryBudget.getMaxBytes() / ( 1024 * 1024 ) ) + " MB." );
+
+		final ArrayList< Future< ? > > futures = new ArrayList<>();
+		runningComputations.incrementAndGet();
 
 		try
 		{
-			for ( final ArrayList< Callable< Pair< Pair< Group< V >, Group< V > >, Pair<Pair< AffineGet, Double >, RealInterval> > > > part : Threads.splitTasks( tasks, batchSize ) )
-				for ( final Future< Pair< Pair< Group< V >, Group< V > >, Pair<Pair< AffineGet, Double >, RealInterval> > > future : serviceGlobal.invokeAll( part ) )
-				{
-				// wait for task to complete
-				final Pair< Pair< Group< V >, Group< V > >, Pair<Pair< AffineGet, Double >, RealInterval> > result = future.get();
-
-				if (result.getB() == null)
-					continue;
-				
-				/*
-				final ViewRegistration vrA = vrs.getViewRegistration( result.getA().getA().iterator().next() );
-				final ViewRegistration vrB = vrs.getViewRegistration( result.getA().getB().iterator().next() );
-				
-				// get non-translation transform between the initial location of groupA
-				Pair< AffineGet, TranslationGet > initialTransformsA = TransformTools.getInitialTransforms( vrA, false, new AffineTransform3D() );
-
-				// apply to shift vector
-				// FIXME: this only works for scaling, we need to do something different about rotations, etc.
-				boolean nonTranslationsEqual = TransformTools.nonTranslationsEqual(vrA, vrB);
-				if (nonTranslationsEqual)
-					initialTransformsA.getA().apply( result.getB().getA().getA(), result.getB().getA().getA() );
-
-				 */
-				
-				AffineTransform3D resT = new AffineTransform3D();
-				resT.preConcatenate( result.getB().getA().getA() );
-
-				// TODO: can we get rid of this ugly cast
-				Group< ViewId > groupA = new Group<ViewId>(result.getA().getA().getViews().stream().map( x -> (ViewId) x ).collect( Collectors.toList() ));
-				Group< ViewId > groupB = new Group<ViewId>(result.getA().getB().getViews().stream().map( x -> (ViewId) x ).collect( Collectors.toList() ));
-
-				// TODO: when does that really happen?
-				if ( result.getB() != null)
+			// a pair is queued once its memory fits into the budget, admission happens in this thread
+			// so that no thread of the pool is blocked waiting for memory; finished pairs are collected
+			// in between, so results are published while the remaining pairs wait for memory
+			final ExecutorCompletionService< Pair< Pair< Group< V >, Group< V > >, Pair<Pair< AffineGet, Double >, RealInterval> > > completionService =
+					new ExecutorCompletionService<>( SharedExecutor.getTaskExecutor() );
+			final HashMap< Pair< Group< V >, Group< V > >, PairwiseStitchingResult< ViewId > > computed = new HashMap<>();
+			int pending = 0;
+
+			for ( int i = 0; i < tasks.size(); ++i )
+			{
+				final long bytes = pairBytes.get( toCompute.get( i ) );
+
+				while ( !memoryBudget.tryAcquire( bytes ) )
 				{
-					final double oldTransformHash = PairwiseStitchingResult.calculateHash(
-							vrs.getViewRegistration( groupA.getViews().iterator().next() ),
-							vrs.getViewRegistration( groupB.getViews().iterator().next() ) );
+					if ( pending == 0 )
+					{
+						memoryBudget.acquire( bytes );
+						break;
+					}
 
-					results.add( new PairwiseStitchingResult<>( new ValuePair<>(groupA, groupB), result.getB().getB(),  resT, result.getB().getA().getB(), oldTransformHash ) );
+					collectResult( completionService.take(), computed, vrs, listener );
+					--pending;
+				}
+
+				final Callable< Pair< Pair< Group< V >, Group< V > >, Pair<Pair< AffineGet, Double >, RealInterval> > > task =
+						journal == null ? tasks.get( i ) : withJournal( tasks.get( i ), journal, vrs );
+
+				futures.add( completionService.submit( prefetcher == null ? task : prefetcher.wrap( i, task ) ) );
+				++pending;
+
+				// publish whatever is done already
+				for ( Future< Pair< Pair< Group< V >, Group< V > >, Pair<Pair< AffineGet, Double >, RealInterval> > > done = completionService.poll(); done != null; done = completionService.poll() )
+				{
+					collectResult( done, computed, vrs, listener );
+					--pending;
 				}
 			}
+
+			for ( ; pending > 0; --pending )
+				collectResult( completionService.take(), computed, vrs, listener );
+
+			// keep the results in the order of the pairs
+			for ( final Pair< Group< V >, Group< V > > p : toCompute )
+				if ( computed.get( p ) != null )
+					results.add( computed.get( p ) );
 		}
 		catch ( final Exception e )
 		{
@@ -663,6 +1432,40 @@ public class TransformationTools
 			e.printStackTrace();
 			return null;
 		}
+		finally
+		{
+			// do not compute the remaining pairs if one failed
+			futures.forEach( f -> f.cancel( true ) );
+
+			if ( journal != null )
+				journal.close();
+
+			if ( prefetcher != null )
+				prefetcher.close();
+
+			// do not keep the idle buffers around after the last concurrent run is done
+			if ( runningComputations.decrementAndGet() == 0 )
+				fftPool.clear();
+
+			if ( fftCache != null )
+				fftCache.close();
+
+			if ( tileCache != null )
+				tileCache.clear();
+		}
+
+		final long fftHits = fftPool.getHits() - fftPoolHits;
+		final long fftMisses = fftPool.getMisses() - fftPoolMisses;
+		IOFunctions.println( new Date( System.currentTimeMillis() ) + ": Re-used FFT buffers for " + fftHits + " of "
+				+ ( fftHits + fftMisses ) + " phase correlations." );
+
+		if ( fftCache != null )
+			IOFunctions.println( new Date( System.currentTimeMillis() ) + ": Re-used tile FFTs " + fftCache.getHits() + " times, computed "
+					+ fftCache.getMisses() + " tile FFTs." );
+
+		if ( params.useTileCache )
+			IOFunctions.println( new Date( System.currentTimeMillis() ) + ": Re-used loaded views " + tileCache.getHits() + " times, loaded "
+					+ tileCache.getMisses() + " views." );
 
 		return results;
 	}
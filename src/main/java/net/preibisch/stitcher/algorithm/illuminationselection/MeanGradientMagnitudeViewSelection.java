@@ -8,7 +8,6 @@ import java.util.Vector;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 import java.util.concurrent.atomic.AtomicInteger;
 
@@ -28,11 +27,11 @@ import net.imglib2.util.Util;
 import net.imglib2.view.ExtendedRandomAccessibleInterval;
 import net.imglib2.view.IntervalView;
 import net.imglib2.view.Views;
-import net.preibisch.mvrecon.Threads;
 import net.preibisch.mvrecon.fiji.spimdata.stitchingresults.VectorUtil;
 import net.preibisch.mvrecon.process.fusion.FusionTools;
 import net.preibisch.mvrecon.process.fusion.ImagePortion;
 import net.preibisch.mvrecon.process.interestpointregistration.pairwise.constellation.grouping.Group;
+import net.preibisch.stitcher.algorithm.SharedExecutor;
 
 public class MeanGradientMagnitudeViewSelection extends BasicViewSelection<ViewId> implements ViewSelection<ViewId> {
 
@@ -120,7 +119,7 @@ public class MeanGradientMagnitudeViewSelection extends BasicViewSelection<ViewI
 
 		final Vector<ImagePortion> portions = FusionTools.divideIntoPortions(Views.iterable(image).size());
 		final AtomicInteger ai = new AtomicInteger(0);
-		final ExecutorService service = Executors.newFixedThreadPool(Threads.numThreads());
+		final ExecutorService service = SharedExecutor.getService();
 
 		final ArrayList<Callable<Double>> calls = new ArrayList<Callable<Double>>();
 
@@ -176,7 +175,6 @@ public class MeanGradientMagnitudeViewSelection extends BasicViewSelection<ViewI
 				e.printStackTrace();
 			}
 		
-		service.shutdown();
 		return res / Views.iterable(image).size();		
 	}
 
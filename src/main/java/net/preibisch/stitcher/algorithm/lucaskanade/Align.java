@@ -27,7 +27,6 @@ import java.util.List;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 import java.util.concurrent.atomic.AtomicInteger;
 
@@ -66,6 +65,7 @@ import net.imglib2.util.ValuePair;
 import net.imglib2.view.Views;
 import net.preibisch.mvrecon.process.boundingbox.BoundingBoxMaximalGroupOverlap;
 import net.preibisch.mvrecon.process.interestpointdetection.methods.downsampling.Downsample;
+import net.preibisch.stitcher.algorithm.SharedExecutor;
 import net.preibisch.stitcher.algorithm.TransformTools;
 
 public class Align<T extends RealType< T >>
@@ -246,7 +246,7 @@ public class Align<T extends RealType< T >>
 			final double minParameterChange)
 	{
 		lastAlignConverged = false;
-		ExecutorService service = Executors.newFixedThreadPool( Runtime.getRuntime().availableProcessors() * 2);
+		final ExecutorService service = SharedExecutor.getService();
 
 		currentTransform.set( new AffineTransform( n ) );
 		int i = 0;
@@ -266,7 +266,7 @@ public class Align<T extends RealType< T >>
 	double alignStep(final RandomAccessibleInterval< T > image, ExecutorService service)
 	{
 		// compute error image = warped image - template
-		computeDifference( Views.extendBorder( image ), currentTransform, template, error, service, Runtime.getRuntime().availableProcessors() * 2 );
+		computeDifference( Views.extendBorder( image ), currentTransform, template, error, service, SharedExecutor.numSplits( service ) );
 
 		// compute transform parameter update
 		final double[] gradient = new double[numParameters];
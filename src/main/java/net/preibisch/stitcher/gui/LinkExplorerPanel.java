@@ -62,6 +62,7 @@ import net.preibisch.mvrecon.fiji.spimdata.stitchingresults.PairwiseStitchingRes
 import net.preibisch.mvrecon.fiji.spimdata.stitchingresults.StitchingResults;
 import net.preibisch.mvrecon.process.interestpointregistration.pairwise.constellation.grouping.Group;
 import net.preibisch.stitcher.algorithm.FilteredStitchingResults;
+import net.preibisch.stitcher.algorithm.StitchingResultsPublisher;
 import net.preibisch.stitcher.gui.popup.LinkExplorerRemoveLinkPopup;
 
 public class LinkExplorerPanel extends JPanel implements SelectedViewDescriptionListener< AbstractSpimData<?> >
@@ -124,6 +125,7 @@ public class LinkExplorerPanel extends JPanel implements SelectedViewDescription
 
 		model = new LinkExplorerTableModel( parent.getDemoLinkOverlay() );
 		model.setStitchingResults( results );
+		StitchingResultsPublisher.addListener( model );
 
 		table = new JTable();
 		table.setModel( model );
@@ -288,7 +290,11 @@ public class LinkExplorerPanel extends JPanel implements SelectedViewDescription
 		});
 
 		applyButton.addActionListener( ev -> {
-			final int sizeUnfiltered = model.getStitchingResults().getPairwiseResults().size();
+			final int sizeUnfiltered;
+			synchronized ( model.getStitchingResults() )
+			{
+				sizeUnfiltered = model.getStitchingResults().getPairwiseResults().size();
+			}
 			final int sizeFiltered = model.getFilteredResults().getPairwiseResults().size();
 			IOFunctions.println( "Removing " + ( sizeUnfiltered - sizeFiltered ) + " of " + sizeUnfiltered + " links." );
 			final List< ? extends Pair< ? extends Group< ? extends ViewId >, ? extends Group< ? extends ViewId > > > pairs = 
@@ -298,7 +304,11 @@ public class LinkExplorerPanel extends JPanel implements SelectedViewDescription
 		});
 
 		applyAndRunButton.addActionListener( ev -> {
-			final int sizeUnfiltered = model.getStitchingResults().getPairwiseResults().size();
+			final int sizeUnfiltered;
+			synchronized ( model.getStitchingResults() )
+			{
+				sizeUnfiltered = model.getStitchingResults().getPairwiseResults().size();
+			}
 			final int sizeFiltered = model.getFilteredResults().getPairwiseResults().size();
 			IOFunctions.println( "Removing " + ( sizeUnfiltered - sizeFiltered ) + " of " + sizeUnfiltered + " links." );
 			final List< ? extends Pair< ? extends Group< ? extends ViewId >, ? extends Group< ? extends ViewId > > > pairs = 
@@ -28,16 +28,19 @@ import java.util.List;
 import java.util.Set;
 import java.util.stream.Collectors;
 
+import javax.swing.SwingUtilities;
 import javax.swing.table.AbstractTableModel;
 
 import mpicbg.spim.data.sequence.ViewId;
 import net.imglib2.util.Pair;
+import net.preibisch.mvrecon.fiji.spimdata.stitchingresults.PairwiseStitchingResult;
 import net.preibisch.mvrecon.fiji.spimdata.stitchingresults.StitchingResults;
 import net.preibisch.mvrecon.process.interestpointregistration.pairwise.constellation.grouping.Group;
 import net.preibisch.stitcher.algorithm.FilteredStitchingResults;
+import net.preibisch.stitcher.algorithm.PairwiseResultListener;
 import net.preibisch.stitcher.gui.overlay.DemoLinkOverlay;
 
-public class LinkExplorerTableModel extends AbstractTableModel implements StitchingResultsSettable
+public class LinkExplorerTableModel extends AbstractTableModel implements StitchingResultsSettable, PairwiseResultListener
 {
 
 	
@@ -152,6 +155,31 @@ public class LinkExplorerTableModel extends AbstractTableModel implements Stitch
 		this.filteredResults = new FilteredStitchingResults( results, demoLinkOverlay );
 	}
 
+	// called while pairwise stitching is running, update the table in the event dispatch thread
+	@Override
+	public void pairwiseResultAvailable( final PairwiseStitchingResult< ViewId > result )
+	{
+		updateLater();
+	}
+
+	@Override
+	public void pairwiseResultFailed( final Pair< Group< ViewId >, Group< ViewId > > pair )
+	{
+		updateLater();
+	}
+
+	private void updateLater()
+	{
+		SwingUtilities.invokeLater( () ->
+		{
+			if ( filteredResults == null )
+				return;
+
+			filteredResults.updateFilteredResults();
+			fireTableDataChanged();
+		});
+	}
+
 	@Override
 	public void fireTableDataChanged()
 	{
@@ -118,7 +118,9 @@ import net.preibisch.mvrecon.fiji.spimdata.interestpoints.ViewInterestPoints;
 import net.preibisch.mvrecon.fiji.spimdata.stitchingresults.PairwiseStitchingResult;
 import net.preibisch.mvrecon.fiji.spimdata.stitchingresults.StitchingResults;
 import net.preibisch.mvrecon.process.interestpointregistration.pairwise.constellation.grouping.Group;
+import net.preibisch.stitcher.algorithm.PairwiseProvenance;
 import net.preibisch.stitcher.algorithm.SpimDataFilteringAndGrouping;
+import net.preibisch.stitcher.algorithm.StitchingResultsPublisher;
 import net.preibisch.stitcher.algorithm.globalopt.ExecuteGlobalOpt;
 import net.preibisch.stitcher.gui.bdv.BDVFlyThrough;
 import net.preibisch.stitcher.gui.bdv.BDVVisibilityHandlerNeighborhood;
@@ -185,6 +187,9 @@ public class StitchingExplorerPanel<AS extends AbstractSpimData< ? >, X extends
 
 		addListener( (SelectedViewDescriptionListener) demoLinkOverlay );
 
+		// show links as soon as they are computed
+		StitchingResultsPublisher.addListener( demoLinkOverlay );
+
 		popups = initPopups();
 		initComponent();
 
@@ -265,6 +270,7 @@ public class StitchingExplorerPanel<AS extends AbstractSpimData< ? >, X extends
 			linkFrame.dispose();
 			linkFrame = null;
 			this.getListeners().remove( linkExplorer );
+			StitchingResultsPublisher.removeListener( linkExplorer.getModel() );
 			linkExplorer = null;
 		}
 	}
@@ -1094,6 +1100,9 @@ public class StitchingExplorerPanel<AS extends AbstractSpimData< ? >, X extends
 		{
 			io.save( data, xml );
 
+			if ( SpimData2.class.isInstance( data ) )
+				PairwiseProvenance.save( (SpimData2) data, xml );
+
 			for ( final SelectedViewDescriptionListener< AS > l : listeners )
 				l.save();
 
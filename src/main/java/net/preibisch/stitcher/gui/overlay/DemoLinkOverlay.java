@@ -30,6 +30,7 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
 
+import bdv.viewer.ViewerPanel;
 import mpicbg.spim.data.generic.AbstractSpimData;
 import mpicbg.spim.data.generic.sequence.BasicViewDescription;
 import mpicbg.spim.data.generic.sequence.BasicViewSetup;
@@ -43,11 +44,14 @@ import net.imglib2.util.Pair;
 import net.imglib2.util.ValuePair;
 import net.preibisch.mvrecon.fiji.spimdata.explorer.SelectedViewDescriptionListener;
 import net.preibisch.mvrecon.fiji.spimdata.stitchingresults.PairwiseLinkInterface;
+import net.preibisch.mvrecon.fiji.spimdata.stitchingresults.PairwiseStitchingResult;
 import net.preibisch.mvrecon.process.interestpointregistration.pairwise.constellation.grouping.Group;
 import net.preibisch.mvrecon.process.interestpointregistration.pairwise.constellation.overlap.SimpleBoundingBoxOverlap;
+import net.preibisch.stitcher.algorithm.PairwiseResultListener;
+import net.preibisch.stitcher.algorithm.StitchingResultsPublisher;
 import net.preibisch.stitcher.algorithm.globalopt.TransformationTools;
 
-public class DemoLinkOverlay implements OverlayRenderer, TransformListener< AffineTransform3D >, SelectedViewDescriptionListener< AbstractSpimData<?> >
+public class DemoLinkOverlay implements OverlayRenderer, TransformListener< AffineTransform3D >, SelectedViewDescriptionListener< AbstractSpimData<?> >, PairwiseResultListener
 {
 	final private ArrayList< Pair< Group< ViewId >, Group< ViewId > > > lastFilteredResults, lastInconsistentResults;
 	private PairwiseLinkInterface results;
@@ -55,6 +59,7 @@ public class DemoLinkOverlay implements OverlayRenderer, TransformListener< Affi
 	private AffineTransform3D viewerTransform;
 	public boolean isActive;
 	private ArrayList<Pair<Group<ViewId>, Group<ViewId>>> activeLinks; //currently selected in the GUI
+	private volatile ViewerPanel viewer; // to repaint when new results come in, can be null
 
 	final Stroke dashed = new BasicStroke( 1, BasicStroke.CAP_BUTT, BasicStroke.JOIN_BEVEL, 0, new float[]{4}, 0 );
 	final Stroke thin = new BasicStroke( 1 );
@@ -76,6 +81,30 @@ public class DemoLinkOverlay implements OverlayRenderer, TransformListener< Affi
 		this.results = pli;
 	}
 
+	public void setViewer( final ViewerPanel viewer )
+	{
+		this.viewer = viewer;
+	}
+
+	// called while pairwise stitching is running
+	@Override
+	public void pairwiseResultAvailable( final PairwiseStitchingResult< ViewId > result )
+	{
+		final ViewerPanel viewer = this.viewer;
+
+		if ( isActive && viewer != null )
+			viewer.requestRepaint();
+	}
+
+	@Override
+	public void pairwiseResultFailed( final Pair< Group< ViewId >, Group< ViewId > > pair )
+	{
+		final ViewerPanel viewer = this.viewer;
+
+		if ( isActive && viewer != null )
+			viewer.requestRepaint();
+	}
+
 	// called by FilteredStitchingResults
 	public ArrayList< Pair< Group< ViewId >, Group< ViewId > > > getFilteredResults()
 	{
@@ -101,6 +130,13 @@ public class DemoLinkOverlay implements OverlayRenderer, TransformListener< Affi
 		if (!isActive || activeLinks.size() == 0)
 			return;
 
+		// results may be added while we draw (see StitchingResultsPublisher)
+		final ArrayList< Pair< Group< ViewId >, Group< ViewId > > > links;
+		synchronized ( results )
+		{
+			links = new ArrayList<>( results.getPairwiseLinks() );
+		}
+
 		for ( Pair<Group<ViewId>, Group<ViewId>> p: activeLinks)
 		{
 			if ( spimData.getSequenceDescription().getMissingViews() != null )
@@ -188,7 +224,7 @@ public class DemoLinkOverlay implements OverlayRenderer, TransformListener< Affi
 				g.setColor( Color.RED );
 				if ( g2d != null ) g2d.setStroke( dashed );
 			}
-			else if ( overlapsWith( p, results.getPairwiseLinks() ) )
+			else if ( overlapsWith( p, links ) )
 			{
 				g.setColor( Color.GREEN );
 				if ( g2d != null ) g2d.setStroke( thick );
@@ -294,6 +330,7 @@ public class DemoLinkOverlay implements OverlayRenderer, TransformListener< Affi
 	@Override
 	public void quit()
 	{
+		StitchingResultsPublisher.removeListener( this );
 	}
 
 }
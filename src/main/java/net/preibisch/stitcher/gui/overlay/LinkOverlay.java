@@ -27,9 +27,11 @@ import java.awt.Graphics;
 import java.awt.Graphics2D;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.Queue;
 import java.util.Set;
 
@@ -184,11 +186,17 @@ public class LinkOverlay implements OverlayRenderer, TransformListener< AffineTr
 			return;
 		
 		final Graphics2D graphics = ( Graphics2D ) g;
-		
-		
+
+		// pairwise stitching might add results while we draw (see StitchingResultsPublisher), draw a copy
+		final Map< Pair< Group< ViewId >, Group< ViewId > >, PairwiseStitchingResult< ViewId > > pairwiseResults;
+		synchronized ( stitchingResults )
+		{
+			pairwiseResults = new HashMap<>( stitchingResults.getPairwiseResults() );
+		}
+
 		double maxr = 0.0;
 		double minr = Double.MAX_VALUE;
-		for (PairwiseStitchingResult<ViewId> sr : stitchingResults.getPairwiseResults().values())
+		for (PairwiseStitchingResult<ViewId> sr : pairwiseResults.values())
 		{
 			maxr = Math.max( maxr, sr.r() );
 			minr = Math.min( minr, sr.r() );
@@ -198,7 +206,7 @@ public class LinkOverlay implements OverlayRenderer, TransformListener< AffineTr
 		
 		final Set< ViewId > outlinedViews = new HashSet<>();
 		
-		for (Pair< Group<ViewId>, Group<ViewId> > p : stitchingResults.getPairwiseResults().keySet())
+		for (Pair< Group<ViewId>, Group<ViewId> > p : pairwiseResults.keySet())
 		{
 			if (activeLinks.size() > 0 && !(activeLinks.contains( p )))
 				continue;
@@ -230,9 +238,9 @@ public class LinkOverlay implements OverlayRenderer, TransformListener< AffineTr
 			vt2.apply( lPos2, lPos2 );
 			
 			if (!p.getA().equals( reference ))
-				stitchingResults.getPairwiseResults().get( p ).getTransform().applyInverse( lPos2, lPos2 );
+				pairwiseResults.get( p ).getTransform().applyInverse( lPos2, lPos2 );
 			if (!p.getB().equals( reference ))
-				stitchingResults.getPairwiseResults().get( p ).getTransform().apply( lPos1, lPos1 );
+				pairwiseResults.get( p ).getTransform().apply( lPos1, lPos1 );
 
 			viewerTransform.apply( lPos1, gPos1 );
 			viewerTransform.apply( lPos2, gPos2 );
@@ -241,7 +249,7 @@ public class LinkOverlay implements OverlayRenderer, TransformListener< AffineTr
 			if (p.equals( selectedLink ))
 				graphics.setColor( Color.WHITE );
 			else
-				graphics.setColor( getColor( stitchingResults.getPairwiseResults().get( p ).r(), maxr, minr ) );
+				graphics.setColor( getColor( pairwiseResults.get( p ).r(), maxr, minr ) );
 			
 			graphics.setStroke( new BasicStroke( 2.0f ) );
 			graphics.drawLine((int) gPos1[0],(int) gPos1[1],(int) gPos2[0],(int) gPos2[1] );
@@ -259,7 +267,7 @@ public class LinkOverlay implements OverlayRenderer, TransformListener< AffineTr
 				final AffineTransform3D registration = spimData.getViewRegistrations().getViewRegistration( vid ).getModel();
 				final AffineTransform3D finalTransform = 
 						registration.copy()
-						.preConcatenate( isReference ? new AffineTransform3D() : stitchingResults.getPairwiseResults().get( p ).getInverseTransform() )
+						.preConcatenate( isReference ? new AffineTransform3D() : pairwiseResults.get( p ).getInverseTransform() )
 						.preConcatenate( viewerTransform );
 
 				drawViewOutlines( graphics, dims, finalTransform, p.equals( selectedLink ) ? Color.MAGENTA : Color.GRAY );
@@ -280,7 +288,7 @@ public class LinkOverlay implements OverlayRenderer, TransformListener< AffineTr
 						.getModel();
 				final AffineTransform3D finalTransform = 
 						registration.copy()
-						.preConcatenate( isReference ? new AffineTransform3D() : stitchingResults.getPairwiseResults().get( p ).getTransform() )
+						.preConcatenate( isReference ? new AffineTransform3D() : pairwiseResults.get( p ).getTransform() )
 						.preConcatenate( viewerTransform );
 
 				drawViewOutlines( graphics, dims, finalTransform, p.equals( selectedLink ) ? Color.GREEN : Color.GRAY );
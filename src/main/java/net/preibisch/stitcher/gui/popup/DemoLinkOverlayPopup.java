@@ -98,6 +98,8 @@ public class DemoLinkOverlayPopup extends JMenuItem implements ExplorerWindowSet
 			for ( int i = 0; i < Math.min( oldColors.size(), bdv.getSetupAssignments().getConverterSetups().size() ); ++i )
 				bdv.getSetupAssignments().getConverterSetups().get( i ).setColor( oldColors.get( i ) );
 
+			overlay.setViewer( active ? bdv.getViewer() : null );
+
 			if (active)
 			{
 				bdv.getViewer().addTransformListener( overlay );
@@ -71,7 +71,13 @@ public class VerifyLinksPopup extends JMenu implements ExplorerWindowSetable
 		// remove all pairwise results
 		removeAll.addActionListener( a -> {
 			if (SpimData2.class.isInstance( panel.getSpimData() ))
-				((SpimData2)panel.getSpimData()).getStitchingResults().getPairwiseResults().clear();
+			{
+				final StitchingResults sr = ((SpimData2)panel.getSpimData()).getStitchingResults();
+				synchronized ( sr )
+				{
+					sr.getPairwiseResults().clear();
+				}
+			}
 
 			if ( overlap != null )
 			{
@@ -88,13 +94,20 @@ public class VerifyLinksPopup extends JMenu implements ExplorerWindowSetable
 			{
 				StitchingResults sr = ((SpimData2)panel.getSpimData()).getStitchingResults();
 				List< List< ViewId > > selected = ((GroupedRowWindow)panel).selectedRowsViewIdGroups();
-				ArrayList< Pair< Group< ViewId >, Group< ViewId > > > pairs = new ArrayList<>(sr.getPairwiseResults().keySet());
+				final ArrayList< Pair< Group< ViewId >, Group< ViewId > > > pairs;
+				synchronized ( sr )
+				{
+					pairs = new ArrayList<>(sr.getPairwiseResults().keySet());
+				}
 				for (int i = 0; i<selected.size(); i++)
 				{
 					Group< ViewId > grp = new Group<>(selected.get(i));
-					for (Pair<Group<ViewId>, Group<ViewId>> p : pairs)
-						if (p.getA().equals( grp ) || p.getB().equals( grp ))
-							sr.removePairwiseResultForPair( p );
+					synchronized ( sr )
+					{
+						for (Pair<Group<ViewId>, Group<ViewId>> p : pairs)
+							if (p.getA().equals( grp ) || p.getB().equals( grp ))
+								sr.removePairwiseResultForPair( p );
+					}
 
 					if ( overlap != null )
 					{
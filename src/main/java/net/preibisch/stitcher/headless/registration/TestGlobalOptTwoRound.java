@@ -97,7 +97,7 @@ public class TestGlobalOptTwoRound
 
 		// the result are shifts relative to the current registration of the dataset!
 		// that's because we find overlapping areas in global coordinates for which we run the Stitching
-		final List< ? extends Pair< ? extends Group< ? extends ViewId >, ? extends Group< ? extends ViewId > > > pairs = filteringAndGrouping.getComparisons();
+		final List< ? extends Pair< ? extends Group< ? extends ViewId >, ? extends Group< ? extends ViewId > > > pairs = filteringAndGrouping.getOverlappingComparisons();
 		final ArrayList< PairwiseStitchingResult< ViewId > > pairwiseResults = TransformationTools.computePairs(
 				(List<Pair<Group<ViewId>, Group<ViewId>>>) pairs,
 				params, filteringAndGrouping.getSpimData().getViewRegistrations(), 
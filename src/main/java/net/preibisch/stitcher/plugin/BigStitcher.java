@@ -35,6 +35,7 @@ import net.preibisch.mvrecon.fiji.plugin.queryXML.GenericLoadParseQueryXML;
 import net.preibisch.mvrecon.fiji.plugin.queryXML.LoadParseQueryXML;
 import net.preibisch.mvrecon.fiji.spimdata.SpimData2;
 import net.preibisch.mvrecon.fiji.spimdata.XmlIoSpimData2;
+import net.preibisch.stitcher.algorithm.PairwiseProvenance;
 import net.preibisch.stitcher.gui.StitchingExplorer;
 
 import org.scijava.command.Command;
@@ -78,6 +79,10 @@ public class BigStitcher implements Command, PlugIn
 		final String xml = result.getXMLFileName();
 		final XmlIoSpimData2 io = result.getIO();
 
+		// provenance of the pairwise results, so they are not recomputed needlessly
+		if ( data != null && xml != null )
+			PairwiseProvenance.load( data, xml );
+
 		final StitchingExplorer< SpimData2, XmlIoSpimData2 > explorer =
 				new StitchingExplorer< >( data, xml, io );
 
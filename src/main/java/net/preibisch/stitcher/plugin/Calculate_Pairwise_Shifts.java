@@ -62,8 +62,11 @@ import net.preibisch.mvrecon.process.boundingbox.BoundingBoxMaximalGroupOverlap;
 import net.preibisch.mvrecon.process.interestpointregistration.pairwise.PairwiseResult;
 import net.preibisch.mvrecon.process.interestpointregistration.pairwise.constellation.PairwiseSetup;
 import net.preibisch.mvrecon.process.interestpointregistration.pairwise.constellation.grouping.Group;
+import net.preibisch.stitcher.algorithm.PairwiseProvenance;
+import net.preibisch.stitcher.algorithm.PairwiseResultListener;
 import net.preibisch.stitcher.algorithm.PairwiseStitchingParameters;
 import net.preibisch.stitcher.algorithm.SpimDataFilteringAndGrouping;
+import net.preibisch.stitcher.algorithm.StitchingResultsPublisher;
 import net.preibisch.stitcher.algorithm.globalopt.TransformationTools;
 import net.preibisch.stitcher.algorithm.lucaskanade.LucasKanadeParameters;
 import net.preibisch.stitcher.algorithm.lucaskanade.LucasKanadeParameters.WarpFunctionType;
@@ -91,6 +94,7 @@ public class Calculate_Pairwise_Shifts implements PlugIn
 			return;
 
 		final SpimData2 data = result.getData();
+		PairwiseProvenance.load( data, result.getXMLFileName() );
 		ArrayList< ViewId > selectedViews = SpimData2.getAllViewIdsSorted( result.getData(), result.getViewSetupsToProcess(), result.getTimePointsToProcess() );
 
 		final SpimDataFilteringAndGrouping< SpimData2 > grouping = new SpimDataFilteringAndGrouping<>( data );
@@ -159,6 +163,7 @@ public class Calculate_Pairwise_Shifts implements PlugIn
 
 		// update XML
 		SpimData2.saveXML( data, result.getXMLFileName(), result.getClusterExtension() );
+		PairwiseProvenance.save( data, result.getXMLFileName() );
 	}
 	
 	public static void main(String[] args)
@@ -172,41 +177,84 @@ public class Calculate_Pairwise_Shifts implements PlugIn
 			PairwiseStitchingParameters params,
 			long[] dsFactors)
 	{
-		// getpairs to compare
-		List< ? extends Pair< ? extends Group< ? extends ViewId >, ? extends Group< ? extends ViewId > > > pairs =  filteringAndGrouping.getComparisons();
+		// getpairs to compare (only those that overlap, the others would be skipped anyway)
+		final List< ? extends Pair< ? extends Group< ? extends ViewId >, ? extends Group< ? extends ViewId > > > overlappingPairs = filteringAndGrouping.getOverlappingComparisons();
+		List< ? extends Pair< ? extends Group< ? extends ViewId >, ? extends Group< ? extends ViewId > > > pairs = overlappingPairs;
 
-		// calculate
+		// skip pairs that were computed the same way and whose registrations did not change
+		final String fingerprint = PairwiseProvenance.fingerprint( params, dsFactors, filteringAndGrouping.getGroupedViewAggregator() );
+		if ( params.incremental )
+			pairs = PairwiseProvenance.getOutdatedPairs( pairs, data, fingerprint );
+
+		// pairs that are up to date keep their results
+		final Set< Pair< Group< ViewId >, Group< ViewId > > > upToDatePairs = new HashSet<>( toViewIdPairs( overlappingPairs ) );
+		upToDatePairs.removeAll( toViewIdPairs( pairs ) );
+
+		// old results are replaced (a -> b and b -> a) when the new result of the pair arrives, so they stay if we fail
+		final StitchingResultsPublisher publisher = new StitchingResultsPublisher( data.getStitchingResults() );
+
+		// calculate, StitchingResults are updated with every result as soon as it is computed
 		final ArrayList< PairwiseStitchingResult< ViewId > > results = TransformationTools.computePairs(
 				(List< Pair< Group< ViewId >, Group< ViewId > > >) pairs, params, filteringAndGrouping.getSpimData().getViewRegistrations(), 
 				filteringAndGrouping.getSpimData().getSequenceDescription(), filteringAndGrouping.getGroupedViewAggregator(),
-				dsFactors );
+				dsFactors,
+				new PairwiseResultListener()
+				{
+					@Override
+					public void pairwiseResultAvailable( final PairwiseStitchingResult< ViewId > psr )
+					{
+						PairwiseProvenance.setFingerprint( psr, fingerprint );
+						publisher.pairwiseResultAvailable( psr );
+					}
+
+					// remember pairs without a shift, so they are not computed again with the same settings
+					@Override
+					public void pairwiseResultFailed( final Pair< Group< ViewId >, Group< ViewId > > pair )
+					{
+						PairwiseProvenance.setFailed( data, pair, fingerprint );
+						publisher.pairwiseResultFailed( pair );
+					}
+				} );
+
+		if ( results == null )
+			return false;
 
-		// remove old results
+		removeResultsOfSkippedPairs( toViewIdPairs( filteringAndGrouping.getComparisons() ), upToDatePairs, results, publisher );
+		return true;
+	}
 
-		// this is just a cast of pairs to Group<ViewId>
-		final List< ValuePair< Group< ViewId >, Group< ViewId > > > castPairs = pairs.stream().map( p -> {
+	/*
+	 * this is just a cast of pairs to Group<ViewId>
+	 */
+	private static List< Pair< Group< ViewId >, Group< ViewId > > > toViewIdPairs(
+			final List< ? extends Pair< ? extends Group< ? extends ViewId >, ? extends Group< ? extends ViewId > > > pairs )
+	{
+		return pairs.stream().map( p -> {
 			final Group< ViewId > vidGroupA = new Group<>( p.getA().getViews().stream().map( v -> (ViewId) v ).collect( Collectors.toSet() ) );
 			final Group< ViewId > vidGroupB = new Group<>( p.getB().getViews().stream().map( v -> (ViewId) v ).collect( Collectors.toSet() ) );
-			return new ValuePair<>( vidGroupA, vidGroupB );
+			return (Pair< Group< ViewId >, Group< ViewId > >) new ValuePair<>( vidGroupA, vidGroupB );
 		}).collect( Collectors.toList() );
+	}
 
-		for (ValuePair< Group< ViewId >, Group< ViewId > > pair : castPairs)
-		{
-			// try to remove a -> b and b -> a, just to make sure
-			data.getStitchingResults().getPairwiseResults().remove( pair );
-			data.getStitchingResults().getPairwiseResults().remove( new ValuePair<>( pair.getB(), pair.getA() ) );
-		}
-
-		// update StitchingResults with Results
+	/*
+	 * after a successful run, the compared pairs without a new result (no shift found or skipped because they do not
+	 * overlap anymore) do not keep their old results, unless they were skipped because they are up to date
+	 */
+	private static void removeResultsOfSkippedPairs(
+			final List< Pair< Group< ViewId >, Group< ViewId > > > comparedPairs,
+			final Set< Pair< Group< ViewId >, Group< ViewId > > > upToDatePairs,
+			final List< PairwiseStitchingResult< ViewId > > results,
+			final StitchingResultsPublisher publisher )
+	{
+		final Set< Pair< Group< ViewId >, Group< ViewId > > > keep = new HashSet<>( upToDatePairs );
 		for ( final PairwiseStitchingResult< ViewId > psr : results )
-		{
-			if (psr == null)
-				continue;
+			keep.add( psr.pair() );
 
-			data.getStitchingResults().setPairwiseResultForPair(psr.pair(), psr );
-		}
+		// in both orders
+		for ( final Pair< Group< ViewId >, Group< ViewId > > p : new ArrayList<>( keep ) )
+			keep.add( new ValuePair<>( p.getB(), p.getA() ) );
 
-		return true;
+		publisher.removePairwiseResults( comparedPairs.stream().filter( p -> !keep.contains( p ) ).collect( Collectors.toList() ) );
 	}
 
 	public static boolean processLucasKanade(
@@ -215,11 +263,14 @@ public class Calculate_Pairwise_Shifts implements PlugIn
 			LucasKanadeParameters params,
 			long[] dsFactors)
 	{
-		// getpairs to compare
+		// getpairs to compare (only those that overlap, the others would be skipped anyway)
 		List< ? extends Pair< ? extends Group< ? extends ViewId >, ? extends Group< ? extends ViewId > > > pairs = filteringAndGrouping
-				.getComparisons();
+				.getOverlappingComparisons();
+
+		// old results are replaced (a -> b and b -> a) when the new result of the pair arrives, so they stay if we fail
+		final StitchingResultsPublisher publisher = new StitchingResultsPublisher( data.getStitchingResults() );
 
-		// calculate
+		// calculate, StitchingResults are updated with every result as soon as it is computed
 		final ArrayList< PairwiseStitchingResult< ViewId > > results = TransformationTools.computePairsLK(
 				(List< Pair< Group< ViewId >, Group< ViewId > > >) pairs,
 				params,
@@ -227,34 +278,13 @@ public class Calculate_Pairwise_Shifts implements PlugIn
 				filteringAndGrouping.getSpimData().getSequenceDescription(),
 				filteringAndGrouping.getGroupedViewAggregator(),
 				dsFactors,
-				new ProgressWriterIJ());
+				new ProgressWriterIJ(),
+				publisher );
 
-		// remove old results
-		// this is just a cast of pairs to Group<ViewId>
-		final List< ValuePair< Group< ViewId >, Group< ViewId > > > castPairs = pairs.stream().map( p -> {
-			final Group< ViewId > vidGroupA = new Group<>(
-					p.getA().getViews().stream().map( v -> (ViewId) v ).collect( Collectors.toSet() ) );
-			final Group< ViewId > vidGroupB = new Group<>(
-					p.getB().getViews().stream().map( v -> (ViewId) v ).collect( Collectors.toSet() ) );
-			return new ValuePair<>( vidGroupA, vidGroupB );
-		} ).collect( Collectors.toList() );
-
-		for ( ValuePair< Group< ViewId >, Group< ViewId > > pair : castPairs )
-		{
-			// try to remove a -> b and b -> a, just to make sure
-			data.getStitchingResults().getPairwiseResults().remove( pair );
-			data.getStitchingResults().getPairwiseResults().remove( new ValuePair<>( pair.getB(), pair.getA() ) );
-		}
-
-		// update StitchingResults with Results
-		for ( final PairwiseStitchingResult< ViewId > psr : results )
-		{
-			if ( psr == null )
-				continue;
-
-			data.getStitchingResults().setPairwiseResultForPair( psr.pair(), psr );
-		}
+		if ( results == null )
+			return false;
 
+		removeResultsOfSkippedPairs( toViewIdPairs( filteringAndGrouping.getComparisons() ), new HashSet<>(), results, publisher );
 		return true;
 	}
 
@@ -33,9 +33,12 @@ import net.imglib2.Localizable;
 import net.imglib2.Point;
 import net.imglib2.RandomAccess;
 import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImg;
 import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.basictypeaccess.array.FloatArray;
 import net.imglib2.img.display.imagej.ImageJFunctions;
 import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.IntervalIndexer;
 import net.imglib2.util.Pair;
 import net.imglib2.util.ValuePair;
 import net.imglib2.view.Views;
@@ -339,4 +342,42 @@ public class FourNeighborhoodExtremaTest
 		int i = 5;		
 		assertTrue( i == 5 );
 	}
+
+	@Test
+	public void testPeriodicArrayPeaksMT()
+	{
+		ArrayImg< FloatType, FloatArray > img = ArrayImgs.floats( 31, 20, 12 );
+		Random rnd = new Random( 4353 );
+		
+		for( FloatType t : img )
+			t.set( rnd.nextFloat() );
+		
+		// some peaks at the borders, they are only maxima with periodic boundaries
+		RandomAccess<FloatType> ra = img.randomAccess();
+		ra.setPosition(new long[]{0,0,0});
+		ra.get().set( 2.0f );
+		ra.setPosition(new long[]{30,19,11});
+		ra.get().set( 1.5f );
+		
+		int nMax = 10;
+		
+		ArrayList< Pair< Localizable, Double > > correct = FourNeighborhoodExtrema.findMax(Views.extendPeriodic(img), img, nMax);
+		FourNeighborhoodExtrema.PeakHeap found = FourNeighborhoodExtrema.findMaxPeriodicMT(img, nMax, Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors()));
+		
+		assertEquals(correct.size(), found.size());
+		
+		long[] dims = new long[img.numDimensions()];
+		img.dimensions(dims);
+		long[] posCorrect = new long[img.numDimensions()];
+		long[] posFound = new long[img.numDimensions()];
+		
+		for (int i = 0; i<found.size(); i++){
+			assertEquals(correct.get(i).getB(), found.getValue(i), 0);
+			
+			correct.get(i).getA().localize(posCorrect);
+			IntervalIndexer.indexToPosition(found.getIndex(i), dims, posFound);
+			assertArrayEquals(posCorrect, posFound);
+		}
+	}
+
 }
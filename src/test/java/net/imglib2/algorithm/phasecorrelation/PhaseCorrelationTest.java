@@ -25,6 +25,7 @@ import static org.junit.Assert.*;
 
 import java.util.Arrays;
 import java.util.Random;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 
 import org.apache.commons.math3.ode.ExpandableStatefulODE;
@@ -32,12 +33,17 @@ import org.junit.Test;
 
 import mpicbg.imglib.interpolation.linear.LinearInterpolatorFactory;
 import mpicbg.imglib.outofbounds.OutOfBoundsStrategyFactory;
+import net.imglib2.Cursor;
 import net.imglib2.FinalInterval;
 import net.imglib2.FinalRealInterval;
+import net.imglib2.Interval;
+import net.imglib2.Point;
 import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImg;
 import net.imglib2.img.array.ArrayImgFactory;
 import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.basictypeaccess.array.FloatArray;
 import net.imglib2.interpolation.randomaccess.NLinearInterpolatorFactory;
 import net.imglib2.realtransform.AffineGet;
 import net.imglib2.realtransform.AffineRandomAccessible;
@@ -46,6 +52,7 @@ import net.imglib2.realtransform.Translation2D;
 import net.imglib2.type.numeric.complex.ComplexFloatType;
 import net.imglib2.type.numeric.real.FloatType;
 import net.imglib2.util.Intervals;
+import net.imglib2.util.Pair;
 import net.imglib2.util.Util;
 import net.imglib2.view.IntervalView;
 import net.imglib2.view.Views;
@@ -183,6 +190,190 @@ public class PhaseCorrelationTest {
 			assertTrue( Math.abs( expected[d] - found[d] ) < eps );
 		
 	}
+
+	@Test
+	public void testFusedCrossPowerSpectrum() {
+		
+		Random rnd = new Random( 42 );
+		ArrayImg< ComplexFloatType, FloatArray > fft1 = ArrayImgs.complexFloats( 17, 9 );
+		ArrayImg< ComplexFloatType, FloatArray > fft2 = ArrayImgs.complexFloats( 17, 9 );
+		
+		for ( ComplexFloatType t : fft1 )
+			t.setComplexNumber( rnd.nextFloat() - 0.5f, rnd.nextFloat() - 0.5f );
+		for ( ComplexFloatType t : fft2 )
+			t.setComplexNumber( rnd.nextFloat() - 0.5f, rnd.nextFloat() - 0.5f );
+		// one element below the normalization threshold
+		fft2.firstElement().setComplexNumber( 0, 0 );
+		
+		ExecutorService service = Executors.newFixedThreadPool( Runtime.getRuntime().availableProcessors() );
+		
+		// reference: normalize, conjugate and multiply in separate passes
+		ArrayImg< ComplexFloatType, FloatArray > n1 = ArrayImgs.complexFloats( 17, 9 );
+		ArrayImg< ComplexFloatType, FloatArray > n2 = ArrayImgs.complexFloats( 17, 9 );
+		PhaseCorrelation2Util.normalizeInterval( fft1, n1, service );
+		PhaseCorrelation2Util.normalizeInterval( fft2, n2, service );
+		PhaseCorrelation2Util.complexConjInterval( n2, n2, service );
+		PhaseCorrelation2Util.multiplyComplexIntervals( n1, n2, n1, service );
+		
+		// fused on the float arrays
+		ArrayImg< ComplexFloatType, FloatArray > fused = ArrayImgs.complexFloats( 17, 9 );
+		PhaseCorrelation2Util.calculateCrossPowerSpectrum( fft1, fft2, fused, service );
+		
+		// fused through cursors (views are not ArrayImgs)
+		ArrayImg< ComplexFloatType, FloatArray > fusedCursor = ArrayImgs.complexFloats( 17, 9 );
+		PhaseCorrelation2Util.calculateCrossPowerSpectrum( Views.interval( fft1, fft1 ), Views.interval( fft2, fft2 ), fusedCursor, service );
+		
+		service.shutdown();
+		
+		Cursor< ComplexFloatType > cRef = n1.cursor();
+		Cursor< ComplexFloatType > cFused = fused.cursor();
+		Cursor< ComplexFloatType > cFusedCursor = fusedCursor.cursor();
+		
+		while ( cRef.hasNext() )
+		{
+			ComplexFloatType ref = cRef.next();
+			ComplexFloatType f = cFused.next();
+			ComplexFloatType fc = cFusedCursor.next();
+			assertEquals( ref.getRealDouble(), f.getRealDouble(), 1e-5 );
+			assertEquals( ref.getImaginaryDouble(), f.getImaginaryDouble(), 1e-5 );
+			assertEquals( ref.getRealDouble(), fc.getRealDouble(), 1e-5 );
+			assertEquals( ref.getImaginaryDouble(), fc.getImaginaryDouble(), 1e-5 );
+		}
+	}
+
+	@Test
+	public void testFFTSizePlanner() {
+		
+		FFTSizePlanner planner = new FFTSizePlanner( 10, 0.25, 0.25, false );
+		
+		// a thin overlap in z
+		FinalInterval overlap = new FinalInterval( new long[] {500, 400, 12} );
+		FFTSizePlanner.Plan plan = planner.plan( overlap, overlap );
+		
+		int[] extension = plan.getExtension();
+		long[] padded = plan.getPaddedDimensions();
+		
+		assertArrayEquals( new int[] {10, 10, 3}, extension );
+		
+		for (int d = 0; d < overlap.numDimensions(); d++)
+		{
+			// large enough for the extended image, but not inflated
+			assertTrue( padded[d] >= overlap.dimension( d ) + 2 * extension[d] );
+			assertTrue( padded[d] <= Math.ceil( ( overlap.dimension( d ) + 2 * extension[d] ) * 1.25 ) );
+		}
+		
+		// the plan is cached per shape
+		assertSame( plan, planner.plan( overlap, overlap ) );
+		
+		// the default planner estimates the costs, it does not depend on timing
+		assertArrayEquals( padded, new FFTSizePlanner().plan( overlap, overlap ).getPaddedDimensions() );
+	}
+
+	@Test
+	public void testIntegralImageCorrelation() {
+		
+		Random rnd = new Random( 42 );
+		Img< FloatType > img1 = ArrayImgs.floats( 30, 20, 10 );
+		Img< FloatType > img2 = ArrayImgs.floats( 25, 20, 12 );
+		
+		for ( FloatType t : img1 )
+			t.set( rnd.nextFloat() * 100 );
+		for ( FloatType t : img2 )
+			t.set( rnd.nextFloat() * 100 );
+		
+		IntegralImageCorrelation correlation = new IntegralImageCorrelation( img1, img2 );
+		
+		long[][] shifts = new long[][] { {0, 0, 0}, {5, -3, 2}, {-10, 7, -4}, {29, 19, 9} };
+		
+		for ( long[] shift : shifts )
+		{
+			Pair< Interval, Interval > overlap = PhaseCorrelation2Util.getOverlapIntervals( img1, img2, new Point( shift ) );
+			
+			double expected = PhaseCorrelation2Util.getCorrelation(
+					Views.zeroMin( Views.interval( img1, overlap.getA() ) ), Views.zeroMin( Views.interval( img2, overlap.getB() ) ) );
+			
+			assertEquals( expected, correlation.getCorrelation( overlap.getA(), overlap.getB() ), 1e-4 );
+		}
+	}
+
+	@Test
+	public void testPCRestrictedToExpectedShift() {
+		
+		Img< FloatType > img = ArrayImgs.floats( 200, 200 );
+		Random rnd = new Random( 42 );
+		
+		for( FloatType t : img )
+			t.set( rnd.nextFloat());
+		
+		long shiftX = -2;
+		long shiftY = 3;
+		
+		FinalInterval interval1 = new FinalInterval(new long[] {50, 50});
+		FinalInterval interval2 = Intervals.translate(interval1, shiftX, 0);
+		interval2 = Intervals.translate(interval2, shiftY, 1);
+
+		int [] extension = new int[img.numDimensions()];
+		Arrays.fill(extension, 10);
+		
+		ExecutorService service = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+		
+		RandomAccessibleInterval<FloatType> pcm = PhaseCorrelation2.calculatePCM(
+				Views.zeroMin(Views.interval(Views.extendZero( img ), interval1)),
+				Views.zeroMin(Views.interval(Views.extendZero( img ), interval2)),
+				extension, new ArrayImgFactory<FloatType>(), 
+				new FloatType(), new ArrayImgFactory<ComplexFloatType>(), new ComplexFloatType(), service);
+		
+		// the true shift is within the window around the expected shift
+		PhaseCorrelationPeak2 shiftPeak = PhaseCorrelation2.getShift(pcm,
+				Views.zeroMin(Views.interval(Views.extendZero( img ), interval1)),
+				Views.zeroMin(Views.interval(Views.extendZero( img ), interval2)),
+				5, 0, false, false, new double[] {-1, 1}, 2.5, service);
+		
+		long[] found = new long[img.numDimensions()];
+		shiftPeak.getShift().localize(found);
+		assertArrayEquals(new long[]{shiftX, shiftY}, found);
+		
+		// the true shift is outside of the window: the best shift within the window is returned, not the true one
+		shiftPeak = PhaseCorrelation2.getShift(pcm,
+				Views.zeroMin(Views.interval(Views.extendZero( img ), interval1)),
+				Views.zeroMin(Views.interval(Views.extendZero( img ), interval2)),
+				5, 0, false, false, new double[] {15, -12}, 2, service);
+		
+		assertNotNull( shiftPeak );
+		shiftPeak.getShift().localize(found);
+		assertTrue( Math.abs( found[0] - 15 ) <= 2 );
+		assertTrue( Math.abs( found[1] + 12 ) <= 2 );
+		
+		service.shutdown();
+	}
 	
-	
+	@Test
+	public void testUpsampledDFTRefinement() {
+		
+		long[] padded = new long[] {64, 48};
+		double[] subpixelShift = new double[] {10.37, -5.81};
+		
+		// cross power spectrum of a pure (subpixel) translation
+		ArrayImg< ComplexFloatType, FloatArray > cross = ArrayImgs.complexFloats( padded[0] / 2 + 1, padded[1] );
+		Cursor< ComplexFloatType > c = cross.localizingCursor();
+		while ( c.hasNext() )
+		{
+			c.fwd();
+			double phase = 0;
+			for ( int d = 0; d < padded.length; d++ )
+			{
+				long k = c.getLongPosition( d );
+				double f = ( d == 0 || k < ( padded[d] + 1 ) / 2 ) ? k : k - padded[d];
+				phase -= 2 * Math.PI * f * subpixelShift[d] / padded[d];
+			}
+			c.get().setComplexNumber( Math.cos( phase ), Math.sin( phase ) );
+		}
+		
+		long[] location = new long[] {10, -6};
+		double[] offset = UpsampledDFTRefinement.refine( cross, padded, location, 100 );
+		
+		for ( int d = 0; d < padded.length; d++ )
+			assertEquals( subpixelShift[d], location[d] + offset[d], 0.011 );
+	}
+
 }
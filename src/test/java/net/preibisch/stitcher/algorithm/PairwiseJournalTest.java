@@ -0,0 +1,205 @@
+/*-
+ * #%L
+ * Multiview stitching of large datasets.
+ * %%
+ * Copyright (C) 2016 - 2017 Big Stitcher developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package net.preibisch.stitcher.algorithm;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import mpicbg.spim.data.registration.ViewRegistration;
+import mpicbg.spim.data.registration.ViewRegistrations;
+import mpicbg.spim.data.registration.ViewTransformAffine;
+import mpicbg.spim.data.sequence.ViewId;
+import net.imglib2.FinalRealInterval;
+import net.imglib2.realtransform.AffineTransform3D;
+import net.imglib2.util.Pair;
+import net.imglib2.util.ValuePair;
+import net.preibisch.mvrecon.fiji.spimdata.stitchingresults.PairwiseStitchingResult;
+import net.preibisch.mvrecon.process.interestpointregistration.pairwise.constellation.grouping.Group;
+
+public class PairwiseJournalTest
+{
+	private static final String fingerprint = "Phase Correlation ds=[2, 2, 1] peaks=5";
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void testResultsAreReadBack() throws IOException
+	{
+		final ViewRegistrations vrs = registrations( 3 );
+		final File file = folder.newFile( "journal.txt" );
+
+		final PairwiseJournal journal = new PairwiseJournal( file, fingerprint );
+		journal.open( false );
+		journal.append( result( 0, 1, 0.9, vrs ) );
+		journal.append( result( 1, 2, 0.8, vrs ) );
+		journal.close();
+
+		final List< PairwiseStitchingResult< ViewId > > results = new PairwiseJournal( file, fingerprint ).read( vrs );
+		assertEquals( 2, results.size() );
+		assertEquals( PairwiseJournal.toLine( result( 0, 1, 0.9, vrs ) ), PairwiseJournal.toLine( results.get( 0 ) ) );
+		assertEquals( PairwiseJournal.toLine( result( 1, 2, 0.8, vrs ) ), PairwiseJournal.toLine( results.get( 1 ) ) );
+		assertArrayEquals( new double[] { 1, 0, 0, 1, 0, 1, 0, 2, 0, 0, 1, 3 }, results.get( 0 ).getTransform().getRowPackedCopy(), 0 );
+
+		// other settings, the journal is not used
+		assertTrue( new PairwiseJournal( file, "Phase Correlation ds=[1, 1, 1] peaks=5" ).read( vrs ).isEmpty() );
+	}
+
+	@Test
+	public void testLineWithWrongChecksumIsSkipped() throws IOException
+	{
+		final ViewRegistrations vrs = registrations( 3 );
+		final File file = folder.newFile( "journal.txt" );
+
+		final PairwiseJournal journal = new PairwiseJournal( file, fingerprint );
+		journal.open( false );
+		journal.append( result( 0, 1, 0.9, vrs ) );
+		journal.append( result( 1, 2, 0.8, vrs ) );
+		journal.close();
+
+		// change the correlation of the first result, its checksum does not match anymore
+		final List< String > lines = Files.readAllLines( file.toPath(), StandardCharsets.UTF_8 );
+		assertTrue( lines.get( 1 ).contains( ";0.9;" ) );
+		lines.set( 1, lines.get( 1 ).replace( ";0.9;", ";0.7;" ) );
+		Files.write( file.toPath(), lines, StandardCharsets.UTF_8 );
+
+		final List< PairwiseStitchingResult< ViewId > > results = new PairwiseJournal( file, fingerprint ).read( vrs );
+		assertEquals( 1, results.size() );
+		assertEquals( 0.8, results.get( 0 ).r(), 0 );
+	}
+
+	@Test
+	public void testIncompleteLastLineIsCut() throws IOException
+	{
+		final ViewRegistrations vrs = registrations( 3 );
+		final File file = folder.newFile( "journal.txt" );
+
+		final PairwiseJournal journal = new PairwiseJournal( file, fingerprint );
+		journal.open( false );
+		journal.append( result( 0, 1, 0.9, vrs ) );
+		journal.close();
+
+		// we were killed while writing the second result
+		final long complete = file.length();
+		final String cut = PairwiseJournal.toLine( result( 1, 2, 0.8, vrs ) );
+		try ( final FileWriter out = new FileWriter( file, true ) )
+		{
+			out.write( cut.substring( 0, cut.length() / 2 ) );
+		}
+
+		assertEquals( complete, PairwiseJournal.truncateToLastLine( file ) );
+		assertEquals( complete, file.length() );
+
+		// resuming appends after the last complete line
+		final PairwiseJournal resumed = new PairwiseJournal( file, fingerprint );
+		resumed.open( true );
+		resumed.append( result( 1, 2, 0.8, vrs ) );
+		resumed.close();
+
+		final List< String > lines = Files.readAllLines( file.toPath(), StandardCharsets.UTF_8 );
+		assertEquals( 3, lines.size() );
+		assertEquals( fingerprint, lines.get( 0 ) );
+		assertEquals( 2, new PairwiseJournal( file, fingerprint ).read( vrs ).size() );
+	}
+
+	@Test
+	public void testFailedPairsAreNotResults() throws IOException
+	{
+		final ViewRegistrations vrs = registrations( 3 );
+		final File file = folder.newFile( "journal.txt" );
+
+		final PairwiseJournal journal = new PairwiseJournal( file, fingerprint );
+		journal.open( false );
+		journal.append( result( 0, 1, 0.9, vrs ) );
+		journal.appendFailed( pair( 1, 2 ), hash( 1, 2, vrs ) );
+		journal.close();
+
+		final List< Pair< Group< ViewId >, Group< ViewId > > > failedPairs = new ArrayList<>();
+		final List< PairwiseStitchingResult< ViewId > > results = new PairwiseJournal( file, fingerprint ).read( vrs, failedPairs );
+
+		assertEquals( 1, results.size() );
+		assertEquals( 0.9, results.get( 0 ).r(), 0 );
+		assertEquals( 1, failedPairs.size() );
+		assertEquals( new ViewId( 0, 1 ), failedPairs.get( 0 ).getA().iterator().next() );
+		assertEquals( new ViewId( 0, 2 ), failedPairs.get( 0 ).getB().iterator().next() );
+
+		// the registration of view 2 changed, the pair has to be computed again
+		final ViewRegistrations moved = registrations( 3 );
+		moved.getViewRegistration( new ViewId( 0, 2 ) ).preconcatenateTransform( new ViewTransformAffine( "moved", translation( 5, 0, 0 ) ) );
+		moved.getViewRegistration( new ViewId( 0, 2 ) ).updateModel();
+
+		failedPairs.clear();
+		assertEquals( 1, new PairwiseJournal( file, fingerprint ).read( moved, failedPairs ).size() );
+		assertTrue( failedPairs.isEmpty() );
+	}
+
+	/*
+	 * views of timepoint 0 next to each other in x
+	 */
+	private static ViewRegistrations registrations( final int numViews )
+	{
+		final HashMap< ViewId, ViewRegistration > vrs = new HashMap<>();
+		for ( int i = 0; i < numViews; ++i )
+			vrs.put( new ViewId( 0, i ), new ViewRegistration( 0, i, translation( 90 * i, 0, 0 ) ) );
+		return new ViewRegistrations( vrs );
+	}
+
+	private static AffineTransform3D translation( final double... t )
+	{
+		final AffineTransform3D transform = new AffineTransform3D();
+		transform.setTranslation( t );
+		return transform;
+	}
+
+	private static Pair< Group< ViewId >, Group< ViewId > > pair( final int a, final int b )
+	{
+		return new ValuePair<>( new Group<>( Arrays.asList( new ViewId( 0, a ) ) ), new Group<>( Arrays.asList( new ViewId( 0, b ) ) ) );
+	}
+
+	private static double hash( final int a, final int b, final ViewRegistrations vrs )
+	{
+		return PairwiseStitchingResult.calculateHash( vrs.getViewRegistration( new ViewId( 0, a ) ), vrs.getViewRegistration( new ViewId( 0, b ) ) );
+	}
+
+	private static PairwiseStitchingResult< ViewId > result( final int a, final int b, final double r, final ViewRegistrations vrs )
+	{
+		return new PairwiseStitchingResult<>(
+				pair( a, b ),
+				new FinalRealInterval( new double[] { 90 * b, 0, 0 }, new double[] { 90 * a + 99, 99, 9 } ),
+				translation( 1, 2, 3 ),
+				r,
+				hash( a, b, vrs ) );
+	}
+}
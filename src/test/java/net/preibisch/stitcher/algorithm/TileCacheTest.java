@@ -0,0 +1,144 @@
+/*-
+ * #%L
+ * Multiview stitching of large datasets.
+ * %%
+ * Copyright (C) 2016 - 2017 Big Stitcher developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package net.preibisch.stitcher.algorithm;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import mpicbg.spim.data.sequence.ViewId;
+import net.imglib2.Interval;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
+
+public class TileCacheTest
+{
+	@Test
+	public void testCloseRegionsAreLoadedOnce()
+	{
+		final TileCache cache = new TileCache( Long.MAX_VALUE );
+		final ViewId vid = new ViewId( 0, 0 );
+		final long[] ds = new long[] { 1, 1, 1 };
+
+		// the overlap with the right neighbour, requested by two pairs with different margins
+		final Interval right = Intervals.createMinMax( 90, 0, 0, 99, 99, 9 );
+		final Interval rightMargin = Intervals.createMinMax( 88, 0, 0, 99, 99, 9 );
+		cache.planRegion( vid, ds, right );
+		cache.planRegion( vid, ds, rightMargin );
+
+		final AtomicInteger nLoads = new AtomicInteger();
+		final Interval[] loaded = new Interval[ 1 ];
+		final TileCache.Loader< FloatType > loader = countingLoader( nLoads, loaded );
+
+		final TileCache.Entry entry1 = cache.acquire( vid, ds, right, loader );
+		final TileCache.Entry entry2 = cache.acquire( vid, ds, rightMargin, loader );
+
+		// one load of the union of both regions
+		assertEquals( 1, nLoads.get() );
+		assertSame( entry1, entry2 );
+		assertArrayEquals( new long[] { 88, 0, 0 }, Intervals.minAsLongArray( loaded[ 0 ] ) );
+		assertArrayEquals( new long[] { 99, 99, 9 }, Intervals.maxAsLongArray( loaded[ 0 ] ) );
+
+		// every pair only sees its own region
+		final RandomAccessibleInterval< FloatType > img1 = entry1.get( right );
+		final RandomAccessibleInterval< FloatType > img2 = entry2.get( rightMargin );
+		assertArrayEquals( new long[] { 100, 100, 10 }, Intervals.dimensionsAsLongArray( img1 ) );
+		assertEquals( 1, getValue( img1, 95, 10, 5 ), 0 );
+		assertEquals( 0, getValue( img1, 89, 10, 5 ), 0 );
+		assertEquals( 1, getValue( img2, 89, 10, 5 ), 0 );
+
+		cache.release( entry1 );
+		cache.release( entry2 );
+
+		// other downsampling, nothing planned
+		cache.acquire( vid, new long[] { 2, 2, 1 }, Intervals.createMinMax( 0, 0, 0, 9, 9, 4 ), loader );
+		assertEquals( 2, nLoads.get() );
+	}
+
+	@Test
+	public void testDistantRegionsAreLoadedSeparately()
+	{
+		final TileCache cache = new TileCache( Long.MAX_VALUE );
+		final ViewId vid = new ViewId( 0, 0 );
+		final long[] ds = new long[] { 1, 1, 1 };
+
+		// the overlaps with the right and the bottom neighbour, their union would be almost the whole tile
+		final Interval right = Intervals.createMinMax( 90, 0, 0, 99, 99, 9 );
+		final Interval bottom = Intervals.createMinMax( 0, 90, 0, 99, 99, 9 );
+		cache.planRegion( vid, ds, right );
+		cache.planRegion( vid, ds, bottom );
+
+		final AtomicInteger nLoads = new AtomicInteger();
+		final Interval[] loaded = new Interval[ 1 ];
+		final TileCache.Loader< FloatType > loader = countingLoader( nLoads, loaded );
+
+		final TileCache.Entry entry1 = cache.acquire( vid, ds, right, loader );
+		assertArrayEquals( Intervals.minAsLongArray( right ), Intervals.minAsLongArray( loaded[ 0 ] ) );
+		assertArrayEquals( Intervals.maxAsLongArray( right ), Intervals.maxAsLongArray( loaded[ 0 ] ) );
+
+		final TileCache.Entry entry2 = cache.acquire( vid, ds, bottom, loader );
+		assertArrayEquals( Intervals.minAsLongArray( bottom ), Intervals.minAsLongArray( loaded[ 0 ] ) );
+		assertArrayEquals( Intervals.maxAsLongArray( bottom ), Intervals.maxAsLongArray( loaded[ 0 ] ) );
+
+		assertEquals( 2, nLoads.get() );
+		assertNotSame( entry1, entry2 );
+
+		// a second request for the same overlap is served from the cache
+		final TileCache.Entry entry3 = cache.acquire( vid, ds, right, loader );
+		assertEquals( 2, nLoads.get() );
+		assertSame( entry1, entry3 );
+
+		cache.release( entry1 );
+		cache.release( entry2 );
+		cache.release( entry3 );
+	}
+
+	/*
+	 * loads a tile of ones (only inside the requested region, like DownsampleTools), counts the loads and remembers the last region
+	 */
+	private static TileCache.Loader< FloatType > countingLoader( final AtomicInteger nLoads, final Interval[] loaded )
+	{
+		return region ->
+		{
+			nLoads.incrementAndGet();
+			loaded[ 0 ] = region;
+			final Img< FloatType > img = ArrayImgs.floats( 100, 100, 10 );
+			for ( final FloatType t : Views.interval( img, region ) )
+				t.set( 1 );
+			return img;
+		};
+	}
+
+	private static float getValue( final RandomAccessibleInterval< FloatType > img, final long... position )
+	{
+		final RandomAccess< FloatType > ra = img.randomAccess();
+		ra.setPosition( position );
+		return ra.get().get();
+	}
+}
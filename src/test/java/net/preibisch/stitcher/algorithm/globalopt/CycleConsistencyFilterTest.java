@@ -0,0 +1,112 @@
+/*-
+ * #%L
+ * Multiview stitching of large datasets.
+ * %%
+ * Copyright (C) 2016 - 2017 Big Stitcher developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package net.preibisch.stitcher.algorithm.globalopt;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import mpicbg.spim.data.sequence.ViewId;
+import net.imglib2.realtransform.AffineTransform3D;
+import net.imglib2.realtransform.Translation3D;
+import net.imglib2.util.Pair;
+import net.imglib2.util.ValuePair;
+import net.preibisch.mvrecon.fiji.spimdata.stitchingresults.PairwiseStitchingResult;
+import net.preibisch.mvrecon.process.interestpointregistration.pairwise.constellation.grouping.Group;
+
+public class CycleConsistencyFilterTest
+{
+
+	@Test
+	public void testRemovesPlantedWrongLink()
+	{
+		final int w = 4, h = 4;
+		final double[][] truth = TileGrids.randomPositions( w * h, 6 );
+		final List< Group< ViewId > > groups = TileGrids.groups( w * h );
+		final List< PairwiseStitchingResult< ViewId > > results = TileGrids.gridLinks( groups, truth, w, h, 0.5 );
+
+		// a link in the middle of the grid is 20 px off
+		final int wrong = 10;
+		final PairwiseStitchingResult< ViewId > wrongLink = TileGrids.link( groups, truth, viewOf( results.get( wrong ).pair().getA() ), viewOf( results.get( wrong ).pair().getB() ), 20 );
+		results.set( wrong, wrongLink );
+
+		final ArrayList< Pair< Group< ViewId >, Group< ViewId > > > removed = new ArrayList<>();
+		final List< PairwiseStitchingResult< ViewId > > remaining = CycleConsistencyFilter.filter( results, 5, removed );
+
+		assertEquals( 1, removed.size() );
+		assertSame( wrongLink.pair(), removed.get( 0 ) );
+		assertEquals( results.size() - 1, remaining.size() );
+		assertFalse( remaining.contains( wrongLink ) );
+	}
+
+	@Test
+	public void testKeepsConsistentGrid()
+	{
+		final int w = 4, h = 4;
+		final double[][] truth = TileGrids.randomPositions( w * h, 7 );
+		final List< Group< ViewId > > groups = TileGrids.groups( w * h );
+		final List< PairwiseStitchingResult< ViewId > > results = TileGrids.gridLinks( groups, truth, w, h, 0.5 );
+
+		assertEquals( results.size(), CycleConsistencyFilter.filter( results, 5, null ).size() );
+	}
+
+	@Test
+	public void testComparesDuplicateLinks()
+	{
+		final int w = 4, h = 4;
+		final double[][] truth = TileGrids.randomPositions( w * h, 8 );
+		final List< Group< ViewId > > groups = TileGrids.groups( w * h );
+		final List< PairwiseStitchingResult< ViewId > > results = TileGrids.gridLinks( groups, truth, w, h, 0.5 );
+
+		// the same link in the other direction, once agreeing and once 20 px off with a lower correlation
+		final PairwiseStitchingResult< ViewId > agreeing = reversed( results.get( 3 ), 0, 0.8 );
+		final PairwiseStitchingResult< ViewId > wrong = reversed( results.get( 10 ), 20, 0.5 );
+		results.add( agreeing );
+		results.add( wrong );
+
+		final ArrayList< Pair< Group< ViewId >, Group< ViewId > > > removed = new ArrayList<>();
+		final List< PairwiseStitchingResult< ViewId > > remaining = CycleConsistencyFilter.filter( results, 5, removed );
+
+		assertEquals( 1, removed.size() );
+		assertSame( wrong.pair(), removed.get( 0 ) );
+		assertTrue( remaining.contains( agreeing ) );
+	}
+
+	private static int viewOf( final Group< ViewId > group )
+	{
+		return group.getViews().iterator().next().getViewSetupId();
+	}
+
+	/*
+	 * the link from B to A (plus an error in x)
+	 */
+	private static PairwiseStitchingResult< ViewId > reversed( final PairwiseStitchingResult< ViewId > psr, final double error, final double r )
+	{
+		final double[] m = psr.getTransform().getRowPackedCopy();
+		final AffineTransform3D t = new AffineTransform3D().preConcatenate( new Translation3D( -m[ 3 ] + error, -m[ 7 ], -m[ 11 ] ) );
+
+		return new PairwiseStitchingResult<>( new ValuePair<>( psr.pair().getB(), psr.pair().getA() ), null, t, r, 0.0 );
+	}
+}
@@ -0,0 +1,155 @@
+/*-
+ * #%L
+ * Multiview stitching of large datasets.
+ * %%
+ * Copyright (C) 2016 - 2017 Big Stitcher developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package net.preibisch.stitcher.algorithm.globalopt;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+import org.junit.Test;
+
+import mpicbg.spim.data.sequence.ViewId;
+import net.imglib2.realtransform.AffineTransform3D;
+import net.imglib2.util.Pair;
+import net.preibisch.mvrecon.fiji.spimdata.stitchingresults.PairwiseStitchingResult;
+import net.preibisch.mvrecon.process.interestpointregistration.pairwise.constellation.grouping.Group;
+
+public class SparseTranslationSolverTest
+{
+
+	@Test
+	public void testReproducesTranslationGrid()
+	{
+		final int w = 5, h = 4;
+		final double[][] truth = TileGrids.randomPositions( w * h, 1 );
+		final List< Group< ViewId > > groups = TileGrids.groups( w * h );
+		final List< PairwiseStitchingResult< ViewId > > results = TileGrids.gridLinks( groups, truth, w, h, 0 );
+
+		// the fixed view stays at 0, all others are placed relative to it
+		final HashMap< ViewId, AffineTransform3D > transforms = SparseTranslationSolver.compute(
+				results, Arrays.asList( new ViewId( 0, 0 ) ), groups );
+
+		for ( int i = 0; i < w * h; ++i )
+			for ( int d = 0; d < 3; ++d )
+				assertEquals( truth[ i ][ d ] - truth[ 0 ][ d ], transforms.get( new ViewId( 0, i ) ).getTranslation()[ d ], 1e-4 );
+	}
+
+	@Test
+	public void testFixedViewsDoNotMove()
+	{
+		final int w = 4, h = 4;
+		final double[][] truth = TileGrids.randomPositions( w * h, 2 );
+
+		// two fixed views that are consistent with the links
+		truth[ 0 ] = new double[] { 0, 0, 0 };
+		truth[ w * h - 1 ] = new double[] { 0, 0, 0 };
+
+		final List< Group< ViewId > > groups = TileGrids.groups( w * h );
+		final List< PairwiseStitchingResult< ViewId > > results = TileGrids.gridLinks( groups, truth, w, h, 0 );
+
+		final HashMap< ViewId, AffineTransform3D > transforms = SparseTranslationSolver.compute(
+				results, Arrays.asList( new ViewId( 0, 0 ), new ViewId( 0, w * h - 1 ) ), groups );
+
+		for ( int i = 0; i < w * h; ++i )
+			for ( int d = 0; d < 3; ++d )
+				assertEquals( truth[ i ][ d ], transforms.get( new ViewId( 0, i ) ).getTranslation()[ d ], 1e-4 );
+	}
+
+	@Test
+	public void testUnconnectedGroupsKeepTheirFirstGroupInPlace()
+	{
+		final double[][] truth = TileGrids.randomPositions( 6, 3 );
+		final List< Group< ViewId > > groups = TileGrids.groups( 6 );
+
+		// 0 - 1 - 2 and 3 - 4 - 5, only view 0 is fixed
+		final List< PairwiseStitchingResult< ViewId > > results = new ArrayList<>();
+		results.add( TileGrids.link( groups, truth, 0, 1, 0 ) );
+		results.add( TileGrids.link( groups, truth, 1, 2, 0 ) );
+		results.add( TileGrids.link( groups, truth, 3, 4, 0 ) );
+		results.add( TileGrids.link( groups, truth, 4, 5, 0 ) );
+
+		final HashMap< ViewId, AffineTransform3D > transforms = SparseTranslationSolver.compute(
+				results, Arrays.asList( new ViewId( 0, 0 ) ), groups );
+
+		for ( int i = 0; i < 6; ++i )
+		{
+			final int first = i < 3 ? 0 : 3;
+			for ( int d = 0; d < 3; ++d )
+				assertEquals( truth[ i ][ d ] - truth[ first ][ d ], transforms.get( new ViewId( 0, i ) ).getTranslation()[ d ], 1e-4 );
+		}
+	}
+
+	@Test
+	public void testDropsWrongLink()
+	{
+		final int w = 6, h = 6;
+		final double[][] truth = TileGrids.randomPositions( w * h, 4 );
+		final List< Group< ViewId > > groups = TileGrids.groups( w * h );
+		final List< PairwiseStitchingResult< ViewId > > results = TileGrids.gridLinks( groups, truth, w, h, 0 );
+
+		// one link is 20 px off
+		final int wrong = 17;
+		final PairwiseStitchingResult< ViewId > correct = results.get( wrong );
+		final int a = correct.pair().getA().getViews().iterator().next().getViewSetupId();
+		final int b = correct.pair().getB().getViews().iterator().next().getViewSetupId();
+		results.set( wrong, TileGrids.link( groups, truth, a, b, 20 ) );
+
+		for ( final boolean severalLinksPerRound : new boolean[] { true, false } )
+		{
+			final ArrayList< Pair< Group< ViewId >, Group< ViewId > > > removed = new ArrayList<>();
+			final HashMap< ViewId, AffineTransform3D > transforms = SparseTranslationSolver.compute(
+					results, Arrays.asList( new ViewId( 0, 0 ) ), groups,
+					2.5, 3.5, 0.75, severalLinksPerRound, removed, null, false );
+
+			// dropping several links per round may also drop a correct link next to the wrong one
+			assertTrue( removed.contains( results.get( wrong ).pair() ) );
+			if ( !severalLinksPerRound )
+				assertEquals( 1, removed.size() );
+
+			for ( int i = 0; i < w * h; ++i )
+				for ( int d = 0; d < 3; ++d )
+					assertEquals( truth[ i ][ d ] - truth[ 0 ][ d ], transforms.get( new ViewId( 0, i ) ).getTranslation()[ d ], 1e-4 );
+		}
+	}
+
+	@Test
+	public void testMultigridAgreesWithConjugateGradients()
+	{
+		// large enough for several multigrid levels, noisy so that the solution is not trivial
+		final int w = 40, h = 30;
+		final double[][] truth = TileGrids.randomPositions( w * h, 5 );
+		final List< Group< ViewId > > groups = TileGrids.groups( w * h );
+		final List< PairwiseStitchingResult< ViewId > > results = TileGrids.gridLinks( groups, truth, w, h, 2 );
+
+		final HashMap< ViewId, AffineTransform3D > pcg = SparseTranslationSolver.compute(
+				results, Arrays.asList( new ViewId( 0, 0 ) ), groups, -1, -1, 0, true, null, null, false );
+		final HashMap< ViewId, AffineTransform3D > multigrid = SparseTranslationSolver.compute(
+				results, Arrays.asList( new ViewId( 0, 0 ) ), groups, -1, -1, 0, true, null, null, true );
+
+		for ( int i = 0; i < w * h; ++i )
+			for ( int d = 0; d < 3; ++d )
+				assertEquals( pcg.get( new ViewId( 0, i ) ).getTranslation()[ d ], multigrid.get( new ViewId( 0, i ) ).getTranslation()[ d ], 1e-4 );
+	}
+}
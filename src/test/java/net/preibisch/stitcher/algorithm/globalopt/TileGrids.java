@@ -0,0 +1,93 @@
+/*-
+ * #%L
+ * Multiview stitching of large datasets.
+ * %%
+ * Copyright (C) 2016 - 2017 Big Stitcher developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package net.preibisch.stitcher.algorithm.globalopt;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import mpicbg.spim.data.sequence.ViewId;
+import net.imglib2.realtransform.AffineTransform3D;
+import net.imglib2.realtransform.Translation3D;
+import net.imglib2.util.Pair;
+import net.imglib2.util.ValuePair;
+import net.preibisch.mvrecon.fiji.spimdata.stitchingresults.PairwiseStitchingResult;
+import net.preibisch.mvrecon.process.interestpointregistration.pairwise.constellation.grouping.Group;
+
+/**
+ * grids of tiles with known positions and the pairwise links between them, for the tests of the global optimization
+ */
+class TileGrids
+{
+	static double[][] randomPositions( final int n, final long seed )
+	{
+		final Random rnd = new Random( seed );
+		final double[][] truth = new double[ n ][ 3 ];
+		for ( final double[] t : truth )
+			for ( int d = 0; d < 3; ++d )
+				t[ d ] = rnd.nextDouble() * 100 - 50;
+
+		return truth;
+	}
+
+	static List< Group< ViewId > > groups( final int n )
+	{
+		final List< Group< ViewId > > groups = new ArrayList<>();
+		for ( int i = 0; i < n; ++i )
+			groups.add( new Group<>( new ViewId( 0, i ) ) );
+
+		return groups;
+	}
+
+	/*
+	 * links to the right and bottom neighbour of every tile of a w x h grid, with a random error of up to noise px
+	 */
+	static List< PairwiseStitchingResult< ViewId > > gridLinks( final List< Group< ViewId > > groups, final double[][] truth, final int w, final int h, final double noise )
+	{
+		final Random rnd = new Random( 42 );
+		final List< PairwiseStitchingResult< ViewId > > results = new ArrayList<>();
+		for ( int y = 0; y < h; ++y )
+			for ( int x = 0; x < w; ++x )
+			{
+				if ( x + 1 < w )
+					results.add( link( groups, truth, y * w + x, y * w + x + 1, noise * ( 2 * rnd.nextDouble() - 1 ) ) );
+				if ( y + 1 < h )
+					results.add( link( groups, truth, y * w + x, ( y + 1 ) * w + x, noise * ( 2 * rnd.nextDouble() - 1 ) ) );
+			}
+
+		return results;
+	}
+
+	/*
+	 * the shift from a to b (plus an error in x)
+	 */
+	static PairwiseStitchingResult< ViewId > link( final List< Group< ViewId > > groups, final double[][] truth, final int a, final int b, final double error )
+	{
+		final Pair< Group< ViewId >, Group< ViewId > > pair = new ValuePair<>( groups.get( a ), groups.get( b ) );
+		final AffineTransform3D t = new AffineTransform3D().preConcatenate( new Translation3D(
+				truth[ b ][ 0 ] - truth[ a ][ 0 ] + error,
+				truth[ b ][ 1 ] - truth[ a ][ 1 ],
+				truth[ b ][ 2 ] - truth[ a ][ 2 ] ) );
+
+		return new PairwiseStitchingResult<>( pair, null, t, 0.9, 0.0 );
+	}
+}